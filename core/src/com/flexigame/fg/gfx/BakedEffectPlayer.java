@@ -0,0 +1,128 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.g2d.Batch;
+import com.badlogic.gdx.graphics.g2d.TextureRegion;
+
+/**
+ * Plays back an effect baked with LayerEffectBaker (sprite sheet + manifest).
+ * Each frame is a single textured quad - no masking shader, no second texture unit.
+ */
+public class BakedEffectPlayer {
+    /* Sprite sheet texture - not owned by the player */
+    private Texture sheetTexture;
+    /* One region per unique frame (sheet cell) */
+    private TextureRegion[] cells;
+    /* Sheet cell for every frame of the loop */
+    private int[] frameCells;
+    /* Delta used when baking (duration of single frame) */
+    private float frameDuration;
+    /* Current playback time in seconds */
+    private float time;
+    /* Current frame index */
+    private int frame;
+    /* Is playback running? */
+    private boolean playing;
+
+    //-------------------------------------------------------------------------
+
+    public BakedEffectPlayer(Texture sheetTexture, FileHandle manifest) {
+        if (sheetTexture == null || manifest == null)
+            throw new RuntimeException("Sheet texture and manifest cannot be NULL!");
+        this.sheetTexture = sheetTexture;
+        this.time = 0.0f;
+        this.frame = 0;
+        this.playing = true;
+        parseManifest(manifest);
+    }
+
+    private void parseManifest(FileHandle manifest) {
+        String[] lines = manifest.readString("UTF-8").split("\n");
+        int numFrames = 0, numUnique = 0, width = 0, height = 0, columns = 1;
+        int line = 0;
+        for (; line < lines.length; line++) {
+            String[] tokens = lines[line].trim().split(" ");
+            if (tokens[0].equals("frames"))
+                numFrames = Integer.parseInt(tokens[1]);
+            else if (tokens[0].equals("unique"))
+                numUnique = Integer.parseInt(tokens[1]);
+            else if (tokens[0].equals("size")) {
+                width = Integer.parseInt(tokens[1]);
+                height = Integer.parseInt(tokens[2]);
+            } else if (tokens[0].equals("columns"))
+                columns = Integer.parseInt(tokens[1]);
+            else if (tokens[0].equals("delta"))
+                frameDuration = Float.parseFloat(tokens[1]);
+            else
+                break; // frame cells start here
+        }
+        if (numFrames <= 0 || numUnique <= 0 || frameDuration <= 0.0f)
+            throw new RuntimeException("Invalid bake manifest: " + manifest.path());
+        this.cells = new TextureRegion[numUnique];
+        for (int i = 0; i < numUnique; i++) {
+            cells[i] = new TextureRegion(sheetTexture,
+                    (i % columns) * width, (i / columns) * height, width, height);
+        }
+        this.frameCells = new int[numFrames];
+        for (int i = 0; i < numFrames && line < lines.length; i++, line++)
+            frameCells[i] = Integer.parseInt(lines[line].trim());
+    } // void parseManifest(...)
+
+    //-------------------------------------------------------------------------
+
+    public Texture getSheetTexture() {
+        return sheetTexture;
+    }
+
+    public int getFrameCount() {
+        return frameCells.length;
+    }
+
+    public int getFrame() {
+        return frame;
+    }
+
+    public float getDuration() {
+        return frameCells.length * frameDuration;
+    }
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    public void play() {
+        this.playing = true;
+    }
+
+    public void pause() {
+        this.playing = false;
+    }
+
+    public void reset() {
+        this.time = 0.0f;
+        this.frame = 0;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public void update(float delta) {
+        if (!playing)
+            return;
+        time += delta;
+        final float duration = getDuration();
+        if (time >= duration)
+            time = time % duration;
+        frame = (int) (time / frameDuration);
+        if (frame >= frameCells.length)
+            frame = frameCells.length - 1;
+    }
+
+    public void draw(Batch batch, float x, float y, float width, float height) {
+        if (batch == null)
+            return;
+        batch.draw(cells[frameCells[frame]], x, y, width, height);
+    }
+
+    //-------------------------------------------------------------------------
+} // class BakedEffectPlayer
@@ -0,0 +1,186 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.TextureData;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Texture data decoded from an image file and reduced by an integer divisor - used
+ * for the lower resolution masks (LayerInfo.Quality.LOW_RES_MASK). The image is
+ * halved until it reaches the target size, every texel averaging the texels it
+ * covers. Formats with 8 bit channels are averaged directly on the bytes - blending
+ * and filter of Pixmap are global in libgdx, the packed 16 bit formats drawn with
+ * them get the previous blending back.
+ *
+ * Managed - after context loss the file is decoded and reduced again.
+ */
+public class DownscaledTextureData implements TextureData {
+    /* Source image */
+    private final FileHandle file;
+    /* Size of the source divided by this (power of two works best) */
+    private final int divisor;
+    /* Size after reducing (known after the first prepare()) */
+    private int width;
+    private int height;
+    private Pixmap.Format format;
+    /* Reduced image (valid between prepare() and upload) */
+    private Pixmap pixmap;
+
+    //-------------------------------------------------------------------------
+
+    public DownscaledTextureData(FileHandle file, int divisor) {
+        if (file == null)
+            throw new RuntimeException("Downscaled texture file cannot be NULL!");
+        if (divisor < 1)
+            throw new RuntimeException("Invalid downscale divisor: " + divisor);
+        this.file = file;
+        this.divisor = divisor;
+        this.width = 0;
+        this.height = 0;
+        this.format = Pixmap.Format.RGBA8888;
+        this.pixmap = null;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public FileHandle getFile() {
+        return file;
+    }
+
+    public int getDivisor() {
+        return divisor;
+    }
+
+    //-------------------------------------------------------------------------
+
+    @Override
+    public TextureDataType getType() {
+        return TextureDataType.Pixmap;
+    }
+
+    @Override
+    public boolean isPrepared() {
+        return pixmap != null;
+    }
+
+    @Override
+    public void prepare() {
+        if (pixmap != null)
+            throw new RuntimeException("Downscaled texture data already prepared: " + file.path());
+        Pixmap current = new Pixmap(file);
+        format = current.getFormat();
+        final int targetWidth = Math.max(1, current.getWidth() / divisor);
+        final int targetHeight = Math.max(1, current.getHeight() / divisor);
+        while (current.getWidth() != targetWidth || current.getHeight() != targetHeight) {
+            // at most halve in one pass - bilinear filter averages 2x2 texels
+            final int nextWidth = Math.max(targetWidth, current.getWidth() / 2);
+            final int nextHeight = Math.max(targetHeight, current.getHeight() / 2);
+            Pixmap next = new Pixmap(nextWidth, nextHeight, format);
+            if (format == Pixmap.Format.RGB565 || format == Pixmap.Format.RGBA4444)
+                drawHalved(current, next);
+            else
+                averageHalved(current, next, RawTextureData.bytesPerPixel(format));
+            current.dispose();
+            current = next;
+        }
+        width = targetWidth;
+        height = targetHeight;
+        pixmap = current;
+    } // void prepare()
+
+    /**
+     * Every target texel is the average of the source block it covers (at most
+     * 2x2 texels) - channel by channel, all channels are bytes.
+     */
+    static void averageHalved(Pixmap source, Pixmap target, int bytesPerPixel) {
+        final ByteBuffer from = source.getPixels();
+        final ByteBuffer to = target.getPixels();
+        final int sourceWidth = source.getWidth();
+        final int sourceHeight = source.getHeight();
+        final int targetWidth = target.getWidth();
+        final int targetHeight = target.getHeight();
+        for (int y = 0; y < targetHeight; y++) {
+            final int y0 = y * sourceHeight / targetHeight;
+            final int y1 = Math.max(y0 + 1, (y + 1) * sourceHeight / targetHeight);
+            for (int x = 0; x < targetWidth; x++) {
+                final int x0 = x * sourceWidth / targetWidth;
+                final int x1 = Math.max(x0 + 1, (x + 1) * sourceWidth / targetWidth);
+                final int count = (y1 - y0) * (x1 - x0);
+                for (int c = 0; c < bytesPerPixel; c++) {
+                    int sum = 0;
+                    for (int sy = y0; sy < y1; sy++) {
+                        for (int sx = x0; sx < x1; sx++)
+                            sum += from.get((sy * sourceWidth + sx) * bytesPerPixel + c) & 0xff;
+                    }
+                    to.put((y * targetWidth + x) * bytesPerPixel + c, (byte) ((sum + count / 2) / count));
+                }
+            }
+        }
+    } // void averageHalved(...)
+
+    /**
+     * Packed formats - scaled by Pixmap with bilinear filter (render thread only,
+     * blending and filter are global). 1.9.4 has no getter for the filter, it goes
+     * back to the libgdx default.
+     */
+    private static void drawHalved(Pixmap source, Pixmap target) {
+        final Pixmap.Blending blending = Pixmap.getBlending();
+        Pixmap.setBlending(Pixmap.Blending.None);
+        Pixmap.setFilter(Pixmap.Filter.BiLinear);
+        try {
+            target.drawPixmap(source, 0, 0, source.getWidth(), source.getHeight(),
+                    0, 0, target.getWidth(), target.getHeight());
+        } finally {
+            Pixmap.setFilter(Pixmap.Filter.NearestNeighbour);
+            Pixmap.setBlending(blending);
+        }
+    }
+
+    @Override
+    public Pixmap consumePixmap() {
+        if (pixmap == null)
+            throw new RuntimeException("Call prepare() before uploading downscaled texture: " + file.path());
+        Pixmap result = pixmap;
+        pixmap = null;
+        return result;
+    }
+
+    @Override
+    public boolean disposePixmap() {
+        return true;
+    }
+
+    @Override
+    public void consumeCustomData(int target) {
+        throw new RuntimeException("Downscaled texture data is not custom data");
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public Pixmap.Format getFormat() {
+        return format;
+    }
+
+    @Override
+    public boolean useMipMaps() {
+        return false;
+    }
+
+    @Override
+    public boolean isManaged() {
+        return true;
+    }
+
+    //-------------------------------------------------------------------------
+} // class DownscaledTextureData
@@ -0,0 +1,197 @@
+package com.flexigame.fg.gfx;
+
+/**
+ * Picks render resolution scale from recent frame times. Frame times are averaged
+ * over a small window; the scale goes down when the average stays over the target
+ * for a few frames and goes up when it stays well under it for longer (hysteresis).
+ * After every change measuring starts over, so frames rendered with the old scale
+ * are not counted twice.
+ *
+ * With vsync the frame delta never goes under the refresh interval, so it shows
+ * when frames are too slow but never the headroom needed to raise the scale again -
+ * feed the work time of the frame as well (see addFrameTime(float, float)).
+ *
+ * Has no GL dependencies - frame times can be fed from a simulation.
+ */
+public class DynamicResolutionController {
+    public static final float DEFAULT_TARGET_FRAME_TIME = 1.0f / 60.0f;
+    public static final int DEFAULT_WINDOW_SIZE = 8;
+
+    /* Allowed range of the scale */
+    private float minScale;
+    private float maxScale;
+    /* Current scale */
+    private float scale;
+    /* Frame time the controller aims for (seconds) */
+    private float targetFrameTime;
+    /* Average over target * upperRatio lowers the scale */
+    public float upperRatio;
+    /* Average under target * lowerRatio raises the scale */
+    public float lowerRatio;
+    /* Frames in a row needed to lower / raise the scale */
+    public int framesToDecrease;
+    public int framesToIncrease;
+    /* Scale multiplier when lowering (inverse when raising) */
+    public float step;
+    /* Scale is rounded to multiples of this value (0 - no rounding) */
+    public float granularity;
+    /* Recent frame times (ring buffer) */
+    private float[] window;
+    private int windowCount;
+    private int windowIndex;
+    private float windowSum;
+    /* Counters for hysteresis */
+    private int overFrames;
+    private int underFrames;
+    /* Number of scale changes so far */
+    private int changes;
+
+    //-------------------------------------------------------------------------
+
+    public DynamicResolutionController() {
+        this(0.5f, 1.0f, DEFAULT_TARGET_FRAME_TIME);
+    }
+
+    public DynamicResolutionController(float minScale, float maxScale, float targetFrameTime) {
+        this(minScale, maxScale, targetFrameTime, DEFAULT_WINDOW_SIZE);
+    }
+
+    public DynamicResolutionController(float minScale, float maxScale, float targetFrameTime, int windowSize) {
+        this.window = new float[Math.max(1, windowSize)];
+        this.upperRatio = 1.05f;
+        this.lowerRatio = 0.75f;
+        this.framesToDecrease = 3;
+        this.framesToIncrease = 60;
+        this.step = 0.85f;
+        this.granularity = 0.05f;
+        this.changes = 0;
+        setTargetFrameTime(targetFrameTime);
+        setScaleRange(minScale, maxScale);
+        this.scale = this.maxScale;
+        reset();
+    }
+
+    //-------------------------------------------------------------------------
+
+    public float getScale() {
+        return scale;
+    }
+
+    public void setScale(float scale) {
+        this.scale = clamp(scale);
+        reset();
+    }
+
+    public float getMinScale() {
+        return minScale;
+    }
+
+    public float getMaxScale() {
+        return maxScale;
+    }
+
+    public void setScaleRange(float minScale, float maxScale) {
+        if (minScale <= 0.0f || maxScale < minScale)
+            throw new RuntimeException("Invalid scale range: " + minScale + " - " + maxScale);
+        this.minScale = minScale;
+        this.maxScale = maxScale;
+        this.scale = clamp(this.scale);
+    }
+
+    public float getTargetFrameTime() {
+        return targetFrameTime;
+    }
+
+    public void setTargetFrameTime(float targetFrameTime) {
+        if (targetFrameTime <= 0.0f)
+            throw new RuntimeException("Target frame time needs to be greater than 0!");
+        this.targetFrameTime = targetFrameTime;
+    }
+
+    public float getAverageFrameTime() {
+        if (windowCount == 0)
+            return 0.0f;
+        return windowSum / windowCount;
+    }
+
+    public int getChangeCount() {
+        return changes;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Forgets measured frames (scale is kept).
+     */
+    public void reset() {
+        windowCount = 0;
+        windowIndex = 0;
+        windowSum = 0.0f;
+        overFrames = 0;
+        underFrames = 0;
+    }
+
+    private float clamp(float value) {
+        if (granularity > 0.0f)
+            value = Math.round(value / granularity) * granularity;
+        return Math.max(minScale, Math.min(maxScale, value));
+    }
+
+    private boolean changeScale(float newScale) {
+        newScale = clamp(newScale);
+        if (newScale == scale)
+            return false;
+        scale = newScale;
+        changes++;
+        reset(); // old frames were rendered with the previous scale
+        return true;
+    }
+
+    /**
+     * Adds time of the last frame (seconds). Returns true when the scale changed.
+     */
+    public boolean addFrameTime(float frameTime) {
+        if (windowCount == window.length)
+            windowSum -= window[windowIndex];
+        else
+            windowCount++;
+        window[windowIndex] = frameTime;
+        windowSum += frameTime;
+        windowIndex = (windowIndex + 1) % window.length;
+
+        final float average = windowSum / windowCount;
+        if (average > targetFrameTime * upperRatio) {
+            underFrames = 0;
+            if (++overFrames >= framesToDecrease && scale > minScale) {
+                // lower at least by one granularity step
+                float newScale = Math.min(scale * step, scale - granularity);
+                return changeScale(newScale);
+            }
+        } else if (average < targetFrameTime * lowerRatio) {
+            overFrames = 0;
+            if (++underFrames >= framesToIncrease && scale < maxScale) {
+                float newScale = Math.max(scale / step, scale + granularity);
+                return changeScale(newScale);
+            }
+        } else {
+            overFrames = 0;
+            underFrames = 0;
+        }
+        return false;
+    } // boolean addFrameTime(...)
+
+    /**
+     * Adds the last frame measured by the app - its duration (delta, capped by vsync)
+     * and work time (without waiting for vsync/swap, 0 - unknown). Frames which kept
+     * up count with their work time; frames over the upper ratio count with their
+     * duration, as GPU or swap bound frames don't show in the work time. Returns true
+     * when the scale changed.
+     */
+    public boolean addFrameTime(float delta, float workTime) {
+        if (workTime <= 0.0f || delta > targetFrameTime * upperRatio)
+            return addFrameTime(delta);
+        return addFrameTime(workTime);
+    }
+
+    //-------------------------------------------------------------------------
+} // class DynamicResolutionController
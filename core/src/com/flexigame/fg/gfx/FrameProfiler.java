@@ -0,0 +1,356 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.utils.TimeUtils;
+
+/**
+ * Records frame times of the render loop in a ring buffer (primitive arrays, nothing
+ * is allocated per frame) and detects jank - frames longer than jankRatio times the
+ * median of recent frames. Every frame carries tags of what happened in it (effect
+ * switch, asset upload, layer add/delete...) and the number of sprite batch flushes.
+ *
+ * Frame duration is the time from its beginFrame() to the next one (so it includes
+ * waiting for vsync/swap), work time is from beginFrame() to endFrame(). A frame is
+ * checked for jank when the next one begins.
+ *
+ * The recorded frames can be written as a Chrome trace (JSON, chrome://tracing,
+ * Perfetto). No GL dependencies - timestamps can be passed in from a headless run.
+ */
+public class FrameProfiler {
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_MEDIAN_WINDOW = 120;
+    public static final float DEFAULT_JANK_RATIO = 1.5f;
+
+    public static final int TAG_EFFECT_SWITCH = 1;
+    public static final int TAG_ASSET_LOAD = 2;
+    public static final int TAG_LAYER_ADD = 4;
+    public static final int TAG_LAYER_DELETE = 8;
+    public static final int TAG_TRANSITION = 16;
+    public static final int TAG_RESOLUTION_CHANGE = 32;
+    public static final int TAG_QUALITY_CHANGE = 64;
+    /* Set on frames detected as jank */
+    public static final int TAG_JANK = 1 << 30;
+
+    private static final String[] TAG_NAMES = {
+            "effect_switch", "asset_load", "layer_add", "layer_delete", "transition", "resolution_change",
+            "quality_change"};
+
+    /* Ring buffer - frame start (nanos), duration and work time (nanos), tags, flushes */
+    private final long[] starts;
+    private final long[] durations;
+    private final long[] workTimes;
+    private final int[] tags;
+    private final int[] flushes;
+    /* Number of recorded frames (at most capacity) and index of the current one */
+    private int count;
+    private int current;
+    /* Is there a frame between beginFrame() and the next beginFrame()? */
+    private boolean inFrame;
+    /* Scratch copy for the median (quickselect) */
+    private final long[] scratch;
+    /* Number of frames the median is taken from */
+    private int medianWindow;
+    /* Frame longer than median * jankRatio is jank */
+    public float jankRatio;
+    /* Median is not trusted before that many frames */
+    public int minFrames;
+    /* Totals */
+    private int frameTotal;
+    private int jankTotal;
+    /* Sprite batch flushes are counted from its totalRenderCalls (can be null) */
+    private SpriteBatch spriteBatch;
+    private int lastRenderCalls;
+
+    //-------------------------------------------------------------------------
+
+    public FrameProfiler() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FrameProfiler(int capacity) {
+        if (capacity < 2)
+            throw new RuntimeException("Frame profiler capacity needs to be at least 2: " + capacity);
+        this.starts = new long[capacity];
+        this.durations = new long[capacity];
+        this.workTimes = new long[capacity];
+        this.tags = new int[capacity];
+        this.flushes = new int[capacity];
+        this.medianWindow = Math.min(DEFAULT_MEDIAN_WINDOW, capacity);
+        this.scratch = new long[capacity];
+        this.jankRatio = DEFAULT_JANK_RATIO;
+        this.minFrames = 10;
+        this.spriteBatch = null;
+        reset();
+    }
+
+    public void reset() {
+        count = 0;
+        current = -1;
+        inFrame = false;
+        frameTotal = 0;
+        jankTotal = 0;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public int getCapacity() {
+        return starts.length;
+    }
+
+    public void setMedianWindow(int medianWindow) {
+        this.medianWindow = Math.max(1, Math.min(medianWindow, starts.length));
+    }
+
+    public int getMedianWindow() {
+        return medianWindow;
+    }
+
+    public void setSpriteBatch(SpriteBatch spriteBatch) {
+        this.spriteBatch = spriteBatch;
+        this.lastRenderCalls = spriteBatch == null ? 0 : spriteBatch.totalRenderCalls;
+    }
+
+    /**
+     * Number of finished frames in the buffer.
+     */
+    public int getFrameCount() {
+        return inFrame ? Math.max(0, count - 1) : count;
+    }
+
+    public int getFrameTotal() {
+        return frameTotal;
+    }
+
+    public int getJankTotal() {
+        return jankTotal;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public void beginFrame() {
+        beginFrame(TimeUtils.nanoTime());
+    }
+
+    /**
+     * Closes the previous frame (its duration ends now) and starts a new one.
+     */
+    public void beginFrame(long nanos) {
+        if (inFrame)
+            closeFrame(nanos);
+        current = (current + 1) % starts.length;
+        if (count < starts.length)
+            count++;
+        starts[current] = nanos;
+        durations[current] = 0;
+        workTimes[current] = 0;
+        tags[current] = 0;
+        flushes[current] = 0;
+        inFrame = true;
+    }
+
+    public void endFrame() {
+        endFrame(TimeUtils.nanoTime());
+    }
+
+    public void endFrame(long nanos) {
+        if (!inFrame)
+            return;
+        workTimes[current] = nanos - starts[current];
+        if (spriteBatch != null) {
+            flushes[current] += spriteBatch.totalRenderCalls - lastRenderCalls;
+            lastRenderCalls = spriteBatch.totalRenderCalls;
+        }
+    }
+
+    /**
+     * Adds tags (TAG_*) to the current frame.
+     */
+    public void mark(int tag) {
+        if (inFrame)
+            tags[current] |= tag;
+    }
+
+    /**
+     * Adds flushes not done through the sprite batch (e.g. instanced draws).
+     */
+    public void addFlushes(int flushCount) {
+        if (inFrame)
+            flushes[current] += flushCount;
+    }
+
+    private void closeFrame(long nanos) {
+        durations[current] = nanos - starts[current];
+        frameTotal++;
+        // median of the frames before this one
+        final int previous = Math.min(medianWindow, count - 1);
+        if (previous >= minFrames) {
+            final long median = median(previous, 1);
+            if (durations[current] > median * jankRatio) {
+                tags[current] |= TAG_JANK;
+                jankTotal++;
+            }
+        }
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Index in the ring buffer of the frame 'age' frames before the current one.
+     */
+    private int indexOf(int age) {
+        int index = current - age;
+        if (index < 0)
+            index += starts.length;
+        return index;
+    }
+
+    /**
+     * Median duration of 'size' frames starting 'skip' frames before the current one.
+     */
+    private long median(int size, int skip) {
+        for (int i = 0; i < size; i++)
+            scratch[i] = durations[indexOf(i + skip)];
+        return select(scratch, size, size / 2);
+    }
+
+    /**
+     * Quickselect - k-th smallest of the first n values (reorders them).
+     */
+    private static long select(long[] values, int n, int k) {
+        int left = 0, right = n - 1;
+        while (left < right) {
+            final long pivot = values[(left + right) >>> 1];
+            int i = left, j = right;
+            while (i <= j) {
+                while (values[i] < pivot) i++;
+                while (values[j] > pivot) j--;
+                if (i <= j) {
+                    final long swap = values[i];
+                    values[i] = values[j];
+                    values[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j)
+                right = j;
+            else if (k >= i)
+                left = i;
+            else
+                break;
+        }
+        return values[k];
+    }
+
+    /**
+     * Median frame duration over the median window (milliseconds).
+     */
+    public float getMedianFrameTime() {
+        final int frames = Math.min(medianWindow, getFrameCount());
+        if (frames == 0)
+            return 0.0f;
+        return median(frames, inFrame ? 1 : 0) / 1000000.0f;
+    }
+
+    /**
+     * Duration of a finished frame (0 - the last finished one) in milliseconds.
+     */
+    public float getFrameTime(int age) {
+        if (age < 0 || age >= getFrameCount())
+            return 0.0f;
+        return durations[indexOf(age + (inFrame ? 1 : 0))] / 1000000.0f;
+    }
+
+    /**
+     * Work time of a finished frame (0 - the last finished one) in milliseconds -
+     * without waiting for vsync/swap, 0 when endFrame() was not called.
+     */
+    public float getWorkTime(int age) {
+        if (age < 0 || age >= getFrameCount())
+            return 0.0f;
+        return workTimes[indexOf(age + (inFrame ? 1 : 0))] / 1000000.0f;
+    }
+
+    public int getFrameTags(int age) {
+        if (age < 0 || age >= getFrameCount())
+            return 0;
+        return tags[indexOf(age + (inFrame ? 1 : 0))];
+    }
+
+    //-------------------------------------------------------------------------
+
+    private static void appendTags(StringBuilder builder, int frameTags) {
+        boolean first = true;
+        for (int bit = 0; bit < TAG_NAMES.length; bit++) {
+            if ((frameTags & (1 << bit)) == 0)
+                continue;
+            if (!first)
+                builder.append('|');
+            builder.append(TAG_NAMES[bit]);
+            first = false;
+        }
+    }
+
+    private static void appendEvent(StringBuilder builder, String name, int thread,
+                                    long start, long duration, int frameTags, int frameFlushes) {
+        builder.append("{\"name\":\"").append(name).append("\",\"ph\":\"X\",\"pid\":1,\"tid\":").append(thread)
+                .append(",\"ts\":").append(start / 1000).append(",\"dur\":").append(Math.max(1, duration / 1000))
+                .append(",\"args\":{\"flushes\":").append(frameFlushes).append(",\"tags\":\"");
+        appendTags(builder, frameTags);
+        builder.append("\"}}");
+    }
+
+    /**
+     * Chrome trace JSON with the finished frames - track 1 has frame durations (jank
+     * frames are named "jank"), track 2 the work part of each frame.
+     */
+    public String toTraceJson() {
+        final int frames = getFrameCount();
+        final int skip = inFrame ? 1 : 0;
+        StringBuilder builder = new StringBuilder(frames * 256 + 64);
+        builder.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+        final long origin = frames > 0 ? starts[indexOf(frames - 1 + skip)] : 0;
+        for (int age = frames - 1; age >= 0; age--) {
+            final int index = indexOf(age + skip);
+            final boolean jank = (tags[index] & TAG_JANK) != 0;
+            appendEvent(builder, jank ? "jank" : "frame", 1,
+                    starts[index] - origin, durations[index], tags[index], flushes[index]);
+            builder.append(",\n");
+            appendEvent(builder, "work", 2,
+                    starts[index] - origin, workTimes[index], tags[index], flushes[index]);
+            builder.append(age > 0 ? ",\n" : "\n");
+        }
+        builder.append("]}\n");
+        return builder.toString();
+    }
+
+    public void writeTrace(FileHandle file) {
+        file.writeString(toTraceJson(), false);
+    }
+
+    /**
+     * One line summary: frames, median, jank frames with their tags.
+     */
+    public String getSummary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(frameTotal).append(" frames, median ")
+                .append(Math.round(getMedianFrameTime() * 100.0f) / 100.0f).append(" ms, jank ").append(jankTotal);
+        final int frames = getFrameCount();
+        int listed = 0;
+        for (int age = 0; age < frames && listed < 5; age++) {
+            final int frameTags = getFrameTags(age);
+            if ((frameTags & TAG_JANK) == 0)
+                continue;
+            builder.append(listed == 0 ? " (recent: " : ", ");
+            builder.append(Math.round(getFrameTime(age) * 10.0f) / 10.0f).append(" ms ");
+            appendTags(builder, frameTags);
+            listed++;
+        }
+        if (listed > 0)
+            builder.append(')');
+        return builder.toString();
+    }
+
+    //-------------------------------------------------------------------------
+} // class FrameProfiler
@@ -0,0 +1,349 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ObjectIntMap;
+import com.badlogic.gdx.utils.ObjectMap;
+
+/**
+ * Binds layer properties to expressions (LayerExpression) over named float inputs -
+ * game state (touch, scores, custom values) drives the layers without code in the
+ * render loop. Attach it to LayerMaskingEffect like the timeline - it is evaluated
+ * after the timeline and before the layers are updated, every frame the effect is
+ * active.
+ *
+ * Bindings are kept in packed arrays and evaluated in one pass with a shared stack,
+ * nothing is allocated per frame. Expressions are compiled once and shared between
+ * bindings with the same source - give each binding its own argument (arg in the
+ * expression) instead of a separate expression to vary it. An expression without
+ * arg is evaluated once per pass however many layers use it.
+ *
+ * Inputs time (seconds, advanced by update()), touchX, touchY and touching (1.0 /
+ * 0.0) are always there - others are added with addInput().
+ */
+public class LayerBindings implements LayerExpression.InputResolver {
+    public static final String INPUT_TIME = "time";
+    public static final String INPUT_TOUCH_X = "touchX";
+    public static final String INPUT_TOUCH_Y = "touchY";
+    public static final String INPUT_TOUCHING = "touching";
+
+    /* Slots of the built-in inputs */
+    public static final int SLOT_TIME = 0;
+    public static final int SLOT_TOUCH_X = 1;
+    public static final int SLOT_TOUCH_Y = 2;
+    public static final int SLOT_TOUCHING = 3;
+
+    /* Input slots by name and their values */
+    private ObjectIntMap<String> inputSlots;
+    private Array<String> inputNames;
+    private float[] inputs;
+    /* Compiled expressions by source */
+    private ObjectMap<String, LayerExpression> expressions;
+    /* Bindings - packed */
+    private LayerInfo[] layers;
+    private LayerProperty[] properties;
+    private LayerExpression[] bound;
+    private float[] arguments;
+    private int size;
+    /* Evaluation stack (grows with the deepest expression) */
+    private float[] stack;
+    /* Pass counter for the value memo of the expressions */
+    private int pass;
+    /* Is time advancing in update()? */
+    private boolean playing;
+    /* Expression evaluations in the last pass (memo hits excluded) */
+    private int evaluationCount;
+
+    //-------------------------------------------------------------------------
+
+    public LayerBindings() {
+        this(16);
+    }
+
+    public LayerBindings(int capacity) {
+        capacity = Math.max(1, capacity);
+        this.inputSlots = new ObjectIntMap<String>();
+        this.inputNames = new Array<String>();
+        this.inputs = new float[8];
+        this.expressions = new ObjectMap<String, LayerExpression>();
+        this.layers = new LayerInfo[capacity];
+        this.properties = new LayerProperty[capacity];
+        this.bound = new LayerExpression[capacity];
+        this.arguments = new float[capacity];
+        this.size = 0;
+        this.stack = new float[8];
+        this.pass = 0;
+        this.playing = true;
+        this.evaluationCount = 0;
+        addInput(INPUT_TIME);
+        addInput(INPUT_TOUCH_X);
+        addInput(INPUT_TOUCH_Y);
+        addInput(INPUT_TOUCHING);
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Adds named input (value 0.0) and returns its slot - the slot of an existing
+     * input with the same name is returned as it is.
+     */
+    public int addInput(String name) {
+        if (name == null || name.isEmpty())
+            throw new RuntimeException("Input name cannot be empty!");
+        final int existing = inputSlots.get(name, -1);
+        if (existing >= 0)
+            return existing;
+        if (name.equals("arg") || name.equals("pi"))
+            throw new RuntimeException("Input name is reserved: " + name);
+        final int slot = inputNames.size;
+        inputNames.add(name);
+        inputSlots.put(name, slot);
+        if (slot >= inputs.length) {
+            float[] grown = new float[inputs.length * 2];
+            System.arraycopy(inputs, 0, grown, 0, inputs.length);
+            inputs = grown;
+        }
+        return slot;
+    }
+
+    @Override
+    public int getInputSlot(String name) {
+        return inputSlots.get(name, -1);
+    }
+
+    public int getInputCount() {
+        return inputNames.size;
+    }
+
+    public String getInputName(int slot) {
+        return inputNames.get(slot);
+    }
+
+    public float getInput(int slot) {
+        return inputs[slot];
+    }
+
+    public void setInput(int slot, float value) {
+        if (slot < 0 || slot >= inputNames.size)
+            throw new RuntimeException("Invalid input slot: " + slot);
+        inputs[slot] = value;
+    }
+
+    /**
+     * Sets input by name - prefer slots (addInput() / getInputSlot()) for values
+     * changing every frame.
+     */
+    public void setInput(String name, float value) {
+        final int slot = inputSlots.get(name, -1);
+        if (slot < 0)
+            throw new RuntimeException("Unknown binding input: " + name);
+        inputs[slot] = value;
+    }
+
+    public float getTime() {
+        return inputs[SLOT_TIME];
+    }
+
+    public void setTime(float time) {
+        inputs[SLOT_TIME] = time;
+    }
+
+    public void setTouch(float x, float y, boolean touching) {
+        inputs[SLOT_TOUCH_X] = x;
+        inputs[SLOT_TOUCH_Y] = y;
+        inputs[SLOT_TOUCHING] = touching ? 1.0f : 0.0f;
+    }
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    public void play() {
+        this.playing = true;
+    }
+
+    public void pause() {
+        this.playing = false;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Compiled expression for the source - compiled on the first use, then shared.
+     * Inputs need to be added before compiling expressions using them.
+     */
+    public LayerExpression compile(String source) {
+        LayerExpression expression = expressions.get(source);
+        if (expression == null) {
+            expression = LayerExpression.compile(source, this);
+            expressions.put(source, expression);
+        }
+        return expression;
+    }
+
+    public int count() {
+        return size;
+    }
+
+    public LayerInfo getLayerInfo(int index) {
+        return layers[index];
+    }
+
+    public LayerProperty getProperty(int index) {
+        return properties[index];
+    }
+
+    public LayerExpression getExpression(int index) {
+        return bound[index];
+    }
+
+    public float getArgument(int index) {
+        return arguments[index];
+    }
+
+    /**
+     * Index of the binding of the layer property (-1 - not bound).
+     */
+    public int indexOf(LayerInfo layerInfo, LayerProperty property) {
+        for (int i = 0; i < size; i++) {
+            if (layers[i] == layerInfo && properties[i] == property)
+                return i;
+        }
+        return -1;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= layers.length)
+            return;
+        final int newCapacity = Math.max(capacity, layers.length * 2);
+        LayerInfo[] newLayers = new LayerInfo[newCapacity];
+        LayerProperty[] newProperties = new LayerProperty[newCapacity];
+        LayerExpression[] newBound = new LayerExpression[newCapacity];
+        float[] newArguments = new float[newCapacity];
+        System.arraycopy(layers, 0, newLayers, 0, size);
+        System.arraycopy(properties, 0, newProperties, 0, size);
+        System.arraycopy(bound, 0, newBound, 0, size);
+        System.arraycopy(arguments, 0, newArguments, 0, size);
+        layers = newLayers;
+        properties = newProperties;
+        bound = newBound;
+        arguments = newArguments;
+    }
+
+    /**
+     * Binds the layer property to the expression (compiled by these bindings - input
+     * slots differ between them) - replaces the previous binding of the same property.
+     * Returns index of the binding.
+     */
+    public int bind(LayerInfo layerInfo, LayerProperty property, LayerExpression expression, float argument) {
+        if (layerInfo == null || property == null || expression == null)
+            throw new RuntimeException("LayerInfo, property and expression cannot be NULL!");
+        if (expression.getResolver() != this)
+            throw new RuntimeException("Expression was compiled for other bindings: " + expression.getSource());
+        int index = indexOf(layerInfo, property);
+        if (index < 0) {
+            ensureCapacity(size + 1);
+            index = size++;
+        }
+        layers[index] = layerInfo;
+        properties[index] = property;
+        bound[index] = expression;
+        arguments[index] = argument;
+        if (expression.getMaxStackDepth() > stack.length)
+            stack = new float[expression.getMaxStackDepth()];
+        return index;
+    }
+
+    public int bind(LayerInfo layerInfo, LayerProperty property, String source, float argument) {
+        return bind(layerInfo, property, compile(source), argument);
+    }
+
+    public int bind(LayerInfo layerInfo, LayerProperty property, String source) {
+        return bind(layerInfo, property, compile(source), 0.0f);
+    }
+
+    public void setArgument(int index, float argument) {
+        arguments[index] = argument;
+    }
+
+    private void removeIndex(int index) {
+        final int last = size - 1;
+        System.arraycopy(layers, index + 1, layers, index, last - index);
+        System.arraycopy(properties, index + 1, properties, index, last - index);
+        System.arraycopy(bound, index + 1, bound, index, last - index);
+        System.arraycopy(arguments, index + 1, arguments, index, last - index);
+        layers[last] = null;
+        properties[last] = null;
+        bound[last] = null;
+        size = last;
+    }
+
+    public void unbind(LayerInfo layerInfo, LayerProperty property) {
+        final int index = indexOf(layerInfo, property);
+        if (index >= 0)
+            removeIndex(index);
+    }
+
+    /**
+     * Removes all bindings of the layer (for example when layer is deleted).
+     */
+    public void unbind(LayerInfo layerInfo) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (layers[i] == layerInfo)
+                removeIndex(i);
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            layers[i] = null;
+            properties[i] = null;
+            bound[i] = null;
+        }
+        size = 0;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Expressions evaluated in the last pass - bindings sharing an expression
+     * without arg count once.
+     */
+    public int getEvaluationCount() {
+        return evaluationCount;
+    }
+
+    /**
+     * Evaluates all bindings with the current inputs and applies the values.
+     */
+    public void evaluate() {
+        pass++;
+        int evaluations = 0;
+        final float[] inputs = this.inputs;
+        final float[] stack = this.stack;
+        for (int i = 0; i < size; i++) {
+            final LayerExpression expression = bound[i];
+            float value;
+            if (expression.usesArgument()) {
+                value = expression.evaluate(inputs, arguments[i], stack);
+                evaluations++;
+            } else if (expression.evaluatedPass == pass) {
+                value = expression.lastValue;
+            } else {
+                value = expression.evaluate(inputs, 0.0f, stack);
+                expression.lastValue = value;
+                expression.evaluatedPass = pass;
+                evaluations++;
+            }
+            properties[i].apply(layers[i], value);
+        }
+        evaluationCount = evaluations;
+    } // void evaluate()
+
+    public void update(float delta) {
+        if (playing)
+            inputs[SLOT_TIME] += delta;
+        evaluate();
+    }
+
+    //-------------------------------------------------------------------------
+} // class LayerBindings
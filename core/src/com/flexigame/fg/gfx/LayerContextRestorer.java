@@ -0,0 +1,253 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.assets.AssetManager;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.TimeUtils;
+
+/**
+ * Brings layer rendering back after GL context loss (Android - the context is gone
+ * when the app returns from the background). libgdx rebuilds managed resources on
+ * its own: programs are recompiled right away, frame buffers recreated and managed
+ * textures queued in the asset manager (ParallelAssetManager decodes them on its
+ * workers). Lost is the state set up on top of them - sampler units and masking
+ * defaults of the programs, vertex array and buffers of the instanced path, tracked
+ * texture bindings.
+ *
+ * resume() (or invalidate()) plans the restore, update() - called every frame before
+ * drawing - carries it out in priority order within a time budget: the generic
+ * program, texture reloads reordered so that the visible effects come first, the
+ * instanced path, the transition program. Shader variants get their samplers back
+ * when first used. Effects are not drawn until their textures are back (instead
+ * of sampling empty textures) - the app stays interactive and effects appear
+ * one by one, the visible one first.
+ */
+public class LayerContextRestorer {
+    public static final String TAG = "LayerContextRestorer";
+
+    /* Restore steps (in priority order) */
+    public static final int STEP_PROGRAM = 0;
+    public static final int STEP_TEXTURES = 1;
+    public static final int STEP_INSTANCING = 2;
+    public static final int STEP_TRANSITION = 3;
+    public static final int STEP_COUNT = 4;
+
+    /* Time budget per frame used when nothing else is specified (nanoseconds) */
+    public static final long DEFAULT_FRAME_BUDGET = 2000000;
+
+    private LayerMaskingEffectDrawer drawer;
+    /* Time budget per frame for the restore steps (nanoseconds) */
+    public long frameBudget;
+    /* Is restore in progress? */
+    private boolean restoring;
+    /* Next step to run (STEP_COUNT - all done) */
+    private int step;
+    /* Textures in priority order (helper) */
+    private Array<Texture> textures;
+    /* Statistics of the last restore */
+    private int frameCount;
+    private long startTime;
+    private long restoreNanos;
+    private long maxStepNanos;
+
+    //-------------------------------------------------------------------------
+
+    public LayerContextRestorer(LayerMaskingEffectDrawer drawer) {
+        if (drawer == null)
+            throw new RuntimeException("Drawer passed into constructor cannot be NULL!");
+        if (drawer.isHeadless())
+            throw new RuntimeException("Headless drawer has no GL state to restore!");
+        this.drawer = drawer;
+        this.frameBudget = DEFAULT_FRAME_BUDGET;
+        this.restoring = false;
+        this.step = STEP_COUNT;
+        this.textures = new Array<Texture>(Texture.class);
+    }
+
+    //-------------------------------------------------------------------------
+
+    public boolean isRestoring() {
+        return restoring;
+    }
+
+    /**
+     * Number of frames the last (or current) restore took.
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Duration of the last restore (ms) - from invalidate() to the last effect drawn again.
+     */
+    public float getRestoreTime() {
+        return restoreNanos / 1000000.0f;
+    }
+
+    /**
+     * Longest time spent in update() during the last restore (ms).
+     */
+    public float getMaxStepTime() {
+        return maxStepNanos / 1000000.0f;
+    }
+
+    /**
+     * Number of effects still waiting for their textures.
+     */
+    public int getWaitingCount() {
+        int count = 0;
+        final Array<LayerMaskingEffect> effects = drawer.getEffects();
+        for (int i = 0; i < effects.size; i++) {
+            if (effects.get(i).restoring)
+                count++;
+        }
+        return count;
+    }
+
+    public boolean isEffectReady(LayerMaskingEffect effect) {
+        return !effect.restoring;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Call from ApplicationListener.resume() - starts the restore when the context
+     * was lost meanwhile (managed textures are queued for reload then). Returns true
+     * when restoring.
+     */
+    public boolean resume() {
+        final AssetManager assetManager = drawer.getAssetManager();
+        if (!(assetManager instanceof ParallelAssetManager))
+            return false; // no way to tell - call invalidate() directly
+        if (((ParallelAssetManager) assetManager).getReloadingCount() == 0)
+            return false;
+        invalidate();
+        return true;
+    }
+
+    /**
+     * Starts restoring - all effects wait until update() finds their textures loaded.
+     */
+    public void invalidate() {
+        final Array<LayerMaskingEffect> effects = drawer.getEffects();
+        for (int i = 0; i < effects.size; i++)
+            effects.get(i).restoring = true;
+        restoring = true;
+        step = 0;
+        frameCount = 0;
+        restoreNanos = 0;
+        maxStepNanos = 0;
+        startTime = TimeUtils.nanoTime();
+        Gdx.app.debug(TAG, "Restoring GL state of " + effects.size + " effects");
+    }
+
+    private void addTextures(LayerMaskingEffect effect) {
+        if (effect == null)
+            return;
+        final Array<LayerInfo> layers = effect.getLayerInfoArray();
+        for (int i = 0; i < layers.size; i++) {
+            final Texture texture = layers.get(i).getTexture();
+            final Texture mask = layers.get(i).getMaskTexture();
+            if (texture != null && !textures.contains(texture, true))
+                textures.add(texture);
+            if (mask != null && !textures.contains(mask, true))
+                textures.add(mask);
+        }
+    }
+
+    /**
+     * Incoming effect of a transition first, then visible effects, then the rest.
+     */
+    private void prioritizeTextures(ParallelAssetManager assetManager) {
+        final Array<LayerMaskingEffect> effects = drawer.getEffects();
+        textures.clear();
+        if (drawer.isTransitioning())
+            addTextures(drawer.getTransition().getTo());
+        for (int i = 0; i < effects.size; i++) {
+            if (effects.get(i).isActive())
+                addTextures(effects.get(i));
+        }
+        for (int i = 0; i < effects.size; i++) {
+            if (!effects.get(i).isActive())
+                addTextures(effects.get(i));
+        }
+        // each one moves to the front - the most important goes last
+        for (int i = textures.size - 1; i >= 0; i--)
+            assetManager.prioritize(textures.get(i));
+        textures.clear();
+    }
+
+    private void runStep(int index) {
+        switch (index) {
+            case STEP_PROGRAM:
+                drawer.getRenderContext().restore();
+                break;
+            case STEP_TEXTURES:
+                if (drawer.getAssetManager() instanceof ParallelAssetManager)
+                    prioritizeTextures((ParallelAssetManager) drawer.getAssetManager());
+                break;
+            case STEP_INSTANCING:
+                drawer.getInstancedRenderer().restore();
+                break;
+            case STEP_TRANSITION:
+                drawer.getTransition().restore();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private boolean isReloading(ParallelAssetManager assetManager, LayerMaskingEffect effect) {
+        final Array<LayerInfo> layers = effect.getLayerInfoArray();
+        for (int i = 0; i < layers.size; i++) {
+            if (assetManager.isReloading(layers.get(i).getTexture())
+                    || assetManager.isReloading(layers.get(i).getMaskTexture()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Runs the restore steps which fit in the frame budget (at least one) and releases
+     * effects with all textures loaded. Call once per frame before drawing - returns
+     * true when nothing is left to restore. Textures are uploaded by the asset
+     * manager (ParallelAssetManager.updateUploads()).
+     */
+    public boolean update() {
+        if (!restoring)
+            return true;
+        final long start = TimeUtils.nanoTime();
+        frameCount++;
+        while (step < STEP_COUNT) {
+            runStep(step);
+            step++;
+            if (TimeUtils.nanoTime() - start >= frameBudget)
+                break;
+        }
+        // effects are drawn only with the whole state back
+        if (step == STEP_COUNT) {
+            final AssetManager assetManager = drawer.getAssetManager();
+            final Array<LayerMaskingEffect> effects = drawer.getEffects();
+            for (int i = 0; i < effects.size; i++) {
+                final LayerMaskingEffect effect = effects.get(i);
+                if (!effect.restoring)
+                    continue;
+                if (!(assetManager instanceof ParallelAssetManager)
+                        || !isReloading((ParallelAssetManager) assetManager, effect))
+                    effect.restoring = false;
+            }
+        }
+        final long now = TimeUtils.nanoTime();
+        maxStepNanos = Math.max(maxStepNanos, now - start);
+        if (step == STEP_COUNT && getWaitingCount() == 0) {
+            restoring = false;
+            restoreNanos = now - startTime;
+            Gdx.app.debug(TAG, "GL state restored in " + frameCount + " frames ("
+                    + (int) getRestoreTime() + " ms, longest step " + getMaxStepTime() + " ms)");
+        }
+        return !restoring;
+    } // boolean update()
+
+    //-------------------------------------------------------------------------
+} // class LayerContextRestorer
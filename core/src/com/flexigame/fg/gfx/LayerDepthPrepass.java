@@ -0,0 +1,308 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.assets.AssetManager;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.g2d.TextureRegion;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ObjectMap;
+
+/**
+ * Depth pre-pass of LayerMaskingEffectDrawer - opaque interiors of the layers (solid
+ * cells of their MaskCoverage grids) are drawn front-to-back with depth writes before
+ * the regular back-to-front pass, which then skips pixels hidden by the layers above.
+ * Layers completely inside the solid part of a layer above are not drawn at all.
+ *
+ * Holds the coverage grids of the masks and the opacity of the layer textures (by
+ * texture) - computed on the CPU from the decoded images, see createMaskCoverage().
+ */
+public class LayerDepthPrepass {
+    /* Coverage grids of the masks and opacity of the layer textures (by texture) */
+    private ObjectMap<Texture, MaskCoverage> maskCoverages;
+    private ObjectMap<Texture, MaskCoverage> textureCoverages;
+    /* Layers of the current frame in drawing order and their solid cells */
+    private Array<LayerInfo> layers;
+    private Array<MaskCoverage> coverages;
+    /* Temporaries */
+    private TextureRegion solidRegion;
+    private float[] solidRect;
+    private Vector2 corner;
+    private Vector2 quadCoords;
+    /* Statistics of the last frame */
+    private int occluderCount;
+    private int solidPieceCount;
+    private int occludedCount;
+
+    //-------------------------------------------------------------------------
+
+    public LayerDepthPrepass() {
+        this.maskCoverages = new ObjectMap<Texture, MaskCoverage>();
+        this.textureCoverages = new ObjectMap<Texture, MaskCoverage>();
+        this.layers = new Array<LayerInfo>();
+        this.coverages = new Array<MaskCoverage>();
+        this.solidRegion = new TextureRegion();
+        this.solidRect = new float[4];
+        this.corner = new Vector2();
+        this.quadCoords = new Vector2();
+    }
+
+    public void dispose() {
+        maskCoverages.clear();
+        textureCoverages.clear();
+        layers.clear();
+        coverages.clear();
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Layers which had solid cells drawn in the last frame.
+     */
+    public int getOccluderCount() {
+        return occluderCount;
+    }
+
+    public int getSolidPieceCount() {
+        return solidPieceCount;
+    }
+
+    /**
+     * Layers skipped in the last frame (completely hidden).
+     */
+    public int getOccludedCount() {
+        return occludedCount;
+    }
+
+    public MaskCoverage getMaskCoverage(Texture mask) {
+        return maskCoverages.get(mask);
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Decodes the image of the texture again and computes its coverage grid (null -
+     * file of the texture unknown).
+     */
+    private static MaskCoverage buildCoverage(AssetManager assetManager, Texture texture, int channel,
+                                              int gridSize) {
+        final FileHandle file = LayerMaskingEffectDrawer.findTextureFile(assetManager, texture);
+        if (file == null)
+            return null;
+        Pixmap pixmap = new Pixmap(file);
+        MaskCoverage coverage = MaskCoverage.build(pixmap, channel, gridSize);
+        pixmap.dispose();
+        return coverage;
+    }
+
+    /**
+     * Computes coverage grids (gridSize x gridSize cells) of the bitmap masks of all
+     * layers and checks which layer textures are fully opaque. Textures which already
+     * have a grid are left alone. Returns number of computed grids.
+     */
+    public int createMaskCoverage(Array<LayerMaskingEffect> effects, AssetManager assetManager, int gridSize) {
+        int created = 0;
+        for (int i = 0; i < effects.size; i++) {
+            Array<LayerInfo> effectLayers = effects.get(i).getLayerInfoArray();
+            for (int j = 0; j < effectLayers.size; j++) {
+                LayerInfo layerInfo = effectLayers.get(j);
+                final Texture texture = layerInfo.getTexture();
+                if (texture != null && !textureCoverages.containsKey(texture)) {
+                    // single cell - only whether the whole texture is opaque matters
+                    MaskCoverage coverage = buildCoverage(assetManager, texture, 3, 1);
+                    if (coverage != null) {
+                        textureCoverages.put(texture, coverage);
+                        created++;
+                    }
+                }
+                final Texture mask = layerInfo.getMaskTexture();
+                if (mask == null || layerInfo.isSdfMask() || maskCoverages.containsKey(mask))
+                    continue;
+                MaskCoverage coverage = buildCoverage(assetManager, mask, layerInfo.maskChannel, gridSize);
+                if (coverage != null) {
+                    maskCoverages.put(mask, coverage);
+                    created++;
+                }
+            }
+        }
+        return created;
+    } // int createMaskCoverage(...)
+
+    /**
+     * Forgets coverage grids of textures not retained by any layer.
+     */
+    public void releaseUnused(LayerTextureRegistry textureRegistry) {
+        ObjectMap.Keys<Texture> keys = maskCoverages.keys();
+        while (keys.hasNext()) {
+            if (!textureRegistry.isRetained(keys.next()))
+                keys.remove();
+        }
+        keys = textureCoverages.keys();
+        while (keys.hasNext()) {
+            if (!textureRegistry.isRetained(keys.next()))
+                keys.remove();
+        }
+    }
+
+    /**
+     * Solid cells of the layer in its current state - what it hides from the layers
+     * below (null - hides nothing). Needs an opaque texture (or the opaque blend mode)
+     * and the full resolution bitmap mask with a coverage grid, not minified more than
+     * its cells, or no mask at all. Additive layers never hide anything.
+     */
+    public MaskCoverage getOccluderCoverage(LayerInfo layerInfo) {
+        final Texture texture = layerInfo.getTexture();
+        if (texture == null || !layerInfo.isDrawable() || layerInfo.blendMode == LayerInfo.BlendMode.ADDITIVE)
+            return null;
+        if (layerInfo.isProceduralDrawn())
+            return null;
+        if (layerInfo.blendMode != LayerInfo.BlendMode.OPAQUE) {
+            final MaskCoverage textureCoverage = textureCoverages.get(texture);
+            if (textureCoverage == null || !textureCoverage.isFullyOpaque())
+                return null;
+        }
+        final Texture mask = layerInfo.getDrawnMaskTexture();
+        if (mask == null)
+            return MaskCoverage.SOLID;
+        if (mask != layerInfo.getMaskTexture() || layerInfo.isSdfMask())
+            return null; // lower resolution mask - grid is for the full one
+        final MaskCoverage coverage = maskCoverages.get(mask);
+        if (coverage == null || coverage.getChannel() != layerInfo.maskChannel || coverage.getSolidCount() == 0)
+            return null;
+        if (layerInfo.getMaskMinification() > coverage.getCellTexels())
+            return null; // mip levels reach past the margin of the solid cells
+        return coverage;
+    } // MaskCoverage getOccluderCoverage(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Gathers drawn layers in drawing order with their solid cells and gives them
+     * depth - upper layers closer.
+     */
+    private void collectLayers(Array<LayerMaskingEffect> effects, LayerMaskingEffect only) {
+        layers.clear();
+        coverages.clear();
+        for (int i = 0; i < effects.size; i++) {
+            LayerMaskingEffect effect = effects.get(i);
+            if (!effect.isActive() || effect.restoring || (only != null && effect != only))
+                continue;
+            final Array<LayerInfo> drawOrder = effect.getDrawOrder();
+            for (int j = 0; j < drawOrder.size; j++) {
+                LayerInfo layerInfo = drawOrder.get(j);
+                if (!layerInfo.isDrawable())
+                    continue;
+                layers.add(layerInfo);
+                coverages.add(getOccluderCoverage(layerInfo));
+            }
+        }
+        final int n = layers.size;
+        for (int i = 0; i < n; i++)
+            layers.get(i).depth = 0.9f - 1.8f * (i + 1) / (n + 1);
+    } // void collectLayers(...)
+
+    /**
+     * Is the whole quad of the layer inside the solid rectangle (quad coordinates)
+     * of the upper layer? Quads are convex - checking the corners is enough.
+     */
+    private boolean isInside(LayerInfo layerInfo, LayerInfo upper, float[] rect) {
+        for (int i = 0; i < 4; i++) {
+            layerInfo.quadToScreen(i & 1, i >> 1, corner);
+            upper.screenToQuad(corner.x, corner.y, quadCoords);
+            if (quadCoords.x < rect[0] || quadCoords.x > rect[2]
+                    || quadCoords.y < rect[1] || quadCoords.y > rect[3])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks layers completely hidden by the largest solid rectangle of a layer above.
+     */
+    private void findOccludedLayers() {
+        final int n = layers.size;
+        for (int i = 0; i < n; i++) {
+            LayerInfo layerInfo = layers.get(i);
+            for (int j = i + 1; j < n && !layerInfo.occluded; j++) {
+                final MaskCoverage coverage = coverages.get(j);
+                if (coverage != null && coverage.getSolidRect(solidRect))
+                    layerInfo.occluded = isInside(layerInfo, layers.get(j), solidRect);
+            }
+            if (layerInfo.occluded)
+                occludedCount++;
+        }
+    }
+
+    /**
+     * Draws solid cells front-to-back - without blending (they are opaque) and with
+     * depth writes, the mask is not sampled.
+     */
+    private void drawSolidCells(LayerMaskingEffectDrawer drawer) {
+        final SpriteBatch spriteBatch = drawer.getSpriteBatch();
+        final ShaderProgram customShaderProgram = drawer.getCustomShaderProgram();
+        final LayerShaderCache shaderCache = drawer.getShaderCache();
+        final LayerRenderContext renderContext = drawer.getRenderContext();
+        final boolean variants = drawer.isUsingShaderVariants() && customShaderProgram.isCompiled();
+        final int pipelineFeatures = renderContext.getPipelineFeatures();
+        renderContext.setActiveUnit(0);
+        spriteBatch.disableBlending();
+        for (int i = layers.size - 1; i >= 0; i--) {
+            final LayerInfo layerInfo = layers.get(i);
+            final MaskCoverage coverage = coverages.get(i);
+            if (coverage == null || layerInfo.occluded)
+                continue;
+            // texture coordinates are still scaled / offset - the mask is not needed
+            ShaderProgram program = null;
+            if (variants) {
+                program = shaderCache.get((layerInfo.getShaderFeatures()
+                        & (LayerShaderCache.FEATURE_SCALE | LayerShaderCache.FEATURE_OFFSET)) | pipelineFeatures);
+            }
+            if (program == null)
+                program = customShaderProgram;
+            if (spriteBatch.getShader() != program) {
+                spriteBatch.setShader(program);
+                shaderCache.countSwitch();
+            }
+            layerInfo.setSolidUniforms(program);
+            solidPieceCount += layerInfo.drawSolidCells(spriteBatch, coverage, solidRegion);
+            spriteBatch.flush();
+            occluderCount++;
+        }
+        spriteBatch.enableBlending();
+    } // void drawSolidCells(...)
+
+    /**
+     * Draws active effects of the drawer (or only the given one) into the open batch -
+     * solid cells front-to-back with depth writes, then the regular back-to-front pass
+     * with depth test only (translucent edges, additive layers). A layer fails the test
+     * where its own solid cells or those of the layers above were drawn.
+     */
+    void draw(LayerMaskingEffectDrawer drawer, LayerMaskingEffect only) {
+        final SpriteBatch spriteBatch = drawer.getSpriteBatch();
+        occluderCount = 0;
+        solidPieceCount = 0;
+        occludedCount = 0;
+        collectLayers(drawer.getEffects(), only);
+        findOccludedLayers();
+        spriteBatch.flush();
+        Gdx.gl.glDepthMask(true);
+        Gdx.gl.glClear(GL20.GL_DEPTH_BUFFER_BIT);
+        Gdx.gl.glEnable(GL20.GL_DEPTH_TEST);
+        Gdx.gl.glDepthFunc(GL20.GL_LESS);
+        drawSolidCells(drawer);
+        Gdx.gl.glDepthMask(false);
+        drawer.drawEffectLayers(only);
+        spriteBatch.flush();
+        Gdx.gl.glDepthMask(true);
+        Gdx.gl.glDisable(GL20.GL_DEPTH_TEST);
+        for (int i = 0; i < layers.size; i++)
+            layers.get(i).occluded = false;
+    } // void draw(...)
+
+    //-------------------------------------------------------------------------
+} // class LayerDepthPrepass
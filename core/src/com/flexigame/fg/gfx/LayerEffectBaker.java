@@ -0,0 +1,494 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.PixmapIO;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.glutils.FrameBuffer;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.LongMap;
+import com.badlogic.gdx.utils.ScreenUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Offline baking of a single LayerMaskingEffect into a frame sequence or a sprite sheet.
+ * The effect is stepped with a fixed delta, every frame is rendered (with the CPU
+ * rasterizer or into an offscreen frame buffer) and written to disk right away.
+ * Identical frames are stored only once - the manifest maps every frame to the
+ * unique frame (sheet cell) that should be displayed.
+ *
+ * Loop length is detected from the pulse and rotation periods of the layers, so the
+ * baked animation can be played back in a loop with BakedEffectPlayer.
+ *
+ * Only one frame is held in memory: the sheet is not drawn into one big pixmap -
+ * unique frames are appended to a raw scratch file while baking and the sheet PNG
+ * is encoded from it row by row afterwards.
+ */
+public class LayerEffectBaker {
+    public static final String MANIFEST_SUFFIX = ".txt";
+    public static final String SHEET_SUFFIX = "_sheet.png";
+    public static final String SCRATCH_SUFFIX = "_frames.raw";
+
+    public enum Output {
+        /* Every unique frame as separate PNG file */
+        SEQUENCE,
+        /* Unique frames packed into single sprite sheet PNG (streamed from a scratch file) */
+        SHEET,
+        /* Both outputs at once */
+        BOTH
+    }
+
+    /* Drawer owning the effect - used for the frame buffer path */
+    private LayerMaskingEffectDrawer drawer;
+    /* CPU renderer - used when frame buffer path is disabled */
+    private LayerMaskingRasterizer rasterizer;
+    /* Fixed update delta in seconds */
+    private float delta;
+    /* Upper limit for baked frame count */
+    private int maxFrames;
+    /* Size of single frame in pixels */
+    private int frameWidth;
+    private int frameHeight;
+    /* World rectangle captured in each frame */
+    private float worldX;
+    private float worldY;
+    private float worldWidth;
+    private float worldHeight;
+    /* Background color of each frame */
+    private Color clearColor;
+    /* What should be written to disk */
+    private Output output;
+    /* Render through offscreen frame buffer instead of the CPU rasterizer */
+    private boolean useFrameBuffer;
+    /* Effect currently being baked (CPU path renders arrays of effects) */
+    private Array<LayerMaskingEffect> bakedEffects;
+
+    //-------------------------------------------------------------------------
+
+    public LayerEffectBaker(LayerMaskingEffectDrawer drawer, LayerMaskingRasterizer rasterizer) {
+        if (drawer == null)
+            throw new RuntimeException("LayerMaskingEffectDrawer passed into constructor cannot be NULL!");
+        this.drawer = drawer;
+        this.rasterizer = rasterizer;
+        this.delta = 1.0f / 30.0f;
+        this.maxFrames = 300;
+        this.frameWidth = 256;
+        this.frameHeight = 256;
+        this.worldX = 0.0f;
+        this.worldY = 0.0f;
+        this.worldWidth = 256.0f;
+        this.worldHeight = 256.0f;
+        this.clearColor = new Color(0.0f, 0.0f, 0.0f, 0.0f);
+        this.output = Output.SHEET;
+        this.useFrameBuffer = (rasterizer == null);
+        this.bakedEffects = new Array<LayerMaskingEffect>(1);
+    }
+
+    //-------------------------------------------------------------------------
+
+    public void setDelta(float delta) {
+        if (delta > 0.0f)
+            this.delta = delta;
+    }
+
+    public float getDelta() {
+        return delta;
+    }
+
+    public void setMaxFrames(int maxFrames) {
+        if (maxFrames > 0)
+            this.maxFrames = maxFrames;
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    public void setFrameSize(int width, int height) {
+        this.frameWidth = width;
+        this.frameHeight = height;
+    }
+
+    public void setWorldRect(float x, float y, float width, float height) {
+        this.worldX = x;
+        this.worldY = y;
+        this.worldWidth = width;
+        this.worldHeight = height;
+    }
+
+    public void setClearColor(Color color) {
+        this.clearColor.set(color);
+    }
+
+    public void setOutput(Output output) {
+        if (output != null)
+            this.output = output;
+    }
+
+    public Output getOutput() {
+        return output;
+    }
+
+    public void setUseFrameBuffer(boolean toggle) {
+        if (!toggle && rasterizer == null)
+            throw new RuntimeException("CPU path requires LayerMaskingRasterizer!");
+        this.useFrameBuffer = toggle;
+    }
+
+    public boolean isUsingFrameBuffer() {
+        return useFrameBuffer;
+    }
+
+    //-------------------------------------------------------------------------
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static long periodInFrames(float period, float delta) {
+        final float frames = period / delta;
+        final long rounded = Math.round(frames);
+        if (rounded < 1 || Math.abs(frames - rounded) > 0.001f * frames)
+            return -1; // not aligned with the frame step
+        return rounded;
+    }
+
+    /**
+     * Returns the number of frames after which the effect repeats itself when updated
+     * with given delta (least common multiple of all pulse and rotation periods).
+     * Returns maxFrames when periods are not aligned with the frame step or when the
+     * loop would be longer than that.
+     */
+    public static int detectLoopFrames(LayerMaskingEffect effect, float delta, int maxFrames) {
+        long loop = 1;
+        Array<LayerInfo> layers = effect.getLayerInfoArray();
+        for (int i = 0; i < layers.size; i++) {
+            LayerInfo layerInfo = layers.get(i);
+            if (!layerInfo.visible)
+                continue;
+            if (layerInfo.shouldPulse && layerInfo.speed > 0.0f && layerInfo.minScale != layerInfo.maxScale) {
+                // full ping-pong cycle of scale ratio: 0 -> 1 -> 0
+                long frames = periodInFrames(2.0f / layerInfo.speed, delta);
+                if (frames < 0)
+                    return maxFrames;
+                loop = loop / gcd(loop, frames) * frames;
+            }
+            if (layerInfo.rotationSpeed != 0.0f) {
+                long frames = periodInFrames(360.0f / Math.abs(layerInfo.rotationSpeed), delta);
+                if (frames < 0)
+                    return maxFrames;
+                loop = loop / gcd(loop, frames) * frames;
+            }
+            if (loop > maxFrames)
+                return maxFrames;
+        }
+        return (int) loop;
+    } // int detectLoopFrames(...)
+
+    //-------------------------------------------------------------------------
+
+    private static long hashPixels(ByteBuffer pixels, int length) {
+        // FNV-1a 64-bit
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash ^= (pixels.get(i) & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void renderFrame(LayerMaskingEffect effect, Pixmap frame, FrameBuffer frameBuffer) {
+        if (frameBuffer == null) {
+            Pixmap.Blending blending = Pixmap.getBlending();
+            Pixmap.setBlending(Pixmap.Blending.None);
+            frame.setColor(clearColor);
+            frame.fill();
+            Pixmap.setBlending(blending);
+            rasterizer.render(bakedEffects, worldX, worldY, worldWidth, worldHeight, frame);
+            return;
+        }
+        final SpriteBatch batch = drawer.getSpriteBatch();
+        final Matrix4 projection = new Matrix4(batch.getProjectionMatrix());
+        frameBuffer.begin();
+        Gdx.gl.glClearColor(clearColor.r, clearColor.g, clearColor.b, clearColor.a);
+        Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT);
+        batch.getProjectionMatrix().setToOrtho2D(worldX, worldY, worldWidth, worldHeight);
+        batch.begin();
+        batch.setColor(Color.WHITE);
+        effect.draw(batch);
+        batch.end();
+        // frame buffer rows are bottom-up, flip them to match the pixmap
+        byte[] pixels = ScreenUtils.getFrameBufferPixels(0, 0, frameWidth, frameHeight, true);
+        frameBuffer.end();
+        batch.setProjectionMatrix(projection);
+        ByteBuffer buffer = frame.getPixels();
+        buffer.clear();
+        buffer.put(pixels);
+        buffer.clear();
+    } // void renderFrame(...)
+
+    /**
+     * Bakes the effect. Files are written into outputDir using given base name:
+     * name_0000.png (sequence), name_sheet.png (sheet) and name.txt (manifest).
+     * The effect is stepped forward - its state after baking is the state after
+     * the last baked frame. Returns number of baked frames.
+     */
+    public int bake(LayerMaskingEffect effect, FileHandle outputDir, String name) {
+        if (effect == null || outputDir == null || name == null)
+            return 0;
+        final int numFrames = detectLoopFrames(effect, delta, maxFrames);
+        final boolean writeSequence = (output != Output.SHEET);
+        final boolean writeSheet = (output != Output.SEQUENCE);
+        final int columns = (int) Math.ceil(Math.sqrt(numFrames));
+        final int rows = (numFrames + columns - 1) / columns;
+        final int frameBytes = frameWidth * frameHeight * 4;
+
+        outputDir.mkdirs();
+        Pixmap frame = new Pixmap(frameWidth, frameHeight, Pixmap.Format.RGBA8888);
+        // unique frames for the sheet - packed after the last frame
+        final FileHandle scratch = outputDir.child(name + SCRATCH_SUFFIX);
+        OutputStream scratchStream = null;
+        byte[] frameCopy = null;
+        if (writeSheet) {
+            scratchStream = new BufferedOutputStream(scratch.write(false), 64 * 1024);
+            frameCopy = new byte[frameBytes];
+        }
+        FrameBuffer frameBuffer = null;
+        if (useFrameBuffer)
+            frameBuffer = new FrameBuffer(Pixmap.Format.RGBA8888, frameWidth, frameHeight, false);
+
+        final boolean wasActive = effect.isActive();
+        effect.setActive(true);
+        bakedEffects.clear();
+        bakedEffects.add(effect);
+        LongMap<Integer> uniqueFrames = new LongMap<Integer>();
+        int[] frameCells = new int[numFrames];
+        int numUnique = 0;
+        try {
+            for (int i = 0; i < numFrames; i++) {
+                // same order as the drawer - first update, then draw
+                effect.update(delta);
+                renderFrame(effect, frame, frameBuffer);
+                final long hash = hashPixels(frame.getPixels(), frameBytes);
+                Integer cell = uniqueFrames.get(hash);
+                if (cell == null) {
+                    cell = numUnique++;
+                    uniqueFrames.put(hash, cell);
+                    if (writeSequence)
+                        PixmapIO.writePNG(outputDir.child(String.format("%s_%04d.png", name, cell)), frame);
+                    if (writeSheet) {
+                        ByteBuffer pixels = frame.getPixels();
+                        pixels.clear();
+                        pixels.get(frameCopy);
+                        pixels.clear();
+                        scratchStream.write(frameCopy);
+                    }
+                }
+                frameCells[i] = cell;
+            }
+            if (writeSheet) {
+                scratchStream.close();
+                scratchStream = null;
+                writeSheet(outputDir.child(name + SHEET_SUFFIX), scratch, numUnique, columns, rows);
+            }
+            writeManifest(outputDir.child(name + MANIFEST_SUFFIX), frameCells, numUnique, columns);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write baked frames: " + outputDir.path(), e);
+        } finally {
+            effect.setActive(wasActive);
+            bakedEffects.clear();
+            frame.dispose();
+            if (frameBuffer != null)
+                frameBuffer.dispose();
+            if (scratchStream != null) {
+                try {
+                    scratchStream.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            if (writeSheet)
+                scratch.delete();
+        }
+        Gdx.app.debug("LayerEffectBaker", "Baked effect '" + effect.getName() + "': "
+                + numFrames + " frames, " + numUnique + " unique");
+        return numFrames;
+    } // int bake(...)
+
+    /**
+     * Encodes the sheet PNG from the unique frames in the scratch file - one sheet
+     * row of pixels in memory at a time (cells after the last unique frame stay
+     * transparent).
+     */
+    private void writeSheet(FileHandle file, FileHandle scratch, int numUnique, int columns, int rows)
+            throws IOException {
+        final int rowBytes = frameWidth * 4;
+        final byte[] row = new byte[rowBytes * columns];
+        RandomAccessFile frames = new RandomAccessFile(scratch.file(), "r");
+        PngRowWriter png = new PngRowWriter(file.write(false), frameWidth * columns, frameHeight * rows);
+        try {
+            for (int y = 0; y < frameHeight * rows; y++) {
+                final int firstCell = (y / frameHeight) * columns;
+                for (int column = 0; column < columns; column++) {
+                    final int cell = firstCell + column;
+                    if (cell < numUnique) {
+                        frames.seek((long) cell * rowBytes * frameHeight + (long) (y % frameHeight) * rowBytes);
+                        frames.readFully(row, column * rowBytes, rowBytes);
+                    } else {
+                        Arrays.fill(row, column * rowBytes, (column + 1) * rowBytes, (byte) 0);
+                    }
+                }
+                png.writeRow(row);
+            }
+            png.finish();
+        } finally {
+            png.close();
+            frames.close();
+        }
+    } // void writeSheet(...)
+
+    /**
+     * Minimal streaming PNG encoder (RGBA8888, Paeth filter like PixmapIO) - rows
+     * are compressed as they come instead of from a whole pixmap.
+     */
+    static class PngRowWriter {
+        private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+        private static final int IHDR = 0x49484452, IDAT = 0x49444154, IEND = 0x49454E44;
+
+        private DataOutputStream output;
+        private ByteArrayOutputStream chunk;
+        private Deflater compressor;
+        private DeflaterOutputStream deflater;
+        private int width;
+        private int height;
+        private int rowsWritten;
+        private byte[] previous;
+        private byte[] filtered;
+
+        PngRowWriter(OutputStream stream, int width, int height) throws IOException {
+            this.output = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+            this.chunk = new ByteArrayOutputStream(64 * 1024);
+            this.width = width;
+            this.height = height;
+            this.rowsWritten = 0;
+            this.previous = new byte[width * 4];
+            this.filtered = new byte[width * 4 + 1];
+            output.write(SIGNATURE);
+            DataOutputStream header = new DataOutputStream(chunk);
+            header.writeInt(width);
+            header.writeInt(height);
+            header.writeByte(8); // bit depth
+            header.writeByte(6); // RGBA
+            header.writeByte(0); // deflate
+            header.writeByte(0); // adaptive filtering
+            header.writeByte(0); // no interlace
+            writeChunk(IHDR);
+            this.compressor = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            this.deflater = new DeflaterOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    chunk.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int offset, int length) throws IOException {
+                    chunk.write(b, offset, length);
+                    if (chunk.size() >= 32 * 1024)
+                        writeChunk(IDAT);
+                }
+            }, compressor, 32 * 1024);
+        }
+
+        private void writeChunk(int type) throws IOException {
+            final byte[] data = chunk.toByteArray();
+            chunk.reset();
+            CRC32 crc = new CRC32();
+            crc.update(type >>> 24);
+            crc.update(type >>> 16);
+            crc.update(type >>> 8);
+            crc.update(type);
+            crc.update(data);
+            output.writeInt(data.length);
+            output.writeInt(type);
+            output.write(data);
+            output.writeInt((int) crc.getValue());
+        }
+
+        void writeRow(byte[] row) throws IOException {
+            if (rowsWritten >= height)
+                throw new RuntimeException("PNG has only " + height + " rows!");
+            final int length = width * 4;
+            filtered[0] = 4; // Paeth
+            for (int i = 0; i < length; i++) {
+                final int a = i >= 4 ? row[i - 4] & 0xff : 0;
+                final int b = previous[i] & 0xff;
+                final int c = i >= 4 ? previous[i - 4] & 0xff : 0;
+                final int p = a + b - c;
+                final int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+                final int predictor = (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+                filtered[i + 1] = (byte) (row[i] - predictor);
+            }
+            deflater.write(filtered, 0, length + 1);
+            System.arraycopy(row, 0, previous, 0, length);
+            rowsWritten++;
+        } // void writeRow(...)
+
+        void finish() throws IOException {
+            if (rowsWritten != height)
+                throw new RuntimeException("PNG needs " + height + " rows, got " + rowsWritten);
+            deflater.finish();
+            writeChunk(IDAT);
+            writeChunk(IEND);
+            output.flush();
+        }
+
+        void close() throws IOException {
+            compressor.end();
+            output.close();
+        }
+    } // class PngRowWriter
+
+    private void writeManifest(FileHandle file, int[] frameCells, int numUnique, int columns) {
+        Writer writer = file.writer(false, "UTF-8");
+        try {
+            writer.write("frames " + frameCells.length + "\n");
+            writer.write("unique " + numUnique + "\n");
+            writer.write("size " + frameWidth + " " + frameHeight + "\n");
+            writer.write("columns " + columns + "\n");
+            writer.write("delta " + delta + "\n");
+            for (int i = 0; i < frameCells.length; i++)
+                writer.write(frameCells[i] + "\n");
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write bake manifest: " + file.path(), e);
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    } // void writeManifest(...)
+
+    //-------------------------------------------------------------------------
+} // class LayerEffectBaker
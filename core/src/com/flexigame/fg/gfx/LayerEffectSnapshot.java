@@ -0,0 +1,370 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.assets.AssetManager;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.TimeUtils;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Binary snapshot of all effects of a drawer - layer configuration and runtime state
+ * (pulse phase and direction, rotation, offsets, scale) with textures referenced by
+ * their asset paths. Restoring it continues the animation exactly where it was saved
+ * (e.g. after the app was killed in background) and replaces building the effects.
+ *
+ * Effects are matched by name (missing ones are created), layers by index. Textures
+ * need to be loaded in the asset manager before reading. Mask and layer offsets used
+ * for drawing are derived from the stored offsets in the first update. Timelines and
+ * interpolation methods are not stored.
+ *
+ * App specific values can be kept next to the effects in userData.
+ */
+public class LayerEffectSnapshot {
+    public static final String TAG = "LayerEffectSnapshot";
+
+    /* "FGES" */
+    public static final int MAGIC = 0x46474553;
+    /* 2 - blend modes, 3 - layer priorities */
+    public static final int VERSION = 3;
+    /* Oldest version which can be read (no blend modes - layers get ALPHA, priority 0) */
+    public static final int MIN_VERSION = 1;
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+    /* Layer flags */
+    private static final int FLAG_VISIBLE = 1;
+    private static final int FLAG_PULSE = 2;
+    private static final int FLAG_PROCEDURAL = 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* Reused for capturing and loading (grows when needed) */
+    private ByteBuffer buffer;
+    /* App values stored after the effects */
+    public final FloatArray userData;
+    /* Time of the last write/read (nanos) */
+    private long lastTime;
+
+    //-------------------------------------------------------------------------
+
+    public LayerEffectSnapshot() {
+        this.buffer = ByteBuffer.allocateDirect(DEFAULT_CAPACITY);
+        this.userData = new FloatArray();
+        this.lastTime = 0;
+    }
+
+    /**
+     * Duration of the last capture/restore in microseconds (file I/O not included).
+     */
+    public float getLastTime() {
+        return lastTime / 1000.0f;
+    }
+
+    //-------------------------------------------------------------------------
+
+    private static void putString(ByteBuffer out, String value) {
+        if (value == null) {
+            out.putShort((short) -1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(UTF8);
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        final int length = in.getShort();
+        if (length < 0)
+            return null;
+        final byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static String getAssetPath(AssetManager assetManager, Texture texture) {
+        if (texture == null)
+            return null;
+        final String path = assetManager.getAssetFileName(texture);
+        if (path == null)
+            throw new RuntimeException("Texture of a layer is not an asset - cannot be stored in snapshot");
+        return path;
+    }
+
+    private static Texture getTexture(AssetManager assetManager, String path) {
+        if (path == null)
+            return null;
+        if (!assetManager.isLoaded(path, Texture.class))
+            throw new RuntimeException("Texture from snapshot is not loaded: " + path);
+        return assetManager.get(path, Texture.class);
+    }
+
+    //-------------------------------------------------------------------------
+
+    private static void writeLayer(AssetManager assetManager, LayerInfo layerInfo, ByteBuffer out) {
+        putString(out, getAssetPath(assetManager, layerInfo.getTexture()));
+        putString(out, getAssetPath(assetManager, layerInfo.getMaskTexture()));
+        int flags = 0;
+        if (layerInfo.visible)
+            flags |= FLAG_VISIBLE;
+        if (layerInfo.shouldPulse)
+            flags |= FLAG_PULSE;
+        if (layerInfo.proceduralMask != null)
+            flags |= FLAG_PROCEDURAL;
+        out.put((byte) flags);
+        out.put((byte) layerInfo.scaleMode.ordinal());
+        out.put((byte) layerInfo.offsetMode.ordinal());
+        out.put((byte) layerInfo.sampling.ordinal());
+        out.put((byte) layerInfo.maskChannel);
+        out.put((byte) layerInfo.blendMode.ordinal());
+        out.putInt(layerInfo.priority);
+        out.putFloat(layerInfo.size.x);
+        out.putFloat(layerInfo.size.y);
+        out.putFloat(layerInfo.position.x);
+        out.putFloat(layerInfo.position.y);
+        out.putFloat(layerInfo.getOffsetX());
+        out.putFloat(layerInfo.getOffsetY());
+        out.putFloat(layerInfo.speed);
+        out.putFloat(layerInfo.getScaleRatio());
+        out.putFloat(layerInfo.getPulseDirection());
+        out.putFloat(layerInfo.getScale());
+        out.putFloat(layerInfo.minScale);
+        out.putFloat(layerInfo.maxScale);
+        out.putFloat(layerInfo.rotation);
+        out.putFloat(layerInfo.rotationSpeed);
+        out.putFloat(layerInfo.sdfSpread);
+        out.putFloat(layerInfo.sdfSoftness);
+        if (layerInfo.proceduralMask != null) {
+            final ProceduralMask mask = layerInfo.proceduralMask;
+            out.put((byte) mask.type.ordinal());
+            out.putFloat(mask.radius);
+            out.putFloat(mask.width);
+            out.putFloat(mask.frequency);
+            out.putFloat(mask.phase);
+            out.putFloat(mask.angle);
+            out.putFloat(mask.duty);
+            out.putInt(mask.sides);
+            out.putFloat(mask.softness);
+        }
+    } // void writeLayer(...)
+
+    private static void readLayer(AssetManager assetManager, LayerInfo layerInfo, ByteBuffer in, int version) {
+        final Texture texture = getTexture(assetManager, getString(in));
+        final Texture mask = getTexture(assetManager, getString(in));
+        final int flags = in.get();
+        layerInfo.scaleMode = LayerInfo.Mode.values()[in.get()];
+        layerInfo.offsetMode = LayerInfo.Mode.values()[in.get()];
+        layerInfo.sampling = LayerInfo.Sampling.values()[in.get()];
+        layerInfo.maskChannel = in.get();
+        layerInfo.blendMode = version >= 2 ? LayerInfo.BlendMode.values()[in.get()] : LayerInfo.BlendMode.ALPHA;
+        layerInfo.priority = version >= 3 ? in.getInt() : 0;
+        layerInfo.setTexture(texture); // sets size from the texture - overwritten below
+        layerInfo.size.x = in.getFloat();
+        layerInfo.size.y = in.getFloat();
+        layerInfo.position.x = in.getFloat();
+        layerInfo.position.y = in.getFloat();
+        layerInfo.setOffset(in.getFloat(), in.getFloat());
+        layerInfo.speed = in.getFloat();
+        final float scaleRatio = in.getFloat();
+        final float direction = in.getFloat();
+        layerInfo.setScale(in.getFloat());
+        layerInfo.minScale = in.getFloat();
+        layerInfo.maxScale = in.getFloat();
+        layerInfo.rotation = in.getFloat();
+        layerInfo.rotationSpeed = in.getFloat();
+        final float sdfSpread = in.getFloat();
+        layerInfo.sdfSoftness = in.getFloat();
+        if (sdfSpread > 0.0f)
+            layerInfo.setSdfMask(mask, sdfSpread);
+        else
+            layerInfo.setMaskTexture(mask);
+        layerInfo.proceduralMask = null;
+        if ((flags & FLAG_PROCEDURAL) != 0) {
+            ProceduralMask procedural = new ProceduralMask(ProceduralMask.Type.values()[in.get()]);
+            procedural.radius = in.getFloat();
+            procedural.width = in.getFloat();
+            procedural.frequency = in.getFloat();
+            procedural.phase = in.getFloat();
+            procedural.angle = in.getFloat();
+            procedural.duty = in.getFloat();
+            procedural.sides = in.getInt();
+            procedural.softness = in.getFloat();
+            layerInfo.proceduralMask = procedural;
+        }
+        layerInfo.visible = (flags & FLAG_VISIBLE) != 0;
+        layerInfo.shouldPulse = (flags & FLAG_PULSE) != 0;
+        layerInfo.restorePulse(scaleRatio, direction);
+        layerInfo.markDirty();
+    } // void readLayer(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Writes all effects of the drawer at the position of the buffer. An effect
+     * being blended out by a transition is stored as hidden.
+     */
+    public static void write(LayerMaskingEffectDrawer drawer, ByteBuffer out, FloatArray userData) {
+        final AssetManager assetManager = drawer.getAssetManager();
+        final LayerMaskingEffect transitionTarget = drawer.isTransitioning() ? drawer.getTransition().getTo() : null;
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(drawer.count());
+        for (int i = 0; i < drawer.count(); i++) {
+            final LayerMaskingEffect effect = drawer.get(i);
+            boolean active = effect.isActive();
+            if (transitionTarget != null)
+                active = effect == transitionTarget;
+            putString(out, effect.getName());
+            out.put((byte) (active ? 1 : 0));
+            out.putFloat(effect.getOffsetX());
+            out.putFloat(effect.getOffsetY());
+            out.putInt(effect.count());
+            for (int j = 0; j < effect.count(); j++)
+                writeLayer(assetManager, effect.get(j), out);
+        }
+        final int userCount = userData == null ? 0 : userData.size;
+        out.putInt(userCount);
+        for (int i = 0; i < userCount; i++)
+            out.putFloat(userData.get(i));
+    } // void write(...)
+
+    /**
+     * Restores effects from the buffer into the drawer - missing effects and layers
+     * are created, layers above the stored count are deleted.
+     */
+    public static void read(LayerMaskingEffectDrawer drawer, ByteBuffer in, FloatArray userData) {
+        final AssetManager assetManager = drawer.getAssetManager();
+        if (in.remaining() < 12 || in.getInt() != MAGIC)
+            throw new RuntimeException("Not an effect snapshot");
+        final int version = in.getInt();
+        if (version < MIN_VERSION || version > VERSION)
+            throw new RuntimeException("Unsupported effect snapshot version: " + version);
+        final int effectCount = in.getInt();
+        for (int i = 0; i < effectCount; i++) {
+            final String name = getString(in);
+            LayerMaskingEffect effect = drawer.get(name);
+            if (effect == null)
+                effect = drawer.createLayerEffect(name);
+            effect.setActive(in.get() != 0);
+            effect.setOffset(in.getFloat(), in.getFloat());
+            final int layerCount = in.getInt();
+            while (effect.count() > layerCount)
+                effect.deleteLayer(effect.count() - 1);
+            for (int j = 0; j < layerCount; j++) {
+                LayerInfo layerInfo;
+                if (j < effect.count()) {
+                    layerInfo = effect.get(j);
+                } else {
+                    layerInfo = new LayerInfo();
+                    effect.addLayer(layerInfo);
+                }
+                readLayer(assetManager, layerInfo, in, version);
+            }
+        }
+        final int userCount = in.getInt();
+        if (userData != null)
+            userData.clear();
+        for (int i = 0; i < userCount; i++) {
+            final float value = in.getFloat();
+            if (userData != null)
+                userData.add(value);
+        }
+    } // void read(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Writes the drawer (and userData) into the internal buffer - returned ready
+     * for reading.
+     */
+    public ByteBuffer capture(LayerMaskingEffectDrawer drawer) {
+        final long start = TimeUtils.nanoTime();
+        while (true) {
+            buffer.clear();
+            try {
+                write(drawer, buffer, userData);
+                break;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+            }
+        }
+        buffer.flip();
+        lastTime = TimeUtils.nanoTime() - start;
+        return buffer;
+    }
+
+    public void restore(LayerMaskingEffectDrawer drawer, ByteBuffer in) {
+        final long start = TimeUtils.nanoTime();
+        read(drawer, in, userData);
+        lastTime = TimeUtils.nanoTime() - start;
+    }
+
+    public void save(LayerMaskingEffectDrawer drawer, FileHandle file) {
+        final ByteBuffer data = capture(drawer);
+        FileOutputStream output = null;
+        try {
+            file.parent().mkdirs();
+            output = new FileOutputStream(file.file());
+            final FileChannel channel = output.getChannel();
+            while (data.hasRemaining())
+                channel.write(data);
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't write effect snapshot: " + file.path(), e);
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        Gdx.app.debug(TAG, "Saved " + drawer.count() + " effects (" + data.limit() + " bytes) in "
+                + getLastTime() + " us");
+    } // void save(...)
+
+    /**
+     * Restores the drawer from the file - returns false when there is no snapshot.
+     */
+    public boolean load(LayerMaskingEffectDrawer drawer, FileHandle file) {
+        if (!file.exists())
+            return false;
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file.file(), "r");
+            final int length = (int) input.length();
+            if (buffer.capacity() < length)
+                buffer = ByteBuffer.allocateDirect(length);
+            buffer.clear();
+            buffer.limit(length);
+            final FileChannel channel = input.getChannel();
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // read all
+            }
+            buffer.flip();
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't read effect snapshot: " + file.path(), e);
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        restore(drawer, buffer);
+        Gdx.app.debug(TAG, "Restored " + drawer.count() + " effects (" + buffer.limit() + " bytes) in "
+                + getLastTime() + " us");
+        return true;
+    } // boolean load(...)
+
+    //-------------------------------------------------------------------------
+} // class LayerEffectSnapshot
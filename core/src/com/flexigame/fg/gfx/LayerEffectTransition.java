@@ -0,0 +1,306 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.utils.Array;
+
+/**
+ * Mask driven wipe between two layer effects. Every frame the outgoing and the incoming
+ * effect are drawn once each into reduced resolution render targets, then both targets
+ * are blended on screen with a single quad - the wipe follows the values of a mask
+ * texture (by default one of the masks used by the effects).
+ *
+ * The transition always ends after its duration. When the average frame time goes
+ * over the frame budget (with some headroom) the resolution of the targets is lowered
+ * (and raised again when there is enough headroom) by DynamicResolutionController -
+ * every transition starts at full scale. Frames are measured with their work time
+ * when known, the vsync capped delta alone never shows headroom.
+ */
+public class LayerEffectTransition {
+    public static final float DEFAULT_DURATION = 1.0f;
+    public static final float DEFAULT_FRAME_BUDGET = 1.0f / 60.0f;
+
+    /* Effects being blended */
+    private LayerMaskingEffect from;
+    private LayerMaskingEffect to;
+    /* Wipe mask (can be null - horizontal wipe) */
+    private Texture mask;
+    /* Mask channel to use (0 - red, 1 - green, 2 - blue, 3 - alpha) */
+    private int maskChannel;
+    /* Width of the soft wipe edge (in mask values) */
+    public float softness;
+    /* Transition length in seconds */
+    private float duration;
+    /* Time since start */
+    private float elapsed;
+    /* Is transition running? */
+    private boolean active;
+    /* Picks resolution scale of the targets from the frame times */
+    private DynamicResolutionController resolutionController;
+    /* Render targets for outgoing and incoming effect */
+    private LayerRenderTarget fromTarget;
+    private LayerRenderTarget toTarget;
+    /* Wipe shader */
+    private ShaderProgram program;
+    /* Projection for the full screen quad */
+    private Matrix4 quadProjection;
+    /* Projection of the batch saved while compositing */
+    private Matrix4 savedProjection;
+
+    //-------------------------------------------------------------------------
+
+    public LayerEffectTransition(String vertexShader) {
+        this.from = null;
+        this.to = null;
+        this.mask = null;
+        this.maskChannel = 0;
+        this.softness = 0.15f;
+        this.duration = DEFAULT_DURATION;
+        this.elapsed = 0.0f;
+        this.active = false;
+        // transitions are short - small window, but averaged so a single slow frame
+        // (switch, first upload) does not lower the scale for the whole transition
+        this.resolutionController = new DynamicResolutionController(0.25f, 0.5f, DEFAULT_FRAME_BUDGET, 4);
+        this.resolutionController.upperRatio = 1.1f;
+        this.resolutionController.framesToDecrease = 2;
+        this.resolutionController.framesToIncrease = 30;
+        this.resolutionController.step = 0.75f;
+        this.fromTarget = new LayerRenderTarget(resolutionController.getScale());
+        this.toTarget = new LayerRenderTarget(resolutionController.getScale());
+        this.quadProjection = new Matrix4().setToOrtho2D(0.0f, 0.0f, 1.0f, 1.0f);
+        this.savedProjection = new Matrix4();
+        this.program = new ShaderProgram(vertexShader, FRAGMENT_SHADER);
+        if (!program.isCompiled())
+            Gdx.app.debug("LayerEffectTransition", "Transition shader did not compile:\n " + program.getLog());
+        else
+            restore();
+    }
+
+    public void dispose() {
+        fromTarget.dispose();
+        toTarget.dispose();
+        program.dispose();
+        from = null;
+        to = null;
+        mask = null;
+        active = false;
+    }
+
+    //-------------------------------------------------------------------------
+
+    // Incoming effect - u_texture (unit 0), outgoing - u_texture1 (unit 1), mask - u_texture2.
+    // Targets hold premultiplied colors - result is blended with ONE, ONE_MINUS_SRC_ALPHA.
+    private static final String FRAGMENT_SHADER = "#ifdef GL_ES\n" +
+            "precision mediump float;\n" +
+            "#endif\n" +
+            "varying vec4 v_color;\n" +
+            "varying vec2 v_texCoords;\n" +
+            "uniform sampler2D u_texture;\n" +
+            "uniform sampler2D u_texture1;\n" +
+            "uniform sampler2D u_texture2;\n" +
+            "uniform float u_useMask;\n" +
+            "uniform vec4 u_maskChannel;\n" +
+            "uniform float u_progress;\n" +
+            "uniform float u_softness;\n" +
+            "void main()\n" +
+            "{\n" +
+            " vec2 maskCoords = vec2(v_texCoords.x, 1.0 - v_texCoords.y);\n" +
+            " float m = maskCoords.x;\n" +
+            " if(u_useMask > 0.5)\n" +
+            "  m = dot(texture2D(u_texture2, maskCoords), u_maskChannel);\n" +
+            " float w = clamp((u_progress * (1.0 + u_softness) - m) / u_softness, 0.0, 1.0);\n" +
+            " gl_FragColor = mix(texture2D(u_texture1, v_texCoords), texture2D(u_texture, v_texCoords), w);\n" +
+            "}";
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Sets the sampler units again - needed after context loss (the program is
+     * recompiled by libgdx, render targets are recreated by their frame buffers).
+     */
+    public void restore() {
+        if (!program.isCompiled())
+            return;
+        program.begin();
+        program.setUniformi("u_texture", 0);
+        program.setUniformi("u_texture1", 1);
+        program.setUniformi("u_texture2", 2);
+        program.end();
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public LayerMaskingEffect getFrom() {
+        return from;
+    }
+
+    public LayerMaskingEffect getTo() {
+        return to;
+    }
+
+    public Texture getMask() {
+        return mask;
+    }
+
+    public float getDuration() {
+        return duration;
+    }
+
+    public float getProgress() {
+        if (duration <= 0.0f)
+            return 1.0f;
+        return MathUtils.clamp(elapsed / duration, 0.0f, 1.0f);
+    }
+
+    public DynamicResolutionController getResolutionController() {
+        return resolutionController;
+    }
+
+    public float getResolutionScale() {
+        return resolutionController.getScale();
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Looks for the first mask used by the layers of the effect.
+     */
+    private static LayerInfo findMaskedLayer(LayerMaskingEffect effect) {
+        Array<LayerInfo> layers = effect.getLayerInfoArray();
+        for (int i = 0; i < layers.size; i++) {
+            if (layers.get(i).getMaskTexture() != null)
+                return layers.get(i);
+        }
+        return null;
+    }
+
+    /**
+     * Starts blending between two effects - both need to be active until the end
+     * (outgoing effect is hidden when transition finishes). With null mask the mask
+     * of the incoming (or outgoing) effect is reused.
+     */
+    public void start(LayerMaskingEffect from, LayerMaskingEffect to, Texture mask, float duration) {
+        if (from == null || to == null)
+            throw new RuntimeException("Effects passed into transition cannot be NULL!");
+        this.from = from;
+        this.to = to;
+        this.duration = Math.max(0.0f, duration);
+        this.elapsed = 0.0f;
+        // scale of the previous transition says nothing about these effects
+        this.resolutionController.setScale(resolutionController.getMaxScale());
+        this.mask = mask;
+        this.maskChannel = 0;
+        if (this.mask == null) {
+            LayerInfo layerInfo = findMaskedLayer(to);
+            if (layerInfo == null)
+                layerInfo = findMaskedLayer(from);
+            if (layerInfo != null) {
+                this.mask = layerInfo.getMaskTexture();
+                this.maskChannel = layerInfo.maskChannel;
+            }
+        }
+        this.active = program.isCompiled() && this.duration > 0.0f;
+        if (!this.active)
+            finish();
+    }
+
+    /**
+     * Ends transition right away - outgoing effect is hidden.
+     */
+    public void finish() {
+        if (from != null && from != to)
+            from.hide();
+        active = false;
+        from = null;
+        to = null;
+        mask = null;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public void update(float delta) {
+        update(delta, 0.0f);
+    }
+
+    /**
+     * Advances the transition - workTime is the time the last frame took without
+     * waiting for vsync (0 - unknown, only delta is measured).
+     */
+    public void update(float delta, float workTime) {
+        if (!active)
+            return;
+        // first frame includes the switch itself (and target creation) - not measured
+        if (elapsed > 0.0f && resolutionController.addFrameTime(delta, workTime))
+            Gdx.app.debug("LayerEffectTransition", "Resolution scale: " + resolutionController.getScale());
+        elapsed += delta;
+        if (elapsed >= duration)
+            finish();
+    }
+
+    //-------------------------------------------------------------------------
+
+    private void renderEffect(LayerMaskingEffectDrawer drawer, LayerMaskingEffect effect, LayerRenderTarget target) {
+        target.begin();
+        drawer.drawBatched(effect);
+        target.end();
+    }
+
+    /**
+     * Renders both effects into the targets and blends them on screen.
+     */
+    public void draw(LayerMaskingEffectDrawer drawer) {
+        if (!active)
+            return;
+        final SpriteBatch batch = drawer.getSpriteBatch();
+        final int screenWidth = Gdx.graphics.getWidth();
+        final int screenHeight = Gdx.graphics.getHeight();
+        fromTarget.setScale(resolutionController.getScale());
+        toTarget.setScale(resolutionController.getScale());
+        fromTarget.prepare(screenWidth, screenHeight);
+        toTarget.prepare(screenWidth, screenHeight);
+
+        // layers set separate alpha blending themselves (LayerRenderContext.applyBlendMode)
+        // - targets end up with premultiplied color and proper alpha
+        renderEffect(drawer, from, fromTarget);
+        renderEffect(drawer, to, toTarget);
+
+        savedProjection.set(batch.getProjectionMatrix());
+        final ShaderProgram savedShader = batch.getShader();
+        batch.setBlendFunction(GL20.GL_ONE, GL20.GL_ONE_MINUS_SRC_ALPHA);
+        batch.setProjectionMatrix(quadProjection);
+        batch.setShader(program);
+        batch.begin();
+        batch.setColor(Color.WHITE);
+        program.setUniformf("u_progress", getProgress());
+        program.setUniformf("u_softness", Math.max(0.001f, softness));
+        if (mask != null) {
+            program.setUniformf("u_useMask", 1.0f);
+            program.setUniformf("u_maskChannel",
+                    maskChannel == 0 ? 1.0f : 0.0f,
+                    maskChannel == 1 ? 1.0f : 0.0f,
+                    maskChannel == 2 ? 1.0f : 0.0f,
+                    maskChannel == 3 ? 1.0f : 0.0f);
+            mask.bind(2);
+        } else {
+            program.setUniformf("u_useMask", 0.0f);
+        }
+        fromTarget.getTexture().bind(1);
+        Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0);
+        // frame buffer textures are bottom-up
+        batch.draw(toTarget.getTexture(), 0.0f, 0.0f, 1.0f, 1.0f, 0.0f, 1.0f, 1.0f, 0.0f);
+        batch.end();
+        batch.setShader(savedShader);
+        batch.setProjectionMatrix(savedProjection);
+        batch.setBlendFunction(GL20.GL_SRC_ALPHA, GL20.GL_ONE_MINUS_SRC_ALPHA);
+    } // void draw(...)
+
+    //-------------------------------------------------------------------------
+} // class LayerEffectTransition
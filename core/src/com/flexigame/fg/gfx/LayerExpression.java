@@ -0,0 +1,527 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.IntArray;
+
+/**
+ * Arithmetic expression over named float inputs, compiled once into flat bytecode
+ * for a small stack machine - evaluating it allocates nothing. Used by LayerBindings
+ * to drive layer properties from game state.
+ *
+ * Syntax: numbers, inputs (names resolved by LayerBindings when compiling), arg (the
+ * value given with the binding), pi, parentheses, unary minus, + - * / % ^ (power),
+ * comparisons < > (1.0 or 0.0) and functions: sin cos abs floor fract sqrt sign
+ * (one argument), min max mod step pow (two), clamp mix smoothstep (three) and
+ * pingpong(x) - triangle wave going 0 - 1 - 0 with period 2. Angles are in radians.
+ * Parts without inputs are folded into constants when compiling.
+ */
+public class LayerExpression {
+    /* Opcodes - PUSH_* are followed by an index (constant / input) */
+    static final int PUSH_CONSTANT = 0;
+    static final int PUSH_INPUT = 1;
+    static final int PUSH_ARGUMENT = 2;
+    static final int ADD = 3;
+    static final int SUB = 4;
+    static final int MUL = 5;
+    static final int DIV = 6;
+    static final int MOD = 7;
+    static final int POW = 8;
+    static final int NEG = 9;
+    static final int LESS = 10;
+    static final int GREATER = 11;
+    static final int SIN = 12;
+    static final int COS = 13;
+    static final int ABS = 14;
+    static final int FLOOR = 15;
+    static final int FRACT = 16;
+    static final int SQRT = 17;
+    static final int SIGN = 18;
+    static final int PINGPONG = 19;
+    static final int MIN = 20;
+    static final int MAX = 21;
+    static final int STEP = 22;
+    static final int CLAMP = 23;
+    static final int MIX = 24;
+    static final int SMOOTHSTEP = 25;
+
+    /* Function names by opcode (null - not a function) and their argument counts */
+    private static final String[] FUNCTION_NAMES = {
+            null, null, null, null, null, null, null, "mod", "pow", null, null, null,
+            "sin", "cos", "abs", "floor", "fract", "sqrt", "sign", "pingpong",
+            "min", "max", "step", "clamp", "mix", "smoothstep"};
+    private static final int[] ARGUMENT_COUNTS = {
+            0, 0, 0, 2, 2, 2, 2, 2, 2, 1, 2, 2,
+            1, 1, 1, 1, 1, 1, 1, 1,
+            2, 2, 2, 3, 3, 3};
+
+    /**
+     * Resolves input names to slots when compiling (see LayerBindings).
+     */
+    public interface InputResolver {
+        /**
+         * Slot of the named input (-1 - no such input).
+         */
+        int getInputSlot(String name);
+    }
+
+    /* Source text */
+    private final String source;
+    /* Resolver of the input slots (can be null) */
+    private final InputResolver resolver;
+    /* Bytecode */
+    private final int[] code;
+    /* Constant pool */
+    private final float[] constants;
+    /* Deepest stack needed */
+    private final int maxStackDepth;
+    /* Does it read the binding argument (value differs per binding)? */
+    private final boolean usesArgument;
+    /* Value memo - expressions without the argument are evaluated once per pass */
+    int evaluatedPass;
+    float lastValue;
+
+    //-------------------------------------------------------------------------
+
+    private LayerExpression(String source, InputResolver resolver, int[] code, float[] constants,
+                            int maxStackDepth, boolean usesArgument) {
+        this.source = source;
+        this.resolver = resolver;
+        this.code = code;
+        this.constants = constants;
+        this.maxStackDepth = maxStackDepth;
+        this.usesArgument = usesArgument;
+        this.evaluatedPass = -1;
+        this.lastValue = 0.0f;
+    }
+
+    /**
+     * Compiles the expression - throws RuntimeException with the position of the
+     * first error.
+     */
+    public static LayerExpression compile(String source, InputResolver resolver) {
+        if (source == null)
+            throw new RuntimeException("Expression source cannot be NULL!");
+        Compiler compiler = new Compiler(source, resolver);
+        compiler.compile();
+        return new LayerExpression(source, resolver, compiler.code.toArray(), compiler.constants.toArray(),
+                compiler.maxDepth, compiler.usesArgument);
+    }
+
+    //-------------------------------------------------------------------------
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Resolver the input slots come from - the expression reads inputs of this one.
+     */
+    public InputResolver getResolver() {
+        return resolver;
+    }
+
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    public boolean usesArgument() {
+        return usesArgument;
+    }
+
+    /**
+     * Number of instructions.
+     */
+    public int getCodeLength() {
+        int length = 0;
+        for (int pc = 0; pc < code.length; pc++, length++) {
+            if (code[pc] <= PUSH_ARGUMENT)
+                pc++; // operand
+        }
+        return length;
+    }
+
+    /**
+     * Is the whole expression a single constant? (nothing to evaluate per frame)
+     */
+    public boolean isConstant() {
+        return code.length == 2 && code[0] == PUSH_CONSTANT;
+    }
+
+    //-------------------------------------------------------------------------
+
+    private static float pingpong(float x) {
+        final float t = x - 2.0f * (float) Math.floor(x / 2.0f);
+        return t > 1.0f ? 2.0f - t : t;
+    }
+
+    private static float mod(float a, float b) {
+        return b == 0.0f ? 0.0f : a - b * (float) Math.floor(a / b);
+    }
+
+    private static float smoothstep(float edge0, float edge1, float x) {
+        if (edge0 == edge1)
+            return x < edge0 ? 0.0f : 1.0f;
+        final float t = MathUtils.clamp((x - edge0) / (edge1 - edge0), 0.0f, 1.0f);
+        return t * t * (3.0f - 2.0f * t);
+    }
+
+    /**
+     * Applies an operator / function to operands (a, b, c as many as it takes).
+     */
+    private static float apply(int op, float a, float b, float c) {
+        switch (op) {
+            case ADD:
+                return a + b;
+            case SUB:
+                return a - b;
+            case MUL:
+                return a * b;
+            case DIV:
+                return b == 0.0f ? 0.0f : a / b;
+            case MOD:
+                return mod(a, b);
+            case POW:
+                return (float) Math.pow(a, b);
+            case NEG:
+                return -a;
+            case LESS:
+                return a < b ? 1.0f : 0.0f;
+            case GREATER:
+                return a > b ? 1.0f : 0.0f;
+            case SIN:
+                return MathUtils.sin(a);
+            case COS:
+                return MathUtils.cos(a);
+            case ABS:
+                return Math.abs(a);
+            case FLOOR:
+                return (float) Math.floor(a);
+            case FRACT:
+                return a - (float) Math.floor(a);
+            case SQRT:
+                return a <= 0.0f ? 0.0f : (float) Math.sqrt(a);
+            case SIGN:
+                return Math.signum(a);
+            case PINGPONG:
+                return pingpong(a);
+            case MIN:
+                return Math.min(a, b);
+            case MAX:
+                return Math.max(a, b);
+            case STEP:
+                return b < a ? 0.0f : 1.0f;
+            case CLAMP:
+                return MathUtils.clamp(a, b, c);
+            case MIX:
+                return a + (b - a) * c;
+            case SMOOTHSTEP:
+                return smoothstep(a, b, c);
+            default:
+                throw new RuntimeException("Invalid expression opcode: " + op);
+        }
+    } // float apply(...)
+
+    /**
+     * Evaluates the bytecode - stack needs at least getMaxStackDepth() elements.
+     */
+    public float evaluate(float[] inputs, float argument, float[] stack) {
+        final int[] code = this.code;
+        int top = -1;
+        for (int pc = 0; pc < code.length; pc++) {
+            final int op = code[pc];
+            switch (op) {
+                case PUSH_CONSTANT:
+                    stack[++top] = constants[code[++pc]];
+                    break;
+                case PUSH_INPUT:
+                    stack[++top] = inputs[code[++pc]];
+                    break;
+                case PUSH_ARGUMENT:
+                    stack[++top] = argument;
+                    pc++;
+                    break;
+                default:
+                    final int count = ARGUMENT_COUNTS[op];
+                    top -= count - 1;
+                    stack[top] = apply(op, stack[top],
+                            count > 1 ? stack[top + 1] : 0.0f,
+                            count > 2 ? stack[top + 2] : 0.0f);
+                    break;
+            }
+        }
+        return stack[0];
+    } // float evaluate(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Recursive descent compiler emitting postfix bytecode. Tracks which emitted
+     * values are constants so operators on constants are folded right away.
+     */
+    private static class Compiler {
+        final String source;
+        final InputResolver resolver;
+        final IntArray code = new IntArray();
+        final FloatArray constants = new FloatArray();
+        /* Start of the code of every value on the (compile time) stack */
+        final IntArray starts = new IntArray();
+        int position;
+        int maxDepth;
+        boolean usesArgument;
+
+        Compiler(String source, InputResolver resolver) {
+            this.source = source;
+            this.resolver = resolver;
+            this.position = 0;
+            this.maxDepth = 0;
+            this.usesArgument = false;
+        }
+
+        RuntimeException error(String message) {
+            return new RuntimeException(message + " at position " + position + " in expression: " + source);
+        }
+
+        void compile() {
+            parseComparison();
+            skipSpaces();
+            if (position < source.length())
+                throw error("Unexpected '" + source.charAt(position) + "'");
+            if (starts.size != 1)
+                throw error("Empty expression");
+        }
+
+        //---------------------------------------------------------------------
+
+        void skipSpaces() {
+            while (position < source.length() && Character.isWhitespace(source.charAt(position)))
+                position++;
+        }
+
+        boolean accept(char c) {
+            skipSpaces();
+            if (position < source.length() && source.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) {
+            if (!accept(c))
+                throw error("Expected '" + c + "'");
+        }
+
+        //---------------------------------------------------------------------
+
+        void push(int start) {
+            starts.add(start);
+            maxDepth = Math.max(maxDepth, starts.size);
+        }
+
+        void emitPush(int op, int operand) {
+            push(code.size);
+            code.add(op);
+            code.add(operand);
+        }
+
+        void emitConstant(float value) {
+            int index = constants.indexOf(value);
+            if (index < 0 || Float.floatToIntBits(constants.get(index)) != Float.floatToIntBits(value)) {
+                index = constants.size;
+                constants.add(value);
+            }
+            emitPush(PUSH_CONSTANT, index);
+        }
+
+        boolean isConstant(int stackIndex) {
+            final int start = starts.get(stackIndex);
+            final int end = stackIndex + 1 < starts.size ? starts.get(stackIndex + 1) : code.size;
+            return end - start == 2 && code.get(start) == PUSH_CONSTANT;
+        }
+
+        float constantAt(int stackIndex) {
+            return constants.get(code.get(starts.get(stackIndex) + 1));
+        }
+
+        /**
+         * Emits operator taking the top values - folded when all are constants.
+         */
+        void emitOperator(int op) {
+            final int count = ARGUMENT_COUNTS[op];
+            final int first = starts.size - count;
+            boolean constant = true;
+            for (int i = first; i < starts.size; i++)
+                constant &= isConstant(i);
+            if (constant) {
+                final float value = apply(op, constantAt(first),
+                        count > 1 ? constantAt(first + 1) : 0.0f,
+                        count > 2 ? constantAt(first + 2) : 0.0f);
+                code.size = starts.get(first);
+                starts.size = first;
+                emitConstant(value);
+                return;
+            }
+            code.add(op);
+            starts.size = first + 1; // result starts where the first operand did
+        }
+
+        //---------------------------------------------------------------------
+
+        void parseComparison() {
+            parseSum();
+            while (true) {
+                if (accept('<')) {
+                    parseSum();
+                    emitOperator(LESS);
+                } else if (accept('>')) {
+                    parseSum();
+                    emitOperator(GREATER);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        void parseSum() {
+            parseProduct();
+            while (true) {
+                if (accept('+')) {
+                    parseProduct();
+                    emitOperator(ADD);
+                } else if (accept('-')) {
+                    parseProduct();
+                    emitOperator(SUB);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        void parseProduct() {
+            parseUnary();
+            while (true) {
+                if (accept('*')) {
+                    parseUnary();
+                    emitOperator(MUL);
+                } else if (accept('/')) {
+                    parseUnary();
+                    emitOperator(DIV);
+                } else if (accept('%')) {
+                    parseUnary();
+                    emitOperator(MOD);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        void parseUnary() {
+            if (accept('-')) {
+                parseUnary();
+                emitOperator(NEG);
+            } else if (accept('+')) {
+                parseUnary();
+            } else {
+                parsePower();
+            }
+        }
+
+        void parsePower() {
+            parsePrimary();
+            if (accept('^')) {
+                parseUnary(); // right associative, binds tighter than unary minus on the left
+                emitOperator(POW);
+            }
+        }
+
+        void parsePrimary() {
+            skipSpaces();
+            if (position >= source.length())
+                throw error("Unexpected end");
+            final char c = source.charAt(position);
+            if (accept('(')) {
+                parseComparison();
+                expect(')');
+            } else if (Character.isDigit(c) || c == '.') {
+                parseNumber();
+            } else if (Character.isLetter(c) || c == '_') {
+                parseName();
+            } else {
+                throw error("Unexpected '" + c + "'");
+            }
+        }
+
+        void parseNumber() {
+            final int start = position;
+            while (position < source.length()
+                    && (Character.isDigit(source.charAt(position)) || source.charAt(position) == '.'))
+                position++;
+            if (position < source.length() && (source.charAt(position) == 'e' || source.charAt(position) == 'E')) {
+                position++;
+                if (position < source.length() && (source.charAt(position) == '-' || source.charAt(position) == '+'))
+                    position++;
+                while (position < source.length() && Character.isDigit(source.charAt(position)))
+                    position++;
+            }
+            try {
+                emitConstant(Float.parseFloat(source.substring(start, position)));
+            } catch (NumberFormatException e) {
+                position = start;
+                throw error("Invalid number");
+            }
+        }
+
+        void parseName() {
+            final int start = position;
+            while (position < source.length()
+                    && (Character.isLetterOrDigit(source.charAt(position)) || source.charAt(position) == '_'))
+                position++;
+            final String name = source.substring(start, position);
+            if (accept('(')) {
+                parseCall(name, start);
+                return;
+            }
+            if (name.equals("pi")) {
+                emitConstant(MathUtils.PI);
+            } else if (name.equals("arg")) {
+                usesArgument = true;
+                emitPush(PUSH_ARGUMENT, 0);
+            } else {
+                final int slot = resolver != null ? resolver.getInputSlot(name) : -1;
+                if (slot < 0) {
+                    position = start;
+                    throw error("Unknown input '" + name + "'");
+                }
+                emitPush(PUSH_INPUT, slot);
+            }
+        }
+
+        void parseCall(String name, int start) {
+            int op = -1;
+            for (int i = 0; i < FUNCTION_NAMES.length; i++) {
+                if (name.equals(FUNCTION_NAMES[i]))
+                    op = i;
+            }
+            if (op < 0) {
+                position = start;
+                throw error("Unknown function '" + name + "'");
+            }
+            int count = 0;
+            if (!accept(')')) {
+                do {
+                    parseComparison();
+                    count++;
+                } while (accept(','));
+                expect(')');
+            }
+            if (count != ARGUMENT_COUNTS[op]) {
+                position = start;
+                throw error("Function '" + name + "' takes " + ARGUMENT_COUNTS[op] + " arguments, got " + count);
+            }
+            emitOperator(op);
+        } // void parseCall(...)
+    } // class Compiler
+
+    //-------------------------------------------------------------------------
+} // class LayerExpression
@@ -0,0 +1,139 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.utils.Array;
+
+/**
+ * Frame time controllers of LayerMaskingEffectDrawer - dynamic resolution (effects
+ * rendered into a scaled offscreen target, stretched over the screen) and the quality
+ * governor reducing single layers. Both are fed every frame with the frame delta and
+ * work time (see update()) and are both off by default.
+ *
+ * Transitions scale their own targets - the drawer does not feed the controllers
+ * while a transition runs.
+ */
+public class LayerFrameBudget {
+    /* Render effects into scaled offscreen target and upscale to the screen */
+    private boolean dynamicResolution;
+    /* Picks scale of the offscreen target from the frame times */
+    private DynamicResolutionController resolutionController;
+    /* Offscreen target for dynamic resolution */
+    private LayerRenderTarget resolutionTarget;
+    /* Reduces quality of single layers from the frame times (can be null) */
+    private QualityGovernor qualityGovernor;
+    /* Projection for the full screen quad (upscaling) */
+    private Matrix4 quadProjection;
+    private Matrix4 savedProjection;
+
+    //-------------------------------------------------------------------------
+
+    public LayerFrameBudget() {
+        this.dynamicResolution = false;
+        this.resolutionController = new DynamicResolutionController();
+        this.resolutionTarget = new LayerRenderTarget(resolutionController.getScale());
+        this.qualityGovernor = null;
+        this.quadProjection = new Matrix4().setToOrtho2D(0.0f, 0.0f, 1.0f, 1.0f);
+        this.savedProjection = new Matrix4();
+    }
+
+    public void dispose() {
+        resolutionTarget.dispose();
+    }
+
+    //-------------------------------------------------------------------------
+
+    public boolean isUsingDynamicResolution() {
+        return dynamicResolution;
+    }
+
+    public void setUseDynamicResolution(boolean toggle) {
+        if (this.dynamicResolution == toggle)
+            return;
+        this.dynamicResolution = toggle;
+        this.resolutionController.reset();
+        if (!toggle)
+            this.resolutionTarget.dispose(); // recreated when needed
+    }
+
+    public DynamicResolutionController getResolutionController() {
+        return resolutionController;
+    }
+
+    /**
+     * Are effects drawn into the scaled target?
+     */
+    public boolean isScaling() {
+        return dynamicResolution && resolutionController.getScale() < 1.0f;
+    }
+
+    public QualityGovernor getQualityGovernor() {
+        return qualityGovernor;
+    }
+
+    /**
+     * Sets governor reducing quality of the layers of the effects (null - off, layers
+     * go back to full quality).
+     */
+    public void setQualityGovernor(QualityGovernor qualityGovernor, Array<LayerMaskingEffect> effects) {
+        if (this.qualityGovernor != null && qualityGovernor == null)
+            this.qualityGovernor.restoreAll(effects);
+        this.qualityGovernor = qualityGovernor;
+        if (qualityGovernor != null)
+            qualityGovernor.reset();
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Feeds the last frame to the controllers - delta is its duration, workTime its
+     * part without waiting for vsync/swap (0 - unknown). Changes are tagged in the
+     * profiler (can be null).
+     */
+    public void update(float delta, float workTime, Array<LayerMaskingEffect> effects, FrameProfiler profiler) {
+        if (dynamicResolution && resolutionController.addFrameTime(delta, workTime) && profiler != null)
+            profiler.mark(FrameProfiler.TAG_RESOLUTION_CHANGE);
+        if (qualityGovernor != null && qualityGovernor.addFrameTime(delta, workTime, effects) && profiler != null)
+            profiler.mark(FrameProfiler.TAG_QUALITY_CHANGE);
+    }
+
+    /**
+     * Renders effects of the drawer into the scaled target and stretches it over the
+     * screen.
+     */
+    void drawScaled(LayerMaskingEffectDrawer drawer) {
+        final SpriteBatch spriteBatch = drawer.getSpriteBatch();
+        final ShaderProgram customShaderProgram = drawer.getCustomShaderProgram();
+        resolutionTarget.setScale(resolutionController.getScale());
+        resolutionTarget.prepare(Gdx.graphics.getWidth(), Gdx.graphics.getHeight());
+        // layers set separate alpha blending themselves (LayerRenderContext.applyBlendMode)
+        // - target ends up with premultiplied color and proper alpha
+        resolutionTarget.begin();
+        drawer.drawEffects();
+        resolutionTarget.end();
+
+        savedProjection.set(spriteBatch.getProjectionMatrix());
+        spriteBatch.setBlendFunction(GL20.GL_ONE, GL20.GL_ONE_MINUS_SRC_ALPHA);
+        spriteBatch.setProjectionMatrix(quadProjection);
+        spriteBatch.setShader(customShaderProgram);
+        spriteBatch.begin();
+        spriteBatch.setColor(Color.WHITE);
+        customShaderProgram.setUniformf("u_useMask", 0.0f);
+        customShaderProgram.setUniformf("u_maskScale", 1.0f);
+        customShaderProgram.setUniformf("u_maskOffset", 0.0f, 0.0f);
+        customShaderProgram.setUniformf("u_maskChannel", 1.0f, 0.0f, 0.0f, 0.0f);
+        customShaderProgram.setUniformf("u_useProcedural", 0.0f);
+        customShaderProgram.setUniformf("u_sdfParams", 0.0f, 0.0f);
+        // frame buffer textures are bottom-up
+        spriteBatch.draw(resolutionTarget.getTexture(), 0.0f, 0.0f, 1.0f, 1.0f, 0.0f, 1.0f, 1.0f, 0.0f);
+        spriteBatch.end();
+        spriteBatch.setProjectionMatrix(savedProjection);
+        spriteBatch.setBlendFunction(GL20.GL_SRC_ALPHA, GL20.GL_ONE_MINUS_SRC_ALPHA);
+    } // void drawScaled(...)
+
+    //-------------------------------------------------------------------------
+} // class LayerFrameBudget
@@ -4,9 +4,11 @@ import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.Texture;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.g2d.TextureRegion;
 import com.badlogic.gdx.graphics.glutils.ShaderProgram;
 import com.badlogic.gdx.math.Interpolation;
 import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Matrix4;
 import com.badlogic.gdx.math.Vector2;
 
 /**
@@ -19,6 +21,53 @@ public class LayerInfo {
         BOTH
     }
 
+    public enum Sampling {
+        /* Use filters of the textures as they are */
+        DEFAULT,
+        /* Switch to mipmapped filtering when texture is minified on screen */
+        AUTO_MIPMAP
+    }
+
+    /**
+     * Drawing quality of the layer (see QualityGovernor) - every level also keeps
+     * the reductions of the previous ones.
+     */
+    public enum Quality {
+        FULL,
+        /* Mask replaced by its lower resolution version (when the layer has one) */
+        LOW_RES_MASK,
+        /* Drawn without rotation (rotation keeps advancing) */
+        NO_ROTATION,
+        /* Drawn as a plain textured quad without the mask */
+        NO_MASK,
+        /* Not drawn at all */
+        SKIPPED
+    }
+
+    /**
+     * How the layer is combined with what is below it. Every mode works with the same
+     * blend function in the premultiplied alpha pipeline (LayerRenderContext), so
+     * layers with different modes need no state change between them.
+     */
+    public enum BlendMode {
+        /* Regular "over" blending with the texture alpha */
+        ALPHA,
+        /* Color (times alpha and mask) is added - layers in a row commute */
+        ADDITIVE,
+        /* Texture alpha is ignored - only the mask cuts the layer. The color is the
+           premultiplied one in both pipelines (texture over black), so translucent
+           texels are darkened the same way with straight and premultiplied textures */
+        OPAQUE
+    }
+
+    /* Dirty flags - what changed since the last update */
+    public static final int DIRTY_POSITION = 1;
+    public static final int DIRTY_SIZE = 2;
+    public static final int DIRTY_OFFSET = 4;
+    public static final int DIRTY_SCALE = 8;
+    public static final int DIRTY_ROTATION = 16;
+    public static final int DIRTY_ALL = DIRTY_POSITION | DIRTY_SIZE | DIRTY_OFFSET | DIRTY_SCALE | DIRTY_ROTATION;
+
     /* Current layer index - does not determine order */
     private int index;
     /* Whether or not should layer pulse */
@@ -33,6 +82,8 @@ public class LayerInfo {
     private Texture texture;
     /* Additional masking texture (index 1) */
     private Texture maskTexture;
+    /* Smaller version of the mask used with reduced quality (can be null) */
+    private Texture lowResMaskTexture;
     /* 2D size of the layer */
     public Vector2 size;
     /* Current position (center) */
@@ -45,6 +96,11 @@ public class LayerInfo {
     private Vector2 maskOffset;
     /* Current mask offset value - in screen pixels - layer only */
     private Vector2 layerOffset;
+    /* Offset shared by all layers of the effect - in screen pixels (can be null) */
+    private Vector2 sharedOffset;
+    /* Pixels -> mask UV offset factors (scale compensation / size) */
+    private float maskOffsetFactorX;
+    private float maskOffsetFactorY;
     /* Speed of the effect (pulsing) */
     public float speed;
     /* Current direction of the effect (grow / shrink) */
@@ -67,6 +123,36 @@ public class LayerInfo {
     private Interpolation interpolation = Interpolation.sine;
     /* Ratio (between 0.0 and 1.0) to use with interpolation function */
     private float scaleRatio;
+    /* Mask channel used for masking (0 - red, 1 - green, 2 - blue, 3 - alpha) */
+    public int maskChannel;
+    /* Analytic mask - used instead of the mask texture when set (can be null) */
+    public ProceduralMask proceduralMask;
+    /* Spread of the SDF mask in mask texels (0.0 - mask texture is a regular bitmap) */
+    public float sdfSpread;
+    /* Extra softness of the SDF mask edge (in distance units, 0.0 - crisp) */
+    public float sdfSoftness;
+    /* Texture sampling policy - mipmaps need to be generated when loading */
+    public Sampling sampling;
+    /* Importance of the layer - lower priority layers are reduced first (QualityGovernor) */
+    public int priority;
+    /* Current drawing quality (set by QualityGovernor) */
+    public Quality quality;
+    /* Blending with the layers below */
+    public BlendMode blendMode;
+    /* Texels per screen pixel for the layer texture (from the last draw) */
+    private float textureMinification;
+    /* Texels per screen pixel for the mask texture (from the last draw) */
+    private float maskMinification;
+    /* Changes waiting for the next update (DIRTY_*) */
+    private int dirtyFlags;
+    /* Effect owning this layer - keeps the list of layers to update (can be null) */
+    private LayerMaskingEffect owner;
+    /* Is layer already on the update list of the owner? */
+    boolean updateQueued;
+    /* Depth of the layer in the depth pre-pass (clip space, upper layers closer) */
+    float depth;
+    /* Hidden by opaque layers above it - skipped in this frame (depth pre-pass) */
+    boolean occluded;
 
     //-------------------------------------------------------------------------
 
@@ -85,6 +171,9 @@ public class LayerInfo {
         offset = new Vector2(0.0f, 0.0f); // pixel space (screen / 2D)
         maskOffset = new Vector2(0.0f, 0.0f); // UV space (0.0 - 1.0)
         layerOffset = new Vector2(0.0f, 0.0f); // pixel space (screen / 2D)
+        sharedOffset = null;
+        maskOffsetFactorX = 0.0f;
+        maskOffsetFactorY = 0.0f;
         speed = 0.1f;
         scale = 1.0f;
         maskScale = 1.0f;
@@ -95,6 +184,21 @@ public class LayerInfo {
         shouldPulse = false;
         //radiansScale = 0.0f;
         scaleRatio = 0.0f;
+        maskChannel = 0;
+        proceduralMask = null;
+        sdfSpread = 0.0f;
+        sdfSoftness = 0.0f;
+        sampling = Sampling.DEFAULT;
+        priority = 0;
+        quality = Quality.FULL;
+        blendMode = BlendMode.ALPHA;
+        textureMinification = 1.0f;
+        maskMinification = 1.0f;
+        dirtyFlags = DIRTY_ALL;
+        owner = null;
+        updateQueued = false;
+        depth = 0.0f;
+        occluded = false;
     }
 
     public LayerInfo(Texture texture) {
@@ -110,12 +214,47 @@ public class LayerInfo {
 
     //-------------------------------------------------------------------------
 
+    /**
+     * Drops the textures of the layer. Layer attached to an effect releases them in
+     * its LayerTextureRegistry (shared textures live until the last layer is gone).
+     * Detached layer disposes unmanaged textures (any with force) - the layer is
+     * then the only user of them.
+     */
     public void dispose(boolean force) {
+        if (this.owner != null) {
+            this.owner.releaseTextures(this);
+            return;
+        }
         if (this.texture != null) {
             if (!this.texture.isManaged() || force)
                 this.texture.dispose();
         }
+        if (this.maskTexture != null && this.maskTexture != this.texture) {
+            if (!this.maskTexture.isManaged() || force)
+                this.maskTexture.dispose();
+        }
+        clearTextures();
+    }
+
+    /**
+     * Forgets the textures without disposing anything (low-res mask belongs to the
+     * drawer).
+     */
+    void clearTextures() {
+        this.texture = null;
         this.maskTexture = null;
+        this.lowResMaskTexture = null;
+    }
+
+    /**
+     * Moves the reference of an attached layer from the old texture to the new one.
+     */
+    private void swapTexture(Texture oldTexture, Texture newTexture) {
+        if (this.owner == null || oldTexture == newTexture)
+            return;
+        LayerTextureRegistry registry = this.owner.getTextureRegistry();
+        registry.retain(newTexture); // first - the old one could be the same asset
+        registry.release(oldTexture);
     }
 
     public void setIndex(int index) {
@@ -127,10 +266,12 @@ public class LayerInfo {
     }
 
     public void setTexture(Texture newTexture) {
+        swapTexture(this.texture, newTexture);
         this.texture = newTexture;
         if (this.texture != null) {
             size.x = texture.getWidth();
             size.y = texture.getHeight();
+            markDirty(DIRTY_SIZE);
         }
     }
 
@@ -138,16 +279,100 @@ public class LayerInfo {
         return texture;
     }
 
+    /**
+     * Is there anything to draw? (TiledLayer has pages instead of a texture)
+     */
+    public boolean isDrawable() {
+        return texture != null && visible && quality != Quality.SKIPPED;
+    }
+
+    /**
+     * Can be drawn only with the sprite batch path (not instanced)?
+     */
+    boolean isBatchOnly() {
+        if (quality.ordinal() >= Quality.NO_MASK.ordinal())
+            return false;
+        return proceduralMask != null || isSdfMask();
+    }
+
     public void setMaskTexture(Texture maskTexture) {
+        swapTexture(this.maskTexture, maskTexture);
         this.maskTexture = maskTexture;
+        this.lowResMaskTexture = null;
+        this.sdfSpread = 0.0f; // plain bitmap mask
     }
 
     public Texture getMaskTexture() {
         return maskTexture;
     }
 
+    /**
+     * Smaller version of the mask used at Quality.LOW_RES_MASK and below - see
+     * LayerMaskingEffectDrawer.createLowResMasks().
+     */
+    public void setLowResMaskTexture(Texture lowResMaskTexture) {
+        this.lowResMaskTexture = lowResMaskTexture;
+    }
+
+    public Texture getLowResMaskTexture() {
+        return lowResMaskTexture;
+    }
+
+    /**
+     * Mask actually bound when drawing with the current quality (can be null).
+     */
+    public Texture getDrawnMaskTexture() {
+        if (quality.ordinal() >= Quality.NO_MASK.ordinal())
+            return null;
+        if (quality != Quality.FULL && lowResMaskTexture != null)
+            return lowResMaskTexture;
+        return maskTexture;
+    }
+
+    /**
+     * Is the procedural mask used with the current quality?
+     */
+    boolean isProceduralDrawn() {
+        return proceduralMask != null && quality.ordinal() < Quality.NO_MASK.ordinal();
+    }
+
+    /**
+     * Rotation used when drawing with the current quality (degrees).
+     */
+    public float getDrawnRotation() {
+        if (quality.ordinal() >= Quality.NO_ROTATION.ordinal())
+            return 0.0f;
+        return rotation;
+    }
+
+    /**
+     * Sets signed distance field mask (see SdfMaskGenerator) - spread needs to be
+     * the same as used when generating it.
+     */
+    public void setSdfMask(Texture sdfTexture, float spread) {
+        swapTexture(this.maskTexture, sdfTexture);
+        this.maskTexture = sdfTexture;
+        this.lowResMaskTexture = null;
+        this.sdfSpread = spread;
+    }
+
+    public boolean isSdfMask() {
+        return maskTexture != null && sdfSpread > 0.0f;
+    }
+
+    /**
+     * Half width of the SDF edge transition (distance units) for given mask texels
+     * per screen pixel - about one pixel of antialiasing plus the extra softness.
+     */
+    public float getSdfSmoothing(float minification) {
+        if (sdfSpread <= 0.0f)
+            return 0.0f;
+        return Math.max(0.001f, minification / (4.0f * sdfSpread) + sdfSoftness);
+    }
+
     public void setScale(float _scale) {
         this.scale = _scale; // should check if < 0.0f ?
+        markDirty(DIRTY_SCALE);
     }
 
     public float getScale() {
@@ -161,7 +386,70 @@ public class LayerInfo {
     public float getLayerScale() {
         return layerScale;
     }
+
+    /**
+     * Position of the pulse between minScale and maxScale (0.0 - 1.0).
+     */
+    public float getScaleRatio() {
+        return scaleRatio;
+    }
+
+    /**
+     * Pulse direction - 1.0 growing, -1.0 shrinking.
+     */
+    public float getPulseDirection() {
+        return direction;
+    }
+
+    /**
+     * Continues the pulse from the saved phase (see LayerEffectSnapshot).
+     */
+    void restorePulse(float scaleRatio, float direction) {
+        this.scaleRatio = scaleRatio;
+        this.direction = direction < 0.0f ? -1.0f : 1.0f;
+        markDirty(DIRTY_SCALE);
+    }
     
+    //-------------------------------------------------------------------------
+
+    void setOwner(LayerMaskingEffect owner) {
+        this.owner = owner;
+        if (owner != null && dirtyFlags != 0 && !updateQueued)
+            owner.queueUpdate(this);
+    }
+
+    public LayerMaskingEffect getOwner() {
+        return owner;
+    }
+
+    public int getDirtyFlags() {
+        return dirtyFlags;
+    }
+
+    /**
+     * Marks layer as changed so it is updated in the next frame. Setters do it
+     * automatically - needs to be called after modifying public fields (position,
+     * size, rotation, modes, pulsing) of a layer which is not animating.
+     */
+    public void markDirty(int flags) {
+        dirtyFlags |= flags;
+        if (owner != null && !updateQueued)
+            owner.queueUpdate(this);
+    }
+
+    public void markDirty() {
+        markDirty(DIRTY_ALL);
+    }
+
+    /**
+     * Is the layer changing on its own (pulsing / rotating)?
+     */
+    public boolean isAnimating() {
+        return shouldPulse || rotationSpeed != 0.0f;
+    }
+
+    //-------------------------------------------------------------------------
+
     public Interpolation getInterpolationMethod() {
         return this.interpolation;
     }
@@ -171,6 +459,40 @@ public class LayerInfo {
             this.interpolation = interpolation;
     }
 
+    /**
+     * Returns shader features (LayerShaderCache.FEATURE_*) needed to draw this layer
+     * in its current state.
+     */
+    public int getShaderFeatures() {
+        final boolean procedural = isProceduralDrawn();
+        if (getDrawnMaskTexture() == null && !procedural)
+            return 0; // plain textured quad
+        resolveOffsets();
+        int features;
+        if (procedural) {
+            features = LayerShaderCache.FEATURE_PROCEDURAL;
+        } else {
+            features = LayerShaderCache.FEATURE_MASK;
+            if (sdfSpread > 0.0f)
+                features |= LayerShaderCache.FEATURE_SDF; // always reads the alpha channel
+            else if (maskChannel != 0)
+                features |= LayerShaderCache.FEATURE_MASK_CHANNEL;
+        }
+        if (maskScale != 1.0f)
+            features |= LayerShaderCache.FEATURE_SCALE;
+        if (maskOffset.x != 0.0f || maskOffset.y != 0.0f)
+            features |= LayerShaderCache.FEATURE_OFFSET;
+        return features;
+    }
+
+    public float getTextureMinification() {
+        return textureMinification;
+    }
+
+    public float getMaskMinification() {
+        return maskMinification;
+    }
+
     public void resetOffset() {
         this.offset.x = 0.0f;
         this.offset.y = 0.0f;
@@ -178,71 +500,180 @@ public class LayerInfo {
         this.maskOffset.y = 0.0f;
         this.layerOffset.x = 0.0f;
         this.layerOffset.y = 0.0f;
+        markDirty(DIRTY_OFFSET);
+    }
+
+    /**
+     * Offset shared by all layers of the effect (added to the layer offset).
+     * Owned by LayerMaskingEffect.
+     */
+    void setSharedOffset(Vector2 sharedOffset) {
+        this.sharedOffset = sharedOffset;
     }
 
+    /**
+     * Derives mask (UV space) and layer (screen space) offsets and the corner position
+     * from the current offsets. Uses factors precomputed in update(), so it is cheap
+     * enough to be called at draw time - moving offsets never touches this directly.
+     */
+    void resolveOffsets() {
+        float x = offset.x;
+        float y = offset.y;
+        if (sharedOffset != null) {
+            x += sharedOffset.x;
+            y += sharedOffset.y;
+        }
+        if (offsetMode != Mode.LAYER_ONLY) {
+            maskOffset.x = x * maskOffsetFactorX;
+            maskOffset.y = y * maskOffsetFactorY;
+        } else {
+            maskOffset.x = 0.0f;
+            maskOffset.y = 0.0f;
+        }
+        // Layer offset is in screen space so can use it directly
+        if (offsetMode != Mode.MASK_ONLY) {
+            layerOffset.x = x;
+            layerOffset.y = y;
+        } else {
+            layerOffset.x = 0.0f;
+            layerOffset.y = 0.0f;
+        }
+        // center !
+        realPos.x = position.x - size.x * layerScale / 2.0f + layerOffset.x;
+        realPos.y = position.y - size.y * layerScale / 2.0f - layerOffset.y;
+    } // void resolveOffsets()
+
+    /**
+     * Returns the total offset (layer offset + offset shared by the effect).
+     */
     public void getOffset(Vector2 out) {
         out.x = offset.x;
         out.y = offset.y;
+        if (sharedOffset != null) {
+            out.x += sharedOffset.x;
+            out.y += sharedOffset.y;
+        }
     }
 
     public void getLayerOffset(Vector2 out) {
+        resolveOffsets();
         out.x = layerOffset.x;
         out.y = layerOffset.y;
     }
 
     public void getMaskOffset(Vector2 out) {
+        resolveOffsets();
         out.x = maskOffset.x;
         out.y = maskOffset.y;
     }
 
-    public void setOffset(int x, int y) {
-        float diffX = x - offset.x;
-        float diffY = y - offset.y;
+    public void getRealPosition(Vector2 out) {
+        resolveOffsets();
+        out.x = realPos.x;
+        out.y = realPos.y;
+    }
 
-        moveOffsetByPixels((int) diffX, (int) diffY);
-        if (x == 0 && y == 0) {
-            resetOffset();
+    /**
+     * Screen position of the point of the drawn quad at texture coordinates u, v
+     * (v = 0.0 is the top edge) - includes scale, offset and rotation.
+     */
+    public void quadToScreen(float u, float v, Vector2 out) {
+        resolveOffsets();
+        final float width = size.x * layerScale;
+        final float height = size.y * layerScale;
+        final float x = (u - 0.5f) * width;
+        final float y = (0.5f - v) * height;
+        final float cos = MathUtils.cosDeg(getDrawnRotation());
+        final float sin = MathUtils.sinDeg(getDrawnRotation());
+        out.x = realPos.x + width / 2.0f + x * cos - y * sin;
+        out.y = realPos.y + height / 2.0f + x * sin + y * cos;
+    }
+
+    /**
+     * Texture coordinates of the drawn quad at the screen position (outside of the
+     * quad when not within 0.0 - 1.0) - inverse of quadToScreen().
+     */
+    public void screenToQuad(float x, float y, Vector2 out) {
+        resolveOffsets();
+        final float width = size.x * layerScale;
+        final float height = size.y * layerScale;
+        if (width == 0.0f || height == 0.0f) {
+            out.set(-1.0f, -1.0f);
+            return;
         }
+        final float cos = MathUtils.cosDeg(getDrawnRotation());
+        final float sin = MathUtils.sinDeg(getDrawnRotation());
+        final float dx = x - realPos.x - width / 2.0f;
+        final float dy = y - realPos.y - height / 2.0f;
+        out.x = (dx * cos + dy * sin) / width + 0.5f;
+        out.y = 0.5f - (dy * cos - dx * sin) / height;
+    }
+
+    public void setOffset(int x, int y) {
+        setOffset((float) x, (float) y);
     }
 
     public void setOffset(float x, float y) {
-        setOffset((int) x, (int) y);
+        this.offset.x = x;
+        this.offset.y = y;
+        markDirty(DIRTY_OFFSET);
     }
 
-    public void moveOffsetByPixels(int x, int y) {
-        float maskOffsetScale = 1.0f;
-        if (scaleMode == Mode.LAYER_ONLY) {
-            maskOffsetScale = 1.0f / scale;
-        } else if (scaleMode == Mode.MASK_ONLY) {
-            maskOffsetScale = scale;
-        }
-        if (offsetMode != Mode.BOTH)
-            maskOffsetScale = 1.0f;
+    public void setOffsetX(float x) {
+        setOffset(x, offset.y);
+    }
 
-        offset.x += (float) x;
-        offset.y += (float) y;
+    public void setOffsetY(float y) {
+        setOffset(offset.x, y);
+    }
 
-        if (offsetMode != Mode.LAYER_ONLY) {
-            maskOffset.x = offset.x / size.x * maskOffsetScale;
-            maskOffset.y = offset.y / size.y * maskOffsetScale;
-        }
-        // Layer offset is now in screen space so can use it directly
-        if (offsetMode != Mode.MASK_ONLY) {
-            layerOffset.x += (float) x;
-            layerOffset.y += (float) y;
-        }
-    } // void moveOffsetByPixels(...)
+    public void moveOffsetByPixels(int x, int y) {
+        moveOffsetByPixels((float) x, (float) y);
+    }
 
     public void moveOffsetByPixels(float x, float y) {
-        moveOffsetByPixels((int) x, (int) y);
+        // sub-pixel precision - UV offsets are derived at draw time
+        offset.x += x;
+        offset.y += y;
+        markDirty(DIRTY_OFFSET);
     }
 
     public void moveOffsetByPixels(Vector2 pixels) {
-        moveOffsetByPixels((int) pixels.x, (int) pixels.y);
+        moveOffsetByPixels(pixels.x, pixels.y);
+    }
+
+    /**
+     * Offset of this layer only (without the offset shared by the effect).
+     */
+    public float getOffsetX() {
+        return offset.x;
+    }
+
+    public float getOffsetY() {
+        return offset.y;
+    }
+
+    /**
+     * Sets state received from a simulation server (see LayerStateSerializer) - values
+     * derived from it are recalculated in the next update.
+     */
+    public void applyState(float x, float y, float scale, float rotation, float offsetX, float offsetY) {
+        this.position.x = x;
+        this.position.y = y;
+        this.scale = scale;
+        this.rotation = rotation;
+        this.offset.x = offsetX;
+        this.offset.y = offsetY;
+        markDirty(DIRTY_POSITION | DIRTY_SCALE | DIRTY_ROTATION | DIRTY_OFFSET);
     }
 
     //-------------------------------------------------------------------------
 
+    /**
+     * Advances pulsing/rotation and recalculates values derived from the changed
+     * properties. Clears dirty flags - owner skips layers which are neither
+     * animating nor dirty.
+     */
     public void update(float delta) {
         if (shouldPulse) {
             scaleRatio += direction * delta * speed;
@@ -254,56 +685,113 @@ public class LayerInfo {
                 direction = 1.0f;
             }
             scale = interpolation.apply(minScale, maxScale, scaleRatio);
+            dirtyFlags |= DIRTY_SCALE;
         }
 
-        float maskOffsetScale = 1.0f;
-        if (scaleMode == Mode.BOTH) {
-            maskScale = scale;
-            layerScale = scale;
-        } else if (scaleMode == Mode.LAYER_ONLY) {
-            layerScale = scale;
-            maskScale = 1.0f;
-            maskOffsetScale = 1.0f / scale;
-        } else if (scaleMode == Mode.MASK_ONLY) {
-            layerScale = 1.0f;
-            maskScale = scale;
-            maskOffsetScale = scale;
+        if ((dirtyFlags & (DIRTY_SCALE | DIRTY_SIZE)) != 0) {
+            // offset in pixels -> mask UV offset, compensating for the scale
+            float maskOffsetScale = 1.0f;
+            if (scaleMode == Mode.BOTH) {
+                maskScale = scale;
+                layerScale = scale;
+            } else if (scaleMode == Mode.LAYER_ONLY) {
+                layerScale = scale;
+                maskScale = 1.0f;
+                maskOffsetScale = 1.0f / scale;
+            } else if (scaleMode == Mode.MASK_ONLY) {
+                layerScale = 1.0f;
+                maskScale = scale;
+                maskOffsetScale = scale;
+            }
+            if (offsetMode != Mode.BOTH)
+                maskOffsetScale = 1.0f;
+            maskOffsetFactorX = size.x != 0.0f ? maskOffsetScale / size.x : 0.0f;
+            maskOffsetFactorY = size.y != 0.0f ? maskOffsetScale / size.y : 0.0f;
         }
 
-        rotation += rotationSpeed * delta;
-
-        if (rotation <= 0.0f) {
-            rotation = 360.0f - rotation;
-        } else if (rotation > 360.0f) {
-            rotation = rotation - 360.0f;
+        if (rotationSpeed != 0.0f) {
+            rotation += rotationSpeed * delta;
+            dirtyFlags |= DIRTY_ROTATION;
+        }
+        if ((dirtyFlags & DIRTY_ROTATION) != 0) {
+            if (rotation < 0.0f) {
+                rotation = 360.0f + rotation;
+            } else if (rotation > 360.0f) {
+                rotation = rotation - 360.0f;
+            }
         }
 
-        // center !
-        realPos.x = position.x - size.x * layerScale / 2.0f + layerOffset.x;
-        realPos.y = position.y - size.y * layerScale / 2.0f - layerOffset.y;
-    }
+        resolveOffsets();
+        dirtyFlags = 0;
+    } // void update(...)
+
     //-------------------------------------------------------------------------
 
-    public void draw(SpriteBatch batch) {
-        if (this.texture == null || batch == null || visible == false)
+    /**
+     * Switches the filter of the texture sampled on the unit. setFilter() binds the
+     * texture on the active unit - a mask is therefore bound (and tracked by the render
+     * context) on its own unit first, unit 0 keeps the texture of the sprite batch.
+     */
+    private static void applySampling(Texture texture, float minification, int unit,
+                                      LayerRenderContext renderContext) {
+        if (!texture.getTextureData().useMipMaps())
+            return; // no mip chain - nothing to switch to
+        Texture.TextureFilter minFilter = Texture.TextureFilter.Linear;
+        if (minification > 1.0f)
+            minFilter = Texture.TextureFilter.MipMapLinearNearest; // one level - trilinear reads two
+        if (texture.getMinFilter() == minFilter)
             return;
-        ShaderProgram shader = batch.getShader();
-        if (this.maskTexture != null) {
-            shader.setUniformf("u_maskScale", this.maskScale);
-            shader.setUniformf("u_useMask", 1.0f);
-            // u_maskOffset ?
-            if (shader.hasUniform("u_maskOffset"))
-                shader.setUniformf("u_maskOffset", this.maskOffset.x, this.maskOffset.y);
-            Gdx.gl.glActiveTexture(GL20.GL_TEXTURE1);
-            this.maskTexture.bind(1);
+        if (unit == 0) {
+            texture.setFilter(minFilter, texture.getMagFilter());
+        } else if (renderContext != null) {
+            renderContext.bindTexture(texture, unit);
+            renderContext.setActiveUnit(unit);
+            texture.setFilter(minFilter, texture.getMagFilter());
+            renderContext.setActiveUnit(0);
         } else {
-            shader.setUniformf("u_maskScale", 1.0f);
-            shader.setUniformf("u_useMask", 0.0f);
-            if (shader.hasUniform("u_maskOffset"))
-                shader.setUniformf("u_maskOffset", 0.0f, 0.0f); // no offset !
+            texture.bind(unit);
+            texture.setFilter(minFilter, texture.getMagFilter());
+            Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0);
         }
+    } // void applySampling(...)
+
+    void updateSampling(SpriteBatch batch, LayerRenderContext renderContext) {
+        // screen pixels per world unit - projection is a 2D orthographic one
+        final float pixelsPerUnit = batch.getProjectionMatrix().val[Matrix4.M00]
+                * Gdx.graphics.getWidth() / 2.0f;
+        final float screenWidth = size.x * layerScale * pixelsPerUnit;
+        if (screenWidth <= 0.0f)
+            return;
+        // layer texture is sampled with the scaled UVs (u_maskScale)
+        if (texture != null)
+            textureMinification = texture.getWidth() * maskScale / screenWidth;
+        else
+            textureMinification = size.x * maskScale / screenWidth; // tiled - texel per unit
+        // full resolution texels - SDF spread is given in them
+        if (maskTexture != null)
+            maskMinification = maskTexture.getWidth() / screenWidth;
+        if (sampling != Sampling.AUTO_MIPMAP || texture == null)
+            return;
+        applySampling(texture, textureMinification, 0, renderContext);
+        final Texture mask = getDrawnMaskTexture();
+        if (mask != null && !isProceduralDrawn())
+            applySampling(mask, mask.getWidth() / screenWidth, 1, renderContext);
+    }
+
+    public void draw(SpriteBatch batch) {
+        draw(batch, null);
+    }
 
-        Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0);
+    /**
+     * Draws the layer - with render context the mask binding is skipped when the
+     * mask is already bound (layers sharing a mask).
+     */
+    public void draw(SpriteBatch batch, LayerRenderContext renderContext) {
+        if (!isDrawable() || occluded || batch == null)
+            return;
+        resolveOffsets();
+        updateSampling(batch, renderContext);
+        setMaskUniforms(batch.getShader(), renderContext, this.maskScale, this.maskOffset.x, this.maskOffset.y);
 
         batch.draw(this.texture,
                 realPos.x,
@@ -314,7 +802,7 @@ public class LayerInfo {
                 size.y * layerScale,
                 1.0f,
                 1.0f,
-                rotation,
+                getDrawnRotation(),
                 0, 0,
                 this.texture.getWidth(),
                 this.texture.getHeight(),
@@ -323,5 +811,123 @@ public class LayerInfo {
         batch.flush(); // need to flush when using additional texture (sic!)
     } // void draw(...)
 
+    /**
+     * Sets uniforms for drawing solid cells of the layer (drawSolidCells()) - no
+     * mask, texture coordinates scaled / offset like in draw().
+     */
+    void setSolidUniforms(ShaderProgram shader) {
+        resolveOffsets();
+        final boolean masked = getDrawnMaskTexture() != null || isProceduralDrawn();
+        shader.setUniformf(shader.fetchUniformLocation("u_blend", false),
+                blendMode == BlendMode.OPAQUE ? 0.0f : 1.0f, 1.0f);
+        shader.setUniformf(shader.fetchUniformLocation("u_depth", false), depth);
+        shader.setUniformf(shader.fetchUniformLocation("u_maskScale", false), masked ? maskScale : 1.0f);
+        shader.setUniformf(shader.fetchUniformLocation("u_maskOffset", false),
+                masked ? maskOffset.x : 0.0f, masked ? maskOffset.y : 0.0f);
+        shader.setUniformf(shader.fetchUniformLocation("u_useMask", false), 0.0f);
+        shader.setUniformf(shader.fetchUniformLocation("u_useProcedural", false), 0.0f);
+        shader.setUniformf(shader.fetchUniformLocation("u_sdfParams", false), 0.0f, 0.0f);
+    }
+
+    /**
+     * Draws solid cells of the coverage grid as parts of the layer quad - runs of
+     * cells in a row become one piece. The region is reused for the pieces. Needs
+     * the uniforms from setSolidUniforms() and a flush afterwards. Returns number
+     * of pieces.
+     */
+    int drawSolidCells(SpriteBatch batch, MaskCoverage coverage, TextureRegion region) {
+        resolveOffsets();
+        final float width = size.x * layerScale;
+        final float height = size.y * layerScale;
+        final int columns = coverage.getColumns();
+        final int rows = coverage.getRows();
+        int pieces = 0;
+        region.setTexture(texture);
+        for (int row = 0; row < rows; row++) {
+            int column = 0;
+            while (column < columns) {
+                if (!coverage.isSolid(column, row)) {
+                    column++;
+                    continue;
+                }
+                int end = column + 1;
+                while (end < columns && coverage.isSolid(end, row))
+                    end++;
+                final float u0 = (float) column / columns;
+                final float u1 = (float) end / columns;
+                final float v0 = (float) row / rows;
+                final float v1 = (float) (row + 1) / rows;
+                region.setRegion(u0, v0, u1, v1);
+                // pieces rotate around the center of the whole quad
+                final float pieceX = realPos.x + u0 * width;
+                final float pieceY = realPos.y + (1.0f - v1) * height;
+                batch.draw(region, pieceX, pieceY,
+                        realPos.x + width / 2.0f - pieceX, realPos.y + height / 2.0f - pieceY,
+                        (u1 - u0) * width, (v1 - v0) * height, 1.0f, 1.0f, getDrawnRotation());
+                pieces++;
+                column = end;
+            }
+        }
+        return pieces;
+    } // int drawSolidCells(...)
+
+    /**
+     * Sets masking uniforms of the current program, binds the mask and switches to
+     * the blending of the layer - layer texture coordinates are scaled / offset with
+     * given values (u_maskScale, u_maskOffset). Leaves texture unit 0 active for the
+     * sprite batch.
+     */
+    void setMaskUniforms(ShaderProgram shader, LayerRenderContext renderContext,
+                         float uvScale, float uvOffsetX, float uvOffsetY) {
+        // x - use texture alpha, y - keep alpha (premultiplied additive adds color only)
+        final boolean premultiplied = renderContext != null && renderContext.isPremultipliedAlpha();
+        shader.setUniformf(shader.fetchUniformLocation("u_blend", false),
+                blendMode == BlendMode.OPAQUE ? 0.0f : 1.0f,
+                premultiplied && blendMode == BlendMode.ADDITIVE ? 0.0f : 1.0f);
+        shader.setUniformf(shader.fetchUniformLocation("u_depth", false), depth);
+        if (renderContext != null)
+            renderContext.applyBlendMode(blendMode);
+        // current program can be a specialized variant - missing uniforms are skipped
+        final Texture mask = getDrawnMaskTexture();
+        if (isProceduralDrawn()) {
+            // nothing to bind on the second texture unit
+            shader.setUniformf(shader.fetchUniformLocation("u_maskScale", false), uvScale);
+            shader.setUniformf(shader.fetchUniformLocation("u_useMask", false), 0.0f);
+            shader.setUniformf(shader.fetchUniformLocation("u_maskOffset", false), uvOffsetX, uvOffsetY);
+            shader.setUniformf(shader.fetchUniformLocation("u_useProcedural", false), 1.0f);
+            shader.setUniformf(shader.fetchUniformLocation("u_sdfParams", false), 0.0f, 0.0f);
+            this.proceduralMask.setUniforms(shader);
+        } else if (mask != null) {
+            shader.setUniformf(shader.fetchUniformLocation("u_maskScale", false), uvScale);
+            shader.setUniformf(shader.fetchUniformLocation("u_useMask", false), 1.0f);
+            shader.setUniformf(shader.fetchUniformLocation("u_useProcedural", false), 0.0f);
+            shader.setUniformf(shader.fetchUniformLocation("u_sdfParams", false),
+                    sdfSpread > 0.0f ? 1.0f : 0.0f, getSdfSmoothing(maskMinification));
+            shader.setUniformf(shader.fetchUniformLocation("u_maskOffset", false), uvOffsetX, uvOffsetY);
+            shader.setUniformf(shader.fetchUniformLocation("u_maskChannel", false),
+                    maskChannel == 0 ? 1.0f : 0.0f,
+                    maskChannel == 1 ? 1.0f : 0.0f,
+                    maskChannel == 2 ? 1.0f : 0.0f,
+                    maskChannel == 3 ? 1.0f : 0.0f);
+            if (renderContext != null) {
+                renderContext.bindTexture(mask, 1);
+            } else {
+                Gdx.gl.glActiveTexture(GL20.GL_TEXTURE1);
+                mask.bind(1);
+            }
+        } else {
+            shader.setUniformf(shader.fetchUniformLocation("u_maskScale", false), 1.0f);
+            shader.setUniformf(shader.fetchUniformLocation("u_useMask", false), 0.0f);
+            shader.setUniformf(shader.fetchUniformLocation("u_maskOffset", false), 0.0f, 0.0f); // no offset !
+            shader.setUniformf(shader.fetchUniformLocation("u_useProcedural", false), 0.0f);
+            shader.setUniformf(shader.fetchUniformLocation("u_sdfParams", false), 0.0f, 0.0f);
+        }
+
+        if (renderContext != null)
+            renderContext.setActiveUnit(0);
+        else
+            Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0);
+    } // void setMaskUniforms(...)
+
     //-------------------------------------------------------------------------
 } // class LayerInfo
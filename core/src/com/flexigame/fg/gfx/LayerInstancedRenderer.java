@@ -0,0 +1,337 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Application;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.GL30;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.BufferUtils;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * GL3 / ES3 instanced rendering path for masked layers. Per-layer data goes into one
+ * instance buffer and a unit quad is drawn N times for each run of consecutive layers
+ * sharing the same layer/mask texture pair (draw order is preserved). Quad corners and
+ * the scaled/offset layer UVs are computed in the vertex shader, so the CPU only
+ * writes a few floats per layer.
+ *
+ * Blend modes of the layers go with the mask channel (channel + 4 * mode). With
+ * straight alpha additive layers need a different blend function - the drawer keeps
+ * them on the SpriteBatch path; with premultiplied alpha all modes share one draw.
+ *
+ * Not supported on GL20 - check isSupported() and use the SpriteBatch path otherwise.
+ */
+public class LayerInstancedRenderer {
+    /* Floats per instance: rect (4), params (4), mask channel + 4 * blend mode (1) */
+    public static final int INSTANCE_FLOATS = 9;
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /* Is GL30 available? */
+    private boolean supported;
+    /* Instancing shader */
+    private ShaderProgram program;
+    /* Vertex array object */
+    private int vao;
+    /* Unit quad vertex buffer */
+    private int quadBuffer;
+    /* Per instance data buffer */
+    private int instanceBuffer;
+    /* CPU side instance data */
+    private FloatBuffer instanceData;
+    /* Max number of instances in the CPU side buffer */
+    private int capacity;
+    /* Number of instances waiting for the current group */
+    private int numInstances;
+    /* Texture pair of the current group */
+    private Texture groupTexture;
+    private Texture groupMask;
+    /* Are layer textures premultiplied? (LayerRenderContext) */
+    private boolean premultipliedAlpha;
+    /* Number of instanced draw calls during the last draw() */
+    private int drawCalls;
+    /* Helper vectors */
+    private Vector2 tmpPos;
+    private Vector2 tmpOffset;
+    private IntBuffer tmpHandle;
+
+    //-------------------------------------------------------------------------
+
+    public LayerInstancedRenderer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LayerInstancedRenderer(int capacity) {
+        this.supported = Gdx.graphics != null && Gdx.graphics.isGL30Available() && Gdx.gl30 != null;
+        this.capacity = Math.max(1, capacity);
+        this.premultipliedAlpha = false;
+        this.tmpPos = new Vector2();
+        this.tmpOffset = new Vector2();
+        this.tmpHandle = BufferUtils.newIntBuffer(1);
+        if (!supported)
+            return;
+        this.program = new ShaderProgram(getVersionHeader() + VERTEX_SHADER,
+                getVersionHeader() + FRAGMENT_SHADER);
+        if (!program.isCompiled()) {
+            Gdx.app.debug("LayerInstancedRenderer", "Instancing shader did not compile:\n " + program.getLog());
+            program.dispose();
+            program = null;
+            supported = false;
+            return;
+        }
+        setSamplers();
+        this.instanceData = BufferUtils.newFloatBuffer(this.capacity * INSTANCE_FLOATS);
+        createBuffers();
+    }
+
+    public void dispose() {
+        if (!supported)
+            return;
+        final GL30 gl = Gdx.gl30;
+        tmpHandle.clear();
+        tmpHandle.put(quadBuffer).flip();
+        gl.glDeleteBuffers(1, tmpHandle);
+        tmpHandle.clear();
+        tmpHandle.put(instanceBuffer).flip();
+        gl.glDeleteBuffers(1, tmpHandle);
+        tmpHandle.clear();
+        tmpHandle.put(vao).flip();
+        gl.glDeleteVertexArrays(1, tmpHandle);
+        program.dispose();
+        supported = false;
+    }
+
+    //-------------------------------------------------------------------------
+
+    private static final String VERTEX_SHADER = ""
+            + "in vec2 a_corner;\n"
+            + "in vec4 a_rect;\n" // center x/y, width, height
+            + "in vec4 a_params;\n" // rotation (radians), mask scale, mask offset x/y
+            + "in float a_channel;\n"
+            + "uniform mat4 u_projTrans;\n"
+            + "out vec2 v_texCoords;\n"
+            + "out vec2 v_layerCoords;\n"
+            + "out vec4 v_maskChannel;\n"
+            + "out vec2 v_blend;\n"
+            + "void main()\n"
+            + "{\n"
+            + "   vec2 local = (a_corner - 0.5) * a_rect.zw;\n"
+            + "   float c = cos(a_params.x);\n"
+            + "   float s = sin(a_params.x);\n"
+            + "   vec2 pos = a_rect.xy + vec2(local.x * c - local.y * s, local.x * s + local.y * c);\n"
+            + "   v_texCoords = vec2(a_corner.x, 1.0 - a_corner.y);\n"
+            + "   v_layerCoords = -1.0 * (a_params.y - 1.0)/2.0 + (a_params.y * v_texCoords) + a_params.zw;\n"
+            + "   float mode = floor(a_channel / 4.0 + 0.1);\n"
+            + "   v_maskChannel = vec4(equal(vec4(a_channel - mode * 4.0), vec4(0.0, 1.0, 2.0, 3.0)));\n"
+            // x - use texture alpha (not opaque), y - keep alpha (not additive)
+            + "   v_blend = vec2(mode != 2.0 ? 1.0 : 0.0, mode != 1.0 ? 1.0 : 0.0);\n"
+            + "   gl_Position = u_projTrans * vec4(pos, 0.0, 1.0);\n"
+            + "}\n";
+
+    private static final String FRAGMENT_SHADER = ""
+            + "in vec2 v_texCoords;\n"
+            + "in vec2 v_layerCoords;\n"
+            + "in vec4 v_maskChannel;\n"
+            + "in vec2 v_blend;\n"
+            + "uniform sampler2D u_texture;\n"
+            + "uniform sampler2D u_texture2;\n"
+            + "uniform float u_useMask;\n"
+            + "uniform float u_premultiplied;\n"
+            + "out vec4 fragColor;\n"
+            + "void main()\n"
+            + "{\n"
+            + "   vec4 color = texture(u_texture, v_layerCoords);\n"
+            + "   float maskValue = 1.0;\n"
+            + "   if (u_useMask > 0.5)\n"
+            + "      maskValue = dot(texture(u_texture2, v_texCoords), v_maskChannel);\n"
+            + "   float alpha = mix(1.0, color.a, v_blend.x);\n"
+            + "   if (u_premultiplied > 0.5)\n"
+            + "      fragColor = vec4(color.rgb, alpha * v_blend.y) * maskValue;\n"
+            + "   else\n"
+            + "      fragColor = vec4(color.rgb * mix(color.a, 1.0, v_blend.x), alpha * maskValue);\n"
+            + "}\n";
+
+    private static String getVersionHeader() {
+        if (Gdx.app.getType() == Application.ApplicationType.Desktop)
+            return "#version 150\n";
+        return "#version 300 es\nprecision mediump float;\n";
+    }
+
+    private void setSamplers() {
+        program.begin();
+        program.setUniformi("u_texture", 0);
+        program.setUniformi("u_texture2", 1);
+        program.end();
+    }
+
+    private void createBuffers() {
+        final GL30 gl = Gdx.gl30;
+        tmpHandle.clear();
+        gl.glGenVertexArrays(1, tmpHandle);
+        vao = tmpHandle.get(0);
+        quadBuffer = gl.glGenBuffer();
+        instanceBuffer = gl.glGenBuffer();
+
+        gl.glBindVertexArray(vao);
+        FloatBuffer quad = BufferUtils.newFloatBuffer(8);
+        quad.put(new float[]{0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 1.0f, 1.0f, 1.0f}).flip();
+        gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, quadBuffer);
+        gl.glBufferData(GL20.GL_ARRAY_BUFFER, 8 * 4, quad, GL20.GL_STATIC_DRAW);
+        final int corner = program.getAttributeLocation("a_corner");
+        gl.glEnableVertexAttribArray(corner);
+        gl.glVertexAttribPointer(corner, 2, GL20.GL_FLOAT, false, 0, 0);
+
+        gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, instanceBuffer);
+        final int stride = INSTANCE_FLOATS * 4;
+        setupInstanceAttribute(gl, program.getAttributeLocation("a_rect"), 4, stride, 0);
+        setupInstanceAttribute(gl, program.getAttributeLocation("a_params"), 4, stride, 4 * 4);
+        setupInstanceAttribute(gl, program.getAttributeLocation("a_channel"), 1, stride, 8 * 4);
+        gl.glBindVertexArray(0);
+        gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, 0);
+    }
+
+    private static void setupInstanceAttribute(GL30 gl, int location, int size, int stride, int offset) {
+        if (location < 0)
+            return; // optimized out
+        gl.glEnableVertexAttribArray(location);
+        gl.glVertexAttribPointer(location, size, GL20.GL_FLOAT, false, stride, offset);
+        gl.glVertexAttribDivisor(location, 1);
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Rebuilds the state lost with the GL context - libgdx recompiles the program
+     * (managed), samplers, vertex array and buffers are created again here. Old
+     * handles are not deleted, they died with the context.
+     */
+    public void restore() {
+        if (!supported)
+            return;
+        setSamplers();
+        createBuffers();
+    }
+
+    public boolean isSupported() {
+        return supported;
+    }
+
+    public int getDrawCalls() {
+        return drawCalls;
+    }
+
+    public boolean isPremultipliedAlpha() {
+        return premultipliedAlpha;
+    }
+
+    /**
+     * Set by LayerRenderContext.setPremultipliedAlpha().
+     */
+    void setPremultipliedAlpha(boolean premultipliedAlpha) {
+        this.premultipliedAlpha = premultipliedAlpha;
+    }
+
+    //-------------------------------------------------------------------------
+
+    private void flushGroup() {
+        if (numInstances == 0)
+            return;
+        final GL30 gl = Gdx.gl30;
+        if (groupMask != null) {
+            groupMask.bind(1);
+            program.setUniformf("u_useMask", 1.0f);
+        } else {
+            program.setUniformf("u_useMask", 0.0f);
+        }
+        groupTexture.bind(0);
+        instanceData.flip();
+        gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, instanceBuffer);
+        // orphan the previous storage - no sync with draws still in flight
+        gl.glBufferData(GL20.GL_ARRAY_BUFFER, numInstances * INSTANCE_FLOATS * 4, instanceData, GL20.GL_STREAM_DRAW);
+        gl.glDrawArraysInstanced(GL20.GL_TRIANGLE_STRIP, 0, 4, numInstances);
+        instanceData.clear();
+        numInstances = 0;
+        drawCalls++;
+    }
+
+    private void addInstance(LayerInfo layerInfo) {
+        final Texture texture = layerInfo.getTexture();
+        final Texture mask = layerInfo.getDrawnMaskTexture();
+        if (texture != groupTexture || mask != groupMask || numInstances == capacity) {
+            flushGroup();
+            groupTexture = texture;
+            groupMask = mask;
+        }
+        final float layerScale = layerInfo.getLayerScale();
+        final float width = layerInfo.size.x * layerScale;
+        final float height = layerInfo.size.y * layerScale;
+        layerInfo.getRealPosition(tmpPos);
+        instanceData.put(tmpPos.x + width / 2.0f);
+        instanceData.put(tmpPos.y + height / 2.0f);
+        instanceData.put(width);
+        instanceData.put(height);
+        instanceData.put(layerInfo.getDrawnRotation() * MathUtils.degreesToRadians);
+        if (mask != null) {
+            layerInfo.getMaskOffset(tmpOffset);
+            instanceData.put(layerInfo.getMaskScale());
+            instanceData.put(tmpOffset.x);
+            instanceData.put(tmpOffset.y);
+        } else {
+            instanceData.put(1.0f);
+            instanceData.put(0.0f);
+            instanceData.put(0.0f);
+        }
+        instanceData.put((float) (MathUtils.clamp(layerInfo.maskChannel, 0, 3) + 4 * layerInfo.blendMode.ordinal()));
+        numInstances++;
+    }
+
+    /**
+     * Draws all visible layers of active effects (same order as the SpriteBatch path).
+     */
+    public void draw(Array<LayerMaskingEffect> effects, Matrix4 projection) {
+        drawCalls = 0;
+        if (!supported || effects == null)
+            return;
+        final GL30 gl = Gdx.gl30;
+        gl.glEnable(GL20.GL_BLEND);
+        // same blending as the sprite batch path, alpha stays correct in offscreen targets
+        // (straight alpha additive layers never get here - see the class comment)
+        LayerRenderContext.setBlendFunction(premultipliedAlpha, LayerInfo.BlendMode.ALPHA);
+        gl.glDepthMask(false);
+        program.begin();
+        program.setUniformMatrix("u_projTrans", projection);
+        program.setUniformf("u_premultiplied", premultipliedAlpha ? 1.0f : 0.0f);
+        gl.glBindVertexArray(vao);
+        instanceData.clear();
+        numInstances = 0;
+        groupTexture = null;
+        groupMask = null;
+        for (int i = 0; i < effects.size; i++) {
+            LayerMaskingEffect effect = effects.get(i);
+            if (!effect.isActive() || effect.restoring)
+                continue;
+            Array<LayerInfo> layers = effect.getDrawOrder();
+            for (int j = 0; j < layers.size; j++) {
+                LayerInfo layerInfo = layers.get(j);
+                if (layerInfo.getTexture() == null || !layerInfo.isDrawable())
+                    continue;
+                addInstance(layerInfo);
+            }
+        }
+        flushGroup();
+        gl.glBindVertexArray(0);
+        gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, 0);
+        gl.glActiveTexture(GL20.GL_TEXTURE0);
+        program.end();
+        groupTexture = null;
+        groupMask = null;
+    } // void draw(...)
+
+    //-------------------------------------------------------------------------
+} // class LayerInstancedRenderer
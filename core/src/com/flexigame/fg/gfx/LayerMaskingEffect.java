@@ -3,6 +3,8 @@ package com.flexigame.fg.gfx;
 import com.badlogic.gdx.assets.AssetManager;
 import com.badlogic.gdx.graphics.Texture;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.Vector2;
 import com.badlogic.gdx.utils.Array;
 
 /**
@@ -18,6 +20,22 @@ public class LayerMaskingEffect {
     private boolean active;
     /* Current Layer id name */
     String name;
+    /* Layers which are animating or changed - only these are updated */
+    private Array<LayerInfo> updateList;
+    /* Layers in drawing order - additive runs sorted (see getDrawOrder()) */
+    private Array<LayerInfo> drawOrder;
+    /* Offset shared by all layers - in screen pixels */
+    private Vector2 offset;
+    /* Optional keyframe animation for the layers (can be null) */
+    private LayerTimeline timeline;
+    /* Layer properties driven by expressions over game state (can be null) */
+    private LayerBindings bindings;
+    /* Reference counts of the layer textures (shared by effects of the drawer) */
+    private LayerTextureRegistry textureRegistry;
+    /* Frame profiler tagging layer changes (can be null) */
+    private FrameProfiler profiler;
+    /* Textures still reloading after context loss - not drawn (LayerContextRestorer) */
+    boolean restoring;
 
     //-------------------------------------------------------------------------
 
@@ -25,26 +43,40 @@ public class LayerMaskingEffect {
         if (assetManager == null)
             throw new RuntimeException("AssetManager passed into constructor cannot be NULL!");
         this.assetManager = assetManager;
-        this.layerInfoArray = new Array<LayerInfo>();
+        this.layerInfoArray = new Array<LayerInfo>(LayerInfo.class);
         this.active = true; // active by default
         this.name = "";
+        this.offset = new Vector2(0.0f, 0.0f);
+        this.updateList = new Array<LayerInfo>(LayerInfo.class);
+        this.drawOrder = new Array<LayerInfo>(LayerInfo.class);
+        this.textureRegistry = new LayerTextureRegistry(assetManager);
     }
 
     public LayerMaskingEffect(AssetManager assetManager, String name) {
         if (assetManager == null)
             throw new RuntimeException("AssetManager passed into constructor cannot be NULL!");
         this.assetManager = assetManager;
-        this.layerInfoArray = new Array<LayerInfo>();
+        this.layerInfoArray = new Array<LayerInfo>(LayerInfo.class);
         this.active = true; // active by default
         this.name = name;
+        this.offset = new Vector2(0.0f, 0.0f);
+        this.updateList = new Array<LayerInfo>(LayerInfo.class);
+        this.drawOrder = new Array<LayerInfo>(LayerInfo.class);
+        this.textureRegistry = new LayerTextureRegistry(assetManager);
     }
 
     public void dispose() {
         int n = this.count();
         for (int i = 0; i < n; i++) {
-            this.layerInfoArray.items[i].dispose(false);
+            this.releaseTextures(this.layerInfoArray.items[i]);
+            this.layerInfoArray.items[i].setOwner(null);
+            this.layerInfoArray.items[i].updateQueued = false;
         }
         this.layerInfoArray.clear();
+        this.updateList.clear();
+        this.drawOrder.clear();
+        if (this.bindings != null)
+            this.bindings.clear();
     }
 
     //-------------------------------------------------------------------------
@@ -69,6 +101,73 @@ public class LayerMaskingEffect {
         return layerInfoArray.size;
     }
 
+    public LayerTimeline getTimeline() {
+        return timeline;
+    }
+
+    public void setTimeline(LayerTimeline timeline) {
+        this.timeline = timeline;
+    }
+
+    /**
+     * Returns timeline of this effect - creates empty one if needed.
+     */
+    public LayerTimeline createTimeline() {
+        if (this.timeline == null)
+            this.timeline = new LayerTimeline();
+        return this.timeline;
+    }
+
+    public LayerBindings getBindings() {
+        return bindings;
+    }
+
+    public void setBindings(LayerBindings bindings) {
+        this.bindings = bindings;
+    }
+
+    /**
+     * Returns bindings of this effect - creates empty ones if needed.
+     */
+    public LayerBindings createBindings() {
+        if (this.bindings == null)
+            this.bindings = new LayerBindings();
+        return this.bindings;
+    }
+
+    public LayerTextureRegistry getTextureRegistry() {
+        return textureRegistry;
+    }
+
+    /**
+     * Shares the registry with other effects (see LayerMaskingEffectDrawer) - only
+     * while there are no layers, their references stay where they were retained.
+     */
+    public void setTextureRegistry(LayerTextureRegistry textureRegistry) {
+        if (textureRegistry == null)
+            throw new RuntimeException("Texture registry cannot be NULL!");
+        if (this.count() > 0 && textureRegistry != this.textureRegistry)
+            throw new RuntimeException("Cannot change texture registry of effect with layers: " + name);
+        this.textureRegistry = textureRegistry;
+    }
+
+    /**
+     * Releases the textures of the layer (deleted or disposed) in the registry.
+     */
+    void releaseTextures(LayerInfo layerInfo) {
+        textureRegistry.release(layerInfo.getTexture());
+        textureRegistry.release(layerInfo.getMaskTexture());
+        layerInfo.clearTextures();
+    }
+
+    public FrameProfiler getProfiler() {
+        return profiler;
+    }
+
+    public void setProfiler(FrameProfiler profiler) {
+        this.profiler = profiler;
+    }
+
     public void setName(String name) {
         this.name = name;
     }
@@ -141,37 +240,78 @@ public class LayerMaskingEffect {
     }
     //-------------------------------------------------------------------------
 
+    /**
+     * Resets shared offset and offsets of all layers.
+     */
     public void resetOffset() {
+        this.offset.set(0.0f, 0.0f);
         final int n = this.count();
         for (int i = 0; i < n; i++) {
             layerInfoArray.get(i).resetOffset();
         }
     }
 
+    public void getOffset(Vector2 out) {
+        out.x = offset.x;
+        out.y = offset.y;
+    }
+
+    public float getOffsetX() {
+        return offset.x;
+    }
+
+    public float getOffsetY() {
+        return offset.y;
+    }
+
+    /*
+     * Offset is stored once for the whole effect (O(1) to change) - per layer
+     * UV offsets are derived from it at draw time (LayerInfo.resolveOffsets).
+     */
+
     public void setOffset(int x, int y) {
-        final int n = this.count();
-        for (int i = 0; i < n; i++) {
-            layerInfoArray.get(i).setOffset(x, y);
-        }
+        setOffset((float) x, (float) y);
     }
 
     public void moveOffsetByPixels(int x, int y) {
-        final int n = this.count();
-        for (int i = 0; i < n; i++) {
-            layerInfoArray.get(i).moveOffsetByPixels(x, y);
-        }
+        moveOffsetByPixels((float) x, (float) y);
     }
 
     public void setOffset(float x, float y) {
-        setOffset((int) x, (int) y);
+        this.offset.x = x;
+        this.offset.y = y;
     }
 
     public void moveOffsetByPixels(float x, float y) {
-        moveOffsetByPixels((int) x, (int) y);
+        this.offset.x += x;
+        this.offset.y += y;
     }
 
     //-------------------------------------------------------------------------
 
+    private LayerInfo attachLayer(LayerInfo layerInfo) {
+        if (layerInfo.getOwner() != null)
+            throw new RuntimeException("Layer is already in effect: " + layerInfo.getOwner().getName());
+        layerInfo.setIndex(this.count());
+        layerInfo.setSharedOffset(this.offset);
+        textureRegistry.retain(layerInfo.getTexture());
+        textureRegistry.retain(layerInfo.getMaskTexture());
+        this.layerInfoArray.add(layerInfo);
+        layerInfo.setOwner(this);
+        if (profiler != null)
+            profiler.mark(FrameProfiler.TAG_LAYER_ADD);
+        return layerInfo;
+    }
+
+    /**
+     * Adds externally created layer to this effect.
+     */
+    public LayerInfo addLayer(LayerInfo layerInfo) {
+        if (layerInfo == null)
+            return null; // no exception
+        return attachLayer(layerInfo);
+    }
+
     public LayerInfo addLayer(String textureFile) {
         if (this.assetManager == null)
             throw new RuntimeException("AssetManager cannot be NULL!");
@@ -182,9 +322,7 @@ public class LayerMaskingEffect {
         if (texture == null)
             return null; // no exception;
         LayerInfo layerInfo = new LayerInfo(texture);
-        layerInfo.setIndex(this.count());
-        this.layerInfoArray.add(layerInfo);
-        return layerInfo;
+        return attachLayer(layerInfo);
     }
 
     public LayerInfo addLayer(String textureFile, String maskFile) {
@@ -198,9 +336,7 @@ public class LayerMaskingEffect {
         if (texture == null || maskTexture == null)
             return null; // no exception;
         LayerInfo layerInfo = new LayerInfo(texture, maskTexture);
-        layerInfo.setIndex(this.count());
-        this.layerInfoArray.add(layerInfo);
-        return layerInfo;
+        return attachLayer(layerInfo);
     }
 
     public LayerInfo addLayer(String textureFile, float x, float y) {
@@ -216,9 +352,7 @@ public class LayerMaskingEffect {
         LayerInfo layerInfo = new LayerInfo(texture);
         layerInfo.position.x = x;
         layerInfo.position.y = y;
-        layerInfo.setIndex(this.count());
-        this.layerInfoArray.add(layerInfo);
-        return layerInfo;
+        return attachLayer(layerInfo);
     }
 
     public LayerInfo addLayer(String textureFile, String maskFile,
@@ -245,9 +379,7 @@ public class LayerMaskingEffect {
         layerInfo.speed = speed;
         layerInfo.minScale = minScale;
         layerInfo.maxScale = maxScale;
-        layerInfo.setIndex(this.count());
-        this.layerInfoArray.add(layerInfo);
-        return layerInfo;
+        return attachLayer(layerInfo);
     }
 
     //-------------------------------------------------------------------------
@@ -289,30 +421,172 @@ public class LayerMaskingEffect {
 
     public void deleteLayer(int index) {
         LayerInfo layerInfo = this.layerInfoArray.removeIndex(index);
+        if (layerInfo != null && this.timeline != null)
+            this.timeline.removeTracks(layerInfo);
+        if (layerInfo != null && this.bindings != null)
+            this.bindings.unbind(layerInfo);
         if (layerInfo != null) {
-            layerInfo.dispose(false);
+            if (layerInfo.updateQueued)
+                this.updateList.removeValue(layerInfo, true);
+            layerInfo.updateQueued = false;
+            this.releaseTextures(layerInfo);
+            layerInfo.setOwner(null);
+            layerInfo.setSharedOffset(null);
             layerInfo = null;
+            if (profiler != null)
+                profiler.mark(FrameProfiler.TAG_LAYER_DELETE);
         }
         this.refreshLayerIndexes();
     }
 
     //-------------------------------------------------------------------------
 
+    /**
+     * Puts layer on the update list (called by LayerInfo.markDirty).
+     */
+    void queueUpdate(LayerInfo layerInfo) {
+        layerInfo.updateQueued = true;
+        this.updateList.add(layerInfo);
+    }
+
+    /**
+     * Returns number of layers waiting for update (animating or dirty).
+     */
+    public int getUpdateCount() {
+        return updateList.size;
+    }
+
     void update(float delta) {
         if (active == false)
             return;
-        final int n = this.count();
+        if (timeline != null)
+            timeline.update(delta); // keyframed values first, then pulsing/rotation
+        if (bindings != null)
+            bindings.update(delta); // bound properties override keyframed ones
+        // order of updates does not matter - idle layers are swapped out
+        int n = this.updateList.size;
         for (int i = 0; i < n; i++) {
-            this.layerInfoArray.get(i).update(delta);
+            LayerInfo layerInfo = this.updateList.items[i];
+            layerInfo.update(delta);
+            if (!layerInfo.isAnimating()) {
+                layerInfo.updateQueued = false;
+                this.updateList.swap(i, n - 1);
+                this.updateList.pop();
+                n--;
+                i--;
+            }
         }
     }
 
+    /**
+     * Can the layer swap places with its additive neighbours? Layers which are not
+     * drawn commute with anything.
+     */
+    private static boolean commutes(LayerInfo layerInfo) {
+        return layerInfo.blendMode == LayerInfo.BlendMode.ADDITIVE || !layerInfo.isDrawable();
+    }
+
+    private static int handleOf(Texture texture) {
+        return texture == null ? 0 : texture.getTextureObjectHandle();
+    }
+
+    /**
+     * Orders layers by the state they are drawn with - program, mask, texture.
+     */
+    private static int compareDrawState(LayerInfo a, LayerInfo b) {
+        final int featuresA = a.isDrawable() ? a.getShaderFeatures() : -1;
+        final int featuresB = b.isDrawable() ? b.getShaderFeatures() : -1;
+        if (featuresA != featuresB)
+            return featuresA < featuresB ? -1 : 1;
+        final int maskA = handleOf(a.getDrawnMaskTexture());
+        final int maskB = handleOf(b.getDrawnMaskTexture());
+        if (maskA != maskB)
+            return maskA < maskB ? -1 : 1;
+        final int textureA = handleOf(a.getTexture());
+        final int textureB = handleOf(b.getTexture());
+        return textureA < textureB ? -1 : (textureA > textureB ? 1 : 0);
+    }
+
+    /**
+     * Layers in the order they are drawn. Blending depends on the draw order, so layers
+     * are never moved over others - except inside runs of consecutive additive layers:
+     * addition commutes, such a run is sorted by program, mask and texture (fewer
+     * program switches and binds, same picture). Without additive layers next to each
+     * other the layer array itself is returned.
+     */
+    public Array<LayerInfo> getDrawOrder() {
+        final int n = this.layerInfoArray.size;
+        final LayerInfo[] layers = this.layerInfoArray.items;
+        int additive = 0;
+        for (int i = 0; i < n; i++) {
+            if (layers[i].blendMode == LayerInfo.BlendMode.ADDITIVE)
+                additive++;
+        }
+        if (additive < 2)
+            return this.layerInfoArray;
+        this.drawOrder.clear();
+        this.drawOrder.addAll(this.layerInfoArray);
+        final LayerInfo[] items = this.drawOrder.items;
+        int start = 0;
+        while (start < n) {
+            if (!commutes(items[start])) {
+                start++;
+                continue;
+            }
+            int end = start + 1;
+            while (end < n && commutes(items[end]))
+                end++;
+            // stable insertion sort - runs are short
+            for (int i = start + 1; i < end; i++) {
+                final LayerInfo layerInfo = items[i];
+                int j = i - 1;
+                while (j >= start && compareDrawState(items[j], layerInfo) > 0) {
+                    items[j + 1] = items[j];
+                    j--;
+                }
+                items[j + 1] = layerInfo;
+            }
+            start = end;
+        }
+        return this.drawOrder;
+    } // Array<LayerInfo> getDrawOrder()
+
     void draw(SpriteBatch batch) {
+        draw(batch, (LayerRenderContext) null);
+    }
+
+    void draw(SpriteBatch batch, LayerRenderContext renderContext) {
         if (batch == null || active == false)
             return;
-        final int n = this.count();
-        for (int i = 0; i < n; i++) {
-            this.layerInfoArray.get(i).draw(batch);
+        final Array<LayerInfo> layers = getDrawOrder();
+        for (int i = 0; i < layers.size; i++) {
+            layers.get(i).draw(batch, renderContext);
+        }
+    }
+
+    void draw(SpriteBatch batch, LayerShaderCache shaderCache, ShaderProgram fallbackProgram) {
+        draw(batch, shaderCache, fallbackProgram, null);
+    }
+
+    void draw(SpriteBatch batch, LayerShaderCache shaderCache, ShaderProgram fallbackProgram,
+              LayerRenderContext renderContext) {
+        if (batch == null || active == false)
+            return;
+        final int pipelineFeatures = renderContext != null ? renderContext.getPipelineFeatures() : 0;
+        final Array<LayerInfo> layers = getDrawOrder();
+        for (int i = 0; i < layers.size; i++) {
+            LayerInfo layerInfo = layers.get(i);
+            if (!layerInfo.isDrawable() || layerInfo.occluded)
+                continue;
+            // program is switched only when the feature key changes
+            ShaderProgram program = shaderCache.get(layerInfo.getShaderFeatures() | pipelineFeatures);
+            if (program == null)
+                program = fallbackProgram;
+            if (batch.getShader() != program) {
+                batch.setShader(program);
+                shaderCache.countSwitch();
+            }
+            layerInfo.draw(batch, renderContext);
         }
     }
 
@@ -2,10 +2,14 @@ package com.flexigame.fg.gfx;
 
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.assets.AssetManager;
+import com.badlogic.gdx.files.FileHandle;
 import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.Texture;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.glutils.FileTextureData;
 import com.badlogic.gdx.graphics.glutils.ShaderProgram;
 import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ObjectMap;
 
 /**
  * This class is for rendering special layer effects (with texture masking).
@@ -17,7 +21,37 @@ import com.badlogic.gdx.utils.Array;
 public class LayerMaskingEffectDrawer {
     private SpriteBatch spriteBatch;
     private ShaderProgram customShaderProgram;
+    /* Specialized masking programs by feature key */
+    private LayerShaderCache shaderCache;
+    /* Draw with specialized shader variants instead of the generic program */
+    private boolean useShaderVariants;
+    /* GL3 instanced path - null when not created yet */
+    private LayerInstancedRenderer instancedRenderer;
+    /* Use instanced path when GL30 is available */
+    private boolean useInstancing;
+    /* Wipe between effects (when switching with transitionTo) */
+    private LayerEffectTransition transition;
+    /* Dynamic resolution and quality governor */
+    private LayerFrameBudget frameBudget;
+    /* Lower resolution masks by the full resolution mask (owned by the drawer) */
+    private ObjectMap<Texture, Texture> lowResMasks;
+    /* Draw opaque interiors front-to-back with depth writes first (see MaskCoverage) */
+    private boolean depthPrepass;
+    /* Coverage grids and drawing of the pre-pass */
+    private LayerDepthPrepass prepass;
     private AssetManager assetManager;
+    /* Reference counts of the layer textures - shared by all effects */
+    private LayerTextureRegistry textureRegistry;
+    /* Shared batch, shaders and binding state */
+    private LayerRenderContext renderContext;
+    /* Was the context created by this drawer? */
+    private boolean ownsRenderContext;
+    /* Position in the frame when rendered through the context (lower first) */
+    public int order;
+    /* Frame profiler - tags switches, transitions and flushes (can be null) */
+    private FrameProfiler profiler;
+    /* No GL resources - effects are only updated (see createHeadless) */
+    private boolean headless;
 
     private Array<LayerMaskingEffect> layerMaskingEffects;
 
@@ -27,79 +61,80 @@ public class LayerMaskingEffectDrawer {
     //-------------------------------------------------------------------------
 
     public LayerMaskingEffectDrawer(AssetManager assetManager) {
+        this(assetManager, null);
+    }
+
+    /**
+     * Drawer using shared batch, shaders and binding state of the context - with null
+     * context a private one is created (and disposed with the drawer).
+     */
+    public LayerMaskingEffectDrawer(AssetManager assetManager, LayerRenderContext renderContext) {
+        this(assetManager, renderContext, false);
+    }
+
+    private LayerMaskingEffectDrawer(AssetManager assetManager, LayerRenderContext renderContext,
+                                     boolean headless) {
         if (assetManager == null)
             throw new RuntimeException("AssetManager passed into constructor cannot be NULL!");
         this.assetManager = assetManager;
-
-        this.spriteBatch = new SpriteBatch(); // important!
-
-        this.layerMaskingEffects = new Array<LayerMaskingEffect>();
-
-        // Create custom shader program - important!
-        this.vertexShader = "attribute vec4 " + ShaderProgram.POSITION_ATTRIBUTE + ";\n"
-                + "attribute vec4 " + ShaderProgram.COLOR_ATTRIBUTE + ";\n"
-                + "attribute vec2 " + ShaderProgram.TEXCOORD_ATTRIBUTE + "0;\n"
-                + "uniform mat4 u_projTrans;\n"
-                + "varying vec4 v_color;\n"
-                + "varying vec2 v_texCoords;\n"
-                + "\n"
-                + "void main()\n"
-                + "{\n"
-                + "   v_color = " + ShaderProgram.COLOR_ATTRIBUTE + ";\n"
-                + "   v_color.a = v_color.a * (255.0/254.0);\n"
-                + "   v_texCoords = " + ShaderProgram.TEXCOORD_ATTRIBUTE + "0;\n"
-                + "   gl_Position =  u_projTrans * " + ShaderProgram.POSITION_ATTRIBUTE + ";\n"
-                + "}\n";
-
-        // -1 * (sc - 1.0)/2.0 + (sc) * uv
-        // " vec2 newCoords = -1.0 * (u_maskScale - 1.0)/2.0 + (u_maskScale * v_texCoords);\n" +
-
-        this.fragmentShader = "#ifdef GL_ES\n" +
-                "precision mediump float;\n" +
-                "#endif\n" +
-                "varying vec4 v_color;\n" +
-                "varying vec2 v_texCoords;\n" +
-                "uniform sampler2D u_texture;\n" +
-                "uniform sampler2D u_texture2;\n" +
-                "uniform float u_maskScale;\n" +
-                "uniform float u_useMask;\n" +
-                "uniform vec2 u_maskOffset;\n" +
-                "void main()                                  \n" +
-                "{                                            \n" +
-                " vec2 newCoords = -1.0 * (u_maskScale - 1.0)/2.0 + (u_maskScale * v_texCoords) + u_maskOffset;\n" +
-                " vec4 mask = vec4(1.0, 1.0, 1.0, 1.0); \nif(u_useMask > 0.5) \n\tmask = texture2D(u_texture2, v_texCoords);\n" +
-                " vec4 color = v_color * texture2D(u_texture, newCoords);\n" +
-                "  gl_FragColor = vec4(color.rgb, color.a * mask.r);\n" +
-                "}";
-        if (this.customShaderProgram == null)
-            customShaderProgram = new ShaderProgram(vertexShader, fragmentShader);
-
-        if (!customShaderProgram.isCompiled()) {
-            Gdx.app.debug("LayerMaskingEffectDrawer", "Custom shader did not compile:\n " + customShaderProgram.getLog());
-        } else {
-            Gdx.app.debug("LayerMaskingEffectDrawer", "Custom shader compiled successfully. " + customShaderProgram.getLog());
+        this.profiler = null;
+        this.order = 0;
+        this.headless = headless;
+
+        this.layerMaskingEffects = new Array<LayerMaskingEffect>(LayerMaskingEffect.class);
+        this.textureRegistry = new LayerTextureRegistry(assetManager);
+
+        this.ownsRenderContext = renderContext == null && !headless;
+        if (renderContext == null && !headless)
+            renderContext = new LayerRenderContext();
+        this.renderContext = renderContext;
+        if (renderContext != null) {
+            this.spriteBatch = renderContext.getSpriteBatch();
+            this.vertexShader = renderContext.getVertexShader();
+            this.fragmentShader = renderContext.getFragmentShader();
+            this.customShaderProgram = renderContext.getCustomShaderProgram();
+            this.shaderCache = renderContext.getShaderCache();
+            this.instancedRenderer = renderContext.getInstancedRenderer();
         }
 
-        if (this.customShaderProgram.isCompiled()) {
-            customShaderProgram.begin();
-            customShaderProgram.setUniformi("u_texture", 0);
-            customShaderProgram.setUniformi("u_texture2", 1);
-            customShaderProgram.setUniformf("u_useMask", 1.0f);
-            customShaderProgram.setUniformf("u_maskScale", 1.0f);
-            customShaderProgram.setUniformf("u_maskOffset", 0.0f, 0.0f);
-            this.spriteBatch.setShader(customShaderProgram); // use custom shader !
-        }
+        this.useShaderVariants = true;
+        this.useInstancing = !headless;
+        // no wipe without GL - effects are switched instantly
+        this.transition = headless ? null : new LayerEffectTransition(vertexShader);
+        // Dynamic resolution and quality governor - off by default
+        this.frameBudget = new LayerFrameBudget();
+        this.lowResMasks = new ObjectMap<Texture, Texture>();
+        // Depth pre-pass - off by default (needs coverage, see createMaskCoverage)
+        this.depthPrepass = false;
+        this.prepass = new LayerDepthPrepass();
 
     } // LayerMaskingEffectDrawer(...)
 
+    /**
+     * Drawer without any GL resources (no batch, shaders or render targets) - effects
+     * are only updated, e.g. on a simulation server streaming the layer state (see
+     * LayerStateSerializer). Transitions switch instantly, draw() is not allowed.
+     */
+    public static LayerMaskingEffectDrawer createHeadless(AssetManager assetManager) {
+        return new LayerMaskingEffectDrawer(assetManager, null, true);
+    }
+
     public void dispose() {
-        this.spriteBatch.setShader(null);
-        this.spriteBatch.dispose();
-        this.customShaderProgram.dispose();
-        final int n = 0;
+        if (this.ownsRenderContext)
+            this.renderContext.dispose();
+        if (this.transition != null)
+            this.transition.dispose();
+        this.frameBudget.dispose();
+        for (Texture lowResMask : this.lowResMasks.values())
+            lowResMask.dispose();
+        this.lowResMasks.clear();
+        this.prepass.dispose();
+        final int n = this.count();
         for (int i = 0; i < n; i++)
             this.layerMaskingEffects.items[i].dispose();
         this.layerMaskingEffects.clear();
+        // layers released everything they retained - anything left was never deleted
+        this.textureRegistry.reportLeaks();
     }
 
     //-------------------------------------------------------------------------
@@ -112,10 +147,218 @@ public class LayerMaskingEffectDrawer {
         return assetManager;
     }
 
+    public LayerRenderContext getRenderContext() {
+        return renderContext;
+    }
+
     public ShaderProgram getCustomShaderProgram() {
         return customShaderProgram;
     }
 
+    public LayerShaderCache getShaderCache() {
+        return shaderCache;
+    }
+
+    public boolean isUsingShaderVariants() {
+        return useShaderVariants;
+    }
+
+    public void setUseShaderVariants(boolean toggle) {
+        this.useShaderVariants = toggle;
+    }
+
+    public boolean isHeadless() {
+        return headless;
+    }
+
+    public boolean isUsingInstancing() {
+        return useInstancing && instancedRenderer != null && instancedRenderer.isSupported();
+    }
+
+    public void setUseInstancing(boolean toggle) {
+        this.useInstancing = toggle;
+    }
+
+    public LayerInstancedRenderer getInstancedRenderer() {
+        return instancedRenderer;
+    }
+
+    public LayerEffectTransition getTransition() {
+        return transition;
+    }
+
+    public boolean isTransitioning() {
+        return transition != null && transition.isActive();
+    }
+
+    public FrameProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Sets profiler for the drawer and all its effects (also created later).
+     */
+    public void setProfiler(FrameProfiler profiler) {
+        this.profiler = profiler;
+        for (int i = 0; i < layerMaskingEffects.size; i++)
+            layerMaskingEffects.get(i).setProfiler(profiler);
+        if (profiler != null)
+            profiler.setSpriteBatch(spriteBatch);
+    }
+
+    private void mark(int tag) {
+        if (profiler != null)
+            profiler.mark(tag);
+    }
+
+    public LayerFrameBudget getFrameBudget() {
+        return frameBudget;
+    }
+
+    public boolean isUsingDynamicResolution() {
+        return frameBudget.isUsingDynamicResolution();
+    }
+
+    public void setUseDynamicResolution(boolean toggle) {
+        frameBudget.setUseDynamicResolution(toggle);
+    }
+
+    public DynamicResolutionController getResolutionController() {
+        return frameBudget.getResolutionController();
+    }
+
+    public QualityGovernor getQualityGovernor() {
+        return frameBudget.getQualityGovernor();
+    }
+
+    /**
+     * Sets governor reducing quality of the layers from the frame times (null - off,
+     * layers go back to full quality). Works on top of dynamic resolution - when both
+     * are used, give the governor a longer target frame time so it only steps in when
+     * lowering the resolution is not enough.
+     */
+    public void setQualityGovernor(QualityGovernor qualityGovernor) {
+        frameBudget.setQualityGovernor(qualityGovernor, layerMaskingEffects);
+    }
+
+    /**
+     * Image file of a texture - asset path resolved by the asset manager, otherwise
+     * the file the texture was loaded from (null - unknown).
+     */
+    static FileHandle findTextureFile(AssetManager assetManager, Texture texture) {
+        final String fileName = assetManager.getAssetFileName(texture);
+        if (fileName != null)
+            return assetManager.getFileHandleResolver().resolve(fileName);
+        if (texture.getTextureData() instanceof FileTextureData)
+            return ((FileTextureData) texture.getTextureData()).getFileHandle();
+        return null;
+    }
+
+    /**
+     * Creates lower resolution versions (size divided by the divisor) of the bitmap
+     * masks of all layers for LayerInfo.Quality.LOW_RES_MASK - masks are decoded
+     * again from their files, layers sharing a mask share the smaller version too.
+     * Layers which already have one are left alone. The textures are owned by the
+     * drawer. Returns number of created textures.
+     */
+    public int createLowResMasks(int divisor) {
+        if (headless)
+            return 0;
+        int created = 0;
+        for (int i = 0; i < layerMaskingEffects.size; i++) {
+            Array<LayerInfo> layers = layerMaskingEffects.get(i).getLayerInfoArray();
+            for (int j = 0; j < layers.size; j++) {
+                LayerInfo layerInfo = layers.get(j);
+                final Texture mask = layerInfo.getMaskTexture();
+                if (mask == null || layerInfo.getLowResMaskTexture() != null)
+                    continue;
+                Texture lowResMask = lowResMasks.get(mask);
+                if (lowResMask == null) {
+                    final FileHandle file = findTextureFile(assetManager, mask);
+                    if (file == null)
+                        continue;
+                    lowResMask = new Texture(new DownscaledTextureData(file, divisor));
+                    // no mip chain - plain linear filtering
+                    lowResMask.setFilter(Texture.TextureFilter.Linear, Texture.TextureFilter.Linear);
+                    lowResMask.setWrap(mask.getUWrap(), mask.getVWrap());
+                    lowResMasks.put(mask, lowResMask);
+                    created++;
+                }
+                layerInfo.setLowResMaskTexture(lowResMask);
+            }
+        }
+        return created;
+    } // int createLowResMasks(...)
+
+
+    /**
+     * Computes coverage grids (gridSize x gridSize cells) of the bitmap masks of all
+     * layers and checks which layer textures are fully opaque - needed by the depth
+     * pre-pass. Images are decoded again from their files (like createLowResMasks()),
+     * textures which already have a grid are left alone. Returns number of computed
+     * grids.
+     */
+    public int createMaskCoverage(int gridSize) {
+        if (headless)
+            return 0;
+        return prepass.createMaskCoverage(layerMaskingEffects, assetManager, gridSize);
+    }
+
+    public int createMaskCoverage() {
+        return createMaskCoverage(MaskCoverage.DEFAULT_GRID_SIZE);
+    }
+
+    public MaskCoverage getMaskCoverage(Texture mask) {
+        return prepass.getMaskCoverage(mask);
+    }
+
+
+    /**
+     * Solid cells of the layer in its current state - what it hides from the layers
+     * below (null - hides nothing, see LayerDepthPrepass).
+     */
+    public MaskCoverage getOccluderCoverage(LayerInfo layerInfo) {
+        return prepass.getOccluderCoverage(layerInfo);
+    }
+
+    public LayerDepthPrepass getDepthPrepass() {
+        return prepass;
+    }
+
+    public boolean isUsingDepthPrepass() {
+        return depthPrepass;
+    }
+
+    /**
+     * Draws opaque interiors of the layers front-to-back with depth writes before the
+     * regular back-to-front pass, which then skips pixels hidden by the layers above.
+     * Layers completely inside the solid part of a layer above are not drawn at all.
+     * Needs a depth buffer and coverage grids (createMaskCoverage()) - works with the
+     * sprite batch path when drawing straight to the screen (not with transitions or
+     * dynamic resolution), so it replaces the instanced path.
+     */
+    public void setUseDepthPrepass(boolean toggle) {
+        this.depthPrepass = toggle;
+    }
+
+    /**
+     * Layers which had solid cells drawn in the last pre-pass.
+     */
+    public int getOccluderCount() {
+        return prepass.getOccluderCount();
+    }
+
+    public int getSolidPieceCount() {
+        return prepass.getSolidPieceCount();
+    }
+
+    /**
+     * Layers skipped in the last pre-pass frame (completely hidden).
+     */
+    public int getOccludedCount() {
+        return prepass.getOccludedCount();
+    }
+
     public SpriteBatch getSpriteBatch() {
         return spriteBatch;
     }
@@ -215,6 +458,9 @@ public class LayerMaskingEffectDrawer {
         LayerMaskingEffect effect = get(name);
         if(effect == null)
             return;
+        mark(FrameProfiler.TAG_EFFECT_SWITCH);
+        if (transition != null)
+            transition.finish(); // instant switch
         hideAll();
         effect.show();
     }
@@ -224,10 +470,56 @@ public class LayerMaskingEffectDrawer {
         if(index < 0 || index >= layerMaskingEffects.size)
             return;
         LayerMaskingEffect effect = get(index);
+        mark(FrameProfiler.TAG_EFFECT_SWITCH);
+        if (transition != null)
+            transition.finish(); // instant switch
         hideAll();
         effect.show();
     }
 
+    /**
+     * Switches to selected effect with the mask wipe - currently shown effect is
+     * blended out over given time. With null mask the masks of the effects are reused.
+     * Falls back to showOnly() when there is nothing to blend from.
+     */
+    public boolean transitionTo(int index, float duration, Texture mask) {
+        if(index < 0 || index >= layerMaskingEffects.size)
+            return false;
+        if (transition == null) {
+            showOnly(index); // headless
+            return false;
+        }
+        LayerMaskingEffect target = get(index);
+        LayerMaskingEffect current;
+        if (transition.isActive()) {
+            current = transition.getTo();
+            transition.finish();
+        } else {
+            current = getFirstActive();
+        }
+        if (current == null || current == target || duration <= 0.0f) {
+            showOnly(index);
+            return false;
+        }
+        hideAll();
+        current.show();
+        target.show();
+        mark(FrameProfiler.TAG_EFFECT_SWITCH);
+        transition.start(current, target, mask, duration);
+        return transition.isActive();
+    }
+
+    public boolean transitionTo(int index) {
+        return transitionTo(index, LayerEffectTransition.DEFAULT_DURATION, null);
+    }
+
+    public boolean transitionTo(String name) {
+        LayerMaskingEffect effect = get(name);
+        if (effect == null)
+            return false;
+        return transitionTo(indexOf(effect), LayerEffectTransition.DEFAULT_DURATION, null);
+    }
+
     public void hideOnly(String name) {
         // this will hide only selected one and show the rest
         LayerMaskingEffect effect = get(name);
@@ -308,21 +600,81 @@ public class LayerMaskingEffectDrawer {
 
     //-------------------------------------------------------------------------
 
+    public LayerTextureRegistry getTextureRegistry() {
+        return textureRegistry;
+    }
+
     public LayerMaskingEffect createLayerEffect() {
         LayerMaskingEffect layerMaskingEffect = new LayerMaskingEffect(this.assetManager);
+        layerMaskingEffect.setTextureRegistry(textureRegistry);
+        layerMaskingEffect.setProfiler(profiler);
         this.layerMaskingEffects.add(layerMaskingEffect);
         return layerMaskingEffect;
     }
 
     public LayerMaskingEffect createLayerEffect(String name) {
         LayerMaskingEffect layerMaskingEffect = new LayerMaskingEffect(this.assetManager, name);
+        layerMaskingEffect.setTextureRegistry(textureRegistry);
+        layerMaskingEffect.setProfiler(profiler);
         this.layerMaskingEffects.add(layerMaskingEffect);
         return layerMaskingEffect;
     }
 
+    /**
+     * Removes the effect from the drawer and disposes it - its layers release their
+     * textures, low-res masks and coverage grids of masks no longer used by any layer
+     * are dropped. Returns false when the effect is not in this drawer.
+     */
+    public boolean deleteLayerEffect(LayerMaskingEffect effect) {
+        final int index = this.indexOf(effect);
+        if (index < 0)
+            return false;
+        if (transition != null && transition.isActive()
+                && (transition.getFrom() == effect || transition.getTo() == effect))
+            transition.finish();
+        this.layerMaskingEffects.removeIndex(index);
+        effect.dispose();
+        releaseUnusedTextures();
+        return true;
+    }
+
+    public boolean deleteLayerEffect(String name) {
+        return deleteLayerEffect(this.get(name));
+    }
+
+    /**
+     * Disposes low-res masks and forgets coverage grids of textures not retained by
+     * any layer - returns number of disposed low-res masks.
+     */
+    public int releaseUnusedTextures() {
+        int disposed = 0;
+        ObjectMap.Entries<Texture, Texture> entries = lowResMasks.entries();
+        while (entries.hasNext()) {
+            ObjectMap.Entry<Texture, Texture> entry = entries.next();
+            if (textureRegistry.isRetained(entry.key))
+                continue;
+            entry.value.dispose();
+            entries.remove();
+            disposed++;
+        }
+        prepass.releaseUnused(textureRegistry);
+        return disposed;
+    } // int releaseUnusedTextures()
+
     //-------------------------------------------------------------------------
 
     public void update(float delta) {
+        update(delta, 0.0f);
+    }
+
+    /**
+     * Updates the effects - delta is the duration of the last frame, workTime its
+     * part without waiting for vsync/swap (0 - unknown, e.g. from
+     * FrameProfiler.getWorkTime()). Frame time controllers need the work time to see
+     * the headroom a vsync capped delta hides.
+     */
+    public void update(float delta, float workTime) {
+        this.textureRegistry.update(); // asset references waiting for reloads
         final int n = this.count();
         LayerMaskingEffect effect;
         for (int i = 0; i < n; i++) {
@@ -331,26 +683,143 @@ public class LayerMaskingEffectDrawer {
                 continue;
             effect.update(delta);
         }
+        if (isTransitioning())
+            mark(FrameProfiler.TAG_TRANSITION);
+        if (transition != null)
+            transition.update(delta, workTime);
+        // transitions scale their own targets
+        if (!isTransitioning())
+            frameBudget.update(delta, workTime, layerMaskingEffects, profiler);
     } // void update(...)
 
     public void draw() {
+        if (headless)
+            throw new RuntimeException("Headless drawer cannot draw!");
+        if (transition.isActive()) {
+            transition.draw(this);
+            return;
+        }
+        if (frameBudget.isScaling()) {
+            frameBudget.drawScaled(this);
+            return;
+        }
+        drawEffects();
+    } // void draw()
+
+    /**
+     * Instanced path has no procedural or SDF masks and no tiled layers - any visible
+     * layer using them switches the frame to the sprite batch path. So does an additive
+     * layer with straight alpha (needs its own blend function).
+     */
+    private boolean hasSpecialMasks() {
+        final boolean straightAlpha = !renderContext.isPremultipliedAlpha();
+        for (int i = 0; i < layerMaskingEffects.size; i++) {
+            LayerMaskingEffect effect = layerMaskingEffects.get(i);
+            if (!effect.isActive())
+                continue;
+            Array<LayerInfo> layers = effect.getLayerInfoArray();
+            for (int j = 0; j < layers.size; j++) {
+                LayerInfo layerInfo = layers.get(j);
+                if (!layerInfo.isDrawable())
+                    continue;
+                if (layerInfo.isBatchOnly())
+                    return true;
+                if (straightAlpha && layerInfo.blendMode == LayerInfo.BlendMode.ADDITIVE)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Are effects drawn straight to the screen (not through the transition or the
+     * dynamic resolution target)?
+     */
+    private boolean isDrawingToScreen() {
+        if (isTransitioning())
+            return false;
+        return !frameBudget.isScaling();
+    }
+
+    private boolean isPrepassDrawn() {
+        return depthPrepass && isDrawingToScreen();
+    }
+
+    /**
+     * Draws active effects with the instanced or the sprite batch path.
+     */
+    void drawEffects() {
+        if (isUsingInstancing() && !isPrepassDrawn() && !hasSpecialMasks()) {
+            instancedRenderer.draw(this.layerMaskingEffects, this.spriteBatch.getProjectionMatrix());
+            if (profiler != null)
+                profiler.addFlushes(instancedRenderer.getDrawCalls());
+            return;
+        }
+        drawBatched(null);
+    }
+
+    /**
+     * Draws active effects (or only the given one) into the open batch.
+     */
+    private void drawLayers(LayerMaskingEffect only) {
+        if (isPrepassDrawn()) {
+            prepass.draw(this, only);
+            return;
+        }
+        drawEffectLayers(only);
+    }
+
+    /**
+     * Draws layers of active effects (or only the given one) into the open batch -
+     * without the pre-pass.
+     */
+    void drawEffectLayers(LayerMaskingEffect only) {
         final int n = this.count();
-        this.spriteBatch.begin();
-        this.spriteBatch.setColor(Color.WHITE);
         LayerMaskingEffect effect;
+        final boolean variants = this.useShaderVariants && this.customShaderProgram.isCompiled();
         for (int i = 0; i < n; i++) {
             effect = this.layerMaskingEffects.get(i);
-            if (!effect.isActive())
+            if (!effect.isActive() || effect.restoring || (only != null && effect != only))
                 continue;
-            effect.draw(this.spriteBatch);
+            if (variants)
+                effect.draw(this.spriteBatch, this.shaderCache, this.customShaderProgram, this.renderContext);
+            else
+                effect.draw(this.spriteBatch, this.renderContext);
         }
+    }
+
+    /**
+     * Draws active effects (or only the given one) with the sprite batch path.
+     */
+    void drawBatched(LayerMaskingEffect only) {
+        this.renderContext.invalidate();
+        this.renderContext.beginBlending();
+        this.spriteBatch.begin();
+        this.spriteBatch.setColor(Color.WHITE);
+        this.shaderCache.resetSwitchCount();
+        drawLayers(only);
         this.spriteBatch.end();
-        customShaderProgram.begin();
-        customShaderProgram.setUniformf("u_useMask", 0.0f); // no masking
-        customShaderProgram.setUniformf("u_maskScale", 1.0f);
-        customShaderProgram.setUniformf("u_maskOffset", 0.0f, 0.0f);
-        customShaderProgram.end();
-    } // void draw()
+        this.renderContext.endBlending();
+        this.renderContext.resetProgram();
+        this.renderContext.invalidate();
+    } // void drawBatched(...)
+
+    /**
+     * Can this drawer share a batch run with other drawers of the context? Not when
+     * it renders through its own targets or the instanced path.
+     */
+    boolean canDrawMerged() {
+        if (!isDrawingToScreen())
+            return false;
+        return !(isUsingInstancing() && !isPrepassDrawn() && !hasSpecialMasks());
+    }
+
+    /**
+     * Draws active effects into the batch run opened by the render context.
+     */
+    void drawMerged() {
+        drawLayers(null);
+    }
 
     //-------------------------------------------------------------------------
 
@@ -0,0 +1,485 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.assets.AssetManager;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ObjectMap;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * CPU reference implementation of the masking shader used by LayerMaskingEffectDrawer.
+ * Renders the same layers (same order, same UV math, same blending) into a RGBA8888
+ * Pixmap. The screen is split into tiles which are processed in parallel on a worker pool.
+ *
+ * This is meant as a golden-image oracle for headless tests and for offline thumbnail
+ * generation - it is not meant to be used every frame.
+ *
+ * Source pixels are taken from Pixmaps registered per Texture (setSource() or
+ * loadSources()). Wrap and filter modes are read from the Texture so sampling matches GL.
+ */
+public class LayerMaskingRasterizer {
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    /* Decoded source pixels (RGBA8888) with the sampling state of the texture */
+    static class Surface {
+        int width;
+        int height;
+        int[] pixels;
+        boolean linear;
+        Texture.TextureWrap wrapU;
+        Texture.TextureWrap wrapV;
+    }
+
+    /* Snapshot of a single layer - workers never touch LayerInfo directly */
+    static class LayerSnapshot {
+        float centerX;
+        float centerY;
+        float halfWidth;
+        float halfHeight;
+        float cos;
+        float sin;
+        float maskScale;
+        float maskOffsetX;
+        float maskOffsetY;
+        int maskChannel;
+        Surface texture;
+        Surface mask;
+        /* Packed procedural mask parameters (null - not used) */
+        float[] procedural;
+        /* Half width of the SDF edge (0 - mask is a regular bitmap) */
+        float sdfSmoothing;
+        LayerInfo.BlendMode blendMode;
+        /* Bounding box in target pixels (inclusive) */
+        int minX, minY, maxX, maxY;
+    }
+
+    /* Worker pool for processing the tiles */
+    private ExecutorService executor;
+    /* Number of worker threads */
+    private int numThreads;
+    /* Size of the single screen tile in pixels */
+    private int tileSize;
+    /* Registered source pixels for each texture */
+    private ObjectMap<Texture, Surface> surfaces;
+    /* Layers gathered for the current render */
+    private Array<LayerSnapshot> snapshots;
+    /* Pending tile tasks */
+    private Array<Future<Object>> futures;
+    /* Helper vector */
+    private Vector2 tmpVec;
+
+    //-------------------------------------------------------------------------
+
+    public LayerMaskingRasterizer() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_TILE_SIZE);
+    }
+
+    public LayerMaskingRasterizer(int numThreads, int tileSize) {
+        if (numThreads < 1)
+            numThreads = 1;
+        if (tileSize < 1)
+            tileSize = DEFAULT_TILE_SIZE;
+        this.numThreads = numThreads;
+        this.tileSize = tileSize;
+        this.surfaces = new ObjectMap<Texture, Surface>();
+        this.snapshots = new Array<LayerSnapshot>();
+        this.futures = new Array<Future<Object>>();
+        this.tmpVec = new Vector2();
+        this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LayerMaskingRasterizer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void dispose() {
+        this.executor.shutdownNow();
+        this.surfaces.clear();
+        this.snapshots.clear();
+    }
+
+    //-------------------------------------------------------------------------
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public boolean hasSource(Texture texture) {
+        return surfaces.containsKey(texture);
+    }
+
+    /**
+     * Registers source pixels for given texture. Pixmap is copied so it can be
+     * disposed right after this call. Wrap/filter state is taken from the texture.
+     */
+    public void setSource(Texture texture, Pixmap pixmap) {
+        if (texture == null || pixmap == null)
+            return;
+        Surface surface = new Surface();
+        surface.width = pixmap.getWidth();
+        surface.height = pixmap.getHeight();
+        surface.pixels = new int[surface.width * surface.height];
+        if (pixmap.getFormat() == Pixmap.Format.RGBA8888) {
+            ByteBuffer buffer = pixmap.getPixels();
+            for (int i = 0; i < surface.pixels.length; i++) {
+                final int base = i * 4;
+                surface.pixels[i] = ((buffer.get(base) & 0xff) << 24)
+                        | ((buffer.get(base + 1) & 0xff) << 16)
+                        | ((buffer.get(base + 2) & 0xff) << 8)
+                        | (buffer.get(base + 3) & 0xff);
+            }
+        } else {
+            for (int y = 0; y < surface.height; y++) {
+                for (int x = 0; x < surface.width; x++) {
+                    surface.pixels[y * surface.width + x] = pixmap.getPixel(x, y);
+                }
+            }
+        }
+        surface.linear = texture.getMagFilter() != Texture.TextureFilter.Nearest;
+        surface.wrapU = texture.getUWrap();
+        surface.wrapV = texture.getVWrap();
+        surfaces.put(texture, surface);
+    }
+
+    public void removeSource(Texture texture) {
+        surfaces.remove(texture);
+    }
+
+    /**
+     * Decodes source pixmaps for every texture used by the drawer (layers and masks)
+     * that is not yet registered. Textures must be loaded through the asset manager.
+     */
+    public void loadSources(LayerMaskingEffectDrawer drawer) {
+        final AssetManager assetManager = drawer.getAssetManager();
+        final Array<LayerMaskingEffect> effects = drawer.getEffects();
+        for (int i = 0; i < effects.size; i++) {
+            Array<LayerInfo> layers = effects.get(i).getLayerInfoArray();
+            for (int j = 0; j < layers.size; j++) {
+                loadSource(assetManager, layers.get(j).getTexture());
+                loadSource(assetManager, layers.get(j).getMaskTexture());
+            }
+        }
+    }
+
+    private void loadSource(AssetManager assetManager, Texture texture) {
+        if (texture == null || surfaces.containsKey(texture))
+            return;
+        String fileName = assetManager.getAssetFileName(texture);
+        if (fileName == null) {
+            Gdx.app.debug("LayerMaskingRasterizer", "Texture is not managed by asset manager - register it with setSource()");
+            return;
+        }
+        Pixmap pixmap = new Pixmap(assetManager.getFileHandleResolver().resolve(fileName));
+        setSource(texture, pixmap);
+        pixmap.dispose();
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Renders all active effects of the drawer. The world rectangle is taken from
+     * the projection matrix of the drawer sprite batch (2D orthographic projection).
+     */
+    public void render(LayerMaskingEffectDrawer drawer, Pixmap target) {
+        final Matrix4 projection = drawer.getSpriteBatch().getProjectionMatrix();
+        final float[] val = projection.val;
+        final float worldWidth = 2.0f / val[Matrix4.M00];
+        final float worldHeight = 2.0f / val[Matrix4.M11];
+        final float worldX = (-1.0f - val[Matrix4.M03]) / val[Matrix4.M00];
+        final float worldY = (-1.0f - val[Matrix4.M13]) / val[Matrix4.M11];
+        render(drawer.getEffects(), worldX, worldY, worldWidth, worldHeight, target);
+    }
+
+    /**
+     * Renders given effects into the target pixmap (which must be RGBA8888). Layers are
+     * blended over the current contents of the pixmap - clear it first if needed.
+     */
+    public void render(Array<LayerMaskingEffect> effects,
+                       final float worldX, final float worldY,
+                       final float worldWidth, final float worldHeight,
+                       Pixmap target) {
+        if (effects == null || target == null)
+            return;
+        if (target.getFormat() != Pixmap.Format.RGBA8888)
+            throw new RuntimeException("Target pixmap for LayerMaskingRasterizer must be RGBA8888!");
+        final int width = target.getWidth();
+        final int height = target.getHeight();
+        final float pixelsPerUnitX = width / worldWidth;
+        final float pixelsPerUnitY = height / worldHeight;
+
+        this.snapshots.clear();
+        for (int i = 0; i < effects.size; i++) {
+            LayerMaskingEffect effect = effects.get(i);
+            if (!effect.isActive())
+                continue;
+            Array<LayerInfo> layers = effect.getLayerInfoArray();
+            for (int j = 0; j < layers.size; j++) {
+                LayerInfo layerInfo = layers.get(j);
+                if (layerInfo.getTexture() == null || !layerInfo.visible)
+                    continue;
+                LayerSnapshot snapshot = snapshot(layerInfo);
+                if (snapshot.mask != null && layerInfo.isSdfMask()) {
+                    // mask texels per target pixel - same smoothing as LayerInfo.draw()
+                    final float quadPixels = layerInfo.size.x * layerInfo.getLayerScale() * pixelsPerUnitX;
+                    snapshot.sdfSmoothing = layerInfo.getSdfSmoothing(snapshot.mask.width / Math.max(1.0f, quadPixels));
+                }
+                // bounding box of the rotated quad in target pixels
+                final float extentX = Math.abs(snapshot.cos) * snapshot.halfWidth + Math.abs(snapshot.sin) * snapshot.halfHeight;
+                final float extentY = Math.abs(snapshot.sin) * snapshot.halfWidth + Math.abs(snapshot.cos) * snapshot.halfHeight;
+                snapshot.minX = (int) Math.floor((snapshot.centerX - extentX - worldX) * pixelsPerUnitX);
+                snapshot.maxX = (int) Math.ceil((snapshot.centerX + extentX - worldX) * pixelsPerUnitX);
+                snapshot.minY = (int) Math.floor(height - (snapshot.centerY + extentY - worldY) * pixelsPerUnitY);
+                snapshot.maxY = (int) Math.ceil(height - (snapshot.centerY - extentY - worldY) * pixelsPerUnitY);
+                this.snapshots.add(snapshot);
+            }
+        }
+
+        final int[] frame = new int[width * height];
+        final ByteBuffer pixels = target.getPixels();
+        for (int i = 0; i < frame.length; i++) {
+            final int base = i * 4;
+            frame[i] = ((pixels.get(base) & 0xff) << 24)
+                    | ((pixels.get(base + 1) & 0xff) << 16)
+                    | ((pixels.get(base + 2) & 0xff) << 8)
+                    | (pixels.get(base + 3) & 0xff);
+        }
+
+        final LayerSnapshot[] layers = this.snapshots.toArray(LayerSnapshot.class);
+        this.futures.clear();
+        for (int tileY = 0; tileY < height; tileY += tileSize) {
+            for (int tileX = 0; tileX < width; tileX += tileSize) {
+                final int x0 = tileX, y0 = tileY;
+                final int x1 = Math.min(tileX + tileSize, width);
+                final int y1 = Math.min(tileY + tileSize, height);
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        renderTile(layers, frame, width, height, x0, y0, x1, y1,
+                                worldX, worldY, worldWidth, worldHeight);
+                        return null;
+                    }
+                }));
+            }
+        }
+        try {
+            for (int i = 0; i < futures.size; i++)
+                futures.get(i).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("LayerMaskingRasterizer interrupted!", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("LayerMaskingRasterizer tile failed!", e.getCause());
+        } finally {
+            this.futures.clear();
+        }
+
+        for (int i = 0; i < frame.length; i++) {
+            final int base = i * 4;
+            final int rgba = frame[i];
+            pixels.put(base, (byte) (rgba >>> 24));
+            pixels.put(base + 1, (byte) (rgba >>> 16));
+            pixels.put(base + 2, (byte) (rgba >>> 8));
+            pixels.put(base + 3, (byte) rgba);
+        }
+        this.snapshots.clear();
+    } // void render(...)
+
+    //-------------------------------------------------------------------------
+
+    private Surface getSurface(Texture texture) {
+        if (texture == null)
+            return null;
+        Surface surface = surfaces.get(texture);
+        if (surface == null)
+            throw new RuntimeException("No source pixmap registered for texture: " + texture);
+        return surface;
+    }
+
+    private LayerSnapshot snapshot(LayerInfo layerInfo) {
+        LayerSnapshot snapshot = new LayerSnapshot();
+        final float layerScale = layerInfo.getLayerScale();
+        layerInfo.getRealPosition(tmpVec);
+        snapshot.halfWidth = layerInfo.size.x * layerScale / 2.0f;
+        snapshot.halfHeight = layerInfo.size.y * layerScale / 2.0f;
+        snapshot.centerX = tmpVec.x + snapshot.halfWidth;
+        snapshot.centerY = tmpVec.y + snapshot.halfHeight;
+        // same lookup tables as the SpriteBatch uses for vertex rotation
+        snapshot.cos = MathUtils.cosDeg(layerInfo.rotation);
+        snapshot.sin = MathUtils.sinDeg(layerInfo.rotation);
+        snapshot.texture = getSurface(layerInfo.getTexture());
+        snapshot.blendMode = layerInfo.blendMode;
+        if (layerInfo.proceduralMask != null)
+            snapshot.procedural = layerInfo.proceduralMask.pack(new float[ProceduralMask.PACKED_SIZE]);
+        else
+            snapshot.mask = getSurface(layerInfo.getMaskTexture());
+        if (snapshot.mask != null || snapshot.procedural != null) {
+            layerInfo.getMaskOffset(tmpVec);
+            snapshot.maskScale = layerInfo.getMaskScale();
+            snapshot.maskOffsetX = tmpVec.x;
+            snapshot.maskOffsetY = tmpVec.y;
+            snapshot.maskChannel = MathUtils.clamp(layerInfo.maskChannel, 0, 3);
+        } else {
+            snapshot.maskScale = 1.0f;
+            snapshot.maskOffsetX = 0.0f;
+            snapshot.maskOffsetY = 0.0f;
+        }
+        return snapshot;
+    }
+
+    private static void renderTile(LayerSnapshot[] layers, int[] frame,
+                                   int width, int height,
+                                   int x0, int y0, int x1, int y1,
+                                   float worldX, float worldY,
+                                   float worldWidth, float worldHeight) {
+        final float[] color = new float[4];
+        final float[] mask = new float[4];
+        for (int l = 0; l < layers.length; l++) {
+            final LayerSnapshot layer = layers[l];
+            if (layer.maxX < x0 || layer.minX >= x1 || layer.maxY < y0 || layer.minY >= y1)
+                continue;
+            final float invWidth = 1.0f / (layer.halfWidth * 2.0f);
+            final float invHeight = 1.0f / (layer.halfHeight * 2.0f);
+            for (int py = Math.max(y0, layer.minY); py < Math.min(y1, layer.maxY + 1); py++) {
+                // pixel centers - row 0 of the pixmap is the top of the screen
+                final float wy = worldY + (height - py - 0.5f) * worldHeight / height;
+                for (int px = Math.max(x0, layer.minX); px < Math.min(x1, layer.maxX + 1); px++) {
+                    final float wx = worldX + (px + 0.5f) * worldWidth / width;
+                    final float dx = wx - layer.centerX;
+                    final float dy = wy - layer.centerY;
+                    // inverse rotation into the local space of the quad
+                    final float lx = dx * layer.cos + dy * layer.sin;
+                    final float ly = -dx * layer.sin + dy * layer.cos;
+                    if (lx < -layer.halfWidth || lx >= layer.halfWidth
+                            || ly < -layer.halfHeight || ly >= layer.halfHeight)
+                        continue;
+                    // v_texCoords - SpriteBatch maps v=0 to the top edge of the quad
+                    final float u = (lx + layer.halfWidth) * invWidth;
+                    final float v = 1.0f - (ly + layer.halfHeight) * invHeight;
+                    // newCoords = -1.0 * (u_maskScale - 1.0)/2.0 + u_maskScale * v_texCoords + u_maskOffset
+                    final float s = layer.maskScale;
+                    final float nu = -1.0f * (s - 1.0f) / 2.0f + s * u + layer.maskOffsetX;
+                    final float nv = -1.0f * (s - 1.0f) / 2.0f + s * v + layer.maskOffsetY;
+                    sample(layer.texture, nu, nv, color);
+                    float alpha = color[3];
+                    if (layer.blendMode == LayerInfo.BlendMode.OPAQUE) {
+                        // premultiplied color (over black) with alpha 1 - same as the shaders
+                        color[0] *= alpha;
+                        color[1] *= alpha;
+                        color[2] *= alpha;
+                        alpha = 1.0f;
+                    }
+                    if (layer.procedural != null) {
+                        alpha *= ProceduralMask.evaluate(layer.procedural, u, v);
+                    } else if (layer.mask != null) {
+                        sample(layer.mask, u, v, mask);
+                        if (layer.sdfSmoothing > 0.0f)
+                            alpha *= smoothstep(0.5f - layer.sdfSmoothing, 0.5f + layer.sdfSmoothing, mask[3]);
+                        else
+                            alpha *= mask[layer.maskChannel];
+                    }
+                    // color GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA (additive GL_SRC_ALPHA, GL_ONE),
+                    // alpha GL_ONE, GL_ONE_MINUS_SRC_ALPHA (additive keeps it) - LayerRenderContext
+                    final int index = py * width + px;
+                    final int dst = frame[index];
+                    final boolean additive = layer.blendMode == LayerInfo.BlendMode.ADDITIVE;
+                    final float invAlpha = additive ? 1.0f : 1.0f - alpha;
+                    final int r = quantize(color[0] * alpha + ((dst >>> 24) & 0xff) / 255.0f * invAlpha);
+                    final int g = quantize(color[1] * alpha + ((dst >>> 16) & 0xff) / 255.0f * invAlpha);
+                    final int b = quantize(color[2] * alpha + ((dst >>> 8) & 0xff) / 255.0f * invAlpha);
+                    final int a = additive ? (dst & 0xff) : quantize(alpha + (dst & 0xff) / 255.0f * invAlpha);
+                    frame[index] = (r << 24) | (g << 16) | (b << 8) | a;
+                }
+            }
+        }
+    } // void renderTile(...)
+
+    //-------------------------------------------------------------------------
+
+    /* GLSL smoothstep() */
+    private static float smoothstep(float edge0, float edge1, float x) {
+        float t = (x - edge0) / (edge1 - edge0);
+        t = t < 0.0f ? 0.0f : (t > 1.0f ? 1.0f : t);
+        return t * t * (3.0f - 2.0f * t);
+    }
+
+    private static int quantize(float value) {
+        int result = (int) (value * 255.0f + 0.5f);
+        if (result < 0)
+            return 0;
+        if (result > 255)
+            return 255;
+        return result;
+    }
+
+    private static int wrap(Texture.TextureWrap wrap, int index, int size) {
+        if (wrap == Texture.TextureWrap.Repeat) {
+            index = index % size;
+            return index < 0 ? index + size : index;
+        } else if (wrap == Texture.TextureWrap.MirroredRepeat) {
+            final int period = size * 2;
+            index = index % period;
+            if (index < 0)
+                index += period;
+            return index >= size ? period - 1 - index : index;
+        }
+        // ClampToEdge
+        return index < 0 ? 0 : (index >= size ? size - 1 : index);
+    }
+
+    private static void fetch(Surface surface, int x, int y, float weight, float[] out) {
+        final int rgba = surface.pixels[y * surface.width + x];
+        out[0] += ((rgba >>> 24) & 0xff) / 255.0f * weight;
+        out[1] += ((rgba >>> 16) & 0xff) / 255.0f * weight;
+        out[2] += ((rgba >>> 8) & 0xff) / 255.0f * weight;
+        out[3] += (rgba & 0xff) / 255.0f * weight;
+    }
+
+    /**
+     * Samples the surface like texture2D() does for the base level -
+     * GL_LINEAR or GL_NEAREST with the texture wrap modes.
+     */
+    static void sample(Surface surface, float u, float v, float[] out) {
+        out[0] = out[1] = out[2] = out[3] = 0.0f;
+        if (!surface.linear) {
+            final int x = wrap(surface.wrapU, (int) Math.floor(u * surface.width), surface.width);
+            final int y = wrap(surface.wrapV, (int) Math.floor(v * surface.height), surface.height);
+            fetch(surface, x, y, 1.0f, out);
+            return;
+        }
+        final float tx = u * surface.width - 0.5f;
+        final float ty = v * surface.height - 0.5f;
+        final int fx = (int) Math.floor(tx);
+        final int fy = (int) Math.floor(ty);
+        final float ax = tx - fx;
+        final float ay = ty - fy;
+        final int x0 = wrap(surface.wrapU, fx, surface.width);
+        final int x1 = wrap(surface.wrapU, fx + 1, surface.width);
+        final int y0 = wrap(surface.wrapV, fy, surface.height);
+        final int y1 = wrap(surface.wrapV, fy + 1, surface.height);
+        fetch(surface, x0, y0, (1.0f - ax) * (1.0f - ay), out);
+        fetch(surface, x1, y0, ax * (1.0f - ay), out);
+        fetch(surface, x0, y1, (1.0f - ax) * ay, out);
+        fetch(surface, x1, y1, ax * ay, out);
+    } // void sample(...)
+
+    //-------------------------------------------------------------------------
+} // class LayerMaskingRasterizer
@@ -0,0 +1,260 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.assets.AssetManager;
+import com.badlogic.gdx.assets.loaders.TextureLoader;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ObjectMap;
+
+import java.util.Comparator;
+
+/**
+ * Page textures of tiled layers (TiledLayer) kept in GPU memory - shared by all tiled
+ * layers. Pages are requested every frame they are needed, missing ones are queued
+ * in the asset manager (with ParallelAssetManager decoded on the workers, uploaded
+ * within its frame budget). Pages which finished loading become resident in update()
+ * even when they were not requested since (scrolled away while loading). Above the
+ * capacity the least recently used pages are unloaded in update() - pages requested
+ * in the current frame are never evicted.
+ */
+public class LayerPageCache {
+    public static final String TAG = "LayerPageCache";
+
+    /* Number of resident pages used when nothing else is specified */
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private static class Page {
+        final String path;
+        /* Frame of the last request */
+        int lastUsed;
+        /* Texture when loaded (null - queued) */
+        Texture texture;
+
+        Page(String path) {
+            this.path = path;
+            this.lastUsed = 0;
+            this.texture = null;
+        }
+    }
+
+    private AssetManager assetManager;
+    /* Max number of resident pages */
+    private int capacity;
+    /* Loading parameters of the pages */
+    private TextureLoader.TextureParameter params;
+    /* Known pages by asset path (queued or resident) */
+    private ObjectMap<String, Page> pages;
+    /* Pages queued in the asset manager, not resident yet */
+    private Array<Page> loading;
+    /* Resident pages (eviction candidates) */
+    private Array<Page> resident;
+    private Comparator<Page> lruComparator;
+    /* Current frame (advanced in update()) */
+    private int frame;
+    /* Was too small capacity reported? */
+    private boolean capacityWarned;
+    /* Statistics */
+    private int requestCount;
+    private int missCount;
+    private int loadCount;
+    private int evictionCount;
+    private int maxResident;
+
+    //-------------------------------------------------------------------------
+
+    public LayerPageCache(AssetManager assetManager) {
+        this(assetManager, DEFAULT_CAPACITY);
+    }
+
+    public LayerPageCache(AssetManager assetManager, int capacity) {
+        if (assetManager == null)
+            throw new RuntimeException("AssetManager passed into constructor cannot be NULL!");
+        if (capacity < 1)
+            throw new RuntimeException("Invalid page cache capacity: " + capacity);
+        this.assetManager = assetManager;
+        this.capacity = capacity;
+        // borders take care of the seams - clamp, no mipmaps
+        this.params = new TextureLoader.TextureParameter();
+        this.params.minFilter = Texture.TextureFilter.Linear;
+        this.params.magFilter = Texture.TextureFilter.Linear;
+        this.params.wrapU = Texture.TextureWrap.ClampToEdge;
+        this.params.wrapV = Texture.TextureWrap.ClampToEdge;
+        this.pages = new ObjectMap<String, Page>();
+        this.loading = new Array<Page>(Page.class);
+        this.resident = new Array<Page>(Page.class);
+        this.lruComparator = new Comparator<Page>() {
+            @Override
+            public int compare(Page a, Page b) {
+                return a.lastUsed < b.lastUsed ? -1 : (a.lastUsed > b.lastUsed ? 1 : 0);
+            }
+        };
+        this.frame = 1;
+        this.capacityWarned = false;
+        resetStats();
+    }
+
+    /**
+     * Unloads all pages (ones still queued stay in the asset manager).
+     */
+    public void dispose() {
+        for (int i = 0; i < resident.size; i++)
+            unload(resident.get(i));
+        for (int i = 0; i < loading.size; i++)
+            unload(loading.get(i));
+        resident.clear();
+        loading.clear();
+        pages.clear();
+    }
+
+    //-------------------------------------------------------------------------
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public TextureLoader.TextureParameter getParams() {
+        return params;
+    }
+
+    public int getResidentCount() {
+        return resident.size;
+    }
+
+    /**
+     * Pages queued in the asset manager (not resident yet).
+     */
+    public int getLoadingCount() {
+        return loading.size;
+    }
+
+    public int getMaxResidentCount() {
+        return maxResident;
+    }
+
+    public int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Requests of pages which were not loaded yet (drawn as holes).
+     */
+    public int getMissCount() {
+        return missCount;
+    }
+
+    public int getLoadCount() {
+        return loadCount;
+    }
+
+    public int getEvictionCount() {
+        return evictionCount;
+    }
+
+    public void resetStats() {
+        requestCount = 0;
+        missCount = 0;
+        loadCount = 0;
+        evictionCount = 0;
+        maxResident = resident.size;
+    }
+
+    //-------------------------------------------------------------------------
+
+    private Page request(String path) {
+        Page page = pages.get(path);
+        if (page == null) {
+            page = new Page(path);
+            pages.put(path, page);
+            if (assetManager instanceof ParallelAssetManager)
+                ((ParallelAssetManager) assetManager).loadTexture(path, params);
+            else
+                assetManager.load(path, Texture.class, params);
+            loading.add(page);
+            loadCount++;
+        }
+        page.lastUsed = frame;
+        if (page.texture == null && assetManager.isLoaded(path, Texture.class)) {
+            loading.removeValue(page, true);
+            makeResident(page);
+        }
+        return page;
+    }
+
+    private void makeResident(Page page) {
+        page.texture = assetManager.get(page.path, Texture.class);
+        resident.add(page);
+        maxResident = Math.max(maxResident, resident.size);
+    }
+
+    /**
+     * Page needed for drawing - returns null while it is loading.
+     */
+    public Texture get(TiledImage image, int column, int row) {
+        final Page page = request(image.getPagePath(column, row));
+        requestCount++;
+        if (page.texture == null)
+            missCount++;
+        return page.texture;
+    }
+
+    /**
+     * Page needed soon - loaded (and kept) like a drawn one, not counted as a miss.
+     */
+    public void prefetch(TiledImage image, int column, int row) {
+        request(image.getPagePath(column, row));
+    }
+
+    public boolean isResident(TiledImage image, int column, int row) {
+        final Page page = pages.get(image.getPagePath(column, row));
+        return page != null && page.texture != null;
+    }
+
+    private void unload(Page page) {
+        if (assetManager.isLoaded(page.path, Texture.class))
+            assetManager.unload(page.path);
+        page.texture = null;
+    }
+
+    /**
+     * Evicts least recently used pages above the capacity and starts the next frame -
+     * call once per frame after drawing.
+     */
+    public void update() {
+        // loaded since the last request - evicted like any other page
+        for (int i = loading.size - 1; i >= 0; i--) {
+            final Page page = loading.get(i);
+            if (assetManager.isLoaded(page.path, Texture.class)) {
+                loading.removeIndex(i);
+                makeResident(page);
+            }
+        }
+        if (resident.size > capacity) {
+            resident.sort(lruComparator);
+            int evict = resident.size - capacity;
+            int i = 0;
+            while (evict > 0 && resident.get(i).lastUsed < frame) {
+                final Page page = resident.get(i);
+                unload(page);
+                pages.remove(page.path);
+                evictionCount++;
+                evict--;
+                i++;
+            }
+            if (i > 0)
+                resident.removeRange(0, i - 1);
+            if (evict > 0 && !capacityWarned) {
+                Gdx.app.debug(TAG, "Capacity " + capacity + " too small - "
+                        + resident.size + " pages needed in one frame");
+                capacityWarned = true;
+            }
+        }
+        frame++;
+    } // void update()
+
+    //-------------------------------------------------------------------------
+} // class LayerPageCache
@@ -0,0 +1,84 @@
+package com.flexigame.fg.gfx;
+
+/**
+ * Animatable scalar properties of LayerInfo. Used by timeline tracks (and anything
+ * else that drives layers with plain float values).
+ */
+public enum LayerProperty {
+    POSITION_X,
+    POSITION_Y,
+    SIZE_X,
+    SIZE_Y,
+    /* Rotation in degrees */
+    ROTATION,
+    /* Base scale - overwritten by pulsing when shouldPulse is set */
+    SCALE,
+    /* Offset in screen pixels (see LayerInfo.setOffset) */
+    OFFSET_X,
+    OFFSET_Y,
+    /* Visible when value >= 0.5 */
+    VISIBLE,
+    /* Procedural mask parameters (ignored when layer has no procedural mask) */
+    MASK_RADIUS,
+    MASK_WIDTH,
+    MASK_PHASE,
+    MASK_ANGLE;
+
+    public void apply(LayerInfo layerInfo, float value) {
+        switch (this) {
+            case POSITION_X:
+                layerInfo.position.x = value;
+                layerInfo.markDirty(LayerInfo.DIRTY_POSITION);
+                break;
+            case POSITION_Y:
+                layerInfo.position.y = value;
+                layerInfo.markDirty(LayerInfo.DIRTY_POSITION);
+                break;
+            case SIZE_X:
+                layerInfo.size.x = value;
+                layerInfo.markDirty(LayerInfo.DIRTY_SIZE);
+                break;
+            case SIZE_Y:
+                layerInfo.size.y = value;
+                layerInfo.markDirty(LayerInfo.DIRTY_SIZE);
+                break;
+            case ROTATION:
+                layerInfo.rotation = value;
+                layerInfo.markDirty(LayerInfo.DIRTY_ROTATION);
+                break;
+            case SCALE:
+                layerInfo.setScale(value);
+                break;
+            case OFFSET_X:
+                layerInfo.setOffsetX(value);
+                break;
+            case OFFSET_Y:
+                layerInfo.setOffsetY(value);
+                break;
+            case VISIBLE:
+                layerInfo.visible = value >= 0.5f;
+                break;
+            case MASK_RADIUS:
+                if (layerInfo.proceduralMask != null)
+                    layerInfo.proceduralMask.radius = value;
+                break;
+            case MASK_WIDTH:
+                if (layerInfo.proceduralMask != null)
+                    layerInfo.proceduralMask.width = value;
+                break;
+            case MASK_PHASE:
+                if (layerInfo.proceduralMask != null)
+                    layerInfo.proceduralMask.phase = value;
+                break;
+            case MASK_ANGLE:
+                if (layerInfo.proceduralMask != null)
+                    layerInfo.proceduralMask.angle = value;
+                break;
+        }
+    }
+
+    /* Discrete properties jump between keys instead of interpolating */
+    public boolean isDiscrete() {
+        return this == VISIBLE;
+    }
+} // enum LayerProperty
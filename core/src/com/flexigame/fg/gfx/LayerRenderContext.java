@@ -0,0 +1,443 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.utils.Array;
+
+import java.util.Comparator;
+
+/**
+ * GL resources and state shared by layer effect drawers - one sprite batch, the
+ * generic masking program with its specialized variants (LayerShaderCache), the
+ * instanced renderer and the tracked texture bindings. Several drawers (background,
+ * HUD...) created with the same context compile the shaders and allocate the vertex
+ * buffers only once.
+ *
+ * Drawers submit() themselves every frame, render() draws them sorted by their order
+ * (lower first) - drawers which only need the sprite batch path are merged into
+ * a single batch run. Drawers in a transition, with lowered resolution or on the
+ * instanced path render on their own at their place in the order.
+ *
+ * Texture unit 0 belongs to the sprite batch (it binds layer textures itself), units
+ * from 1 are tracked here - binding the texture which is already bound is skipped.
+ *
+ * Blending of the layers is tracked the same way - the sprite batch leaves the blend
+ * function alone while layers are drawn. With straight alpha (default) additive layers
+ * need their own blend function, so every change between additive and other layers
+ * is a state change. With premultiplied alpha (layer textures premultiplied when
+ * loaded - ParallelAssetManager.addPremultipliedPrefix()) the shaders multiply all
+ * channels by the mask and every blend mode is drawn with ONE, ONE_MINUS_SRC_ALPHA:
+ * the blend function is set once per batch run and layer modes are just a uniform.
+ */
+public class LayerRenderContext {
+    public static final String TAG = "LayerRenderContext";
+
+    /* Number of tracked texture units */
+    public static final int MAX_UNITS = 8;
+
+    /* Tracked blend functions */
+    private static final int BLEND_UNKNOWN = -1;
+    private static final int BLEND_STRAIGHT = 0;
+    private static final int BLEND_ADDITIVE = 1;
+    private static final int BLEND_PREMULTIPLIED = 2;
+
+    private SpriteBatch spriteBatch;
+    private ShaderProgram customShaderProgram;
+    private LayerShaderCache shaderCache;
+    private LayerInstancedRenderer instancedRenderer;
+    private String vertexShader;
+    private String fragmentShader;
+    /* Drawers submitted for the current frame */
+    private Array<LayerMaskingEffectDrawer> submitted;
+    private Comparator<LayerMaskingEffectDrawer> orderComparator;
+    /* Tracked binding state (-1 - unknown) */
+    private int activeUnit;
+    private int[] boundTextures;
+    /* Are layer textures premultiplied? */
+    private boolean premultipliedAlpha;
+    /* Tracked blend function (BLEND_*) */
+    private int blendState;
+    /* Is a merged batch run open? */
+    private boolean batching;
+    /* Statistics of the last render() */
+    private int bindCount;
+    private int skippedBindCount;
+    private int batchRuns;
+    private int blendSwitchCount;
+
+    //-------------------------------------------------------------------------
+
+    public LayerRenderContext() {
+        this.spriteBatch = new SpriteBatch(); // important!
+        this.submitted = new Array<LayerMaskingEffectDrawer>();
+        this.boundTextures = new int[MAX_UNITS];
+        this.premultipliedAlpha = false;
+        this.orderComparator = new Comparator<LayerMaskingEffectDrawer>() {
+            @Override
+            public int compare(LayerMaskingEffectDrawer a, LayerMaskingEffectDrawer b) {
+                return a.order < b.order ? -1 : (a.order > b.order ? 1 : 0);
+            }
+        };
+        invalidate();
+
+        // Create custom shader program - important!
+        this.vertexShader = "attribute vec4 " + ShaderProgram.POSITION_ATTRIBUTE + ";\n"
+                + "attribute vec4 " + ShaderProgram.COLOR_ATTRIBUTE + ";\n"
+                + "attribute vec2 " + ShaderProgram.TEXCOORD_ATTRIBUTE + "0;\n"
+                + "uniform mat4 u_projTrans;\n"
+                + "uniform float u_depth;\n"
+                + "varying vec4 v_color;\n"
+                + "varying vec2 v_texCoords;\n"
+                + "\n"
+                + "void main()\n"
+                + "{\n"
+                + "   v_color = " + ShaderProgram.COLOR_ATTRIBUTE + ";\n"
+                + "   v_color.a = v_color.a * (255.0/254.0);\n"
+                + "   v_texCoords = " + ShaderProgram.TEXCOORD_ATTRIBUTE + "0;\n"
+                + "   gl_Position =  u_projTrans * " + ShaderProgram.POSITION_ATTRIBUTE + ";\n"
+                + "   gl_Position.z = u_depth * gl_Position.w;\n"
+                + "}\n";
+
+        // -1 * (sc - 1.0)/2.0 + (sc) * uv
+        // " vec2 newCoords = -1.0 * (u_maskScale - 1.0)/2.0 + (u_maskScale * v_texCoords);\n" +
+
+        this.fragmentShader = "#ifdef GL_ES\n" +
+                "precision mediump float;\n" +
+                "#endif\n" +
+                "varying vec4 v_color;\n" +
+                "varying vec2 v_texCoords;\n" +
+                "uniform sampler2D u_texture;\n" +
+                "uniform sampler2D u_texture2;\n" +
+                "uniform float u_maskScale;\n" +
+                "uniform float u_useMask;\n" +
+                "uniform vec2 u_maskOffset;\n" +
+                "uniform vec4 u_maskChannel;\n" +
+                "uniform float u_useProcedural;\n" +
+                "uniform vec2 u_sdfParams;\n" +
+                "uniform vec4 u_maskRect;\n" +
+                "uniform vec2 u_blend;\n" +
+                "uniform float u_premultiplied;\n" +
+                ProceduralMask.GLSL_FUNCTION +
+                "void main()                                  \n" +
+                "{                                            \n" +
+                " vec2 newCoords = -1.0 * (u_maskScale - 1.0)/2.0 + (u_maskScale * v_texCoords) + u_maskOffset;\n" +
+                " vec2 maskCoords = u_maskRect.xy + u_maskRect.zw * v_texCoords;\n" +
+                " vec4 mask = vec4(1.0, 1.0, 1.0, 1.0); \nif(u_useMask > 0.5) \n\tmask = texture2D(u_texture2, maskCoords);\n" +
+                " vec4 color = v_color * texture2D(u_texture, newCoords);\n" +
+                " float maskValue = dot(mask, u_maskChannel);\n" +
+                " if(u_sdfParams.x > 0.5)\n\tmaskValue = smoothstep(0.5 - u_sdfParams.y, 0.5 + u_sdfParams.y, mask.a);\n" +
+                " if(u_useProcedural > 0.5)\n\tmaskValue = proceduralMask(maskCoords);\n" +
+                " float alpha = mix(1.0, color.a, u_blend.x);\n" +
+                " if(u_premultiplied > 0.5)\n\tgl_FragColor = vec4(color.rgb, alpha * u_blend.y) * maskValue;\n" +
+                " else\n\tgl_FragColor = vec4(color.rgb * mix(color.a, 1.0, u_blend.x), alpha * maskValue);\n" +
+                "}";
+        customShaderProgram = new ShaderProgram(vertexShader, fragmentShader);
+
+        if (!customShaderProgram.isCompiled()) {
+            Gdx.app.debug(TAG, "Custom shader did not compile:\n " + customShaderProgram.getLog());
+        } else {
+            Gdx.app.debug(TAG, "Custom shader compiled successfully. " + customShaderProgram.getLog());
+        }
+        setupProgram();
+
+        // Specialized variants - generic program above stays as the fallback
+        this.shaderCache = new LayerShaderCache(vertexShader);
+        // Instanced path (GL30 only) - falls back to the sprite batch on GL20
+        this.instancedRenderer = new LayerInstancedRenderer();
+    } // LayerRenderContext()
+
+    /**
+     * Sampler units and masking defaults of the generic program.
+     */
+    private void setupProgram() {
+        if (this.customShaderProgram.isCompiled()) {
+            customShaderProgram.begin();
+            customShaderProgram.setUniformi("u_texture", 0);
+            customShaderProgram.setUniformi("u_texture2", 1);
+            customShaderProgram.setUniformf("u_useMask", 1.0f);
+            customShaderProgram.setUniformf("u_maskScale", 1.0f);
+            customShaderProgram.setUniformf("u_maskOffset", 0.0f, 0.0f);
+            customShaderProgram.setUniformf("u_maskChannel", 1.0f, 0.0f, 0.0f, 0.0f);
+            customShaderProgram.setUniformf("u_useProcedural", 0.0f);
+            customShaderProgram.setUniformf("u_sdfParams", 0.0f, 0.0f);
+            customShaderProgram.setUniformf("u_maskRect", 0.0f, 0.0f, 1.0f, 1.0f); // whole quad
+            customShaderProgram.setUniformf("u_blend", 1.0f, 1.0f);
+            customShaderProgram.setUniformf("u_premultiplied", premultipliedAlpha ? 1.0f : 0.0f);
+            customShaderProgram.end();
+            this.spriteBatch.setShader(customShaderProgram); // use custom shader !
+        }
+    }
+
+    public void dispose() {
+        this.spriteBatch.setShader(null);
+        this.spriteBatch.dispose();
+        this.customShaderProgram.dispose();
+        this.shaderCache.dispose();
+        this.instancedRenderer.dispose();
+        this.submitted.clear();
+    }
+
+    //-------------------------------------------------------------------------
+
+    public SpriteBatch getSpriteBatch() {
+        return spriteBatch;
+    }
+
+    public ShaderProgram getCustomShaderProgram() {
+        return customShaderProgram;
+    }
+
+    public LayerShaderCache getShaderCache() {
+        return shaderCache;
+    }
+
+    public LayerInstancedRenderer getInstancedRenderer() {
+        return instancedRenderer;
+    }
+
+    public String getVertexShader() {
+        return vertexShader;
+    }
+
+    public String getFragmentShader() {
+        return fragmentShader;
+    }
+
+    public int getBindCount() {
+        return bindCount;
+    }
+
+    public int getSkippedBindCount() {
+        return skippedBindCount;
+    }
+
+    public int getBatchRunCount() {
+        return batchRuns;
+    }
+
+    /**
+     * Number of blend function changes during the last render().
+     */
+    public int getBlendSwitchCount() {
+        return blendSwitchCount;
+    }
+
+    public boolean isPremultipliedAlpha() {
+        return premultipliedAlpha;
+    }
+
+    /**
+     * Switches the layer pipeline to premultiplied alpha - layer textures (not masks)
+     * need to be premultiplied. Call outside of render().
+     */
+    public void setPremultipliedAlpha(boolean premultipliedAlpha) {
+        this.premultipliedAlpha = premultipliedAlpha;
+        this.blendState = BLEND_UNKNOWN;
+        if (customShaderProgram.isCompiled()) {
+            customShaderProgram.begin();
+            customShaderProgram.setUniformf("u_premultiplied", premultipliedAlpha ? 1.0f : 0.0f);
+            customShaderProgram.end();
+        }
+        instancedRenderer.setPremultipliedAlpha(premultipliedAlpha);
+    }
+
+    /**
+     * Shader features every layer program needs in the current pipeline.
+     */
+    public int getPipelineFeatures() {
+        return premultipliedAlpha ? LayerShaderCache.FEATURE_PREMULTIPLIED : 0;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Forgets the tracked bindings - call after GL state was changed outside of the
+     * context (render targets, other renderers, context loss).
+     */
+    public void invalidate() {
+        activeUnit = -1;
+        blendState = BLEND_UNKNOWN;
+        for (int i = 0; i < boundTextures.length; i++)
+            boundTextures[i] = -1;
+    }
+
+    /**
+     * Re-establishes the state lost with the GL context - libgdx recompiles managed
+     * programs, but their uniforms (sampler units, masking defaults) start from zero.
+     * Shader variants get their samplers back when used next. The instanced path
+     * is restored separately (LayerInstancedRenderer.restore()).
+     */
+    public void restore() {
+        invalidate();
+        setupProgram();
+        shaderCache.invalidate();
+    }
+
+    public void setActiveUnit(int unit) {
+        if (activeUnit == unit)
+            return;
+        Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0 + unit);
+        activeUnit = unit;
+    }
+
+    /**
+     * Binds texture on the unit (1 or above) and makes unit 0 active again, so the
+     * sprite batch binds its textures where it expects.
+     */
+    public void bindTexture(Texture texture, int unit) {
+        if (unit <= 0 || unit >= MAX_UNITS)
+            throw new RuntimeException("Texture unit out of tracked range: " + unit);
+        final int handle = texture.getTextureObjectHandle();
+        if (boundTextures[unit] == handle) {
+            skippedBindCount++;
+        } else {
+            setActiveUnit(unit);
+            Gdx.gl.glBindTexture(texture.glTarget, handle);
+            boundTextures[unit] = handle;
+            bindCount++;
+        }
+        setActiveUnit(0);
+    }
+
+    /**
+     * Makes the sprite batch leave the blend function to applyBlendMode() - call
+     * before drawing layers.
+     */
+    void beginBlending() {
+        spriteBatch.setBlendFunction(-1, -1);
+        blendState = BLEND_UNKNOWN;
+    }
+
+    /**
+     * Gives the blend function back to the sprite batch (default blending).
+     */
+    void endBlending() {
+        spriteBatch.setBlendFunction(GL20.GL_SRC_ALPHA, GL20.GL_ONE_MINUS_SRC_ALPHA);
+        blendState = BLEND_UNKNOWN;
+    }
+
+    /**
+     * Sets the blend function for a layer drawn with the sprite batch - skipped when
+     * it is already set. Alpha is blended separately, so offscreen targets end up
+     * with premultiplied color and proper alpha in both pipelines.
+     */
+    void applyBlendMode(LayerInfo.BlendMode mode) {
+        final int state = getBlendState(premultipliedAlpha, mode);
+        if (state == blendState)
+            return;
+        spriteBatch.flush(); // drawn with the previous function
+        setBlendFunction(state);
+        blendState = state;
+        blendSwitchCount++;
+    } // void applyBlendMode(...)
+
+    private static int getBlendState(boolean premultipliedAlpha, LayerInfo.BlendMode mode) {
+        if (premultipliedAlpha)
+            return BLEND_PREMULTIPLIED;
+        if (mode == LayerInfo.BlendMode.ADDITIVE)
+            return BLEND_ADDITIVE;
+        return BLEND_STRAIGHT;
+    }
+
+    private static void setBlendFunction(int state) {
+        if (state == BLEND_PREMULTIPLIED)
+            Gdx.gl.glBlendFunc(GL20.GL_ONE, GL20.GL_ONE_MINUS_SRC_ALPHA);
+        else if (state == BLEND_ADDITIVE)
+            Gdx.gl.glBlendFuncSeparate(GL20.GL_SRC_ALPHA, GL20.GL_ONE, GL20.GL_ZERO, GL20.GL_ONE);
+        else
+            Gdx.gl.glBlendFuncSeparate(GL20.GL_SRC_ALPHA, GL20.GL_ONE_MINUS_SRC_ALPHA,
+                    GL20.GL_ONE, GL20.GL_ONE_MINUS_SRC_ALPHA);
+    }
+
+    /**
+     * Sets the blend function of the mode without tracking - for renderers drawing
+     * layers outside of the sprite batch (LayerInstancedRenderer), so both paths
+     * blend the same way.
+     */
+    static void setBlendFunction(boolean premultipliedAlpha, LayerInfo.BlendMode mode) {
+        setBlendFunction(getBlendState(premultipliedAlpha, mode));
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Queues the drawer for the next render() (once per frame).
+     */
+    public void submit(LayerMaskingEffectDrawer drawer) {
+        if (drawer.getRenderContext() != this)
+            throw new RuntimeException("Drawer submitted to a render context it does not use!");
+        if (!submitted.contains(drawer, true))
+            submitted.add(drawer);
+    }
+
+    public int getSubmittedCount() {
+        return submitted.size;
+    }
+
+    private void beginBatch() {
+        invalidate();
+        beginBlending();
+        spriteBatch.begin();
+        spriteBatch.setColor(Color.WHITE);
+        batching = true;
+        batchRuns++;
+    }
+
+    private void endBatch() {
+        spriteBatch.end();
+        endBlending();
+        resetProgram();
+        batching = false;
+        invalidate();
+    }
+
+    /**
+     * Generic program back to no masking (used by full screen quads).
+     */
+    void resetProgram() {
+        spriteBatch.setShader(customShaderProgram);
+        customShaderProgram.begin();
+        customShaderProgram.setUniformf("u_useMask", 0.0f); // no masking
+        customShaderProgram.setUniformf("u_maskScale", 1.0f);
+        customShaderProgram.setUniformf("u_maskOffset", 0.0f, 0.0f);
+        customShaderProgram.setUniformf("u_useProcedural", 0.0f);
+        customShaderProgram.setUniformf("u_sdfParams", 0.0f, 0.0f);
+        customShaderProgram.setUniformf("u_blend", 1.0f, 1.0f);
+        customShaderProgram.end();
+    }
+
+    /**
+     * Draws all submitted drawers sorted by order - consecutive drawers on the sprite
+     * batch path share one batch run.
+     */
+    public void render() {
+        bindCount = 0;
+        skippedBindCount = 0;
+        batchRuns = 0;
+        blendSwitchCount = 0;
+        shaderCache.resetSwitchCount();
+        submitted.sort(orderComparator); // stable - same order keeps submit order
+        for (int i = 0; i < submitted.size; i++) {
+            LayerMaskingEffectDrawer drawer = submitted.get(i);
+            if (drawer.canDrawMerged()) {
+                if (!batching)
+                    beginBatch();
+                drawer.drawMerged();
+            } else {
+                if (batching)
+                    endBatch();
+                drawer.draw();
+                invalidate();
+            }
+        }
+        if (batching)
+            endBatch();
+        submitted.clear();
+    } // void render()
+
+    //-------------------------------------------------------------------------
+} // class LayerRenderContext
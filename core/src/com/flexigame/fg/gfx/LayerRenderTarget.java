@@ -0,0 +1,113 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.glutils.FrameBuffer;
+
+/**
+ * Offscreen color target with resolution scale relative to the screen size.
+ * The frame buffer is recreated only when the scaled size changes - so the scale
+ * can be adjusted every frame without reallocating anything when it stays the same.
+ */
+public class LayerRenderTarget {
+    /* Smallest allowed scale */
+    public static final float MIN_SCALE = 0.1f;
+
+    /* Current frame buffer (null until prepared) */
+    private FrameBuffer frameBuffer;
+    /* Resolution scale (1.0 - full screen resolution) */
+    private float scale;
+    /* Current size in pixels */
+    private int width;
+    private int height;
+
+    //-------------------------------------------------------------------------
+
+    public LayerRenderTarget() {
+        this(1.0f);
+    }
+
+    public LayerRenderTarget(float scale) {
+        this.frameBuffer = null;
+        this.width = 0;
+        this.height = 0;
+        setScale(scale);
+    }
+
+    public void dispose() {
+        if (frameBuffer != null)
+            frameBuffer.dispose();
+        frameBuffer = null;
+        width = 0;
+        height = 0;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public float getScale() {
+        return scale;
+    }
+
+    public void setScale(float scale) {
+        this.scale = Math.max(MIN_SCALE, Math.min(1.0f, scale));
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Texture getTexture() {
+        if (frameBuffer == null)
+            return null;
+        return frameBuffer.getColorBufferTexture();
+    }
+
+    public boolean isPrepared() {
+        return frameBuffer != null;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Makes sure the frame buffer matches the scaled screen size.
+     * Returns true if the frame buffer was (re)created.
+     */
+    public boolean prepare(int screenWidth, int screenHeight) {
+        final int newWidth = Math.max(1, Math.round(screenWidth * scale));
+        final int newHeight = Math.max(1, Math.round(screenHeight * scale));
+        if (frameBuffer != null && newWidth == width && newHeight == height)
+            return false;
+        if (frameBuffer != null)
+            frameBuffer.dispose();
+        frameBuffer = new FrameBuffer(Pixmap.Format.RGBA8888, newWidth, newHeight, false);
+        // target is stretched over the screen
+        frameBuffer.getColorBufferTexture().setFilter(Texture.TextureFilter.Linear, Texture.TextureFilter.Linear);
+        width = newWidth;
+        height = newHeight;
+        Gdx.app.debug("LayerRenderTarget", "Created frame buffer " + width + "x" + height);
+        return true;
+    }
+
+    /**
+     * Binds the frame buffer and clears it to transparent black.
+     */
+    public void begin() {
+        if (frameBuffer == null)
+            throw new RuntimeException("LayerRenderTarget needs to be prepared before use!");
+        frameBuffer.begin();
+        Gdx.gl.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT);
+    }
+
+    public void end() {
+        frameBuffer.end();
+    }
+
+    //-------------------------------------------------------------------------
+} // class LayerRenderTarget
@@ -0,0 +1,228 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.utils.IntMap;
+import com.badlogic.gdx.utils.IntSet;
+
+/**
+ * Cache of specialized masking shader programs. Each variant is compiled on demand
+ * from the same source with a set of #defines (feature bits) - so layers without
+ * a mask do not pay for mask sampling and layers without scale/offset skip the UV math.
+ *
+ * Variants which failed to compile are remembered (as null) so compilation
+ * is not retried every frame - caller should fall back to the generic program.
+ * After context loss (invalidate()) samplers of the recompiled variants are set
+ * again the first time each variant is requested.
+ */
+public class LayerShaderCache {
+    /* Layer uses mask texture (texture unit 1) */
+    public static final int FEATURE_MASK = 1;
+    /* Layer texture coordinates are scaled (u_maskScale != 1.0) */
+    public static final int FEATURE_SCALE = 2;
+    /* Layer texture coordinates are offset (u_maskOffset != 0.0) */
+    public static final int FEATURE_OFFSET = 4;
+    /* Mask value is read from selected channel(s) instead of red (u_maskChannel) */
+    public static final int FEATURE_MASK_CHANNEL = 8;
+    /* Mask is evaluated analytically (ProceduralMask) - no mask texture */
+    public static final int FEATURE_PROCEDURAL = 16;
+    /* Mask texture is a signed distance field (SdfMaskGenerator) - used with FEATURE_MASK */
+    public static final int FEATURE_SDF = 32;
+    /* Mask coordinates are remapped from a part of the quad (u_maskRect - TiledLayer) */
+    public static final int FEATURE_MASK_RECT = 64;
+    /* Layer texture is premultiplied - all channels are multiplied by the mask (LayerRenderContext) */
+    public static final int FEATURE_PREMULTIPLIED = 128;
+
+    /* Vertex shader shared by all variants */
+    private String vertexShader;
+    /* Fragment shader source without feature defines */
+    private String fragmentShader;
+    /* Compiled variants by feature key */
+    private IntMap<ShaderProgram> programs;
+    /* Variants recompiled after context loss - samplers not set yet */
+    private IntSet stale;
+    /* Number of program switches requested during the current frame */
+    private int switchCount;
+
+    //-------------------------------------------------------------------------
+
+    public LayerShaderCache(String vertexShader) {
+        this.vertexShader = vertexShader;
+        this.programs = new IntMap<ShaderProgram>();
+        this.stale = new IntSet();
+        this.switchCount = 0;
+        this.fragmentShader = "#ifdef GL_ES\n" +
+                "precision mediump float;\n" +
+                "#endif\n" +
+                "varying vec4 v_color;\n" +
+                "varying vec2 v_texCoords;\n" +
+                "uniform sampler2D u_texture;\n" +
+                "#ifdef MASK\n" +
+                "uniform sampler2D u_texture2;\n" +
+                "#endif\n" +
+                "#ifdef MASK_CHANNEL\n" +
+                "uniform vec4 u_maskChannel;\n" +
+                "#endif\n" +
+                "#ifdef SDF\n" +
+                "uniform vec2 u_sdfParams;\n" +
+                "#endif\n" +
+                "#ifdef PROCEDURAL\n" +
+                ProceduralMask.GLSL_FUNCTION +
+                "#endif\n" +
+                "#ifdef SCALE\n" +
+                "uniform float u_maskScale;\n" +
+                "#endif\n" +
+                "#ifdef OFFSET\n" +
+                "uniform vec2 u_maskOffset;\n" +
+                "#endif\n" +
+                "#ifdef MASK_RECT\n" +
+                "uniform vec4 u_maskRect;\n" +
+                "#endif\n" +
+                "uniform vec2 u_blend;\n" +
+                "void main()\n" +
+                "{\n" +
+                " vec2 newCoords = v_texCoords;\n" +
+                " vec2 maskCoords = v_texCoords;\n" +
+                "#ifdef MASK_RECT\n" +
+                " maskCoords = u_maskRect.xy + u_maskRect.zw * v_texCoords;\n" +
+                "#endif\n" +
+                "#ifdef SCALE\n" +
+                " newCoords = -1.0 * (u_maskScale - 1.0)/2.0 + (u_maskScale * newCoords);\n" +
+                "#endif\n" +
+                "#ifdef OFFSET\n" +
+                " newCoords = newCoords + u_maskOffset;\n" +
+                "#endif\n" +
+                " vec4 color = v_color * texture2D(u_texture, newCoords);\n" +
+                " float maskValue = 1.0;\n" +
+                "#ifdef MASK\n" +
+                "#if defined(SDF)\n" +
+                " float distance = texture2D(u_texture2, maskCoords).a;\n" +
+                " maskValue = smoothstep(0.5 - u_sdfParams.y, 0.5 + u_sdfParams.y, distance);\n" +
+                "#elif defined(MASK_CHANNEL)\n" +
+                " maskValue = dot(texture2D(u_texture2, maskCoords), u_maskChannel);\n" +
+                "#else\n" +
+                " maskValue = texture2D(u_texture2, maskCoords).r;\n" +
+                "#endif\n" +
+                "#endif\n" +
+                "#ifdef PROCEDURAL\n" +
+                " maskValue = maskValue * proceduralMask(maskCoords);\n" +
+                "#endif\n" +
+                // u_blend: x - use texture alpha (0 - opaque), y - keep alpha (0 - premultiplied additive)
+                " float alpha = mix(1.0, color.a, u_blend.x);\n" +
+                "#ifdef PREMULTIPLIED\n" +
+                " gl_FragColor = vec4(color.rgb, alpha * u_blend.y) * maskValue;\n" +
+                "#else\n" +
+                // opaque keeps the premultiplied color (over black) like the other pipeline
+                " gl_FragColor = vec4(color.rgb * mix(color.a, 1.0, u_blend.x), alpha * maskValue);\n" +
+                "#endif\n" +
+                "}";
+    }
+
+    public void dispose() {
+        for (IntMap.Entry<ShaderProgram> entry : programs.entries()) {
+            if (entry.value != null)
+                entry.value.dispose();
+        }
+        programs.clear();
+        stale.clear();
+    }
+
+    /**
+     * Marks all compiled variants as lost with the GL context - libgdx recompiles them,
+     * uniforms are set again in get().
+     */
+    public void invalidate() {
+        for (IntMap.Entry<ShaderProgram> entry : programs.entries()) {
+            if (entry.value != null)
+                stale.add(entry.key);
+        }
+    }
+
+    public int getStaleCount() {
+        return stale.size;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public String getFragmentShader() {
+        return fragmentShader;
+    }
+
+    public int count() {
+        return programs.size;
+    }
+
+    public int getSwitchCount() {
+        return switchCount;
+    }
+
+    public void resetSwitchCount() {
+        this.switchCount = 0;
+    }
+
+    void countSwitch() {
+        this.switchCount++;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public static String getDefines(int features) {
+        StringBuilder defines = new StringBuilder();
+        if ((features & FEATURE_MASK) != 0)
+            defines.append("#define MASK\n");
+        if ((features & FEATURE_SCALE) != 0)
+            defines.append("#define SCALE\n");
+        if ((features & FEATURE_OFFSET) != 0)
+            defines.append("#define OFFSET\n");
+        if ((features & FEATURE_MASK_CHANNEL) != 0)
+            defines.append("#define MASK_CHANNEL\n");
+        if ((features & FEATURE_PROCEDURAL) != 0)
+            defines.append("#define PROCEDURAL\n");
+        if ((features & FEATURE_SDF) != 0)
+            defines.append("#define SDF\n");
+        if ((features & FEATURE_MASK_RECT) != 0)
+            defines.append("#define MASK_RECT\n");
+        if ((features & FEATURE_PREMULTIPLIED) != 0)
+            defines.append("#define PREMULTIPLIED\n");
+        return defines.toString();
+    }
+
+    public boolean contains(int features) {
+        return programs.containsKey(features);
+    }
+
+    /**
+     * Returns compiled program for given feature key (compiles it when needed).
+     * Returns null if the variant cannot be compiled on this device.
+     */
+    public ShaderProgram get(int features) {
+        if (programs.containsKey(features)) {
+            ShaderProgram program = programs.get(features);
+            if (stale.size > 0 && stale.remove(features))
+                setSamplers(program, features);
+            return program;
+        }
+        ShaderProgram program = new ShaderProgram(vertexShader, getDefines(features) + fragmentShader);
+        if (!program.isCompiled()) {
+            Gdx.app.debug("LayerShaderCache", "Shader variant " + features + " did not compile:\n " + program.getLog());
+            program.dispose();
+            programs.put(features, null);
+            return null;
+        }
+        setSamplers(program, features);
+        programs.put(features, program);
+        Gdx.app.debug("LayerShaderCache", "Compiled shader variant " + features);
+        return program;
+    }
+
+    private static void setSamplers(ShaderProgram program, int features) {
+        program.begin();
+        program.setUniformi("u_texture", 0);
+        if ((features & FEATURE_MASK) != 0)
+            program.setUniformi("u_texture2", 1);
+        program.setUniformf("u_blend", 1.0f, 1.0f);
+        program.end();
+    }
+
+    //-------------------------------------------------------------------------
+} // class LayerShaderCache
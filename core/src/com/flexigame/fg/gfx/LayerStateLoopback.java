@@ -0,0 +1,113 @@
+package com.flexigame.fg.gfx;
+
+import java.nio.ByteBuffer;
+
+/**
+ * In-process channel for layer state snapshots (server and client in one process,
+ * measuring the stream). Fixed ring of preallocated direct buffers - the serializer
+ * writes straight into the send buffer and the reader reads the same memory.
+ * Counts packets and bytes going through.
+ */
+public class LayerStateLoopback {
+    private final ByteBuffer[] packets;
+    /* Oldest pending packet and number of pending packets */
+    private int head;
+    private int pending;
+    /* Is a send buffer handed out? */
+    private boolean sending;
+    /* Statistics */
+    private int packetCount;
+    private long bytesSent;
+    private int maxPacketSize;
+
+    //-------------------------------------------------------------------------
+
+    public LayerStateLoopback(int capacity, int maxPacketSize) {
+        if (capacity < 1 || maxPacketSize < 1)
+            throw new RuntimeException("Invalid loopback size: " + capacity + " x " + maxPacketSize);
+        this.packets = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++)
+            this.packets[i] = ByteBuffer.allocateDirect(maxPacketSize);
+        this.head = 0;
+        this.pending = 0;
+        this.sending = false;
+        resetStats();
+    }
+
+    public void resetStats() {
+        packetCount = 0;
+        bytesSent = 0;
+        maxPacketSize = 0;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public int getPendingCount() {
+        return pending;
+    }
+
+    public int getPacketCount() {
+        return packetCount;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    public float getAveragePacketSize() {
+        return packetCount == 0 ? 0.0f : (float) bytesSent / packetCount;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Returns cleared buffer to write the next packet into - finished with endSend().
+     */
+    public ByteBuffer beginSend() {
+        if (sending)
+            throw new RuntimeException("Previous packet was not sent yet");
+        if (pending == packets.length)
+            throw new RuntimeException("Loopback is full (" + pending + " packets pending)");
+        ByteBuffer packet = packets[(head + pending) % packets.length];
+        packet.clear();
+        sending = true;
+        return packet;
+    }
+
+    public void endSend() {
+        if (!sending)
+            throw new RuntimeException("No packet is being sent");
+        ByteBuffer packet = packets[(head + pending) % packets.length];
+        packet.flip();
+        pending++;
+        sending = false;
+        packetCount++;
+        bytesSent += packet.limit();
+        maxPacketSize = Math.max(maxPacketSize, packet.limit());
+    }
+
+    /**
+     * Oldest pending packet (null when there is none) - stays pending until release().
+     */
+    public ByteBuffer receive() {
+        if (pending == 0)
+            return null;
+        return packets[head];
+    }
+
+    /**
+     * Removes the oldest pending packet (also used to simulate packet loss).
+     */
+    public void release() {
+        if (pending == 0)
+            return;
+        head = (head + 1) % packets.length;
+        pending--;
+    }
+
+    //-------------------------------------------------------------------------
+} // class LayerStateLoopback
@@ -0,0 +1,476 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.utils.Array;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streams the per-frame state of layer effects from a simulation (usually a headless
+ * drawer, see LayerMaskingEffectDrawer.createHeadless) to clients which only apply it.
+ *
+ * Streamed state: position, scale, rotation and offset of every layer, visibility,
+ * shared offset and activity of every effect. Values are quantized to fixed point
+ * (POSITION_UNITS...) and written as differences to the previous snapshot - only
+ * changed entries are written, as zigzag varints, straight into the given ByteBuffer.
+ * Nothing is allocated per snapshot (only when the number of effects/layers changes).
+ *
+ * Both sides keep the baseline (last written / read values), so deltas need in-order
+ * delivery. A keyframe is a delta against the empty baseline - it is written first,
+ * after the layers changed and on requestKeyframe(). A reader which missed a snapshot
+ * drops deltas until the next keyframe (isKeyframeNeeded()).
+ *
+ * Client effects need the same layers in the same order as on the server (same setup
+ * code) - layer configuration (textures, masks, modes) is not streamed.
+ */
+public class LayerStateSerializer {
+    public static final byte TYPE_KEYFRAME = 1;
+    public static final byte TYPE_DELTA = 2;
+
+    /* Fixed point units of the streamed values */
+    public static final float POSITION_UNITS = 16.0f; // 1/16 pixel
+    public static final float SCALE_UNITS = 4096.0f;
+    public static final float ROTATION_UNITS = 64.0f; // 1/64 degree
+    private static final int ROTATION_FULL = 360 * 64;
+
+    /* Changed fields of an entry (0 - end of the list) */
+    public static final int FIELD_POSITION = 1;
+    public static final int FIELD_SCALE = 2;
+    public static final int FIELD_ROTATION = 4;
+    public static final int FIELD_OFFSET = 8;
+    /* Layer visibility / effect activity flipped (no payload) */
+    public static final int FIELD_TOGGLE = 16;
+
+    /* Baseline per layer: x, y, scale, rotation, offset x, offset y, visible */
+    private static final int LAYER_STRIDE = 7;
+    /* Baseline per effect: offset x, offset y, active */
+    private static final int EFFECT_STRIDE = 3;
+    /* Type and three varints (sequence, effect count, layer count) */
+    private static final int HEADER_SIZE = 1 + 3 * 5;
+    /* Field mask, gap and up to six varints */
+    private static final int MAX_ENTRY_SIZE = 1 + 5 + 6 * 5;
+
+    /* Last written (or read) quantized values */
+    private int[] layerBase;
+    private int[] effectBase;
+    private int layerCount;
+    private int effectCount;
+    /* Sequence of the next snapshot to write (or expected to read) */
+    private int sequence;
+    /* Next write is a keyframe / reader waits for a keyframe */
+    private boolean keyframeNeeded;
+    /* Walks effects and their layers by the flat layer index */
+    private int cursorEffect;
+    private int cursorLayer;
+    private final Vector2 scratch;
+    /* Statistics */
+    private int lastSize;
+    private int lastChanged;
+    private int keyframes;
+    private int dropped;
+
+    //-------------------------------------------------------------------------
+
+    public LayerStateSerializer() {
+        this.layerBase = new int[0];
+        this.effectBase = new int[0];
+        this.layerCount = 0;
+        this.effectCount = 0;
+        this.sequence = 0;
+        this.keyframeNeeded = true;
+        this.scratch = new Vector2();
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Makes the next written snapshot a keyframe (e.g. a client joined or lost one).
+     */
+    public void requestKeyframe() {
+        this.keyframeNeeded = true;
+    }
+
+    /**
+     * Writer - next snapshot is a keyframe. Reader - deltas are dropped until one.
+     */
+    public boolean isKeyframeNeeded() {
+        return keyframeNeeded;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Size of the last written/read snapshot in bytes.
+     */
+    public int getLastSize() {
+        return lastSize;
+    }
+
+    /**
+     * Number of entries (effects and layers) in the last snapshot.
+     */
+    public int getLastChangedCount() {
+        return lastChanged;
+    }
+
+    public int getKeyframeCount() {
+        return keyframes;
+    }
+
+    public int getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Upper bound of the snapshot size for the effects of the drawer.
+     */
+    public static int getMaxSnapshotSize(LayerMaskingEffectDrawer drawer) {
+        final Array<LayerMaskingEffect> effects = drawer.getEffects();
+        return HEADER_SIZE + (effects.size + countLayers(effects)) * MAX_ENTRY_SIZE + 2;
+    }
+
+    /**
+     * Turns off everything the client layers would animate on their own (pulsing,
+     * rotation, timelines, bindings) - their state comes from the stream.
+     */
+    public static void disableSimulation(LayerMaskingEffectDrawer drawer) {
+        final Array<LayerMaskingEffect> effects = drawer.getEffects();
+        for (int i = 0; i < effects.size; i++) {
+            LayerMaskingEffect effect = effects.get(i);
+            effect.setTimeline(null);
+            effect.setBindings(null); // would overwrite streamed offsets
+            Array<LayerInfo> layers = effect.getLayerInfoArray();
+            for (int j = 0; j < layers.size; j++) {
+                layers.get(j).shouldPulse = false;
+                layers.get(j).rotationSpeed = 0.0f;
+            }
+        }
+    }
+
+    //-------------------------------------------------------------------------
+
+    private static int countLayers(Array<LayerMaskingEffect> effects) {
+        int layers = 0;
+        for (int i = 0; i < effects.size; i++)
+            layers += effects.get(i).count();
+        return layers;
+    }
+
+    private void resize(int effects, int layers) {
+        if (effectBase.length < effects * EFFECT_STRIDE)
+            effectBase = new int[effects * EFFECT_STRIDE];
+        if (layerBase.length < layers * LAYER_STRIDE)
+            layerBase = new int[layers * LAYER_STRIDE];
+        effectCount = effects;
+        layerCount = layers;
+    }
+
+    private void resetBaseline() {
+        for (int i = 0; i < effectCount * EFFECT_STRIDE; i++)
+            effectBase[i] = 0;
+        for (int i = 0; i < layerCount * LAYER_STRIDE; i++)
+            layerBase[i] = 0;
+    }
+
+    /**
+     * Moves the cursor by given number of layers (across effects).
+     */
+    private LayerInfo advance(Array<LayerMaskingEffect> effects, int steps) {
+        cursorLayer += steps;
+        while (cursorEffect < effects.size && cursorLayer >= effects.get(cursorEffect).count()) {
+            cursorLayer -= effects.get(cursorEffect).count();
+            cursorEffect++;
+        }
+        if (cursorEffect >= effects.size)
+            throw new RuntimeException("Layer state refers to a missing layer");
+        return effects.get(cursorEffect).getLayerInfoArray().get(cursorLayer);
+    }
+
+    private static int quantize(float value, float units) {
+        return Math.round(value * units);
+    }
+
+    private static int quantizeRotation(float rotation) {
+        int value = Math.round(rotation * ROTATION_UNITS) % ROTATION_FULL;
+        if (value < 0)
+            value += ROTATION_FULL;
+        return value;
+    }
+
+    /**
+     * Shortest way around the circle - wrapping at 360 degrees stays a small delta.
+     */
+    private static int rotationDelta(int value, int base) {
+        int delta = value - base;
+        if (delta > ROTATION_FULL / 2)
+            delta -= ROTATION_FULL;
+        else if (delta < -ROTATION_FULL / 2)
+            delta += ROTATION_FULL;
+        return delta;
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static void putSigned(ByteBuffer out, int value) {
+        putVarint(out, (value << 1) ^ (value >> 31)); // zigzag
+    }
+
+    private static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new RuntimeException("Malformed varint in layer state");
+    }
+
+    private static int getSigned(ByteBuffer in) {
+        final int value = getVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Writes the snapshot of the current state at the position of the buffer (see
+     * getMaxSnapshotSize) and returns its size in bytes.
+     */
+    public int write(LayerMaskingEffectDrawer drawer, ByteBuffer out) {
+        final Array<LayerMaskingEffect> effects = drawer.getEffects();
+        final int layers = countLayers(effects);
+        boolean keyframe = keyframeNeeded;
+        if (effects.size != effectCount || layers != layerCount) {
+            resize(effects.size, layers);
+            keyframe = true; // different layers - old baseline means nothing
+        }
+        if (keyframe) {
+            resetBaseline();
+            keyframes++;
+        }
+        final int start = out.position();
+        out.put(keyframe ? TYPE_KEYFRAME : TYPE_DELTA);
+        putVarint(out, sequence);
+        putVarint(out, effectCount);
+        putVarint(out, layerCount);
+
+        int changed = 0;
+        int gap = 0;
+        for (int i = 0; i < effectCount; i++) {
+            final LayerMaskingEffect effect = effects.get(i);
+            final int base = i * EFFECT_STRIDE;
+            effect.getOffset(scratch);
+            final int offsetX = quantize(scratch.x, POSITION_UNITS);
+            final int offsetY = quantize(scratch.y, POSITION_UNITS);
+            final int active = effect.isActive() ? 1 : 0;
+            int fields = 0;
+            if (offsetX != effectBase[base] || offsetY != effectBase[base + 1])
+                fields |= FIELD_OFFSET;
+            if (active != effectBase[base + 2])
+                fields |= FIELD_TOGGLE;
+            if (fields == 0) {
+                gap++;
+                continue;
+            }
+            out.put((byte) fields);
+            putVarint(out, gap);
+            if ((fields & FIELD_OFFSET) != 0) {
+                putSigned(out, offsetX - effectBase[base]);
+                putSigned(out, offsetY - effectBase[base + 1]);
+            }
+            effectBase[base] = offsetX;
+            effectBase[base + 1] = offsetY;
+            effectBase[base + 2] = active;
+            gap = 0;
+            changed++;
+        }
+        out.put((byte) 0);
+
+        gap = 0;
+        int index = 0;
+        for (int i = 0; i < effectCount; i++) {
+            final Array<LayerInfo> effectLayers = effects.get(i).getLayerInfoArray();
+            for (int j = 0; j < effectLayers.size; j++, index++) {
+                final LayerInfo layerInfo = effectLayers.get(j);
+                final int base = index * LAYER_STRIDE;
+                final int x = quantize(layerInfo.position.x, POSITION_UNITS);
+                final int y = quantize(layerInfo.position.y, POSITION_UNITS);
+                final int scale = quantize(layerInfo.getScale(), SCALE_UNITS);
+                final int rotation = quantizeRotation(layerInfo.rotation);
+                final int offsetX = quantize(layerInfo.getOffsetX(), POSITION_UNITS);
+                final int offsetY = quantize(layerInfo.getOffsetY(), POSITION_UNITS);
+                final int visible = layerInfo.visible ? 1 : 0;
+                int fields = 0;
+                if (x != layerBase[base] || y != layerBase[base + 1])
+                    fields |= FIELD_POSITION;
+                if (scale != layerBase[base + 2])
+                    fields |= FIELD_SCALE;
+                if (rotation != layerBase[base + 3])
+                    fields |= FIELD_ROTATION;
+                if (offsetX != layerBase[base + 4] || offsetY != layerBase[base + 5])
+                    fields |= FIELD_OFFSET;
+                if (visible != layerBase[base + 6])
+                    fields |= FIELD_TOGGLE;
+                if (fields == 0) {
+                    gap++;
+                    continue;
+                }
+                out.put((byte) fields);
+                putVarint(out, gap);
+                if ((fields & FIELD_POSITION) != 0) {
+                    putSigned(out, x - layerBase[base]);
+                    putSigned(out, y - layerBase[base + 1]);
+                }
+                if ((fields & FIELD_SCALE) != 0)
+                    putSigned(out, scale - layerBase[base + 2]);
+                if ((fields & FIELD_ROTATION) != 0)
+                    putSigned(out, rotationDelta(rotation, layerBase[base + 3]));
+                if ((fields & FIELD_OFFSET) != 0) {
+                    putSigned(out, offsetX - layerBase[base + 4]);
+                    putSigned(out, offsetY - layerBase[base + 5]);
+                }
+                layerBase[base] = x;
+                layerBase[base + 1] = y;
+                layerBase[base + 2] = scale;
+                layerBase[base + 3] = rotation;
+                layerBase[base + 4] = offsetX;
+                layerBase[base + 5] = offsetY;
+                layerBase[base + 6] = visible;
+                gap = 0;
+                changed++;
+            }
+        }
+        out.put((byte) 0);
+
+        keyframeNeeded = false;
+        sequence++;
+        lastChanged = changed;
+        lastSize = out.position() - start;
+        return lastSize;
+    } // int write(...)
+
+    //-------------------------------------------------------------------------
+
+    private void applyEffect(LayerMaskingEffect effect, int base) {
+        effect.setOffset(effectBase[base] / POSITION_UNITS, effectBase[base + 1] / POSITION_UNITS);
+        effect.setActive(effectBase[base + 2] != 0);
+    }
+
+    private void applyLayer(LayerInfo layerInfo, int base) {
+        layerInfo.applyState(layerBase[base] / POSITION_UNITS,
+                layerBase[base + 1] / POSITION_UNITS,
+                layerBase[base + 2] / SCALE_UNITS,
+                layerBase[base + 3] / ROTATION_UNITS,
+                layerBase[base + 4] / POSITION_UNITS,
+                layerBase[base + 5] / POSITION_UNITS);
+        layerInfo.visible = layerBase[base + 6] != 0;
+    }
+
+    /**
+     * Reads one snapshot (the rest of the buffer) and applies it to the effects of
+     * the drawer. Returns false when a delta was dropped - a keyframe is needed.
+     */
+    public boolean read(LayerMaskingEffectDrawer drawer, ByteBuffer in) {
+        final Array<LayerMaskingEffect> effects = drawer.getEffects();
+        final int start = in.position();
+        final byte type = in.get();
+        final int snapshotSequence = getVarint(in);
+        final int streamedEffects = getVarint(in);
+        final int streamedLayers = getVarint(in);
+        if (type != TYPE_KEYFRAME && type != TYPE_DELTA)
+            throw new RuntimeException("Unknown layer state type: " + type);
+        if (streamedEffects != effects.size || streamedLayers != countLayers(effects))
+            throw new RuntimeException("Layer state does not match the effects: " + streamedEffects + "/" + streamedLayers
+                    + " streamed, " + effects.size + "/" + countLayers(effects) + " here");
+        final boolean keyframe = type == TYPE_KEYFRAME;
+        if (keyframe) {
+            resize(streamedEffects, streamedLayers);
+            resetBaseline();
+            keyframes++;
+        } else if (keyframeNeeded || snapshotSequence != sequence
+                || streamedEffects != effectCount || streamedLayers != layerCount) {
+            // baseline is not the one the delta was written against
+            keyframeNeeded = true;
+            dropped++;
+            in.position(in.limit());
+            return false;
+        }
+
+        int changed = 0;
+        int index = -1;
+        int fields;
+        while ((fields = in.get()) != 0) {
+            index += getVarint(in) + 1;
+            if (index >= effectCount)
+                throw new RuntimeException("Layer state refers to a missing effect: " + index);
+            final int base = index * EFFECT_STRIDE;
+            if ((fields & FIELD_OFFSET) != 0) {
+                effectBase[base] += getSigned(in);
+                effectBase[base + 1] += getSigned(in);
+            }
+            if ((fields & FIELD_TOGGLE) != 0)
+                effectBase[base + 2] ^= 1;
+            if (!keyframe)
+                applyEffect(effects.get(index), base);
+            changed++;
+        }
+
+        cursorEffect = 0;
+        cursorLayer = -1;
+        index = -1;
+        while ((fields = in.get()) != 0) {
+            final int steps = getVarint(in) + 1;
+            index += steps;
+            final LayerInfo layerInfo = advance(effects, steps);
+            final int base = index * LAYER_STRIDE;
+            if ((fields & FIELD_POSITION) != 0) {
+                layerBase[base] += getSigned(in);
+                layerBase[base + 1] += getSigned(in);
+            }
+            if ((fields & FIELD_SCALE) != 0)
+                layerBase[base + 2] += getSigned(in);
+            if ((fields & FIELD_ROTATION) != 0) {
+                int rotation = (layerBase[base + 3] + getSigned(in)) % ROTATION_FULL;
+                if (rotation < 0)
+                    rotation += ROTATION_FULL;
+                layerBase[base + 3] = rotation;
+            }
+            if ((fields & FIELD_OFFSET) != 0) {
+                layerBase[base + 4] += getSigned(in);
+                layerBase[base + 5] += getSigned(in);
+            }
+            if ((fields & FIELD_TOGGLE) != 0)
+                layerBase[base + 6] ^= 1;
+            if (!keyframe)
+                applyLayer(layerInfo, base);
+            changed++;
+        }
+
+        if (keyframe) {
+            // entries equal to the empty baseline were not written - apply everything
+            for (int i = 0; i < effectCount; i++)
+                applyEffect(effects.get(i), i * EFFECT_STRIDE);
+            cursorEffect = 0;
+            cursorLayer = -1;
+            for (int i = 0; i < layerCount; i++)
+                applyLayer(advance(effects, 1), i * LAYER_STRIDE);
+        }
+
+        keyframeNeeded = false;
+        sequence = snapshotSequence + 1;
+        lastChanged = changed;
+        lastSize = in.position() - start;
+        return true;
+    } // boolean read(...)
+
+    //-------------------------------------------------------------------------
+} // class LayerStateSerializer
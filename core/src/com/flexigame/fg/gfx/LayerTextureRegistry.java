@@ -0,0 +1,263 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.assets.AssetManager;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ObjectIntMap;
+import com.badlogic.gdx.utils.ObjectMap;
+
+/**
+ * Reference counts of the textures used by layers (texture and mask) - shared by all
+ * effects of LayerMaskingEffectDrawer. Layers retain their textures when attached to
+ * an effect (or when a texture of an attached layer is replaced) and release them
+ * when deleted, so a texture shared by many layers lives until the last one is gone.
+ *
+ * Textures of the asset manager hold one asset reference while any layer uses them
+ * and give it back with unload() - the asset manager disposes the texture once
+ * nobody else (e.g. the app preloading it) keeps it loaded. Other textures are owned
+ * by the layers: the last release disposes them. Assets retained or released while
+ * they reload after context loss (libgdx takes them out of the asset manager and
+ * restores their reference count when they are back) are counted once they are
+ * loaded again - see update().
+ *
+ * What is still retained when the drawer is disposed leaks - reportLeaks() lists it
+ * with the GPU memory by asset path.
+ */
+public class LayerTextureRegistry {
+    public static final String TAG = "LayerTextureRegistry";
+
+    private AssetManager assetManager;
+    /* Layer references per texture */
+    private ObjectIntMap<Texture> references;
+    /* Asset file names of the retained textures (remembered - reloads remove them) */
+    private ObjectMap<Texture, String> fileNames;
+    /* Asset references to add (or give back when negative) once reloaded */
+    private ObjectIntMap<String> deferredReferences;
+    /* Retained / released so far (totals, not per texture) */
+    private int retainCount;
+    private int releaseCount;
+    /* Textures disposed / asset references given back by the last releases */
+    private int disposedCount;
+    private int unloadedCount;
+
+    //-------------------------------------------------------------------------
+
+    public LayerTextureRegistry(AssetManager assetManager) {
+        this.assetManager = assetManager;
+        this.references = new ObjectIntMap<Texture>();
+        this.fileNames = new ObjectMap<Texture, String>();
+        this.deferredReferences = new ObjectIntMap<String>();
+        this.retainCount = 0;
+        this.releaseCount = 0;
+        this.disposedCount = 0;
+        this.unloadedCount = 0;
+    }
+
+    public AssetManager getAssetManager() {
+        return assetManager;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * File name of the texture in the asset manager, also while it is reloading
+     * (null - not an asset).
+     */
+    public String getAssetFileName(Texture texture) {
+        if (texture == null || assetManager == null)
+            return null;
+        final String fileName = assetManager.getAssetFileName(texture);
+        if (fileName == null && assetManager instanceof ParallelAssetManager)
+            return ((ParallelAssetManager) assetManager).getReloadFileName(texture);
+        return fileName;
+    }
+
+    /**
+     * Adds (positive) or gives back (negative) asset references - deferred while
+     * the asset is reloading.
+     */
+    private void changeAssetReferences(String fileName, int change) {
+        if (!assetManager.isLoaded(fileName)) {
+            deferredReferences.getAndIncrement(fileName, 0, change);
+            return;
+        }
+        if (change > 0)
+            assetManager.setReferenceCount(fileName, assetManager.getReferenceCount(fileName) + change);
+        for (int i = change; i < 0; i++)
+            assetManager.unload(fileName); // disposed when it was the last asset reference
+    }
+
+    /**
+     * Adds a layer reference to the texture (null is ignored).
+     */
+    public void retain(Texture texture) {
+        if (texture == null)
+            return;
+        final int count = references.getAndIncrement(texture, 0, 1);
+        if (count == 0) {
+            final String fileName = getAssetFileName(texture);
+            if (fileName != null) {
+                changeAssetReferences(fileName, 1);
+                fileNames.put(texture, fileName);
+            }
+        }
+        retainCount++;
+    }
+
+    /**
+     * Removes a layer reference from the texture (null is ignored) - the last one
+     * gives the asset reference back or disposes the texture.
+     */
+    public void release(Texture texture) {
+        if (texture == null)
+            return;
+        final int count = references.get(texture, 0);
+        if (count <= 0)
+            throw new RuntimeException("Texture released more times than retained: " + describe(texture));
+        releaseCount++;
+        if (count > 1) {
+            references.put(texture, count - 1);
+            return;
+        }
+        references.remove(texture, 0);
+        final String fileName = fileNames.remove(texture);
+        if (fileName != null) {
+            changeAssetReferences(fileName, -1);
+            unloadedCount++;
+        } else {
+            texture.dispose();
+            disposedCount++;
+        }
+    } // void release(...)
+
+    /**
+     * Applies asset references retained / released while the assets were reloading
+     * - call every frame (LayerMaskingEffectDrawer.update() does).
+     */
+    public void update() {
+        if (deferredReferences.size == 0)
+            return;
+        ObjectIntMap.Entries<String> entries = deferredReferences.entries();
+        while (entries.hasNext()) {
+            ObjectIntMap.Entry<String> entry = entries.next();
+            if (!assetManager.isLoaded(entry.key))
+                continue;
+            final String fileName = entry.key;
+            final int change = entry.value;
+            entries.remove();
+            changeAssetReferences(fileName, change);
+        }
+    } // void update()
+
+    /**
+     * Assets with references waiting for their reload.
+     */
+    public int getDeferredCount() {
+        return deferredReferences.size;
+    }
+
+    public int getReferenceCount(Texture texture) {
+        return references.get(texture, 0);
+    }
+
+    public boolean isRetained(Texture texture) {
+        return references.containsKey(texture);
+    }
+
+    /**
+     * Number of distinct textures retained by layers.
+     */
+    public int getTextureCount() {
+        return references.size;
+    }
+
+    public int getRetainCount() {
+        return retainCount;
+    }
+
+    public int getReleaseCount() {
+        return releaseCount;
+    }
+
+    public int getDisposedCount() {
+        return disposedCount;
+    }
+
+    public int getUnloadedCount() {
+        return unloadedCount;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * GPU memory of the texture (with mip levels) - estimated from its data.
+     */
+    public static long getTextureBytes(Texture texture) {
+        if (texture.getTextureData() == null)
+            return 0;
+        return ParallelAssetManager.getUploadSize(texture.getTextureData());
+    }
+
+    /**
+     * GPU memory of all retained textures (each counted once).
+     */
+    public long getRetainedBytes() {
+        long bytes = 0;
+        for (ObjectIntMap.Entry<Texture> entry : references.entries())
+            bytes += getTextureBytes(entry.key);
+        return bytes;
+    }
+
+    /**
+     * Asset file name or size of the texture (not loaded by the asset manager).
+     */
+    public String describe(Texture texture) {
+        String fileName = fileNames.get(texture);
+        if (fileName == null)
+            fileName = getAssetFileName(texture);
+        if (fileName != null)
+            return fileName;
+        return "<texture " + texture.getWidth() + "x" + texture.getHeight() + ">";
+    }
+
+    /**
+     * Still retained textures.
+     */
+    public Array<Texture> getRetainedTextures(Array<Texture> out) {
+        if (out == null)
+            out = new Array<Texture>();
+        for (ObjectIntMap.Entry<Texture> entry : references.entries())
+            out.add(entry.key);
+        return out;
+    }
+
+    /**
+     * Logs every texture still retained (asset path, layer references, GPU memory)
+     * and returns their total memory - zero when layers released everything.
+     */
+    public long reportLeaks() {
+        long bytes = 0;
+        for (ObjectIntMap.Entry<Texture> entry : references.entries()) {
+            final long textureBytes = getTextureBytes(entry.key);
+            bytes += textureBytes;
+            Gdx.app.debug(TAG, "Leaked texture " + describe(entry.key) + ": " + entry.value
+                    + " layer reference(s), " + (textureBytes / 1024) + " KB");
+        }
+        if (references.size > 0)
+            Gdx.app.debug(TAG, "Leaked " + references.size + " texture(s), " + (bytes / 1024) + " KB of GPU memory");
+        return bytes;
+    } // long reportLeaks()
+
+    /**
+     * Forgets all references without releasing anything (the textures were disposed
+     * elsewhere, e.g. with the asset manager).
+     */
+    public void clear() {
+        references.clear();
+        fileNames.clear();
+        deferredReferences.clear();
+    }
+
+    //-------------------------------------------------------------------------
+} // class LayerTextureRegistry
@@ -0,0 +1,149 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.utils.Array;
+
+/**
+ * Timeline with keyframed tracks for layer properties (position, size, rotation,
+ * scale, offset, visibility). Attach it to LayerMaskingEffect - it is evaluated
+ * before the layers are updated, every frame the effect is active.
+ */
+public class LayerTimeline {
+    /* All tracks of this timeline */
+    private Array<LayerTrack> tracks;
+    /* Current time in seconds */
+    private float time;
+    /* Playback speed multiplier */
+    public float speed;
+    /* Should time wrap around at the end? */
+    public boolean looping;
+    /* Is timeline running? */
+    private boolean playing;
+    /* Time of the last key of all tracks */
+    private float duration;
+
+    //-------------------------------------------------------------------------
+
+    public LayerTimeline() {
+        this.tracks = new Array<LayerTrack>(LayerTrack.class);
+        this.time = 0.0f;
+        this.speed = 1.0f;
+        this.looping = true;
+        this.playing = true;
+        this.duration = 0.0f;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public Array<LayerTrack> getTracks() {
+        return tracks;
+    }
+
+    public int count() {
+        return tracks.size;
+    }
+
+    public LayerTrack addTrack(LayerInfo layerInfo, LayerProperty property) {
+        LayerTrack track = new LayerTrack(layerInfo, property);
+        tracks.add(track);
+        duration = 0.0f; // keys are added to the returned track - recalculated when needed
+        return track;
+    }
+
+    public LayerTrack addTrack(LayerTrack track) {
+        if (track != null) {
+            tracks.add(track);
+            duration = Math.max(duration, track.getDuration());
+        }
+        return track;
+    }
+
+    public void removeTrack(LayerTrack track) {
+        tracks.removeValue(track, true);
+        refreshDuration();
+    }
+
+    /**
+     * Removes all tracks driving given layer (for example when layer is deleted).
+     */
+    public void removeTracks(LayerInfo layerInfo) {
+        for (int i = tracks.size - 1; i >= 0; i--) {
+            if (tracks.get(i).getLayerInfo() == layerInfo)
+                tracks.removeIndex(i);
+        }
+        refreshDuration();
+    }
+
+    public void clear() {
+        tracks.clear();
+        duration = 0.0f;
+    }
+
+    /**
+     * Recalculates duration - needed after adding keys to existing tracks.
+     */
+    public void refreshDuration() {
+        duration = 0.0f;
+        for (int i = 0; i < tracks.size; i++)
+            duration = Math.max(duration, tracks.get(i).getDuration());
+    }
+
+    public float getDuration() {
+        if (duration <= 0.0f)
+            refreshDuration();
+        return duration;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public float getTime() {
+        return time;
+    }
+
+    public void setTime(float time) {
+        this.time = time;
+        evaluate();
+    }
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    public void play() {
+        this.playing = true;
+    }
+
+    public void pause() {
+        this.playing = false;
+    }
+
+    public void stop() {
+        this.playing = false;
+        this.time = 0.0f;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public void evaluate() {
+        final int n = tracks.size;
+        for (int i = 0; i < n; i++)
+            tracks.items[i].evaluate(time);
+    }
+
+    public void update(float delta) {
+        if (!playing)
+            return;
+        if (duration <= 0.0f)
+            refreshDuration();
+        time += delta * speed;
+        if (looping && duration > 0.0f) {
+            if (time >= duration || time < 0.0f) {
+                time = time % duration;
+                if (time < 0.0f)
+                    time += duration;
+            }
+        }
+        evaluate();
+    }
+
+    //-------------------------------------------------------------------------
+} // class LayerTimeline
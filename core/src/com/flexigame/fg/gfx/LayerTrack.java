@@ -0,0 +1,150 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.math.Interpolation;
+
+/**
+ * Single keyframed track driving one property of one layer. Keys are kept in packed
+ * float arrays sorted by time. Evaluation keeps a cursor to the current key, so when
+ * time advances monotonically it costs O(1) - only jumps back in time (looping,
+ * seeking) fall back to binary search.
+ */
+public class LayerTrack {
+    /* Layer driven by this track */
+    private LayerInfo layerInfo;
+    /* Property driven by this track */
+    private LayerProperty property;
+    /* Key times in seconds (ascending) */
+    private float[] times;
+    /* Key values */
+    private float[] values;
+    /* Number of keys */
+    private int size;
+    /* Index of the key at or before the last evaluated time */
+    private int cursor;
+    /* Interpolation between keys (ignored for discrete properties) */
+    private Interpolation interpolation;
+    /* Last evaluated value */
+    private float value;
+
+    //-------------------------------------------------------------------------
+
+    public LayerTrack(LayerInfo layerInfo, LayerProperty property) {
+        this(layerInfo, property, 4);
+    }
+
+    public LayerTrack(LayerInfo layerInfo, LayerProperty property, int capacity) {
+        if (layerInfo == null || property == null)
+            throw new RuntimeException("LayerInfo and property cannot be NULL!");
+        this.layerInfo = layerInfo;
+        this.property = property;
+        this.times = new float[Math.max(1, capacity)];
+        this.values = new float[Math.max(1, capacity)];
+        this.size = 0;
+        this.cursor = 0;
+        this.interpolation = Interpolation.linear;
+        this.value = 0.0f;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public LayerInfo getLayerInfo() {
+        return layerInfo;
+    }
+
+    public LayerProperty getProperty() {
+        return property;
+    }
+
+    public int count() {
+        return size;
+    }
+
+    public float getKeyTime(int index) {
+        return times[index];
+    }
+
+    public float getKeyValue(int index) {
+        return values[index];
+    }
+
+    public float getDuration() {
+        return size == 0 ? 0.0f : times[size - 1];
+    }
+
+    public float getValue() {
+        return value;
+    }
+
+    public Interpolation getInterpolation() {
+        return interpolation;
+    }
+
+    public void setInterpolation(Interpolation interpolation) {
+        if (interpolation != null)
+            this.interpolation = interpolation;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Appends a key - keys need to be added in ascending time order.
+     */
+    public LayerTrack addKey(float time, float value) {
+        if (size > 0 && time < times[size - 1])
+            throw new RuntimeException("Keys must be added in ascending time order!");
+        if (size == times.length) {
+            float[] newTimes = new float[size * 2];
+            float[] newValues = new float[size * 2];
+            System.arraycopy(times, 0, newTimes, 0, size);
+            System.arraycopy(values, 0, newValues, 0, size);
+            times = newTimes;
+            values = newValues;
+        }
+        times[size] = time;
+        values[size] = value;
+        size++;
+        return this;
+    }
+
+    public void clear() {
+        size = 0;
+        cursor = 0;
+    }
+
+    private int search(float time) {
+        // last key with times[index] <= time
+        int low = 0, high = size - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (times[mid] <= time)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Evaluates the track at given time and applies the value to the layer.
+     */
+    public void evaluate(float time) {
+        if (size == 0)
+            return;
+        if (time < times[cursor])
+            cursor = search(time); // jumped back in time
+        while (cursor < size - 1 && time >= times[cursor + 1])
+            cursor++;
+        if (cursor == size - 1 || time <= times[cursor]) {
+            value = values[cursor];
+        } else if (property.isDiscrete()) {
+            value = values[cursor];
+        } else {
+            final float t0 = times[cursor];
+            final float t1 = times[cursor + 1];
+            value = interpolation.apply(values[cursor], values[cursor + 1], (time - t0) / (t1 - t0));
+        }
+        property.apply(layerInfo, value);
+    } // void evaluate(...)
+
+    //-------------------------------------------------------------------------
+} // class LayerTrack
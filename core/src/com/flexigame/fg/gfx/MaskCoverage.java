@@ -0,0 +1,243 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.Pixmap;
+
+/**
+ * Coarse coverage grid of a mask (or of the alpha of a layer texture) - every cell
+ * is empty, translucent or fully opaque. Computed once on the CPU from the decoded
+ * image and used by the depth pre-pass of LayerMaskingEffectDrawer: opaque interiors
+ * of layers are drawn front-to-back with depth writes so hidden pixels of the layers
+ * below are rejected before shading.
+ *
+ * Only solid cells are drawn in the pre-pass - opaque cells with all neighbours
+ * opaque too. Bilinear filtering and the lower mip levels sample around the cell,
+ * so a cell next to the translucent edge could still come out a bit transparent.
+ * The margin of one cell holds while the mask is not minified more than the cell
+ * size in texels (see getCellTexels()).
+ *
+ * Rows go from the top of the image (v = 0), like the texture coordinates of the
+ * layer quad.
+ */
+public class MaskCoverage {
+    public static final int DEFAULT_GRID_SIZE = 64;
+    /* Cells are at least this many texels wide (margin for filtering) */
+    public static final int MIN_CELL_TEXELS = 4;
+
+    /* Cell classes */
+    public static final byte EMPTY = 0;
+    public static final byte TRANSLUCENT = 1;
+    public static final byte OPAQUE = 2;
+
+    /* Whole quad opaque - layers without a mask */
+    public static final MaskCoverage SOLID = new MaskCoverage(1, 1, -1, Integer.MAX_VALUE, new byte[]{OPAQUE});
+
+    /* Grid size */
+    private final int columns;
+    private final int rows;
+    /* Channel the grid was computed from (0 - red ... 3 - alpha, -1 - none) */
+    private final int channel;
+    /* Smaller side of a cell in texels */
+    private final int cellTexels;
+    /* Cell classes (row by row) */
+    private final byte[] cells;
+    /* Opaque cells with opaque neighbours */
+    private final boolean[] solid;
+    private int solidCount;
+    private int opaqueCount;
+    /* Largest rectangle of solid cells (end exclusive, empty when no solid cells) */
+    private int solidColumn0;
+    private int solidRow0;
+    private int solidColumn1;
+    private int solidRow1;
+
+    //-------------------------------------------------------------------------
+
+    private MaskCoverage(int columns, int rows, int channel, int cellTexels, byte[] cells) {
+        this.columns = columns;
+        this.rows = rows;
+        this.channel = channel;
+        this.cellTexels = cellTexels;
+        this.cells = cells;
+        this.solid = new boolean[cells.length];
+        findSolidCells();
+        findSolidRect();
+    }
+
+    /**
+     * Classifies the channel of the image on a grid of gridSize x gridSize cells
+     * (fewer when cells would get smaller than MIN_CELL_TEXELS).
+     */
+    public static MaskCoverage build(Pixmap pixmap, int channel, int gridSize) {
+        if (pixmap == null)
+            throw new RuntimeException("Mask coverage image cannot be NULL!");
+        if (channel < 0 || channel > 3)
+            throw new RuntimeException("Invalid mask channel: " + channel);
+        final int width = pixmap.getWidth();
+        final int height = pixmap.getHeight();
+        final int columns = Math.max(1, Math.min(gridSize, width / MIN_CELL_TEXELS));
+        final int rows = Math.max(1, Math.min(gridSize, height / MIN_CELL_TEXELS));
+        final int shift = 24 - channel * 8; // getPixel() returns RGBA8888
+        final byte[] cells = new byte[columns * rows];
+        for (int row = 0; row < rows; row++) {
+            final int y0 = row * height / rows;
+            final int y1 = (row + 1) * height / rows;
+            for (int column = 0; column < columns; column++) {
+                final int x0 = column * width / columns;
+                final int x1 = (column + 1) * width / columns;
+                boolean anyOpaque = false, anyVisible = false, allOpaque = true;
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        final int value = (pixmap.getPixel(x, y) >>> shift) & 0xff;
+                        if (value != 0)
+                            anyVisible = true;
+                        if (value == 255)
+                            anyOpaque = true;
+                        else
+                            allOpaque = false;
+                    }
+                }
+                if (allOpaque && anyOpaque)
+                    cells[row * columns + column] = OPAQUE;
+                else if (anyVisible)
+                    cells[row * columns + column] = TRANSLUCENT;
+                else
+                    cells[row * columns + column] = EMPTY;
+            }
+        }
+        return new MaskCoverage(columns, rows, channel, Math.min(width / columns, height / rows), cells);
+    } // MaskCoverage build(...)
+
+    //-------------------------------------------------------------------------
+
+    private void findSolidCells() {
+        solidCount = 0;
+        opaqueCount = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                if (cells[row * columns + column] != OPAQUE)
+                    continue;
+                opaqueCount++;
+                boolean result = true;
+                for (int y = Math.max(0, row - 1); y <= Math.min(rows - 1, row + 1) && result; y++) {
+                    for (int x = Math.max(0, column - 1); x <= Math.min(columns - 1, column + 1); x++) {
+                        if (cells[y * columns + x] != OPAQUE) {
+                            result = false;
+                            break;
+                        }
+                    }
+                }
+                solid[row * columns + column] = result;
+                if (result)
+                    solidCount++;
+            }
+        }
+    } // void findSolidCells()
+
+    /**
+     * Largest rectangle of solid cells - row by row histogram of solid cells above,
+     * widest span for every height.
+     */
+    private void findSolidRect() {
+        solidColumn0 = solidRow0 = solidColumn1 = solidRow1 = 0;
+        final int[] heights = new int[columns];
+        int bestArea = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++)
+                heights[column] = solid[row * columns + column] ? heights[column] + 1 : 0;
+            for (int column = 0; column < columns; column++) {
+                int minHeight = Integer.MAX_VALUE;
+                for (int end = column; end < columns && heights[end] > 0; end++) {
+                    minHeight = Math.min(minHeight, heights[end]);
+                    final int area = minHeight * (end - column + 1);
+                    if (area > bestArea) {
+                        bestArea = area;
+                        solidColumn0 = column;
+                        solidColumn1 = end + 1;
+                        solidRow0 = row - minHeight + 1;
+                        solidRow1 = row + 1;
+                    }
+                }
+            }
+        }
+    } // void findSolidRect()
+
+    //-------------------------------------------------------------------------
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    /**
+     * Smaller side of a cell in texels - the solid cells hold while the mask is not
+     * minified more than this.
+     */
+    public int getCellTexels() {
+        return cellTexels;
+    }
+
+    public byte getCell(int column, int row) {
+        return cells[row * columns + column];
+    }
+
+    /**
+     * Can the cell be drawn without the mask in the depth pre-pass?
+     */
+    public boolean isSolid(int column, int row) {
+        return solid[row * columns + column];
+    }
+
+    /**
+     * Is the cell at the quad texture coordinates (0.0 - 1.0) solid?
+     */
+    public boolean isSolidAt(float u, float v) {
+        if (u < 0.0f || v < 0.0f || u >= 1.0f || v >= 1.0f)
+            return false;
+        return solid[(int) (v * rows) * columns + (int) (u * columns)];
+    }
+
+    public int getSolidCount() {
+        return solidCount;
+    }
+
+    public int getOpaqueCount() {
+        return opaqueCount;
+    }
+
+    /**
+     * Is every cell opaque? (e.g. layer texture without any transparency)
+     */
+    public boolean isFullyOpaque() {
+        return opaqueCount == cells.length;
+    }
+
+    /**
+     * Part of the quad covered by solid cells (0.0 - 1.0).
+     */
+    public float getSolidFraction() {
+        return (float) solidCount / cells.length;
+    }
+
+    /**
+     * Largest rectangle of solid cells in quad texture coordinates (u0, v0, u1, v1)
+     * - returns false when there are no solid cells.
+     */
+    public boolean getSolidRect(float[] out) {
+        if (solidColumn1 <= solidColumn0)
+            return false;
+        out[0] = (float) solidColumn0 / columns;
+        out[1] = (float) solidRow0 / rows;
+        out[2] = (float) solidColumn1 / columns;
+        out[3] = (float) solidRow1 / rows;
+        return true;
+    }
+
+    //-------------------------------------------------------------------------
+} // class MaskCoverage
@@ -0,0 +1,432 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.assets.AssetLoaderParameters;
+import com.badlogic.gdx.assets.AssetManager;
+import com.badlogic.gdx.assets.loaders.TextureLoader;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.TextureData;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.TimeUtils;
+import com.badlogic.gdx.utils.async.AsyncExecutor;
+import com.badlogic.gdx.utils.async.AsyncResult;
+import com.badlogic.gdx.utils.async.AsyncTask;
+
+/**
+ * AssetManager with parallel texture loading - for textures queued with loadTexture()
+ * file reads and image decoding run on a pool of worker threads (one task per texture),
+ * only the GL upload is done on the render thread, limited by a per frame budget in
+ * bytes (updateUploads). The base AssetManager decodes everything on one thread.
+ *
+ * Uploaded textures are regular assets (same file names) - they are retrieved and
+ * unloaded like any other asset. After context loss libgdx queues every managed
+ * texture again with load() - these reloads go through the same workers and upload
+ * budget (the texture objects are filled again), see prioritize().
+ *
+ * Textures under the premultiplied prefixes are decoded with color multiplied by alpha
+ * (for LayerRenderContext.setPremultipliedAlpha()) - also on the workers, the render
+ * thread never touches the pixels. Their texture data stays premultiplied after
+ * context loss.
+ */
+public class ParallelAssetManager extends AssetManager {
+    public static final String TAG = "ParallelAssetManager";
+
+    /* Per frame upload budget used when nothing else is specified (bytes) */
+    public static final long DEFAULT_UPLOAD_BUDGET = 4 * 1024 * 1024;
+
+    private static class Request {
+        /* Asset file name */
+        final String fileName;
+        /* Loading parameters (never null) */
+        final TextureLoader.TextureParameter params;
+        /* Texture filled again after context loss (null - new texture) */
+        final Texture texture;
+        /* Result of the decoding task (null - not submitted yet) */
+        AsyncResult<TextureData> result;
+
+        Request(String fileName, TextureLoader.TextureParameter params, Texture texture) {
+            this.fileName = fileName;
+            this.params = params;
+            this.texture = texture;
+            this.result = null;
+        }
+    }
+
+    /* Worker pool for reading and decoding */
+    private AsyncExecutor executor;
+    /* Number of worker threads */
+    private final int threadCount;
+    /* Requests waiting for decoding or upload (in queue order) */
+    private final Array<Request> pending;
+    /* Parameters used when none are given */
+    private final TextureLoader.TextureParameter defaultParams;
+    /* Cache of decoded textures (can be null) */
+    private RawTextureCache textureCache;
+    /* Textures starting with these paths are premultiplied */
+    private final Array<String> premultipliedPrefixes;
+    /* Statistics */
+    private int queuedCount;
+    private int uploadedCount;
+    private long uploadedBytes;
+    private long uploadTimeNanos;
+    private int reloadedCount;
+
+    //-------------------------------------------------------------------------
+
+    public ParallelAssetManager() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    public ParallelAssetManager(int threadCount) {
+        super();
+        if (threadCount <= 0)
+            throw new RuntimeException("Invalid number of loader threads: " + threadCount);
+        this.threadCount = threadCount;
+        this.executor = new AsyncExecutor(threadCount);
+        this.pending = new Array<Request>();
+        this.defaultParams = new TextureLoader.TextureParameter();
+        this.textureCache = null;
+        this.premultipliedPrefixes = new Array<String>();
+        resetStats();
+    }
+
+    @Override
+    public synchronized void dispose() {
+        // decoded but not uploaded data is dropped
+        for (int i = 0; i < pending.size; i++) {
+            if (pending.get(i).result == null)
+                continue; // reload never submitted
+            try {
+                TextureData data = pending.get(i).result.get();
+                if (data != null && data.isPrepared() && data.getType() == TextureData.TextureDataType.Pixmap)
+                    data.consumePixmap().dispose(); // raw data holds no native memory
+            } catch (RuntimeException e) {
+                Gdx.app.debug(TAG, "Dropping failed texture: " + pending.get(i).fileName);
+            }
+        }
+        pending.clear();
+        executor.dispose();
+        super.dispose();
+    }
+
+    //-------------------------------------------------------------------------
+
+    public RawTextureCache getTextureCache() {
+        return textureCache;
+    }
+
+    /**
+     * Sets the cache used for textures queued from now on (null - no cache).
+     */
+    public void setTextureCache(RawTextureCache textureCache) {
+        this.textureCache = textureCache;
+    }
+
+    /**
+     * Textures queued from now on with file names starting with the prefix are
+     * premultiplied.
+     */
+    public void addPremultipliedPrefix(String prefix) {
+        if (prefix == null)
+            throw new RuntimeException("Premultiplied prefix cannot be NULL!");
+        if (!premultipliedPrefixes.contains(prefix, false))
+            premultipliedPrefixes.add(prefix);
+    }
+
+    public boolean isPremultiplied(String fileName) {
+        for (int i = 0; i < premultipliedPrefixes.size; i++) {
+            if (fileName.startsWith(premultipliedPrefixes.get(i)))
+                return true;
+        }
+        return false;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public int getPendingCount() {
+        return pending.size;
+    }
+
+    public boolean isIdle() {
+        return pending.size == 0;
+    }
+
+    public float getProgress() {
+        if (queuedCount == 0)
+            return 1.0f;
+        return (float) uploadedCount / queuedCount;
+    }
+
+    public int getUploadedCount() {
+        return uploadedCount;
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    public float getUploadTime() {
+        return uploadTimeNanos / 1000000000.0f;
+    }
+
+    /**
+     * Number of textures waiting to be filled again after context loss.
+     */
+    public int getReloadingCount() {
+        int count = 0;
+        for (int i = 0; i < pending.size; i++) {
+            if (pending.get(i).texture != null)
+                count++;
+        }
+        return count;
+    }
+
+    public int getReloadedCount() {
+        return reloadedCount;
+    }
+
+    public void resetStats() {
+        queuedCount = pending.size;
+        uploadedCount = 0;
+        uploadedBytes = 0;
+        uploadTimeNanos = 0;
+        reloadedCount = 0;
+    }
+
+    //-------------------------------------------------------------------------
+
+    private boolean isPending(String fileName) {
+        for (int i = 0; i < pending.size; i++) {
+            if (pending.get(i).fileName.equals(fileName))
+                return true;
+        }
+        return false;
+    }
+
+    public void loadTexture(String fileName) {
+        loadTexture(fileName, null);
+    }
+
+    /**
+     * Queues the texture - decoding starts right away on one of the workers.
+     * Textures already loaded or queued are skipped.
+     */
+    public void loadTexture(String fileName, TextureLoader.TextureParameter params) {
+        if (fileName == null || fileName.length() == 0)
+            throw new RuntimeException("Texture file name cannot be empty!");
+        if (isLoaded(fileName, Texture.class) || isPending(fileName))
+            return;
+        final Request request = new Request(fileName, params == null ? defaultParams : params, null);
+        submit(request, textureCache);
+        pending.add(request);
+        queuedCount++;
+    } // void loadTexture(...)
+
+    private void submit(final Request request, final RawTextureCache cache) {
+        final FileHandle file = getFileHandleResolver().resolve(request.fileName);
+        final boolean premultiplied = isPremultiplied(request.fileName);
+        // same work TextureLoader does in loadAsync() - or just a cache lookup
+        request.result = executor.submit(new AsyncTask<TextureData>() {
+            @Override
+            public TextureData call() throws Exception {
+                // reloaded texture keeps its data (also raw data from the cache)
+                TextureData data = request.params.textureData;
+                // explicitly requested formats are left to the regular path
+                if (data == null && cache != null && request.params.format == null)
+                    data = cache.load(request.fileName, file, request.params.genMipMaps, premultiplied);
+                if (data == null && premultiplied)
+                    data = new PremultipliedTextureData(file, request.params.format, request.params.genMipMaps);
+                if (data == null)
+                    data = TextureData.Factory.loadFromFile(file,
+                            request.params.format, request.params.genMipMaps);
+                if (!data.isPrepared())
+                    data.prepare();
+                return data;
+            }
+        });
+    } // void submit(...)
+
+    /**
+     * Texture.invalidateAllTextures() queues managed textures after context loss with
+     * the texture object in the parameters - these are taken over from the base
+     * AssetManager (which would only load them in update()).
+     */
+    @Override
+    public synchronized <T> void load(String fileName, Class<T> type, AssetLoaderParameters<T> parameter) {
+        if (type == Texture.class && parameter instanceof TextureLoader.TextureParameter
+                && ((TextureLoader.TextureParameter) parameter).texture != null) {
+            pending.add(new Request(fileName, (TextureLoader.TextureParameter) parameter,
+                    ((TextureLoader.TextureParameter) parameter).texture));
+            return;
+        }
+        super.load(fileName, type, parameter);
+    }
+
+    /**
+     * Reloads are decoded a few at a time (not all submitted at once), so the pending
+     * order - changed with prioritize() - is also the decoding order.
+     */
+    private void submitReloads(int maxInFlight) {
+        int inFlight = 0;
+        for (int i = 0; i < pending.size; i++) {
+            Request request = pending.get(i);
+            if (request.texture == null)
+                continue;
+            if (request.result == null) {
+                if (inFlight >= maxInFlight)
+                    break;
+                submit(request, null);
+            }
+            inFlight++;
+        }
+    }
+
+    /**
+     * Moves the reload of the texture to the front of the queue - returns false when
+     * the texture is not waiting for a reload.
+     */
+    public boolean prioritize(Texture texture) {
+        for (int i = 0; i < pending.size; i++) {
+            Request request = pending.get(i);
+            if (request.texture != null && request.texture == texture) {
+                if (i > 0) {
+                    pending.removeIndex(i);
+                    pending.insert(0, request);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isReloading(Texture texture) {
+        if (texture == null)
+            return false;
+        for (int i = 0; i < pending.size; i++) {
+            if (pending.get(i).texture == texture)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * File name of the texture waiting for a reload (null - not reloading) - the
+     * asset is not in the manager until it is uploaded again.
+     */
+    public String getReloadFileName(Texture texture) {
+        if (texture == null)
+            return null;
+        for (int i = 0; i < pending.size; i++) {
+            if (pending.get(i).texture == texture)
+                return pending.get(i).fileName;
+        }
+        return null;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Approximate size of the texture in GPU memory (with mip chain).
+     */
+    public static long getUploadSize(TextureData data) {
+        long bytes = (long) data.getWidth() * data.getHeight() * RawTextureData.bytesPerPixel(data.getFormat());
+        if (data.useMipMaps())
+            bytes += bytes / 3;
+        return bytes;
+    }
+
+    /**
+     * Decoded data of the finished request - decoding errors are rethrown with the
+     * file name.
+     */
+    private static TextureData getDecoded(Request request) {
+        try {
+            return request.result.get();
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Couldn't load texture: " + request.fileName, e);
+        }
+    }
+
+    private void upload(Request request, TextureData data) {
+        final long start = TimeUtils.nanoTime();
+        Texture texture = request.texture;
+        if (texture != null) {
+            texture.load(data); // new handle is already generated
+            reloadedCount++;
+        } else {
+            texture = new Texture(data);
+        }
+        texture.setFilter(request.params.minFilter, request.params.magFilter);
+        texture.setWrap(request.params.wrapU, request.params.wrapV);
+        addAsset(request.fileName, Texture.class, texture);
+        // reload callback restores the reference count
+        if (request.params.loadedCallback != null)
+            request.params.loadedCallback.finishedLoading(this, request.fileName, Texture.class);
+        uploadTimeNanos += TimeUtils.nanoTime() - start;
+        uploadedBytes += getUploadSize(data);
+        uploadedCount++;
+    }
+
+    /**
+     * Uploads decoded textures until the budget (bytes) is used up - at least one
+     * texture is uploaded when any is ready, so big textures don't get stuck. Call
+     * on the render thread once per frame. Returns true when nothing is pending.
+     */
+    public boolean updateUploads(long budgetBytes) {
+        long budget = budgetBytes;
+        boolean uploaded = false;
+        submitReloads(threadCount * 2);
+        for (int i = 0; i < pending.size; ) {
+            Request request = pending.get(i);
+            if (request.result == null || !request.result.isDone()) {
+                i++;
+                continue;
+            }
+            final TextureData data;
+            try {
+                data = getDecoded(request);
+            } catch (RuntimeException e) {
+                pending.removeIndex(i); // broken file fails once, not in every frame
+                throw e;
+            }
+            final long size = getUploadSize(data);
+            if (uploaded && size > budget)
+                break;
+            pending.removeIndex(i);
+            upload(request, data);
+            uploaded = true;
+            budget -= size;
+        }
+        return pending.size == 0;
+    } // boolean updateUploads(...)
+
+    public boolean updateUploads() {
+        return updateUploads(DEFAULT_UPLOAD_BUDGET);
+    }
+
+    /**
+     * Blocks until everything queued (also with plain load()) is loaded.
+     */
+    @Override
+    public void finishLoading() {
+        super.finishLoading();
+        final long start = TimeUtils.nanoTime();
+        final int count = pending.size;
+        submitReloads(pending.size);
+        while (pending.size > 0) {
+            Request request = pending.get(0);
+            pending.removeIndex(0);
+            upload(request, getDecoded(request));
+        }
+        if (count > 0) {
+            Gdx.app.debug(TAG, "Loaded " + count + " textures (" + uploadedBytes / 1024 + " KB) in "
+                    + TimeUtils.nanosToMillis(TimeUtils.nanoTime() - start) + " ms using "
+                    + threadCount + " threads, upload: " + (int) (getUploadTime() * 1000.0f) + " ms");
+        }
+    }
+
+    //-------------------------------------------------------------------------
+} // class ParallelAssetManager
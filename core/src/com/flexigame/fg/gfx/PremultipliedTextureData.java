@@ -0,0 +1,199 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.TextureData;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Texture data decoded from an image file with color multiplied by alpha - for the
+ * premultiplied alpha pipeline (LayerRenderContext.setPremultipliedAlpha()). Filtering
+ * and mip chains of premultiplied texels have no dark fringes at transparent edges.
+ *
+ * Managed - after context loss the file is decoded and premultiplied again.
+ */
+public class PremultipliedTextureData implements TextureData {
+    /* Source image */
+    private final FileHandle file;
+    /* Requested format (null - format of the file) */
+    private final Pixmap.Format requestedFormat;
+    private final boolean useMipMaps;
+    /* Size and format (known after the first prepare()) */
+    private int width;
+    private int height;
+    private Pixmap.Format format;
+    /* Premultiplied image (valid between prepare() and upload) */
+    private Pixmap pixmap;
+
+    //-------------------------------------------------------------------------
+
+    public PremultipliedTextureData(FileHandle file, Pixmap.Format format, boolean useMipMaps) {
+        if (file == null)
+            throw new RuntimeException("Premultiplied texture file cannot be NULL!");
+        this.file = file;
+        this.requestedFormat = format;
+        this.useMipMaps = useMipMaps;
+        this.width = 0;
+        this.height = 0;
+        this.format = format != null ? format : Pixmap.Format.RGBA8888;
+        this.pixmap = null;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public FileHandle getFile() {
+        return file;
+    }
+
+    /**
+     * Multiplies color channels by alpha in place - pixels hold count pixels of the
+     * format. Formats without alpha (or without color) are left as they are.
+     */
+    public static void premultiply(ByteBuffer pixels, int count, Pixmap.Format format) {
+        if (format == Pixmap.Format.RGBA8888) {
+            for (int i = 0; i < count; i++) {
+                final int base = i * 4;
+                final int alpha = pixels.get(base + 3) & 0xff;
+                if (alpha == 255)
+                    continue;
+                for (int c = 0; c < 3; c++)
+                    pixels.put(base + c, (byte) (((pixels.get(base + c) & 0xff) * alpha + 127) / 255));
+            }
+        } else if (format == Pixmap.Format.LuminanceAlpha) {
+            for (int i = 0; i < count; i++) {
+                final int base = i * 2;
+                final int alpha = pixels.get(base + 1) & 0xff;
+                if (alpha != 255)
+                    pixels.put(base, (byte) (((pixels.get(base) & 0xff) * alpha + 127) / 255));
+            }
+        }
+    } // void premultiply(...)
+
+    public static void premultiply(byte[] pixels, int count, Pixmap.Format format) {
+        premultiply(ByteBuffer.wrap(pixels), count, format);
+    }
+
+    /**
+     * Copy of the image in another format - texel by texel, drawPixmap() would need
+     * the global blending of Pixmap (this runs on the loader workers).
+     */
+    static Pixmap convert(Pixmap source, Pixmap.Format format) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        Pixmap result = new Pixmap(width, height, format);
+        // 16 bit texels are native shorts in gdx2d
+        final ByteBuffer pixels = result.getPixels().duplicate().order(ByteOrder.nativeOrder());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int rgba = source.getPixel(x, y); // RGBA8888 whatever the format
+                final int r = rgba >>> 24, g = (rgba >>> 16) & 0xff, b = (rgba >>> 8) & 0xff, a = rgba & 0xff;
+                final int i = y * width + x;
+                switch (format) {
+                    case Alpha:
+                    case Intensity:
+                        pixels.put(i, (byte) a);
+                        break;
+                    case LuminanceAlpha:
+                        final int luminance = (int) (0.2126f * r + 0.7152 * g + 0.0722 * b) & 0xff; // as gdx2d
+                        pixels.putShort(i * 2, (short) ((luminance << 8) | a));
+                        break;
+                    case RGB565:
+                        pixels.putShort(i * 2, (short) (((r >> 3) << 11) | ((g >> 2) << 5) | (b >> 3)));
+                        break;
+                    case RGBA4444:
+                        pixels.putShort(i * 2, (short) (((r >> 4) << 12) | ((g >> 4) << 8) | ((b >> 4) << 4) | (a >> 4)));
+                        break;
+                    case RGB888:
+                        pixels.put(i * 3, (byte) r);
+                        pixels.put(i * 3 + 1, (byte) g);
+                        pixels.put(i * 3 + 2, (byte) b);
+                        break;
+                    default:
+                        pixels.put(i * 4, (byte) r);
+                        pixels.put(i * 4 + 1, (byte) g);
+                        pixels.put(i * 4 + 2, (byte) b);
+                        pixels.put(i * 4 + 3, (byte) a);
+                        break;
+                }
+            }
+        }
+        return result;
+    } // Pixmap convert(...)
+
+    //-------------------------------------------------------------------------
+
+    @Override
+    public TextureDataType getType() {
+        return TextureDataType.Pixmap;
+    }
+
+    @Override
+    public boolean isPrepared() {
+        return pixmap != null;
+    }
+
+    @Override
+    public void prepare() {
+        if (pixmap != null)
+            throw new RuntimeException("Premultiplied texture data already prepared: " + file.path());
+        Pixmap decoded = new Pixmap(file);
+        if (requestedFormat != null && decoded.getFormat() != requestedFormat) {
+            Pixmap converted = convert(decoded, requestedFormat);
+            decoded.dispose();
+            decoded = converted;
+        }
+        premultiply(decoded.getPixels(), decoded.getWidth() * decoded.getHeight(), decoded.getFormat());
+        width = decoded.getWidth();
+        height = decoded.getHeight();
+        format = decoded.getFormat();
+        pixmap = decoded;
+    } // void prepare()
+
+    @Override
+    public Pixmap consumePixmap() {
+        if (pixmap == null)
+            throw new RuntimeException("Call prepare() before uploading premultiplied texture: " + file.path());
+        Pixmap result = pixmap;
+        pixmap = null;
+        return result;
+    }
+
+    @Override
+    public boolean disposePixmap() {
+        return true;
+    }
+
+    @Override
+    public void consumeCustomData(int target) {
+        throw new RuntimeException("Premultiplied texture data is not custom data");
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public Pixmap.Format getFormat() {
+        return format;
+    }
+
+    @Override
+    public boolean useMipMaps() {
+        return useMipMaps;
+    }
+
+    @Override
+    public boolean isManaged() {
+        return true;
+    }
+
+    //-------------------------------------------------------------------------
+} // class PremultipliedTextureData
@@ -0,0 +1,244 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.MathUtils;
+
+/**
+ * Analytic mask evaluated in the fragment shader instead of sampling a mask texture -
+ * rings, stripes, regular polygons and radial/linear gradients. Parameters are plain
+ * fields so they can be animated (LayerProperty.MASK_*) without any asset cost.
+ *
+ * Coordinates are the mask UVs of the layer quad (0.0 - 1.0, v = 0 at the top edge),
+ * shapes are centered at (0.5, 0.5). The same math is available on the CPU
+ * (evaluate) - LayerMaskingRasterizer uses it for headless verification.
+ */
+public class ProceduralMask {
+    public enum Type {
+        /* Circle outline: radius, width */
+        RING,
+        /* Parallel stripes: frequency (per UV unit), phase, angle, duty (on fraction) */
+        STRIPES,
+        /* Regular polygon: sides, radius (circumscribed), angle */
+        POLYGON,
+        /* 1.0 inside radius fading to 0.0 over width */
+        RADIAL_GRADIENT,
+        /* Ramp along direction given by angle: 0.5 at phase, width long */
+        LINEAR_GRADIENT
+    }
+
+    /* Number of floats in packed parameters: type, params0 (4), params1 (4) */
+    public static final int PACKED_SIZE = 9;
+
+    /* Shape of the mask */
+    public Type type;
+    /* Radius in UV units (ring, polygon, radial gradient) */
+    public float radius;
+    /* Ring thickness / gradient ramp length in UV units */
+    public float width;
+    /* Number of stripes per UV unit */
+    public float frequency;
+    /* Stripe phase (in periods) / position of the linear ramp center */
+    public float phase;
+    /* Direction of stripes and linear ramp, rotation of the polygon (degrees) */
+    public float angle;
+    /* Fraction of the stripe period which is on (0.0 - 1.0) */
+    public float duty;
+    /* Number of polygon sides */
+    public int sides;
+    /* Width of the antialiased edge in UV units (shapes only) */
+    public float softness;
+    /* Packed parameters (reused for uniforms) */
+    private final float[] packed;
+
+    //-------------------------------------------------------------------------
+
+    public ProceduralMask(Type type) {
+        this.type = type;
+        this.radius = 0.4f;
+        this.width = 0.1f;
+        this.frequency = 4.0f;
+        this.phase = 0.0f;
+        this.angle = 0.0f;
+        this.duty = 0.5f;
+        this.sides = 3;
+        this.softness = 0.005f;
+        this.packed = new float[PACKED_SIZE];
+    }
+
+    public static ProceduralMask ring(float radius, float width) {
+        ProceduralMask mask = new ProceduralMask(Type.RING);
+        mask.radius = radius;
+        mask.width = width;
+        return mask;
+    }
+
+    public static ProceduralMask stripes(float frequency, float phase, float angle, float duty) {
+        ProceduralMask mask = new ProceduralMask(Type.STRIPES);
+        mask.frequency = frequency;
+        mask.phase = phase;
+        mask.angle = angle;
+        mask.duty = duty;
+        return mask;
+    }
+
+    public static ProceduralMask polygon(int sides, float radius, float angle) {
+        ProceduralMask mask = new ProceduralMask(Type.POLYGON);
+        mask.sides = sides;
+        mask.radius = radius;
+        mask.angle = angle;
+        return mask;
+    }
+
+    public static ProceduralMask radialGradient(float radius, float width) {
+        ProceduralMask mask = new ProceduralMask(Type.RADIAL_GRADIENT);
+        mask.radius = radius;
+        mask.width = width;
+        return mask;
+    }
+
+    public static ProceduralMask linearGradient(float angle, float phase, float width) {
+        ProceduralMask mask = new ProceduralMask(Type.LINEAR_GRADIENT);
+        mask.angle = angle;
+        mask.phase = phase;
+        mask.width = width;
+        return mask;
+    }
+
+    public ProceduralMask set(ProceduralMask other) {
+        this.type = other.type;
+        this.radius = other.radius;
+        this.width = other.width;
+        this.frequency = other.frequency;
+        this.phase = other.phase;
+        this.angle = other.angle;
+        this.duty = other.duty;
+        this.sides = other.sides;
+        this.softness = other.softness;
+        return this;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Packs parameters in the layout used by the shader (u_procType, u_procParams0,
+     * u_procParams1). Returns the out array.
+     */
+    public float[] pack(float[] out) {
+        for (int i = 0; i < PACKED_SIZE; i++)
+            out[i] = 0.0f;
+        out[0] = type.ordinal();
+        switch (type) {
+            case RING:
+                out[1] = radius;
+                out[2] = width;
+                break;
+            case STRIPES:
+                out[1] = Math.max(0.0001f, frequency);
+                out[2] = phase;
+                out[3] = angle * MathUtils.degreesToRadians;
+                out[4] = MathUtils.clamp(duty, 0.0f, 1.0f);
+                break;
+            case POLYGON:
+                out[1] = Math.max(3, sides);
+                out[2] = radius;
+                out[3] = angle * MathUtils.degreesToRadians;
+                break;
+            case RADIAL_GRADIENT:
+                out[1] = radius;
+                out[2] = Math.max(0.0001f, width);
+                break;
+            case LINEAR_GRADIENT:
+                out[1] = angle * MathUtils.degreesToRadians;
+                out[2] = phase;
+                out[3] = Math.max(0.0001f, width);
+                break;
+        }
+        out[5] = Math.max(0.0001f, softness);
+        return out;
+    } // float[] pack(...)
+
+    /**
+     * Sets u_procType, u_procParams0 and u_procParams1 (missing uniforms are skipped).
+     */
+    public void setUniforms(ShaderProgram shader) {
+        pack(packed);
+        shader.setUniformf(shader.fetchUniformLocation("u_procType", false), packed[0]);
+        shader.setUniformf(shader.fetchUniformLocation("u_procParams0", false),
+                packed[1], packed[2], packed[3], packed[4]);
+        shader.setUniformf(shader.fetchUniformLocation("u_procParams1", false),
+                packed[5], packed[6], packed[7], packed[8]);
+    }
+
+    //-------------------------------------------------------------------------
+
+    private static float fract(float x) {
+        return x - (float) Math.floor(x);
+    }
+
+    private static float clamp01(float x) {
+        return x < 0.0f ? 0.0f : (x > 1.0f ? 1.0f : x);
+    }
+
+    /**
+     * CPU version of proceduralMask() from GLSL_FUNCTION - packed parameters.
+     */
+    public static float evaluate(float[] p, float u, float v) {
+        final float px = u - 0.5f;
+        final float py = v - 0.5f;
+        final float length = (float) Math.sqrt(px * px + py * py);
+        final float type = p[0];
+        float d;
+        if (type < 0.5f) {
+            d = Math.abs(length - p[1]) - p[2] * 0.5f;
+        } else if (type < 1.5f) {
+            final float t = (px * (float) Math.cos(p[3]) + py * (float) Math.sin(p[3])) * p[1] + p[2];
+            d = (Math.abs(fract(t - p[4] * 0.5f + 0.5f) - 0.5f) - p[4] * 0.5f) / p[1];
+        } else if (type < 2.5f) {
+            final float segment = MathUtils.PI2 / p[1];
+            final float a = (float) Math.atan2(py, px + 0.00001f) - p[3];
+            d = (float) Math.cos((float) Math.floor(0.5f + a / segment) * segment - a) * length
+                    - p[2] * (float) Math.cos(MathUtils.PI / p[1]);
+        } else if (type < 3.5f) {
+            return clamp01(0.5f - (length - p[1]) / p[2]);
+        } else {
+            final float t = px * (float) Math.cos(p[1]) + py * (float) Math.sin(p[1]);
+            return clamp01(0.5f - (t - p[2]) / p[3]);
+        }
+        return clamp01(0.5f - d / p[5]);
+    } // float evaluate(...)
+
+    public float evaluate(float u, float v) {
+        return evaluate(pack(packed), u, v);
+    }
+
+    //-------------------------------------------------------------------------
+
+    /* GLSL declarations and proceduralMask(uv) - same math as evaluate() */
+    public static final String GLSL_FUNCTION = "" +
+            "uniform float u_procType;\n" +
+            "uniform vec4 u_procParams0;\n" +
+            "uniform vec4 u_procParams1;\n" +
+            "float proceduralMask(vec2 uv)\n" +
+            "{\n" +
+            " vec2 p = uv - 0.5;\n" +
+            " vec4 a = u_procParams0;\n" +
+            " float d;\n" +
+            " if(u_procType < 0.5) {\n" +
+            "  d = abs(length(p) - a.x) - a.y * 0.5;\n" +
+            " } else if(u_procType < 1.5) {\n" +
+            "  float t = dot(p, vec2(cos(a.z), sin(a.z))) * a.x + a.y;\n" +
+            "  d = (abs(fract(t - a.w * 0.5 + 0.5) - 0.5) - a.w * 0.5) / a.x;\n" +
+            " } else if(u_procType < 2.5) {\n" +
+            "  float segment = 6.2831853 / a.x;\n" +
+            "  float angle = atan(p.y, p.x + 0.00001) - a.z;\n" +
+            "  d = cos(floor(0.5 + angle / segment) * segment - angle) * length(p) - a.y * cos(3.1415927 / a.x);\n" +
+            " } else if(u_procType < 3.5) {\n" +
+            "  return clamp(0.5 - (length(p) - a.x) / a.y, 0.0, 1.0);\n" +
+            " } else {\n" +
+            "  return clamp(0.5 - (dot(p, vec2(cos(a.x), sin(a.x))) - a.y) / a.z, 0.0, 1.0);\n" +
+            " }\n" +
+            " return clamp(0.5 - d / u_procParams1.x, 0.0, 1.0);\n" +
+            "}\n";
+
+    //-------------------------------------------------------------------------
+} // class ProceduralMask
@@ -0,0 +1,363 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.utils.Array;
+
+/**
+ * Reduces drawing quality of single layers (LayerInfo.quality) from recent frame
+ * times. Frame times are averaged over a small window like in
+ * DynamicResolutionController. When the average stays over the target for a few
+ * frames, one layer goes one level down - the layer with the lowest priority, from
+ * layers with equal priority the one with the best quality. When the average stays
+ * well under the target for longer, the most important reduced layer goes one level
+ * up. A level which would not change the look of the layer (no mask, no rotation,
+ * no lower resolution mask) is passed over.
+ *
+ * Hysteresis: when the frame time goes over the target again soon after restoring,
+ * the wait for the next restore is doubled (up to maxRestoreDelay). It goes back to
+ * framesToRestore after a restore which held (nothing reduced until the next restore)
+ * or once all layers are at full quality.
+ *
+ * With vsync the frame delta never goes under the refresh interval - restoring needs
+ * the work time of the frame as well (see addFrameTime(float, float, Array)).
+ *
+ * Only visible layers of active effects are governed. Every decision goes to the
+ * listener (metrics hook). Has no GL dependencies - frame times can be fed from a
+ * simulation.
+ */
+public class QualityGovernor {
+    public static final float DEFAULT_TARGET_FRAME_TIME = 1.0f / 60.0f;
+    public static final int DEFAULT_WINDOW_SIZE = 8;
+
+    /* Quality levels (values() copies the array on every call) */
+    private static final LayerInfo.Quality[] LEVELS = LayerInfo.Quality.values();
+
+    /**
+     * Receives every quality decision.
+     */
+    public interface Listener {
+        /**
+         * Quality of the layer changed from the previous level - average frame time
+         * (seconds) is the one which led to the decision.
+         */
+        void qualityChanged(LayerMaskingEffect effect, LayerInfo layerInfo,
+                            LayerInfo.Quality previous, float averageFrameTime);
+    }
+
+    /* Frame time the governor aims for (seconds) */
+    private float targetFrameTime;
+    /* Average over target * upperRatio reduces quality */
+    public float upperRatio;
+    /* Average under target * lowerRatio restores quality */
+    public float lowerRatio;
+    /* Frames in a row needed to reduce / restore quality */
+    public int framesToDegrade;
+    public int framesToRestore;
+    /* Longest wait for restoring after backing off */
+    public int maxRestoreDelay;
+    /* Lowest quality layers can get */
+    public LayerInfo.Quality worstQuality;
+    /* Layers with this or higher priority are never reduced */
+    public int protectedPriority;
+    /* Receives decisions (can be null) */
+    private Listener listener;
+    /* Recent frame times (ring buffer) */
+    private float[] window;
+    private int windowCount;
+    private int windowIndex;
+    private float windowSum;
+    /* Counters for hysteresis */
+    private int overFrames;
+    private int underFrames;
+    /* How many times the wait for restoring was doubled */
+    private int backoff;
+    /* Frames since the last restore */
+    private int framesSinceRestore;
+    /* Was anything reduced since the last restore? */
+    private boolean degradedSinceRestore;
+    /* Statistics */
+    private int degradeCount;
+    private int restoreCount;
+    private int backoffCount;
+    /* Candidate found by findDegrade() / findRestore() */
+    private LayerMaskingEffect candidateEffect;
+    private LayerInfo candidate;
+    private LayerInfo.Quality candidateQuality;
+
+    //-------------------------------------------------------------------------
+
+    public QualityGovernor() {
+        this(DEFAULT_TARGET_FRAME_TIME);
+    }
+
+    public QualityGovernor(float targetFrameTime) {
+        this(targetFrameTime, DEFAULT_WINDOW_SIZE);
+    }
+
+    public QualityGovernor(float targetFrameTime, int windowSize) {
+        this.window = new float[Math.max(1, windowSize)];
+        this.upperRatio = 1.05f;
+        this.lowerRatio = 0.8f;
+        this.framesToDegrade = 3;
+        this.framesToRestore = 90;
+        this.maxRestoreDelay = 720;
+        this.worstQuality = LayerInfo.Quality.SKIPPED;
+        this.protectedPriority = Integer.MAX_VALUE;
+        this.listener = null;
+        this.backoff = 0;
+        this.framesSinceRestore = Integer.MAX_VALUE / 2;
+        this.degradedSinceRestore = true;
+        setTargetFrameTime(targetFrameTime);
+        resetStats();
+        reset();
+    }
+
+    //-------------------------------------------------------------------------
+
+    public float getTargetFrameTime() {
+        return targetFrameTime;
+    }
+
+    public void setTargetFrameTime(float targetFrameTime) {
+        if (targetFrameTime <= 0.0f)
+            throw new RuntimeException("Target frame time needs to be greater than 0!");
+        this.targetFrameTime = targetFrameTime;
+    }
+
+    public Listener getListener() {
+        return listener;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public float getAverageFrameTime() {
+        if (windowCount == 0)
+            return 0.0f;
+        return windowSum / windowCount;
+    }
+
+    /**
+     * Current wait for restoring (grows when restoring brings the frame time over
+     * the target again).
+     */
+    public int getRestoreDelay() {
+        final int limit = Math.max(framesToRestore, maxRestoreDelay);
+        if (backoff >= 30 || (framesToRestore << backoff) > limit)
+            return limit;
+        return framesToRestore << backoff;
+    }
+
+    public int getDegradeCount() {
+        return degradeCount;
+    }
+
+    public int getRestoreCount() {
+        return restoreCount;
+    }
+
+    /**
+     * How many times the restore delay was doubled.
+     */
+    public int getBackoffCount() {
+        return backoffCount;
+    }
+
+    public void resetStats() {
+        degradeCount = 0;
+        restoreCount = 0;
+        backoffCount = 0;
+    }
+
+    /**
+     * Forgets measured frames (qualities are kept).
+     */
+    public void reset() {
+        windowCount = 0;
+        windowIndex = 0;
+        windowSum = 0.0f;
+        overFrames = 0;
+        underFrames = 0;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Does going down to this level change the look of the layer?
+     */
+    private static boolean isEffective(LayerInfo layerInfo, LayerInfo.Quality level) {
+        switch (level) {
+            case LOW_RES_MASK:
+                return layerInfo.getLowResMaskTexture() != null && layerInfo.proceduralMask == null;
+            case NO_ROTATION:
+                return layerInfo.rotation != 0.0f || layerInfo.rotationSpeed != 0.0f;
+            case NO_MASK:
+                return layerInfo.getMaskTexture() != null || layerInfo.proceduralMask != null;
+            case SKIPPED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Next lower level changing the look of the layer (null - none left).
+     */
+    private LayerInfo.Quality nextLower(LayerInfo layerInfo) {
+        for (int i = layerInfo.quality.ordinal() + 1; i <= worstQuality.ordinal(); i++) {
+            if (isEffective(layerInfo, LEVELS[i]))
+                return LEVELS[i];
+        }
+        return null;
+    }
+
+    /**
+     * Next higher level changing the look of the layer (null - at full quality).
+     */
+    private static LayerInfo.Quality nextHigher(LayerInfo layerInfo) {
+        for (int i = layerInfo.quality.ordinal() - 1; i > 0; i--) {
+            if (isEffective(layerInfo, LEVELS[i]))
+                return LEVELS[i];
+        }
+        return layerInfo.quality == LayerInfo.Quality.FULL ? null : LayerInfo.Quality.FULL;
+    }
+
+    private boolean findDegrade(Array<LayerMaskingEffect> effects) {
+        candidate = null;
+        for (int i = 0; i < effects.size; i++) {
+            final LayerMaskingEffect effect = effects.get(i);
+            if (!effect.isActive())
+                continue;
+            final Array<LayerInfo> layers = effect.getLayerInfoArray();
+            for (int j = 0; j < layers.size; j++) {
+                final LayerInfo layerInfo = layers.get(j);
+                if (!layerInfo.visible || layerInfo.priority >= protectedPriority)
+                    continue;
+                if (candidate != null && (layerInfo.priority > candidate.priority
+                        || (layerInfo.priority == candidate.priority
+                        && layerInfo.quality.ordinal() >= candidate.quality.ordinal())))
+                    continue;
+                final LayerInfo.Quality lower = nextLower(layerInfo);
+                if (lower == null)
+                    continue;
+                candidateEffect = effect;
+                candidate = layerInfo;
+                candidateQuality = lower;
+            }
+        }
+        return candidate != null;
+    } // boolean findDegrade(...)
+
+    private boolean findRestore(Array<LayerMaskingEffect> effects) {
+        candidate = null;
+        for (int i = 0; i < effects.size; i++) {
+            final LayerMaskingEffect effect = effects.get(i);
+            if (!effect.isActive())
+                continue;
+            final Array<LayerInfo> layers = effect.getLayerInfoArray();
+            for (int j = 0; j < layers.size; j++) {
+                final LayerInfo layerInfo = layers.get(j);
+                if (!layerInfo.visible || layerInfo.quality == LayerInfo.Quality.FULL)
+                    continue;
+                if (candidate != null && (layerInfo.priority < candidate.priority
+                        || (layerInfo.priority == candidate.priority
+                        && layerInfo.quality.ordinal() <= candidate.quality.ordinal())))
+                    continue;
+                candidateEffect = effect;
+                candidate = layerInfo;
+                candidateQuality = nextHigher(layerInfo);
+            }
+        }
+        return candidate != null;
+    } // boolean findRestore(...)
+
+    private void apply(float average) {
+        final LayerInfo.Quality previous = candidate.quality;
+        candidate.quality = candidateQuality;
+        if (listener != null)
+            listener.qualityChanged(candidateEffect, candidate, previous, average);
+        candidateEffect = null;
+        candidate = null;
+        reset(); // old frames were rendered with the previous quality
+    }
+
+    /**
+     * Adds time of the last frame (seconds) and changes quality of at most one layer
+     * of the effects. Returns true when a quality changed.
+     */
+    public boolean addFrameTime(float frameTime, Array<LayerMaskingEffect> effects) {
+        if (framesSinceRestore < Integer.MAX_VALUE / 2)
+            framesSinceRestore++;
+        if (windowCount == window.length)
+            windowSum -= window[windowIndex];
+        else
+            windowCount++;
+        window[windowIndex] = frameTime;
+        windowSum += frameTime;
+        windowIndex = (windowIndex + 1) % window.length;
+
+        final float average = windowSum / windowCount;
+        if (average > targetFrameTime * upperRatio) {
+            underFrames = 0;
+            if (++overFrames >= framesToDegrade && findDegrade(effects)) {
+                final int restoreDelay = getRestoreDelay();
+                if (framesSinceRestore < restoreDelay && restoreDelay < maxRestoreDelay) {
+                    // the last restore did not fit - wait longer next time
+                    backoff++;
+                    backoffCount++;
+                }
+                degradeCount++;
+                degradedSinceRestore = true;
+                apply(average);
+                return true;
+            }
+        } else if (average < targetFrameTime * lowerRatio) {
+            overFrames = 0;
+            if (++underFrames >= getRestoreDelay() && findRestore(effects)) {
+                restoreCount++;
+                if (!degradedSinceRestore)
+                    backoff = 0; // the previous restore held
+                degradedSinceRestore = false;
+                framesSinceRestore = 0;
+                apply(average);
+                if (!findRestore(effects))
+                    backoff = 0; // back at full quality
+                candidate = null;
+                return true;
+            }
+        } else {
+            overFrames = 0;
+            underFrames = 0;
+        }
+        return false;
+    } // boolean addFrameTime(...)
+
+    /**
+     * Adds the last frame measured by the app - its duration (delta, capped by vsync)
+     * and work time (without waiting for vsync/swap, 0 - unknown). Frames which kept
+     * up count with their work time; frames over the upper ratio count with their
+     * duration, as GPU or swap bound frames don't show in the work time. Returns true
+     * when a quality changed.
+     */
+    public boolean addFrameTime(float delta, float workTime, Array<LayerMaskingEffect> effects) {
+        if (workTime <= 0.0f || delta > targetFrameTime * upperRatio)
+            return addFrameTime(delta, effects);
+        return addFrameTime(workTime, effects);
+    }
+
+    /**
+     * Puts all layers of the effects back to full quality (e.g. when the governor
+     * is switched off).
+     */
+    public void restoreAll(Array<LayerMaskingEffect> effects) {
+        for (int i = 0; i < effects.size; i++) {
+            final Array<LayerInfo> layers = effects.get(i).getLayerInfoArray();
+            for (int j = 0; j < layers.size; j++)
+                layers.get(j).quality = LayerInfo.Quality.FULL;
+        }
+        backoff = 0;
+        reset();
+    }
+
+    //-------------------------------------------------------------------------
+} // class QualityGovernor
@@ -0,0 +1,328 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.TimeUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Disk cache of decoded textures in raw, uploadable form. The first load of a texture
+ * decodes the source (TGA/JPG/PNG), optionally downscales it and reduces it to a single
+ * channel, and writes the pixels behind a small header. Later loads only check the
+ * header and return RawTextureData which maps the pixels straight into the upload.
+ *
+ * Entries are keyed by the CRC32 of the source file. Source length and modification
+ * time are stored next to it - when both still match (and modification time is known)
+ * the source is not read at all; otherwise it is hashed and compared.
+ *
+ * Only files matching one of the rules (path prefix) are cached. Textures for the
+ * premultiplied alpha pipeline are stored premultiplied (before downscaling, so the
+ * box filter averages premultiplied texels) - the flag is part of the entry, loading
+ * the same file the other way rebuilds it.
+ */
+public class RawTextureCache {
+    public static final String TAG = "RawTextureCache";
+
+    /* "FGRT" */
+    public static final int MAGIC = 0x46475254;
+    public static final int VERSION = 2;
+    /* magic, version, crc, length, modified, maxSize, channel, flags, width, height, format */
+    public static final int HEADER_SIZE = 52;
+    /* Header flags - color multiplied by alpha */
+    public static final int FLAG_PREMULTIPLIED = 1;
+    /* Rule channel value - keep all channels of the source */
+    public static final int KEEP_CHANNELS = -1;
+
+    public static class Rule {
+        /* Files starting with this path use the rule */
+        public final String prefix;
+        /* Longer side limit (power of two steps, 0 - no limit) */
+        public final int maxSize;
+        /* Channel kept (0 - red ... 3 - alpha) or KEEP_CHANNELS */
+        public final int channel;
+
+        public Rule(String prefix, int maxSize, int channel) {
+            this.prefix = prefix;
+            this.maxSize = maxSize;
+            this.channel = channel;
+        }
+    }
+
+    /* Directory with cache files */
+    private final FileHandle directory;
+    /* Rules checked in order */
+    private final Array<Rule> rules;
+    /* Hash the source even if length and modification time match */
+    public boolean verifyContents;
+    /* Statistics (updated from loader threads) */
+    private int hits;
+    private int misses;
+    private long buildTimeNanos;
+
+    //-------------------------------------------------------------------------
+
+    public RawTextureCache(FileHandle directory) {
+        if (directory == null)
+            throw new RuntimeException("Cache directory cannot be NULL!");
+        this.directory = directory;
+        this.rules = new Array<Rule>();
+        this.verifyContents = false;
+        directory.mkdirs();
+    }
+
+    public FileHandle getDirectory() {
+        return directory;
+    }
+
+    public void addRule(String prefix, int maxSize, int channel) {
+        if (channel < KEEP_CHANNELS || channel > 3)
+            throw new RuntimeException("Invalid channel for cache rule: " + channel);
+        rules.add(new Rule(prefix, Math.max(0, maxSize), channel));
+    }
+
+    public Rule findRule(String fileName) {
+        for (int i = 0; i < rules.size; i++) {
+            if (fileName.startsWith(rules.get(i).prefix))
+                return rules.get(i);
+        }
+        return null;
+    }
+
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+    public synchronized float getBuildTime() {
+        return buildTimeNanos / 1000000000.0f;
+    }
+
+    public FileHandle getCacheFile(String fileName) {
+        return directory.child(fileName.replace('/', '_').replace('\\', '_') + ".raw");
+    }
+
+    /**
+     * Removes all cache files.
+     */
+    public void clear() {
+        FileHandle[] files = directory.list(".raw");
+        for (FileHandle file : files)
+            file.delete();
+    }
+
+    //-------------------------------------------------------------------------
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns texture data for the source file - from the cache or freshly built.
+     * Returns null when no rule matches. Safe to call from loader threads (for
+     * different files).
+     */
+    public RawTextureData load(String fileName, FileHandle source, boolean useMipMaps) {
+        return load(fileName, source, useMipMaps, false);
+    }
+
+    /**
+     * Same as load() - with premultiplied set the pixels are stored with color
+     * multiplied by alpha.
+     */
+    public RawTextureData load(String fileName, FileHandle source, boolean useMipMaps, boolean premultiplied) {
+        final Rule rule = findRule(fileName);
+        if (rule == null)
+            return null;
+        final FileHandle cacheFile = getCacheFile(fileName);
+        RawTextureData data = null;
+        if (cacheFile.exists())
+            data = open(cacheFile, source, rule, premultiplied ? FLAG_PREMULTIPLIED : 0, useMipMaps);
+        if (data != null) {
+            synchronized (this) {
+                hits++;
+            }
+            return data;
+        }
+        final long start = TimeUtils.nanoTime();
+        data = build(cacheFile, source, rule, premultiplied ? FLAG_PREMULTIPLIED : 0, useMipMaps);
+        synchronized (this) {
+            misses++;
+            buildTimeNanos += TimeUtils.nanoTime() - start;
+        }
+        return data;
+    }
+
+    /**
+     * Checks the header of the cache file - returns null when it is stale.
+     */
+    private RawTextureData open(FileHandle cacheFile, FileHandle source, Rule rule, int flags,
+                                boolean useMipMaps) {
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(cacheFile.file(), "r");
+            if (input.length() < HEADER_SIZE || input.readInt() != MAGIC || input.readInt() != VERSION)
+                return null;
+            final int crc = input.readInt();
+            final long length = input.readLong();
+            final long modified = input.readLong();
+            if (input.readInt() != rule.maxSize || input.readInt() != rule.channel || input.readInt() != flags)
+                return null;
+            final int width = input.readInt();
+            final int height = input.readInt();
+            final int formatIndex = input.readInt();
+            if (formatIndex < 0 || formatIndex >= Pixmap.Format.values().length)
+                return null;
+            final Pixmap.Format format = Pixmap.Format.values()[formatIndex];
+            if (input.length() < HEADER_SIZE + (long) width * height * RawTextureData.bytesPerPixel(format))
+                return null;
+            final long sourceModified = source.lastModified();
+            final boolean sameStamp = sourceModified != 0 && modified == sourceModified
+                    && length == source.length();
+            if (!sameStamp || verifyContents) {
+                if (crc(source.readBytes()) != crc)
+                    return null;
+            }
+            return new RawTextureData(cacheFile, HEADER_SIZE, width, height, format, useMipMaps);
+        } catch (IOException e) {
+            return null; // rebuilt
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    } // RawTextureData open(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Byte offset of the channel inside a pixel, -1 when the format does not have it.
+     */
+    private static int channelOffset(Pixmap.Format format, int channel) {
+        switch (format) {
+            case RGBA8888:
+                return channel;
+            case RGB888:
+                return channel < 3 ? channel : -1;
+            case LuminanceAlpha:
+                return channel < 3 ? 0 : 1;
+            case Alpha:
+            case Intensity:
+                return channel == 3 ? 0 : -1;
+            default:
+                return -2; // packed formats - not supported
+        }
+    }
+
+    private RawTextureData build(FileHandle cacheFile, FileHandle source, Rule rule, int flags,
+                                 boolean useMipMaps) {
+        final byte[] encoded = source.readBytes();
+        final Pixmap pixmap = new Pixmap(encoded, 0, encoded.length);
+        Pixmap.Format format = pixmap.getFormat();
+        int width = pixmap.getWidth();
+        int height = pixmap.getHeight();
+        final ByteBuffer sourcePixels = pixmap.getPixels();
+        byte[] pixels = new byte[width * height * RawTextureData.bytesPerPixel(format)];
+        sourcePixels.position(0);
+        sourcePixels.get(pixels);
+        sourcePixels.position(0);
+        pixmap.dispose();
+
+        final boolean supported = channelOffset(format, 0) != -2;
+        if (supported && rule.channel != KEEP_CHANNELS) {
+            // one channel stored as luminance and alpha - any mask channel reads it
+            final int bpp = RawTextureData.bytesPerPixel(format);
+            final int offset = channelOffset(format, rule.channel);
+            final byte missing = (byte) (rule.channel == 3 ? 255 : 0);
+            byte[] reduced = new byte[width * height * 2];
+            for (int i = 0, n = width * height; i < n; i++) {
+                final byte value = offset < 0 ? missing : pixels[i * bpp + offset];
+                reduced[i * 2] = value;
+                reduced[i * 2 + 1] = value;
+            }
+            pixels = reduced;
+            format = Pixmap.Format.LuminanceAlpha;
+        }
+        // a single kept channel is a mask value - never premultiplied
+        if (supported && (flags & FLAG_PREMULTIPLIED) != 0 && rule.channel == KEEP_CHANNELS)
+            PremultipliedTextureData.premultiply(pixels, width * height, format);
+        if (supported && rule.maxSize > 0) {
+            final int bpp = RawTextureData.bytesPerPixel(format);
+            while ((width > rule.maxSize || height > rule.maxSize) && width > 1 && height > 1) {
+                // 2x2 box filter
+                final int halfWidth = width / 2;
+                final int halfHeight = height / 2;
+                byte[] half = new byte[halfWidth * halfHeight * bpp];
+                for (int y = 0; y < halfHeight; y++) {
+                    for (int x = 0; x < halfWidth; x++) {
+                        final int i00 = ((y * 2) * width + x * 2) * bpp;
+                        final int i10 = i00 + bpp;
+                        final int i01 = i00 + width * bpp;
+                        final int i11 = i01 + bpp;
+                        for (int c = 0; c < bpp; c++) {
+                            final int sum = (pixels[i00 + c] & 0xff) + (pixels[i10 + c] & 0xff)
+                                    + (pixels[i01 + c] & 0xff) + (pixels[i11 + c] & 0xff);
+                            half[(y * halfWidth + x) * bpp + c] = (byte) ((sum + 2) / 4);
+                        }
+                    }
+                }
+                pixels = half;
+                width = halfWidth;
+                height = halfHeight;
+            }
+        }
+        if (!supported)
+            Gdx.app.debug(TAG, "Format " + format + " cached as is: " + source.path());
+
+        // written next to the target and renamed - readers never see a partial file
+        final FileHandle temporary = cacheFile.sibling(cacheFile.name() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(temporary.write(false), 64 * 1024));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(crc(encoded));
+            output.writeLong(source.length());
+            output.writeLong(source.lastModified());
+            output.writeInt(rule.maxSize);
+            output.writeInt(rule.channel);
+            output.writeInt(flags);
+            output.writeInt(width);
+            output.writeInt(height);
+            output.writeInt(format.ordinal());
+            output.write(pixels);
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't write texture cache: " + cacheFile.path(), e);
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        temporary.moveTo(cacheFile);
+        Gdx.app.debug(TAG, "Cached " + source.path() + " (" + width + "x" + height + " " + format + ", "
+                + pixels.length / 1024 + " KB)");
+        return new RawTextureData(cacheFile, HEADER_SIZE, width, height, format, useMipMaps);
+    } // RawTextureData build(...)
+
+    //-------------------------------------------------------------------------
+} // class RawTextureCache
@@ -0,0 +1,169 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.TextureData;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Texture data stored as raw, uploadable pixels in a file (see RawTextureCache).
+ * prepare() memory-maps the pixel block, consumeCustomData() passes the mapped buffer
+ * straight to glTexImage2D - nothing is decoded or copied on the Java side.
+ *
+ * Managed - after context loss the file is mapped again.
+ */
+public class RawTextureData implements TextureData {
+    /* File with the pixels */
+    private final FileHandle file;
+    /* Position of the first pixel in the file */
+    private final long offset;
+    private final int width;
+    private final int height;
+    private final Pixmap.Format format;
+    private final boolean useMipMaps;
+    /* Mapped pixels (valid between prepare() and upload) */
+    private ByteBuffer pixels;
+
+    //-------------------------------------------------------------------------
+
+    public RawTextureData(FileHandle file, long offset, int width, int height,
+                          Pixmap.Format format, boolean useMipMaps) {
+        if (file == null || format == null)
+            throw new RuntimeException("Raw texture file and format cannot be NULL!");
+        this.file = file;
+        this.offset = offset;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.useMipMaps = useMipMaps;
+        this.pixels = null;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public static int bytesPerPixel(Pixmap.Format format) {
+        if (format == null)
+            return 4;
+        switch (format) {
+            case Alpha:
+            case Intensity:
+                return 1;
+            case LuminanceAlpha:
+            case RGB565:
+            case RGBA4444:
+                return 2;
+            case RGB888:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+    public FileHandle getFile() {
+        return file;
+    }
+
+    /**
+     * Mapped pixels - valid between prepare() and the upload, null otherwise.
+     */
+    public ByteBuffer getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Size of the pixel block in bytes (base level only).
+     */
+    public int getSize() {
+        return width * height * bytesPerPixel(format);
+    }
+
+    //-------------------------------------------------------------------------
+
+    @Override
+    public TextureDataType getType() {
+        return TextureDataType.Custom;
+    }
+
+    @Override
+    public boolean isPrepared() {
+        return pixels != null;
+    }
+
+    @Override
+    public void prepare() {
+        if (pixels != null)
+            throw new RuntimeException("Raw texture data already prepared: " + file.path());
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file.file(), "r");
+            // mapping stays valid after the file is closed
+            pixels = input.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, getSize());
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't map raw texture: " + file.path(), e);
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    @Override
+    public Pixmap consumePixmap() {
+        throw new RuntimeException("Raw texture data does not return a pixmap");
+    }
+
+    @Override
+    public boolean disposePixmap() {
+        throw new RuntimeException("Raw texture data does not return a pixmap");
+    }
+
+    @Override
+    public void consumeCustomData(int target) {
+        if (pixels == null)
+            throw new RuntimeException("Call prepare() before uploading raw texture: " + file.path());
+        final int glFormat = Pixmap.Format.toGlFormat(format);
+        Gdx.gl.glPixelStorei(GL20.GL_UNPACK_ALIGNMENT, 1);
+        Gdx.gl.glTexImage2D(target, 0, glFormat, width, height, 0,
+                glFormat, Pixmap.Format.toGlType(format), pixels);
+        if (useMipMaps)
+            Gdx.gl.glGenerateMipmap(target);
+        pixels = null; // unmapped when collected
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public Pixmap.Format getFormat() {
+        return format;
+    }
+
+    @Override
+    public boolean useMipMaps() {
+        return useMipMaps;
+    }
+
+    @Override
+    public boolean isManaged() {
+        return true;
+    }
+
+    //-------------------------------------------------------------------------
+} // class RawTextureData
@@ -0,0 +1,184 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.Pixmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Offline converter of bitmap masks into small signed distance field masks.
+ * Exact-ish euclidean distances are computed at the source resolution (8SSEDT -
+ * two sweeps propagating nearest seed offsets), then the field is resampled to the
+ * target size. Distances are stored as 0.5 - d / (2 * spread) - 0.5 is the edge,
+ * inside is brighter - in all four channels, so the result can be loaded as RGBA
+ * or as Alpha (smallest) texture.
+ *
+ * Edges are reconstructed with LayerInfo.sdfSpread set to the same spread value
+ * (SDF shader variant) - sharp at any magnification.
+ */
+public class SdfMaskGenerator {
+    public static final int DEFAULT_SIZE = 128;
+    public static final float DEFAULT_SPREAD = 4.0f;
+
+    /* Marker for cells without known nearest seed */
+    private static final int FAR = 9999;
+
+    /* Size of the longer side of the generated mask (aspect ratio is kept) */
+    public int size;
+    /* Distance (in generated texels) mapped to the full 0.0 - 1.0 range */
+    public float spread;
+    /* Channel of the source mask (0 - red, 1 - green, 2 - blue, 3 - alpha) */
+    public int channel;
+    /* Source values above threshold (0.0 - 1.0) are inside */
+    public float threshold;
+
+    //-------------------------------------------------------------------------
+
+    public SdfMaskGenerator() {
+        this(DEFAULT_SIZE, DEFAULT_SPREAD);
+    }
+
+    public SdfMaskGenerator(int size, float spread) {
+        if (size <= 0 || spread <= 0.0f)
+            throw new RuntimeException("Invalid SDF size/spread: " + size + " / " + spread);
+        this.size = size;
+        this.spread = spread;
+        this.channel = 0;
+        this.threshold = 0.5f;
+    }
+
+    //-------------------------------------------------------------------------
+
+    private static void compare(int[] dx, int[] dy, int width, int height,
+                                int index, int x, int y, int offsetX, int offsetY) {
+        final int ox = x + offsetX;
+        final int oy = y + offsetY;
+        if (ox < 0 || oy < 0 || ox >= width || oy >= height)
+            return;
+        final int other = oy * width + ox;
+        if (dx[other] == FAR)
+            return;
+        final int ndx = dx[other] + offsetX;
+        final int ndy = dy[other] + offsetY;
+        final int current = dx[index] == FAR ? Integer.MAX_VALUE
+                : dx[index] * dx[index] + dy[index] * dy[index];
+        if (ndx * ndx + ndy * ndy < current) {
+            dx[index] = ndx;
+            dy[index] = ndy;
+        }
+    }
+
+    /**
+     * Returns distances to the nearest seed cell for every cell (0.0 for seeds).
+     */
+    private static float[] sweep(boolean[] seeds, int width, int height) {
+        final int n = width * height;
+        final int[] dx = new int[n];
+        final int[] dy = new int[n];
+        for (int i = 0; i < n; i++) {
+            dx[i] = seeds[i] ? 0 : FAR;
+            dy[i] = seeds[i] ? 0 : FAR;
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int index = y * width + x;
+                compare(dx, dy, width, height, index, x, y, -1, 0);
+                compare(dx, dy, width, height, index, x, y, 0, -1);
+                compare(dx, dy, width, height, index, x, y, -1, -1);
+                compare(dx, dy, width, height, index, x, y, 1, -1);
+            }
+            for (int x = width - 1; x >= 0; x--)
+                compare(dx, dy, width, height, y * width + x, x, y, 1, 0);
+        }
+        for (int y = height - 1; y >= 0; y--) {
+            for (int x = width - 1; x >= 0; x--) {
+                final int index = y * width + x;
+                compare(dx, dy, width, height, index, x, y, 1, 0);
+                compare(dx, dy, width, height, index, x, y, 0, 1);
+                compare(dx, dy, width, height, index, x, y, -1, 1);
+                compare(dx, dy, width, height, index, x, y, 1, 1);
+            }
+            for (int x = 0; x < width; x++)
+                compare(dx, dy, width, height, y * width + x, x, y, -1, 0);
+        }
+        final float[] distance = new float[n];
+        for (int i = 0; i < n; i++) {
+            distance[i] = dx[i] == FAR ? FAR
+                    : (float) Math.sqrt(dx[i] * dx[i] + dy[i] * dy[i]);
+        }
+        return distance;
+    } // float[] sweep(...)
+
+    /**
+     * Signed distance in source pixels for every source pixel (negative inside).
+     */
+    public float[] distanceField(Pixmap source) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final boolean[] inside = new boolean[width * height];
+        final boolean[] outside = new boolean[width * height];
+        final int shift = 24 - 8 * channel; // getPixel() returns RGBA8888
+        final int limit = Math.round(threshold * 255.0f);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int value = (source.getPixel(x, y) >>> shift) & 0xff;
+                inside[y * width + x] = value > limit;
+                outside[y * width + x] = !inside[y * width + x];
+            }
+        }
+        final float[] toInside = sweep(inside, width, height);
+        final float[] toOutside = sweep(outside, width, height);
+        final float[] field = new float[width * height];
+        for (int i = 0; i < field.length; i++)
+            field[i] = toInside[i] - toOutside[i];
+        return field;
+    }
+
+    private static float sampleField(float[] field, int width, int height, float x, float y) {
+        x = Math.max(0.0f, Math.min(width - 1.0f, x));
+        y = Math.max(0.0f, Math.min(height - 1.0f, y));
+        final int x0 = (int) x;
+        final int y0 = (int) y;
+        final int x1 = Math.min(x0 + 1, width - 1);
+        final int y1 = Math.min(y0 + 1, height - 1);
+        final float fx = x - x0;
+        final float fy = y - y0;
+        final float top = field[y0 * width + x0] * (1.0f - fx) + field[y0 * width + x1] * fx;
+        final float bottom = field[y1 * width + x0] * (1.0f - fx) + field[y1 * width + x1] * fx;
+        return top * (1.0f - fy) + bottom * fy;
+    }
+
+    /**
+     * Generates the SDF mask (RGBA8888) - caller owns the pixmap.
+     */
+    public Pixmap generate(Pixmap source) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final float[] field = distanceField(source);
+        // same step on both axes - distances stay isotropic
+        final int resultWidth = width >= height ? size : Math.max(1, Math.round((float) size * width / height));
+        final int resultHeight = width >= height ? Math.max(1, Math.round((float) size * height / width)) : size;
+        final Pixmap result = new Pixmap(resultWidth, resultHeight, Pixmap.Format.RGBA8888);
+        // written directly - drawPixel() would blend with the empty pixmap
+        final ByteBuffer pixels = result.getPixels();
+        final float stepX = (float) width / resultWidth;
+        final float stepY = (float) height / resultHeight;
+        for (int y = 0; y < resultHeight; y++) {
+            for (int x = 0; x < resultWidth; x++) {
+                // distance in source pixels -> generated texels
+                final float d = sampleField(field, width, height,
+                        (x + 0.5f) * stepX - 0.5f, (y + 0.5f) * stepY - 0.5f) / stepX;
+                float value = 0.5f - d / (2.0f * spread);
+                value = Math.max(0.0f, Math.min(1.0f, value));
+                final byte v = (byte) Math.round(value * 255.0f);
+                final int base = (y * resultWidth + x) * 4;
+                pixels.put(base, v);
+                pixels.put(base + 1, v);
+                pixels.put(base + 2, v);
+                pixels.put(base + 3, v);
+            }
+        }
+        return result;
+    } // Pixmap generate(...)
+
+    //-------------------------------------------------------------------------
+} // class SdfMaskGenerator
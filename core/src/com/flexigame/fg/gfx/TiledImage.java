@@ -0,0 +1,124 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.files.FileHandle;
+
+/**
+ * Image too big for one texture, split into square pages (tiles) stored as separate
+ * files in one directory - see TiledLayer. Every page has a border of texels copied
+ * from its neighbours, so bilinear filtering does not show seams between pages.
+ * The directory holds the pages (column_row.png) and a descriptor (tiles.txt) with
+ * the image size, page size and border.
+ */
+public class TiledImage {
+    public static final String DESCRIPTOR_NAME = "tiles.txt";
+
+    /* Directory with the pages (asset path) */
+    private final String directory;
+    /* Size of the whole image (texels) */
+    private final int width;
+    private final int height;
+    /* Size of the page without the border (texels) */
+    private final int tileSize;
+    /* Texels copied from the neighbouring pages on each side */
+    private final int border;
+    private final int columns;
+    private final int rows;
+    /* Page asset paths (row major) - no strings built while drawing */
+    private final String[] paths;
+
+    //-------------------------------------------------------------------------
+
+    public TiledImage(String directory, int width, int height, int tileSize, int border) {
+        if (width <= 0 || height <= 0 || tileSize <= 0 || border < 0 || border >= tileSize)
+            throw new RuntimeException("Invalid tiled image: " + width + "x" + height
+                    + ", tile " + tileSize + ", border " + border);
+        this.directory = directory;
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.border = border;
+        this.columns = (width + tileSize - 1) / tileSize;
+        this.rows = (height + tileSize - 1) / tileSize;
+        this.paths = new String[columns * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++)
+                paths[row * columns + column] = getPageName(directory, column, row);
+        }
+    }
+
+    public static String getPageName(String directory, int column, int row) {
+        return directory + "/" + column + "_" + row + ".png";
+    }
+
+    /**
+     * Reads the descriptor from the directory (directory is also the asset path
+     * of the pages).
+     */
+    public static TiledImage load(FileHandle directory, String assetPath) {
+        FileHandle file = directory.child(DESCRIPTOR_NAME);
+        if (!file.exists())
+            throw new RuntimeException("Tiled image descriptor not found: " + file.path());
+        String[] values = file.readString("UTF-8").trim().split("\\s+");
+        if (values.length < 4)
+            throw new RuntimeException("Invalid tiled image descriptor: " + file.path());
+        try {
+            return new TiledImage(assetPath,
+                    Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+                    Integer.parseInt(values[2]), Integer.parseInt(values[3]));
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Invalid tiled image descriptor: " + file.path(), e);
+        }
+    }
+
+    public void save(FileHandle directory) {
+        directory.child(DESCRIPTOR_NAME).writeString(
+                width + " " + height + " " + tileSize + " " + border + "\n", false, "UTF-8");
+    }
+
+    //-------------------------------------------------------------------------
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getBorder() {
+        return border;
+    }
+
+    /**
+     * Size of the page texture (tile with borders).
+     */
+    public int getPageSize() {
+        return tileSize + 2 * border;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getPageCount() {
+        return paths.length;
+    }
+
+    public String getPagePath(int column, int row) {
+        return paths[row * columns + column];
+    }
+
+    //-------------------------------------------------------------------------
+} // class TiledImage
@@ -0,0 +1,314 @@
+package com.flexigame.fg.gfx;
+
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.g2d.TextureRegion;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.math.Vector3;
+
+/**
+ * Layer showing a window into an image far bigger than a texture (TiledImage). The
+ * window is sampled the same way as a regular layer texture - scrolled with the
+ * offset (moveOffsetByPixels, one texel per pixel), scaled with the mask scale - only
+ * the texels come from pages streamed through the LayerPageCache. Pages under the
+ * part of the layer which is on screen (after rotation and scale) are drawn, pages
+ * within the prefetch margin around it are loaded ahead.
+ *
+ * Every page is drawn as a separate piece of the layer quad with the masking shader -
+ * the piece's texture coordinates are remapped back to the whole quad for the mask
+ * (u_maskRect), so the mask stays in place over all pieces. Pages still loading are
+ * left out. Tiled layers are drawn only on the sprite batch path.
+ */
+public class TiledLayer extends LayerInfo {
+    /* Max number of pieces along one axis */
+    public static final int MAX_PIECES = 64;
+
+    private TiledImage image;
+    private LayerPageCache pageCache;
+    /* Texel of the image in the top left corner of the window at zero offset */
+    public final Vector2 origin;
+    /* Repeat the image in all directions (endless scrolling) */
+    public boolean wrap;
+    /* Pages this far (texels) around the visible part are loaded ahead */
+    public float prefetchMargin;
+    /* Pieces along x and y - page index, piece range within the page and the window */
+    private int[] pageX;
+    private float[] fromX;
+    private float[] windowX;
+    private int[] pageY;
+    private float[] fromY;
+    private float[] windowY;
+    private float[] lengthX;
+    private float[] lengthY;
+    /* Part of the quad on screen (quad UV, v down) */
+    private float visibleU0, visibleV0, visibleU1, visibleV1;
+    /* Helpers */
+    private TextureRegion region;
+    private Matrix4 tmpMatrix;
+    private Vector3 tmpCorner;
+    private Vector2 tmpVector;
+    /* Statistics of the last draw */
+    private int drawnPieces;
+    private int missingPieces;
+
+    //-------------------------------------------------------------------------
+
+    public TiledLayer(TiledImage image, LayerPageCache pageCache) {
+        super();
+        if (image == null || pageCache == null)
+            throw new RuntimeException("Tiled layer needs an image and a page cache!");
+        this.image = image;
+        this.pageCache = pageCache;
+        this.origin = new Vector2(0.0f, 0.0f);
+        this.wrap = true;
+        this.prefetchMargin = image.getTileSize() / 2.0f;
+        this.size.set(image.getTileSize(), image.getTileSize());
+        this.offsetMode = Mode.MASK_ONLY; // offset scrolls the window, quad stays
+        this.pageX = new int[MAX_PIECES];
+        this.fromX = new float[MAX_PIECES];
+        this.windowX = new float[MAX_PIECES];
+        this.lengthX = new float[MAX_PIECES];
+        this.pageY = new int[MAX_PIECES];
+        this.fromY = new float[MAX_PIECES];
+        this.windowY = new float[MAX_PIECES];
+        this.lengthY = new float[MAX_PIECES];
+        this.region = new TextureRegion();
+        this.tmpMatrix = new Matrix4();
+        this.tmpCorner = new Vector3();
+        this.tmpVector = new Vector2();
+        this.drawnPieces = 0;
+        this.missingPieces = 0;
+    }
+
+    //-------------------------------------------------------------------------
+
+    public TiledImage getImage() {
+        return image;
+    }
+
+    public LayerPageCache getPageCache() {
+        return pageCache;
+    }
+
+    public int getDrawnPieces() {
+        return drawnPieces;
+    }
+
+    /**
+     * Pieces left out in the last draw because their pages were still loading.
+     */
+    public int getMissingPieces() {
+        return missingPieces;
+    }
+
+    @Override
+    public boolean isDrawable() {
+        return visible && quality != Quality.SKIPPED;
+    }
+
+    @Override
+    boolean isBatchOnly() {
+        return true;
+    }
+
+    /**
+     * Scale and offset are applied to the piece coordinates on the CPU - the shader
+     * only remaps the mask.
+     */
+    @Override
+    public int getShaderFeatures() {
+        int features = super.getShaderFeatures()
+                & ~(LayerShaderCache.FEATURE_SCALE | LayerShaderCache.FEATURE_OFFSET);
+        if (features != 0)
+            features |= LayerShaderCache.FEATURE_MASK_RECT;
+        return features;
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Finds the part of the quad which is on screen - screen corners are taken into
+     * the quad space (inverse rotation), their bounds are clipped to the quad.
+     */
+    private boolean findVisibleRect(SpriteBatch batch, float centerX, float centerY,
+                                    float quadWidth, float quadHeight) {
+        tmpMatrix.set(batch.getProjectionMatrix());
+        if (tmpMatrix.det() == 0.0f) {
+            visibleU0 = visibleV0 = 0.0f;
+            visibleU1 = visibleV1 = 1.0f;
+            return true;
+        }
+        tmpMatrix.inv();
+        final float rotation = getDrawnRotation();
+        final float cos = MathUtils.cosDeg(rotation);
+        final float sin = MathUtils.sinDeg(rotation);
+        float minU = Float.MAX_VALUE, minV = Float.MAX_VALUE;
+        float maxU = -Float.MAX_VALUE, maxV = -Float.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            tmpCorner.set(i == 0 || i == 3 ? -1.0f : 1.0f, i < 2 ? -1.0f : 1.0f, 0.0f).prj(tmpMatrix);
+            final float dx = tmpCorner.x - centerX;
+            final float dy = tmpCorner.y - centerY;
+            final float u = (dx * cos + dy * sin) / quadWidth + 0.5f;
+            final float v = 0.5f - (-dx * sin + dy * cos) / quadHeight; // v goes down
+            minU = Math.min(minU, u);
+            maxU = Math.max(maxU, u);
+            minV = Math.min(minV, v);
+            maxV = Math.max(maxV, v);
+        }
+        visibleU0 = MathUtils.clamp(minU, 0.0f, 1.0f);
+        visibleU1 = MathUtils.clamp(maxU, 0.0f, 1.0f);
+        visibleV0 = MathUtils.clamp(minV, 0.0f, 1.0f);
+        visibleV1 = MathUtils.clamp(maxV, 0.0f, 1.0f);
+        return visibleU1 > visibleU0 && visibleV1 > visibleV0;
+    }
+
+    /**
+     * Splits a range of image texels along one axis into pieces covered by single pages.
+     * Returns number of pieces - page index, start within the page, start relative
+     * to the range and length go to the arrays.
+     */
+    private int splitAxis(float start, float end, int imageSize, int pages,
+                          int[] page, float[] from, float[] offset, float[] length) {
+        final int tileSize = image.getTileSize();
+        int count = 0;
+        float position = start;
+        while (position < end && count < MAX_PIECES) {
+            final int repeat = MathUtils.floor(position / imageSize);
+            if (!wrap && repeat < 0) {
+                position = 0.0f; // nothing left of the image
+                continue;
+            }
+            if (!wrap && repeat > 0)
+                break;
+            final float local = position - repeat * imageSize;
+            final int index = Math.min((int) (local / tileSize), pages - 1);
+            final float pieceEnd = Math.min(Math.min((index + 1) * tileSize, imageSize),
+                    end - repeat * imageSize);
+            if (pieceEnd <= local)
+                break; // rounding at the very end
+            page[count] = index;
+            from[count] = local - index * tileSize;
+            offset[count] = position - start;
+            length[count] = pieceEnd - local;
+            count++;
+            position += pieceEnd - local;
+        }
+        return count;
+    } // int splitAxis(...)
+
+    private void prefetch(float x0, float y0, float x1, float y1) {
+        final int tileSize = image.getTileSize();
+        final int columnStart = MathUtils.floor(x0 / tileSize);
+        final int columnEnd = MathUtils.floor(x1 / tileSize);
+        final int rowStart = MathUtils.floor(y0 / tileSize);
+        final int rowEnd = MathUtils.floor(y1 / tileSize);
+        // repeats of a small image would be requested many times - limit to one pass
+        final int columns = Math.min(columnEnd - columnStart + 1, image.getColumns());
+        final int rows = Math.min(rowEnd - rowStart + 1, image.getRows());
+        for (int r = 0; r < rows; r++) {
+            int row = rowStart + r;
+            if (wrap)
+                row = ((row % image.getRows()) + image.getRows()) % image.getRows();
+            else if (row < 0 || row >= image.getRows())
+                continue;
+            for (int c = 0; c < columns; c++) {
+                int column = columnStart + c;
+                if (wrap)
+                    column = ((column % image.getColumns()) + image.getColumns()) % image.getColumns();
+                else if (column < 0 || column >= image.getColumns())
+                    continue;
+                pageCache.prefetch(image, column, row);
+            }
+        }
+    } // void prefetch(...)
+
+    /**
+     * Draws visible pages as pieces of the layer quad.
+     */
+    @Override
+    public void draw(SpriteBatch batch, LayerRenderContext renderContext) {
+        drawnPieces = 0;
+        missingPieces = 0;
+        if (!isDrawable() || occluded || batch == null)
+            return;
+        resolveOffsets();
+        updateSampling(batch, renderContext);
+        final float layerScale = getLayerScale();
+        final float quadWidth = size.x * layerScale;
+        final float quadHeight = size.y * layerScale;
+        if (quadWidth <= 0.0f || quadHeight <= 0.0f)
+            return;
+        getRealPosition(tmpVector);
+        final float quadX = tmpVector.x;
+        final float quadY = tmpVector.y;
+
+        // window of the image sampled by the quad - same UV math as the shader
+        final float scale = getMaskScale();
+        getMaskOffset(tmpVector);
+        final float windowLeft = origin.x + size.x * ((1.0f - scale) / 2.0f + tmpVector.x);
+        final float windowTop = origin.y + size.y * ((1.0f - scale) / 2.0f + tmpVector.y);
+        final float windowWidth = size.x * scale;
+        final float windowHeight = size.y * scale;
+
+        if (!findVisibleRect(batch, quadX + quadWidth / 2.0f, quadY + quadHeight / 2.0f, quadWidth, quadHeight))
+            return;
+        final float x0 = windowLeft + visibleU0 * windowWidth;
+        final float x1 = windowLeft + visibleU1 * windowWidth;
+        final float y0 = windowTop + visibleV0 * windowHeight;
+        final float y1 = windowTop + visibleV1 * windowHeight;
+        prefetch(x0 - prefetchMargin, y0 - prefetchMargin, x1 + prefetchMargin, y1 + prefetchMargin);
+
+        final int countX = splitAxis(x0, x1, image.getWidth(), image.getColumns(), pageX, fromX, windowX, lengthX);
+        final int countY = splitAxis(y0, y1, image.getHeight(), image.getRows(), pageY, fromY, windowY, lengthY);
+        if (countX == 0 || countY == 0)
+            return;
+
+        final ShaderProgram shader = batch.getShader();
+        setMaskUniforms(shader, renderContext, 1.0f, 0.0f, 0.0f);
+        final int maskRect = shader.fetchUniformLocation("u_maskRect", false);
+        final float border = image.getBorder();
+        final float pageSize = image.getPageSize();
+        final float originX = quadWidth / 2.0f;
+        final float originY = quadHeight / 2.0f;
+        final float rotation = getDrawnRotation();
+        for (int j = 0; j < countY; j++) {
+            // piece in quad UV (v down)
+            final float v0 = (y0 - windowTop + windowY[j]) / windowHeight;
+            final float v1 = v0 + lengthY[j] / windowHeight;
+            final float pageV0 = (fromY[j] + border) / pageSize;
+            final float pageV1 = (fromY[j] + lengthY[j] + border) / pageSize;
+            for (int i = 0; i < countX; i++) {
+                final Texture page = pageCache.get(image, pageX[i], pageY[j]);
+                if (page == null) {
+                    missingPieces++;
+                    continue;
+                }
+                final float u0 = (x0 - windowLeft + windowX[i]) / windowWidth;
+                final float u1 = u0 + lengthX[i] / windowWidth;
+                final float pageU0 = (fromX[i] + border) / pageSize;
+                final float pageU1 = (fromX[i] + lengthX[i] + border) / pageSize;
+                // page coordinates of the piece -> quad coordinates for the mask
+                final float ku = (u1 - u0) / (pageU1 - pageU0);
+                final float kv = (v1 - v0) / (pageV1 - pageV0);
+                shader.setUniformf(maskRect, u0 - pageU0 * ku, v0 - pageV0 * kv, ku, kv);
+                region.setTexture(page);
+                region.setRegion(pageU0, pageV0, pageU1, pageV1);
+                final float pieceX = quadX + u0 * quadWidth;
+                final float pieceY = quadY + (1.0f - v1) * quadHeight;
+                // rotated around the center of the whole quad
+                batch.draw(region, pieceX, pieceY,
+                        quadX + originX - pieceX, quadY + originY - pieceY,
+                        (u1 - u0) * quadWidth, (v1 - v0) * quadHeight,
+                        1.0f, 1.0f, rotation);
+                batch.flush(); // mask rect changes with every piece
+                drawnPieces++;
+            }
+        }
+        shader.setUniformf(maskRect, 0.0f, 0.0f, 1.0f, 1.0f); // generic program is shared
+    } // void draw(...)
+
+    //-------------------------------------------------------------------------
+} // class TiledLayer
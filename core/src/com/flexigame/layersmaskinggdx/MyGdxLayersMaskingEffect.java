@@ -1,20 +1,32 @@
 package com.flexigame.layersmaskinggdx;
 
 import com.badlogic.gdx.*;
-import com.badlogic.gdx.assets.AssetManager;
 import com.badlogic.gdx.assets.loaders.TextureLoader;
+import com.badlogic.gdx.files.FileHandle;
 import com.badlogic.gdx.graphics.Camera;
 import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.OrthographicCamera;
+import com.badlogic.gdx.graphics.Pixmap;
 import com.badlogic.gdx.graphics.Texture;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
-import com.badlogic.gdx.math.Interpolation;
+import com.badlogic.gdx.math.Vector2;
 import com.badlogic.gdx.utils.Scaling;
 import com.badlogic.gdx.utils.viewport.ScalingViewport;
 import com.badlogic.gdx.utils.viewport.Viewport;
+import com.flexigame.fg.gfx.FrameProfiler;
+import com.flexigame.fg.gfx.LayerBindings;
+import com.flexigame.fg.gfx.LayerContextRestorer;
+import com.flexigame.fg.gfx.LayerEffectSnapshot;
 import com.flexigame.fg.gfx.LayerInfo;
 import com.flexigame.fg.gfx.LayerMaskingEffect;
 import com.flexigame.fg.gfx.LayerMaskingEffectDrawer;
+import com.flexigame.fg.gfx.LayerProperty;
+import com.flexigame.fg.gfx.LayerRenderContext;
+import com.flexigame.fg.gfx.ParallelAssetManager;
+import com.flexigame.fg.gfx.ProceduralMask;
+import com.flexigame.fg.gfx.QualityGovernor;
+import com.flexigame.fg.gfx.RawTextureCache;
+import com.flexigame.fg.gfx.SdfMaskGenerator;
 
 public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements InputProcessor {
     protected static final String APP_NAME_ID = "LayersMaskingEffect";
@@ -52,14 +64,15 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
 
     public static final int NUM_LAYER_EFFECTS = 7;
 
-    protected AssetManager assetManager;
+    /* Decodes textures on worker threads, uploads on the render thread */
+    protected ParallelAssetManager assetManager;
     LayerMaskingEffectDrawer layersDrawer;
+    LayerRenderContext renderContext;
     LayerMaskingEffect[] layerEffects;
     SpriteBatch spriteBatch;
     Camera camera;
     Viewport viewport;
 
-    float offsetValue = -1.0f;
     float offsetRatio = 0.0f;
     float offsetDirection = 1.0f;
     float offsetSpeed = 0.25f;
@@ -68,15 +81,72 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
 
     int CURRENT_EFFECT_ID = 0;
 
-    Interpolation interpolation = Interpolation.sine;
+    /* Inputs of the bindings of the first effect - the sweep moves its layers */
+    static final String INPUT_SWEEP = "sweep";
+    static final String INPUT_WIDTH = "width";
+    int sweepSlot = -1;
+    int widthSlot = -1;
+    /* Touch position in world units */
+    Vector2 touchPoint = new Vector2();
 
     int SELECTED_LAYER_ID = 0;
 
+    /* Analytic replacements for ring_0 - ring_3 masks (rings effect [1]) */
+    ProceduralMask[] proceduralRings = new ProceduralMask[]{
+            ProceduralMask.ring(0.40f, 0.08f),
+            ProceduralMask.ring(0.375f, 0.13f),
+            ProceduralMask.ring(0.42f, 0.06f),
+            ProceduralMask.ring(0.43f, 0.05f)};
+    boolean useProceduralRings = false;
+
+    /* Effects using shape masks with SDF versions (masks/sdf - SdfMaskLauncher) */
+    int[] sdfEffects = new int[]{2, 3, 5};
+    String[] sdfMaskNames = new String[]{"text_0", "earth_0", "lion_1"};
+    boolean useSdfMasks = false;
+
+    /* Frame times and jank of the render loop (T key writes the trace) */
+    FrameProfiler profiler = new FrameProfiler();
+
+    /* Effect state saved in pause() - effects continue where they were */
+    LayerEffectSnapshot effectSnapshot = new LayerEffectSnapshot();
+    /* Effects saved in pause() and restored in create() (null - only on Android) */
+    Boolean persistEffects = null;
+    /* Texture cache, effect snapshot and frame trace (null - default location) */
+    FileHandle storageDirectory = null;
+
+    /* Rebuilds GL state after context loss - visible effect first */
+    LayerContextRestorer contextRestorer;
+
+    /* Reduces quality of less important layers when frames take too long (Q key) */
+    QualityGovernor qualityGovernor;
+    /* Lower resolution masks are this many times smaller */
+    static final int LOW_RES_MASK_DIVISOR = 4;
+    /* Layer textures are premultiplied when loaded (masks are not) */
+    public static final String PREMULTIPLIED_PREFIX = "layers/";
+
+    public LayerMaskingEffectDrawer getLayersDrawer() {
+        return layersDrawer;
+    }
+
+    public LayerContextRestorer getContextRestorer() {
+        return contextRestorer;
+    }
+
+    public QualityGovernor getQualityGovernor() {
+        return qualityGovernor;
+    }
+
+    public LayerMaskingEffect getLayerEffect(int index) {
+        if (index < 0 || index >= NUM_LAYER_EFFECTS)
+            return null;
+        return layerEffects[index];
+    }
+
     public void nextLayerEffect() {
         CURRENT_EFFECT_ID++;
         if (CURRENT_EFFECT_ID >= NUM_LAYER_EFFECTS)
             CURRENT_EFFECT_ID = 0;
-        this.layersDrawer.showOnly(CURRENT_EFFECT_ID);
+        this.layersDrawer.transitionTo(CURRENT_EFFECT_ID);
         SELECTED_LAYER_ID = 0;
     }
 
@@ -85,7 +155,7 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
         if (CURRENT_EFFECT_ID < 0) {
             CURRENT_EFFECT_ID = NUM_LAYER_EFFECTS - 1;
         }
-        this.layersDrawer.showOnly(CURRENT_EFFECT_ID);
+        this.layersDrawer.transitionTo(CURRENT_EFFECT_ID);
         SELECTED_LAYER_ID = 0;
     }
 
@@ -99,8 +169,12 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
         for (int i = 0; i < 10; i++)
             layerEffects[i] = null;
 
-        assetManager = new AssetManager();
+        assetManager = new ParallelAssetManager();
         Texture.setAssetManager(assetManager);
+        RawTextureCache textureCache = new RawTextureCache(getTextureCacheDirectory());
+        addTextureCacheRules(textureCache);
+        assetManager.setTextureCache(textureCache);
+        assetManager.addPremultipliedPrefix(PREMULTIPLIED_PREFIX);
 
         TextureLoader.TextureParameter params = new TextureLoader.TextureParameter();
         params.genMipMaps = false;
@@ -109,10 +183,13 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
         params.wrapU = Texture.TextureWrap.MirroredRepeat;
         params.wrapV = Texture.TextureWrap.MirroredRepeat;
 
-        assetManager.load("white.tga", Texture.class); // just white pixels (easier to use)
-        assetManager.load("black.tga", Texture.class); // just black pixels
+        assetManager.loadTexture("white.tga"); // just white pixels (easier to use)
+        assetManager.loadTexture("black.tga"); // just black pixels
 
-        layersDrawer = new LayerMaskingEffectDrawer(assetManager);
+        // drawers created with the same context share batch, shaders and bindings
+        renderContext = new LayerRenderContext();
+        renderContext.setPremultipliedAlpha(true);
+        layersDrawer = new LayerMaskingEffectDrawer(assetManager, renderContext);
 
         for (int i = 0; i < NUM_LAYER_EFFECTS; i++) {
             int index = i + 1;
@@ -121,59 +198,235 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
         }
 
         spriteBatch = layersDrawer.getSpriteBatch();
+        layersDrawer.setProfiler(profiler);
+        contextRestorer = new LayerContextRestorer(layersDrawer);
         viewport = new ScalingViewport(Scaling.stretch,
                 this.getBaseScreenWidth(), getBaseScreenHeight(),
                 new OrthographicCamera());
         viewport.update(getWidth(), getHeight(), true);
         camera = viewport.getCamera();
 
-        loadTextures(params);
+        // rings effect pulses down to 0.25 - textures need mip chains for that
+        TextureLoader.TextureParameter mipMapParams = new TextureLoader.TextureParameter();
+        mipMapParams.genMipMaps = true;
+        mipMapParams.magFilter = Texture.TextureFilter.Linear;
+        mipMapParams.minFilter = Texture.TextureFilter.MipMapLinearLinear;
+        mipMapParams.wrapU = Texture.TextureWrap.MirroredRepeat;
+        mipMapParams.wrapV = Texture.TextureWrap.MirroredRepeat;
+
+        loadTextures(params, mipMapParams);
 
-        initializeLayers();
+        if (!isPersistingEffects() || !restoreEffects())
+            initializeLayers();
+        setupQualityGovernor();
+        setupDepthPrepass();
+        setupBindings();
 
         Gdx.input.setCatchBackKey(true);
         Gdx.input.setInputProcessor(this);
     } // void create()
 
-    public void loadTextures(TextureLoader.TextureParameter params) {
-        assetManager.load("layers/2_512.jpg", Texture.class, params);
-        assetManager.load("layers/3_512.jpg", Texture.class, params);
-        assetManager.load("layers/4_512.jpg", Texture.class, params);
+    /**
+     * First layer of every effect is its base - reduced only after all the others.
+     * Every quality decision is logged.
+     */
+    public void setupQualityGovernor() {
+        for (int i = 0; i < NUM_LAYER_EFFECTS; i++) {
+            if (layerEffects[i].count() > 0)
+                layerEffects[i].get(0).priority = 1;
+        }
+        final int created = layersDrawer.createLowResMasks(LOW_RES_MASK_DIVISOR);
+        Gdx.app.debug(APP_NAME_ID, "Created " + created + " lower resolution masks");
+        qualityGovernor = new QualityGovernor();
+        qualityGovernor.setListener(new QualityGovernor.Listener() {
+            @Override
+            public void qualityChanged(LayerMaskingEffect effect, LayerInfo layerInfo,
+                                       LayerInfo.Quality previous, float averageFrameTime) {
+                Gdx.app.debug(APP_NAME_ID, "Quality of " + effect.getName() + " layer "
+                        + effect.getLayerInfoArray().indexOf(layerInfo, true) + ": " + previous
+                        + " -> " + layerInfo.quality + String.format(" (%.2f ms)", averageFrameTime * 1000.0f));
+            }
+        });
+        layersDrawer.setQualityGovernor(qualityGovernor);
+    }
 
-        assetManager.load("layers/6_512.tga", Texture.class, params);
-        assetManager.load("layers/7_512.tga", Texture.class, params);
-        assetManager.load("layers/8_512.tga", Texture.class, params);
-        assetManager.load("layers/9_512.tga", Texture.class, params);
+    /**
+     * Layers of the first effect follow the sweep (sine eased from -1 to 1) with
+     * different amplitudes - the sweep itself is app state (saved in pause()).
+     */
+    public void setupBindings() {
+        if (layerEffects[0].count() < 3)
+            return;
+        LayerBindings bindings = layerEffects[0].createBindings();
+        sweepSlot = bindings.addInput(INPUT_SWEEP);
+        widthSlot = bindings.addInput(INPUT_WIDTH);
+        bindings.bind(layerEffects[0].get(0), LayerProperty.OFFSET_Y, "-width * cos(sweep * pi) / arg", 2.0f);
+        bindings.bind(layerEffects[0].get(1), LayerProperty.OFFSET_Y, "-width * cos(sweep * pi) / arg", -1.75f);
+        bindings.bind(layerEffects[0].get(2), LayerProperty.OFFSET_Y, "-width * cos(sweep * pi) / arg", 3.5f);
+    }
 
-        assetManager.load("layers/10_512.tga", Texture.class, params);
-        assetManager.load("layers/11_512.tga", Texture.class, params);
-        assetManager.load("layers/12_512.tga", Texture.class, params);
+    /**
+     * Touch goes to the bindings of all effects.
+     */
+    void setTouchInputs(int screenX, int screenY, boolean touching) {
+        touchPoint.set(screenX, screenY);
+        viewport.unproject(touchPoint);
+        for (int i = 0; i < NUM_LAYER_EFFECTS; i++) {
+            if (layerEffects[i].getBindings() != null)
+                layerEffects[i].getBindings().setTouch(touchPoint.x, touchPoint.y, touching);
+        }
+    }
 
-        assetManager.load("layers/13_512.tga", Texture.class, params);
-        assetManager.load("layers/14_512.tga", Texture.class, params);
+    /**
+     * Coverage grids for the depth pre-pass (O key) - masks and layer textures are
+     * decoded once more at start.
+     */
+    public void setupDepthPrepass() {
+        final int created = layersDrawer.createMaskCoverage();
+        Gdx.app.debug(APP_NAME_ID, "Computed " + created + " coverage grids");
+    }
 
-        assetManager.load("layers/15_1024.tga", Texture.class, params);
-        assetManager.load("layers/16_1024.tga", Texture.class, params);
-        assetManager.load("layers/17_1024.tga", Texture.class, params);
+    /**
+     * Files of the app go to app storage on Android, to the user directory elsewhere
+     * (the working directory on desktop is the assets directory) - unless another
+     * directory was set (launchers keep their runs away from the user's files).
+     */
+    public FileHandle getStorageDirectory() {
+        if (storageDirectory != null)
+            return storageDirectory;
+        if (Gdx.app.getType() == Application.ApplicationType.Android)
+            return Gdx.files.local("");
+        return Gdx.files.external(".layersmaskinggdx");
+    }
 
-        assetManager.load("masks/text_0.tga", Texture.class, params);
-        assetManager.load("masks/earth_0.tga", Texture.class, params);
-        assetManager.load("masks/lion_0.tga", Texture.class, params);
-        assetManager.load("masks/lion_1.tga", Texture.class, params);
+    /**
+     * Call before create().
+     */
+    public void setStorageDirectory(FileHandle directory) {
+        this.storageDirectory = directory;
+    }
 
-        assetManager.load("masks/line_h_0.tga", Texture.class, params);
-        assetManager.load("masks/line_h_1.tga", Texture.class, params);
-        assetManager.load("masks/line_h_2.tga", Texture.class, params);
+    public FileHandle getTextureCacheDirectory() {
+        return getStorageDirectory().child("cache/textures");
+    }
 
-        assetManager.load("masks/ring_0.tga", Texture.class, params);
-        assetManager.load("masks/ring_1.tga", Texture.class, params);
-        assetManager.load("masks/ring_2.tga", Texture.class, params);
-        assetManager.load("masks/ring_3.tga", Texture.class, params);
+    public FileHandle getEffectSnapshotFile() {
+        return getStorageDirectory().child("effects.snapshot");
+    }
 
-        assetManager.load("masks/triangle_0.tga", Texture.class, params);
-        assetManager.load("masks/triangle_1.tga", Texture.class, params);
+    /**
+     * Effects are saved and restored by default only on Android, where the process is
+     * killed in background - desktop runs and launchers start from initializeLayers().
+     */
+    public boolean isPersistingEffects() {
+        if (persistEffects != null)
+            return persistEffects;
+        return Gdx.app.getType() == Application.ApplicationType.Android;
+    }
 
-        assetManager.finishLoading(); // this will block the screen!
+    /**
+     * Call before create().
+     */
+    public void setPersistEffects(boolean toggle) {
+        this.persistEffects = toggle;
+    }
+
+    /**
+     * Saves all effects with the offset sweep of the first effect.
+     */
+    public void saveEffects() {
+        effectSnapshot.userData.clear();
+        effectSnapshot.userData.add(offsetRatio);
+        effectSnapshot.userData.add(offsetDirection);
+        try {
+            effectSnapshot.save(layersDrawer, getEffectSnapshotFile());
+        } catch (RuntimeException e) {
+            Gdx.app.debug(APP_NAME_ID, "Effects not saved: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Restores effects saved by saveEffects() - returns false when there is nothing
+     * to restore (effects need to be initialized).
+     */
+    public boolean restoreEffects() {
+        try {
+            if (!effectSnapshot.load(layersDrawer, getEffectSnapshotFile()))
+                return false;
+        } catch (RuntimeException e) {
+            Gdx.app.debug(APP_NAME_ID, "Effects not restored: " + e.getMessage());
+            for (int i = 0; i < NUM_LAYER_EFFECTS; i++)
+                layerEffects[i].dispose(); // start over
+            return false;
+        }
+        if (effectSnapshot.userData.size >= 2) {
+            offsetRatio = effectSnapshot.userData.get(0);
+            offsetDirection = effectSnapshot.userData.get(1);
+        }
+        CURRENT_EFFECT_ID = Math.max(0, layersDrawer.indexOf(layersDrawer.getFirstActive()));
+        useProceduralRings = layerEffects[1].count() > 0 && layerEffects[1].get(0).proceduralMask != null;
+        useSdfMasks = layerEffects[sdfEffects[0]].count() > 0 && layerEffects[sdfEffects[0]].get(0).isSdfMask();
+        this.layersDrawer.showOnly(CURRENT_EFFECT_ID);
+        return true;
+    } // boolean restoreEffects()
+
+    public static void addTextureCacheRules(RawTextureCache textureCache) {
+        // all masks are read from the red channel
+        textureCache.addRule("masks/", 0, 0);
+        textureCache.addRule("layers/", 0, RawTextureCache.KEEP_CHANNELS);
+    }
+
+    public void loadTextures(TextureLoader.TextureParameter params,
+                             TextureLoader.TextureParameter mipMapParams) {
+        assetManager.loadTexture("layers/2_512.jpg", params);
+        assetManager.loadTexture("layers/3_512.jpg", params);
+        assetManager.loadTexture("layers/4_512.jpg", params);
+
+        assetManager.loadTexture("layers/6_512.tga", mipMapParams);
+        assetManager.loadTexture("layers/7_512.tga", mipMapParams);
+        assetManager.loadTexture("layers/8_512.tga", mipMapParams);
+        assetManager.loadTexture("layers/9_512.tga", mipMapParams);
+
+        assetManager.loadTexture("layers/10_512.tga", params);
+        assetManager.loadTexture("layers/11_512.tga", params);
+        assetManager.loadTexture("layers/12_512.tga", params);
+
+        assetManager.loadTexture("layers/13_512.tga", params);
+        assetManager.loadTexture("layers/14_512.tga", params);
+
+        assetManager.loadTexture("layers/15_1024.tga", params);
+        assetManager.loadTexture("layers/16_1024.tga", params);
+        assetManager.loadTexture("layers/17_1024.tga", params);
+
+        assetManager.loadTexture("masks/text_0.tga", params);
+        assetManager.loadTexture("masks/earth_0.tga", params);
+        assetManager.loadTexture("masks/lion_0.tga", params);
+        assetManager.loadTexture("masks/lion_1.tga", params);
+
+        assetManager.loadTexture("masks/line_h_0.tga", params);
+        assetManager.loadTexture("masks/line_h_1.tga", params);
+        assetManager.loadTexture("masks/line_h_2.tga", params);
+
+        assetManager.loadTexture("masks/ring_0.tga", mipMapParams);
+        assetManager.loadTexture("masks/ring_1.tga", mipMapParams);
+        assetManager.loadTexture("masks/ring_2.tga", mipMapParams);
+        assetManager.loadTexture("masks/ring_3.tga", mipMapParams);
+
+        assetManager.loadTexture("masks/triangle_0.tga", params);
+        assetManager.loadTexture("masks/triangle_1.tga", params);
+
+        // distance fields - single channel is enough
+        TextureLoader.TextureParameter sdfParams = new TextureLoader.TextureParameter();
+        sdfParams.genMipMaps = false;
+        sdfParams.format = Pixmap.Format.Alpha;
+        sdfParams.magFilter = Texture.TextureFilter.Linear;
+        sdfParams.minFilter = Texture.TextureFilter.Linear;
+        sdfParams.wrapU = Texture.TextureWrap.MirroredRepeat;
+        sdfParams.wrapV = Texture.TextureWrap.MirroredRepeat;
+        for (int i = 0; i < sdfMaskNames.length; i++)
+            assetManager.loadTexture("masks/sdf/" + sdfMaskNames[i] + ".png", sdfParams);
+
+        assetManager.finishLoading(); // this will block the screen (decoding is parallel)
 
         Gdx.app.debug(APP_NAME_ID, "Finished loading all assets!");
     }
@@ -249,6 +502,7 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
 
             layerInfo.scaleMode = LayerInfo.Mode.BOTH;
             layerInfo.offsetMode = LayerInfo.Mode.BOTH;
+            layerInfo.sampling = LayerInfo.Sampling.AUTO_MIPMAP;
 
             layerInfo.minScale = 1.0f;
             layerInfo.maxScale = 1.5f;
@@ -267,6 +521,7 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
 
             layerInfo.scaleMode = LayerInfo.Mode.BOTH;
             layerInfo.offsetMode = LayerInfo.Mode.BOTH;
+            layerInfo.sampling = LayerInfo.Sampling.AUTO_MIPMAP;
 
             layerInfo.minScale = 0.75f;
             layerInfo.maxScale = 1.15f;
@@ -285,6 +540,7 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
 
             layerInfo.scaleMode = LayerInfo.Mode.BOTH;
             layerInfo.offsetMode = LayerInfo.Mode.BOTH;
+            layerInfo.sampling = LayerInfo.Sampling.AUTO_MIPMAP;
 
             layerInfo.minScale = 0.5f;
             layerInfo.maxScale = 1.25f;
@@ -303,6 +559,7 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
 
             layerInfo.scaleMode = LayerInfo.Mode.BOTH;
             layerInfo.offsetMode = LayerInfo.Mode.BOTH;
+            layerInfo.sampling = LayerInfo.Sampling.AUTO_MIPMAP;
 
             layerInfo.minScale = 0.25f;
             layerInfo.maxScale = 1.0f;
@@ -532,6 +789,10 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
 
     @Override
     public void render() {
+        profiler.beginFrame();
+        if ((profiler.getFrameTags(0) & FrameProfiler.TAG_JANK) != 0)
+            Gdx.app.debug(APP_NAME_ID, "Jank: " + profiler.getFrameTime(0) + " ms, median "
+                    + profiler.getMedianFrameTime() + " ms");
         Gdx.gl.glClearColor(0.35f, 0.4f, 0.4f, 1.0f);
         Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT | GL20.GL_DEPTH_BUFFER_BIT);
         camera.update();
@@ -549,17 +810,23 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
             offsetRatio = 0.0f;
             //shouldOffset = false;
         }
-        offsetValue = interpolation.apply(-1.0f, 1.0f, offsetRatio);
-
-        if (CURRENT_EFFECT_ID == 0) {
-            this.layerEffects[0].get(0).setOffset(0, getWidth() * offsetValue / 2.0f);
-            this.layerEffects[0].get(1).setOffset(0, -getWidth() * offsetValue / 1.75f);
-            this.layerEffects[0].get(2).setOffset(0, getWidth() * offsetValue / 3.5f);
-            //shmup.testLayerEffect.setOffset(0, getWidth() * offsetValue / 2.0f);
+        // offsets of the first effect are bound to the sweep (see setupBindings)
+        LayerBindings bindings = this.layerEffects[0].getBindings();
+        if (bindings != null && sweepSlot >= 0) {
+            bindings.setInput(sweepSlot, offsetRatio);
+            bindings.setInput(widthSlot, getWidth());
         }
 
-        layersDrawer.update(delta);
-        layersDrawer.draw();
+        // textures queued lazily - limited upload per frame
+        final int uploadedCount = assetManager.getUploadedCount();
+        assetManager.updateUploads(ParallelAssetManager.DEFAULT_UPLOAD_BUDGET);
+        if (assetManager.getUploadedCount() != uploadedCount)
+            profiler.mark(FrameProfiler.TAG_ASSET_LOAD);
+        contextRestorer.update();
+        // work time of the last frame - delta is capped by vsync
+        layersDrawer.update(delta, profiler.getWorkTime(0) / 1000.0f);
+        renderContext.submit(layersDrawer);
+        renderContext.render();
 
         if (isKeyPressed(Input.Keys.LEFT)) {
             LayerMaskingEffect effect = this.layerEffects[CURRENT_EFFECT_ID];
@@ -587,37 +854,76 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
             if (isKeyPressed(Input.Keys.W)) {
                 LayerMaskingEffect effect = this.layerEffects[CURRENT_EFFECT_ID];
                 if (effect != null) {
-                    if (effect.getLayerInfoArray().size > SELECTED_LAYER_ID)
-                        effect.get(SELECTED_LAYER_ID).position.y += _speed * delta;
+                    if (effect.getLayerInfoArray().size > SELECTED_LAYER_ID) {
+                        LayerInfo layerInfo = effect.get(SELECTED_LAYER_ID);
+                        layerInfo.position.y += _speed * delta;
+                        layerInfo.markDirty(LayerInfo.DIRTY_POSITION);
+                    }
                 }
             }
             if (isKeyPressed(Input.Keys.S)) {
                 LayerMaskingEffect effect = this.layerEffects[CURRENT_EFFECT_ID];
                 if (effect != null) {
-                    if (effect.getLayerInfoArray().size > SELECTED_LAYER_ID)
-                        effect.get(SELECTED_LAYER_ID).position.y -= _speed * delta;
+                    if (effect.getLayerInfoArray().size > SELECTED_LAYER_ID) {
+                        LayerInfo layerInfo = effect.get(SELECTED_LAYER_ID);
+                        layerInfo.position.y -= _speed * delta;
+                        layerInfo.markDirty(LayerInfo.DIRTY_POSITION);
+                    }
                 }
             }
             if (isKeyPressed(Input.Keys.A)) {
                 LayerMaskingEffect effect = this.layerEffects[CURRENT_EFFECT_ID];
                 if (effect != null) {
-                    if (effect.getLayerInfoArray().size > SELECTED_LAYER_ID)
-                        effect.get(SELECTED_LAYER_ID).position.x -= _speed * delta;
+                    if (effect.getLayerInfoArray().size > SELECTED_LAYER_ID) {
+                        LayerInfo layerInfo = effect.get(SELECTED_LAYER_ID);
+                        layerInfo.position.x -= _speed * delta;
+                        layerInfo.markDirty(LayerInfo.DIRTY_POSITION);
+                    }
                 }
             }
             if (isKeyPressed(Input.Keys.D)) {
                 LayerMaskingEffect effect = this.layerEffects[CURRENT_EFFECT_ID];
                 if (effect != null) {
-                    if (effect.getLayerInfoArray().size > SELECTED_LAYER_ID)
-                        effect.get(SELECTED_LAYER_ID).position.x += _speed * delta;
+                    if (effect.getLayerInfoArray().size > SELECTED_LAYER_ID) {
+                        LayerInfo layerInfo = effect.get(SELECTED_LAYER_ID);
+                        layerInfo.position.x += _speed * delta;
+                        layerInfo.markDirty(LayerInfo.DIRTY_POSITION);
+                    }
                 }
             }
         }
+        profiler.endFrame();
     } // void render()
 
+    /**
+     * Trace goes next to the texture cache - the working directory on desktop is
+     * the assets directory.
+     */
+    public FileHandle writeFrameTrace() {
+        FileHandle file = getStorageDirectory().child("frame_trace.json");
+        profiler.writeTrace(file);
+        Gdx.app.debug(APP_NAME_ID, "Frame trace written to " + file.path() + ": " + profiler.getSummary());
+        return file;
+    }
+
+    @Override
+    public void pause() {
+        if (isPersistingEffects())
+            saveEffects();
+    }
+
+    @Override
+    public void resume() {
+        if (contextRestorer.resume())
+            Gdx.app.debug(APP_NAME_ID, "GL context lost - reloading "
+                    + assetManager.getReloadingCount() + " textures");
+    }
+
     @Override
     public void dispose() {
+        Gdx.app.debug(APP_NAME_ID, "Frames: " + profiler.getSummary());
         layersDrawer.dispose();
+        renderContext.dispose();
         assetManager.dispose();
     } // void dispose()
 
@@ -637,6 +943,43 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
         if (keycode == Input.Keys.X) {
             nextLayerEffect();
         }
+        if (keycode == Input.Keys.P) {
+            useProceduralRings = !useProceduralRings;
+            for (int i = 0; i < proceduralRings.length && i < layerEffects[1].count(); i++)
+                layerEffects[1].get(i).proceduralMask = useProceduralRings ? proceduralRings[i] : null;
+            Gdx.app.debug(APP_NAME_ID, "Procedural ring masks: " + useProceduralRings);
+        }
+        if (keycode == Input.Keys.F) {
+            useSdfMasks = !useSdfMasks;
+            for (int i = 0; i < sdfEffects.length; i++) {
+                LayerInfo layerInfo = layerEffects[sdfEffects[i]].get(0);
+                if (useSdfMasks) {
+                    layerInfo.setSdfMask(assetManager.get("masks/sdf/" + sdfMaskNames[i] + ".png",
+                            Texture.class), SdfMaskGenerator.DEFAULT_SPREAD);
+                } else {
+                    layerInfo.setMaskTexture(assetManager.get("masks/" + sdfMaskNames[i] + ".tga",
+                            Texture.class));
+                }
+            }
+            layersDrawer.createLowResMasks(LOW_RES_MASK_DIVISOR); // masks were replaced
+            layersDrawer.createMaskCoverage();
+            Gdx.app.debug(APP_NAME_ID, "SDF masks: " + useSdfMasks);
+        }
+        if (keycode == Input.Keys.T) {
+            writeFrameTrace();
+        }
+        if (keycode == Input.Keys.R) {
+            layersDrawer.setUseDynamicResolution(!layersDrawer.isUsingDynamicResolution());
+            Gdx.app.debug(APP_NAME_ID, "Dynamic resolution: " + layersDrawer.isUsingDynamicResolution());
+        }
+        if (keycode == Input.Keys.O) {
+            layersDrawer.setUseDepthPrepass(!layersDrawer.isUsingDepthPrepass());
+            Gdx.app.debug(APP_NAME_ID, "Depth pre-pass: " + layersDrawer.isUsingDepthPrepass());
+        }
+        if (keycode == Input.Keys.Q) {
+            layersDrawer.setQualityGovernor(layersDrawer.getQualityGovernor() == null ? qualityGovernor : null);
+            Gdx.app.debug(APP_NAME_ID, "Quality governor: " + (layersDrawer.getQualityGovernor() != null));
+        }
         if (keycode == Input.Keys.COMMA) {
             //LayerMaskingEffect effect = shmup.layerEffects[CURRENT_EFFECT_ID];
             SELECTED_LAYER_ID--;
@@ -691,11 +1034,13 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
     @Override
     public boolean touchDown(int screenX, int screenY, int pointer, int button) {
         wasDragged = false;
+        setTouchInputs(screenX, screenY, true);
         return false;
     }
 
     @Override
     public boolean touchUp(int screenX, int screenY, int pointer, int button) {
+        setTouchInputs(screenX, screenY, false);
         if(!wasDragged)
             nextLayerEffect();
         return false;
@@ -704,6 +1049,7 @@ public class MyGdxLayersMaskingEffect extends ApplicationAdapter implements Inpu
     @Override
     public boolean touchDragged(int screenX, int screenY, int pointer) {
         wasDragged = true;
+        setTouchInputs(screenX, screenY, true);
         LayerMaskingEffect effect = this.layerEffects[CURRENT_EFFECT_ID];
         if (effect != null)
             effect.moveOffsetByPixels(Gdx.input.getDeltaX(pointer), Gdx.input.getDeltaY(pointer));
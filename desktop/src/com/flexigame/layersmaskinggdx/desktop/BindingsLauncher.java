@@ -0,0 +1,186 @@
+package com.flexigame.layersmaskinggdx.desktop;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.math.MathUtils;
+import com.flexigame.fg.gfx.LayerBindings;
+import com.flexigame.fg.gfx.LayerExpression;
+import com.flexigame.fg.gfx.LayerInfo;
+import com.flexigame.fg.gfx.LayerProperty;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Measures LayerBindings headless: first checks the compiled expressions against the
+ * same formulas written in Java for random inputs (trigonometry of MathUtils in both,
+ * like Interpolation.sine the app used before), then evaluates thousands of
+ * bindings (shared expressions with per-binding arguments, expressions without arg
+ * shared by many layers, touch driven ones) every frame and reports time per binding,
+ * expression evaluations per pass (memo) and bytes allocated by the evaluation.
+ * Usage: BindingsLauncher [bindings] [frames]
+ */
+public class BindingsLauncher {
+    static final float FRAME_TIME = 1.0f / 60.0f;
+
+    /* Expressions checked against Java - same order as reference() */
+    static final String[] CHECKED = {
+            "-width * cos(sweep * pi) / arg",
+            "arg * sin(time * 2 + arg) + 360",
+            "clamp((touchX - 360) / 100, -1, 1) * touching",
+            "mix(0.5, 1.5, smoothstep(0, 1, fract(time * 0.25)))",
+            "pingpong(time + arg) * 90 - 45",
+            "2 ^ (sweep * 3) + mod(time, 1.5) + step(0.5, sweep) - abs(arg)",
+            "max(min(sqrt(abs(touchY)), 20), sign(arg) * floor(time))",
+            "(sweep > 0.5) * (time < 3) + -(-arg)"};
+
+    static float smoothstep(float edge0, float edge1, float x) {
+        final float t = MathUtils.clamp((x - edge0) / (edge1 - edge0), 0.0f, 1.0f);
+        return t * t * (3.0f - 2.0f * t);
+    }
+
+    static float fract(float x) {
+        return x - (float) Math.floor(x);
+    }
+
+    static float reference(int index, float time, float touchX, float touchY, float touching,
+                           float sweep, float width, float arg) {
+        switch (index) {
+            case 0:
+                return -width * MathUtils.cos(sweep * MathUtils.PI) / arg;
+            case 1:
+                return arg * MathUtils.sin(time * 2.0f + arg) + 360.0f;
+            case 2:
+                return MathUtils.clamp((touchX - 360.0f) / 100.0f, -1.0f, 1.0f) * touching;
+            case 3:
+                return 0.5f + (1.5f - 0.5f) * smoothstep(0.0f, 1.0f, fract(time * 0.25f));
+            case 4: {
+                final float x = (time + arg) % 2.0f;
+                final float wave = x < 0.0f ? x + 2.0f : x;
+                return (wave > 1.0f ? 2.0f - wave : wave) * 90.0f - 45.0f;
+            }
+            case 5: {
+                final float mod = time - 1.5f * (float) Math.floor(time / 1.5f);
+                return (float) Math.pow(2.0f, sweep * 3.0f) + mod + (sweep >= 0.5f ? 1.0f : 0.0f) - Math.abs(arg);
+            }
+            case 6:
+                return Math.max(Math.min((float) Math.sqrt(Math.abs(touchY)), 20.0f),
+                        Math.signum(arg) * (float) Math.floor(time));
+            default:
+                return (sweep > 0.5f ? 1.0f : 0.0f) * (time < 3.0f ? 1.0f : 0.0f) + arg;
+        }
+    } // float reference(...)
+
+    /**
+     * Largest relative error of the compiled expressions against reference().
+     */
+    static float checkExpressions(Random random) {
+        final LayerBindings bindings = new LayerBindings();
+        final int sweepSlot = bindings.addInput("sweep");
+        final int widthSlot = bindings.addInput("width");
+        final float[] stack = new float[32];
+        float maxError = 0.0f;
+        for (int e = 0; e < CHECKED.length; e++) {
+            final LayerExpression expression = bindings.compile(CHECKED[e]);
+            float worst = 0.0f;
+            for (int k = 0; k < 1000; k++) {
+                final float time = random.nextFloat() * 10.0f;
+                final float touchX = random.nextFloat() * 720.0f;
+                final float touchY = random.nextFloat() * 1280.0f;
+                final float touching = random.nextBoolean() ? 1.0f : 0.0f;
+                final float sweep = random.nextFloat();
+                final float width = 720.0f;
+                final float arg = (random.nextFloat() - 0.5f) * 8.0f;
+                bindings.setTime(time);
+                bindings.setTouch(touchX, touchY, touching > 0.0f);
+                bindings.setInput(sweepSlot, sweep);
+                bindings.setInput(widthSlot, width);
+                // inputs are read from the bindings the same way evaluate() does
+                final float[] inputs = new float[bindings.getInputCount()];
+                for (int i = 0; i < inputs.length; i++)
+                    inputs[i] = bindings.getInput(i);
+                final float value = expression.evaluate(inputs, arg, stack);
+                final float expected = reference(e, time, touchX, touchY, touching, sweep, width, arg);
+                final float error = Math.abs(value - expected) / Math.max(1.0f, Math.abs(expected));
+                worst = Math.max(worst, error);
+            }
+            System.out.println(String.format("  %-56s code %2d, stack %d, constant %-5b max error %.2e",
+                    CHECKED[e], expression.getCodeLength(), expression.getMaxStackDepth(),
+                    expression.isConstant(), worst));
+            maxError = Math.max(maxError, worst);
+        }
+        return maxError;
+    } // float checkExpressions(...)
+
+    static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    static void benchmark(int count, int frames, Random random) {
+        final LayerBindings bindings = new LayerBindings(count);
+        final int sweepSlot = bindings.addInput("sweep");
+        final int widthSlot = bindings.addInput("width");
+        final LayerProperty[] properties = {LayerProperty.OFFSET_Y, LayerProperty.ROTATION,
+                LayerProperty.SCALE, LayerProperty.POSITION_X};
+        final String[] sources = {"-width * cos(sweep * pi) / arg", "arg * sin(time * 2 + arg) + 360",
+                "mix(0.5, 1.5, smoothstep(0, 1, fract(time * 0.25)))",
+                "clamp((touchX - 360) / 100, -1, 1) * touching"};
+        final LayerInfo[] layers = new LayerInfo[(count + properties.length - 1) / properties.length];
+        for (int i = 0; i < layers.length; i++)
+            layers[i] = new LayerInfo();
+        for (int i = 0; i < count; i++) {
+            final int kind = i % properties.length;
+            bindings.bind(layers[i / properties.length], properties[kind], sources[kind],
+                    1.0f + random.nextFloat() * 3.0f);
+        }
+        bindings.setInput(widthSlot, 720.0f);
+
+        // warm up (JIT) first
+        float sweep = 0.0f;
+        for (int frame = 0; frame < frames; frame++) {
+            sweep = fract(sweep + FRAME_TIME * 0.25f);
+            bindings.setInput(sweepSlot, sweep);
+            bindings.setTouch(frame % 720, 640.0f, frame % 120 < 60);
+            bindings.update(FRAME_TIME);
+        }
+        // what reading the counter allocates itself
+        final long counterBytes = -getAllocatedBytes() + getAllocatedBytes();
+        final long allocatedBefore = getAllocatedBytes();
+        final long start = System.nanoTime();
+        for (int frame = 0; frame < frames; frame++) {
+            sweep = fract(sweep + FRAME_TIME * 0.25f);
+            bindings.setInput(sweepSlot, sweep);
+            bindings.setTouch(frame % 720, 640.0f, frame % 120 < 60);
+            bindings.update(FRAME_TIME);
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = getAllocatedBytes() - allocatedBefore - counterBytes;
+        System.out.println(String.format("%d bindings on %d layers, %d frames: %.3f ms per frame, %.1f ns per binding,"
+                        + " %d of %d expressions evaluated per pass (memo), %s allocated",
+                count, layers.length, frames, elapsed / 1e6 / frames, (double) elapsed / frames / count,
+                bindings.getEvaluationCount(), count, allocatedBefore < 0 ? "unknown bytes" : allocated + " bytes"));
+    } // void benchmark(...)
+
+    public static void main(String[] arg) {
+        final int count = arg.length > 0 ? Integer.parseInt(arg[0]) : 4000;
+        final int frames = arg.length > 1 ? Integer.parseInt(arg[1]) : 2000;
+
+        HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+        new HeadlessApplication(new ApplicationAdapter() {
+            @Override
+            public void create() {
+                final Random random = new Random(49);
+                System.out.println("Compiled expressions against Java (1000 random inputs each):");
+                final float maxError = checkExpressions(random);
+                System.out.println(String.format("Largest relative error %.2e", maxError));
+                benchmark(count, frames, random);
+                Gdx.app.exit();
+            }
+        }, config);
+    }
+} // class BindingsLauncher
@@ -0,0 +1,211 @@
+package com.flexigame.layersmaskinggdx.desktop;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.glutils.FrameBuffer;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ObjectSet;
+import com.badlogic.gdx.utils.TimeUtils;
+import com.flexigame.fg.gfx.LayerContextRestorer;
+import com.flexigame.fg.gfx.LayerInfo;
+import com.flexigame.fg.gfx.LayerMaskingEffect;
+import com.flexigame.layersmaskinggdx.MyGdxLayersMaskingEffect;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Simulates Android GL context loss without a device: runs the app headless (no-op GL),
+ * invalidates managed resources the way AndroidGraphics.onSurfaceCreated() does,
+ * calls resume() and keeps rendering frames until the context restorer is done.
+ * Reports in which frame each effect was drawn again (visible effect should be
+ * first), texture uploads and sampler uniforms set during the restore. The app runs
+ * with its own texture cache and effect snapshot in a temporary directory (removed
+ * afterwards) - the user's files are never touched.
+ * Exits with 1 when the restore did not finish or a texture was left without handle.
+ * Usage: ContextLossLauncher [frame time ms]
+ */
+public class ContextLossLauncher {
+    static final int MAX_FRAMES = 1000;
+
+    /* Counted GL calls (render thread only) */
+    static int textureUploads;
+    static int samplerUniforms;
+
+    /**
+     * Layer textures, masks and loaded assets still without GL texture - returns
+     * their count (each texture reported once).
+     */
+    static int countMissingTextures(MyGdxLayersMaskingEffect app) {
+        final ObjectSet<Texture> textures = new ObjectSet<Texture>();
+        final Array<Texture> assets = app.getLayersDrawer().getAssetManager().getAll(Texture.class, new Array<Texture>());
+        textures.addAll(assets);
+        for (int i = 0; i < app.getLayersDrawer().count(); i++) {
+            final Array<LayerInfo> layers = app.getLayersDrawer().get(i).getLayerInfoArray();
+            for (int j = 0; j < layers.size; j++) {
+                if (layers.get(j).getTexture() != null)
+                    textures.add(layers.get(j).getTexture());
+                if (layers.get(j).getMaskTexture() != null)
+                    textures.add(layers.get(j).getMaskTexture());
+            }
+        }
+        int missing = 0;
+        for (Texture texture : textures) {
+            if (texture.getTextureObjectHandle() == 0) {
+                String name = app.getLayersDrawer().getAssetManager().getAssetFileName(texture);
+                System.out.println("  no texture handle: " + (name != null ? name
+                        : texture.getWidth() + "x" + texture.getHeight()));
+                missing++;
+            }
+        }
+        return missing;
+    } // int countMissingTextures(...)
+
+    static File createStorageDirectory() {
+        try {
+            File directory = File.createTempFile("contextloss", "");
+            if (!directory.delete() || !directory.mkdir())
+                throw new IOException("Cannot create directory " + directory);
+            return directory;
+        } catch (IOException e) {
+            throw new RuntimeException("No temporary directory for the app files", e);
+        }
+    }
+
+    static void installCountingGL() {
+        EffectBakerLauncher.installNoOpGL();
+        final GL20 target = Gdx.gl;
+        GL20 gl = (GL20) Proxy.newProxyInstance(GL20.class.getClassLoader(),
+                new Class<?>[]{GL20.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        final String name = method.getName();
+                        if (name.equals("glTexImage2D") || name.equals("glCompressedTexImage2D"))
+                            textureUploads++;
+                        else if (name.equals("glUniform1i") && (Integer) args[1] > 0)
+                            samplerUniforms++; // unit 0 is the default after relinking
+                        try {
+                            return method.invoke(target, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        Gdx.gl = gl;
+        Gdx.gl20 = gl;
+    }
+
+    public static void main(String[] arg) {
+        final long frameTime = arg.length > 0 ? Long.parseLong(arg[0]) : 16;
+        final File storage = createStorageDirectory();
+
+        HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+        new HeadlessApplication(new MyGdxLayersMaskingEffect() {
+            boolean failed = false;
+
+            void finish(boolean failed) {
+                this.failed = failed;
+                Gdx.app.exit();
+            }
+
+            @Override
+            public void create() {
+                installCountingGL();
+                setStorageDirectory(Gdx.files.absolute(storage.getAbsolutePath()));
+                setPersistEffects(false); // fresh effects, nothing saved
+                super.create();
+                for (int i = 0; i < 10; i++)
+                    render();
+                final int visible = getLayersDrawer().indexOf(getLayersDrawer().getFirstActive());
+                final LayerContextRestorer restorer = getContextRestorer();
+
+                // same sequence as AndroidGraphics.onSurfaceCreated() followed by resume()
+                Mesh.invalidateAllMeshes(Gdx.app);
+                Texture.invalidateAllTextures(Gdx.app);
+                ShaderProgram.invalidateAllShaderPrograms(Gdx.app);
+                FrameBuffer.invalidateAllFrameBuffers(Gdx.app);
+                textureUploads = 0;
+                samplerUniforms = 0;
+                final long start = TimeUtils.nanoTime();
+                resume();
+                if (!restorer.isRestoring()) {
+                    System.out.println("Context loss was not detected!");
+                    finish(true);
+                    return;
+                }
+
+                final int count = getLayersDrawer().count();
+                final int[] readyFrame = new int[count];
+                for (int i = 0; i < count; i++)
+                    readyFrame[i] = -1;
+                int frame = 0;
+                while (restorer.isRestoring() && frame < MAX_FRAMES) {
+                    final long frameStart = TimeUtils.nanoTime();
+                    render();
+                    for (int i = 0; i < count; i++) {
+                        LayerMaskingEffect effect = getLayersDrawer().get(i);
+                        if (readyFrame[i] < 0 && restorer.isEffectReady(effect))
+                            readyFrame[i] = frame;
+                    }
+                    frame++;
+                    final long sleep = frameTime - TimeUtils.nanosToMillis(TimeUtils.nanoTime() - frameStart);
+                    if (sleep > 0) {
+                        try {
+                            Thread.sleep(sleep);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+
+                System.out.println("Context restored in " + restorer.getFrameCount() + " frames ("
+                        + TimeUtils.nanosToMillis(TimeUtils.nanoTime() - start) + " ms), longest update "
+                        + restorer.getMaxStepTime() + " ms");
+                System.out.println("  textures reloaded: " + assetManager.getReloadedCount()
+                        + ", uploads: " + textureUploads + ", sampler uniforms set: " + samplerUniforms);
+                for (int i = 0; i < count; i++) {
+                    LayerMaskingEffect effect = getLayersDrawer().get(i);
+                    System.out.println("  " + effect.getName() + (i == visible ? " (visible)" : "")
+                            + " drawn again in frame " + readyFrame[i]);
+                }
+                boolean failed = false;
+                if (restorer.isRestoring()) {
+                    System.out.println("Restore did not finish in " + MAX_FRAMES + " frames");
+                    failed = true;
+                }
+                for (int i = 0; i < count; i++) {
+                    if (readyFrame[i] < 0 && getLayersDrawer().get(i).count() > 0) {
+                        System.out.println(getLayersDrawer().get(i).getName() + " was never drawn again");
+                        failed = true;
+                    }
+                }
+                final int missing = countMissingTextures(this);
+                if (missing > 0) {
+                    System.out.println(missing + " textures without GL texture after the restore");
+                    failed = true;
+                }
+                finish(failed);
+            }
+
+            @Override
+            public void dispose() {
+                super.dispose();
+                // app files go away with the app - exit code 1 when failed
+                Gdx.files.absolute(storage.getAbsolutePath()).deleteDirectory();
+                if (failed) {
+                    System.out.println("FAILED");
+                    System.exit(1);
+                }
+            }
+        }, config);
+    }
+} // class ContextLossLauncher
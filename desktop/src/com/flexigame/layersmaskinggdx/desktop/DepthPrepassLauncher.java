@@ -0,0 +1,162 @@
+package com.flexigame.layersmaskinggdx.desktop;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.graphics.OrthographicCamera;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ObjectMap;
+import com.flexigame.fg.gfx.LayerInfo;
+import com.flexigame.fg.gfx.LayerMaskingEffect;
+import com.flexigame.fg.gfx.LayerMaskingEffectDrawer;
+import com.flexigame.fg.gfx.MaskCoverage;
+import com.flexigame.layersmaskinggdx.MyGdxLayersMaskingEffect;
+
+/**
+ * Runs the effects of the app headless (no-op GL) with the depth pre-pass and reports
+ * per effect: layers drawing solid cells, pieces and layers skipped completely per
+ * frame, and fragments shaded with and without the pre-pass - estimated on a grid of
+ * screen samples from the coverage grids (early depth test rejects fragments under
+ * the topmost solid cell). Every sample counted as solid is checked against the
+ * full resolution mask - a solid cell must never cover a translucent mask texel.
+ * Usage: DepthPrepassLauncher [frames per effect] [sample step in pixels]
+ */
+public class DepthPrepassLauncher {
+    static final float FRAME_TIME = 1.0f / 60.0f;
+
+    /* Decoded masks for checking the solid samples */
+    static ObjectMap<Texture, Pixmap> maskImages = new ObjectMap<Texture, Pixmap>();
+
+    static Pixmap getMaskImage(LayerMaskingEffectDrawer drawer, Texture mask) {
+        Pixmap pixmap = maskImages.get(mask);
+        if (pixmap == null) {
+            final String fileName = drawer.getAssetManager().getAssetFileName(mask);
+            pixmap = new Pixmap(Gdx.files.internal(fileName));
+            maskImages.put(mask, pixmap);
+        }
+        return pixmap;
+    }
+
+    /**
+     * Adds fragments shaded without / with the pre-pass to out[0] / out[1], samples
+     * under a solid cell to out[2] and solid samples over a translucent mask texel
+     * to out[3].
+     */
+    static void estimate(LayerMaskingEffectDrawer drawer, Array<LayerInfo> layers, float step, long[] out) {
+        final Matrix4 inverse = new Matrix4(drawer.getSpriteBatch().getProjectionMatrix()).inv();
+        final Vector3 min = new Vector3(-1.0f, -1.0f, 0.0f).prj(inverse);
+        final Vector3 max = new Vector3(1.0f, 1.0f, 0.0f).prj(inverse);
+        final Vector2 uv = new Vector2();
+        final int n = layers.size;
+        final MaskCoverage[] coverages = new MaskCoverage[n];
+        for (int i = 0; i < n; i++)
+            coverages[i] = drawer.getOccluderCoverage(layers.get(i));
+        final boolean[] inside = new boolean[n];
+        for (float y = min.y + step / 2.0f; y < max.y; y += step) {
+            for (float x = min.x + step / 2.0f; x < max.x; x += step) {
+                int top = -1, covering = 0;
+                for (int i = 0; i < n; i++) {
+                    layers.get(i).screenToQuad(x, y, uv);
+                    inside[i] = uv.x >= 0.0f && uv.x < 1.0f && uv.y >= 0.0f && uv.y < 1.0f;
+                    if (!inside[i])
+                        continue;
+                    covering++;
+                    if (coverages[i] != null && coverages[i].isSolidAt(uv.x, uv.y))
+                        top = i;
+                }
+                out[0] += covering;
+                if (top < 0) {
+                    out[1] += covering;
+                    continue;
+                }
+                int above = 0;
+                for (int i = top + 1; i < n; i++)
+                    above += inside[i] ? 1 : 0;
+                out[1] += 1 + above; // solid cell of the top occluder + what is drawn over it
+                out[2]++;
+                final Texture mask = layers.get(top).getDrawnMaskTexture();
+                if (mask != null) {
+                    final Pixmap image = getMaskImage(drawer, mask);
+                    layers.get(top).screenToQuad(x, y, uv);
+                    final int pixel = image.getPixel((int) (uv.x * image.getWidth()), (int) (uv.y * image.getHeight()));
+                    if (((pixel >>> (24 - 8 * layers.get(top).maskChannel)) & 0xff) != 255)
+                        out[3]++;
+                }
+            }
+        }
+    } // void estimate(...)
+
+    static Array<LayerInfo> getDrawnLayers(LayerMaskingEffect effect) {
+        Array<LayerInfo> result = new Array<LayerInfo>();
+        final Array<LayerInfo> layers = effect.getDrawOrder();
+        for (int i = 0; i < layers.size; i++) {
+            if (layers.get(i).isDrawable())
+                result.add(layers.get(i));
+        }
+        return result;
+    }
+
+    public static void main(String[] arg) {
+        final int frames = arg.length > 0 ? Integer.parseInt(arg[0]) : 120;
+        final float step = arg.length > 1 ? Float.parseFloat(arg[1]) : 4.0f;
+
+        HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+        new HeadlessApplication(new MyGdxLayersMaskingEffect() {
+            @Override
+            public void create() {
+                EffectBakerLauncher.installNoOpGL();
+                setPersistEffects(false); // fresh effects, nothing saved
+                super.create();
+                final LayerMaskingEffectDrawer drawer = getLayersDrawer();
+                drawer.setUseDepthPrepass(true);
+                // render() of the app is not called - same projection as its stretching viewport
+                final OrthographicCamera camera = new OrthographicCamera();
+                camera.setToOrtho(false, getBaseScreenWidth(), getBaseScreenHeight());
+                drawer.getSpriteBatch().setProjectionMatrix(camera.combined);
+                System.out.println("Depth pre-pass, " + frames + " frames per effect, sample every "
+                        + step + " px (fragments estimated every 10th frame):");
+                long totalWithout = 0, totalWith = 0, totalWrong = 0;
+                for (int index = 0; index < drawer.count(); index++) {
+                    final LayerMaskingEffect effect = drawer.get(index);
+                    if (effect.count() == 0)
+                        continue;
+                    drawer.showOnly(index);
+                    long occluders = 0, pieces = 0, occluded = 0;
+                    final long[] fragments = new long[4];
+                    for (int frame = 0; frame < frames; frame++) {
+                        drawer.update(FRAME_TIME);
+                        drawer.getRenderContext().submit(drawer);
+                        drawer.getRenderContext().render();
+                        occluders += drawer.getOccluderCount();
+                        pieces += drawer.getSolidPieceCount();
+                        occluded += drawer.getOccludedCount();
+                        if (frame % 10 == 0)
+                            estimate(drawer, getDrawnLayers(effect), step, fragments);
+                    }
+                    System.out.println(String.format("%-12s %2d layers: occluders %4.2f, pieces %5.1f, skipped %4.2f"
+                                    + " per frame, fragments %d -> %d (%5.1f%%), solid samples %d, over translucent mask %d",
+                            effect.getName(), effect.count(), (float) occluders / frames, (float) pieces / frames,
+                            (float) occluded / frames, fragments[0], fragments[1],
+                            100.0f * (fragments[0] - fragments[1]) / Math.max(1, fragments[0]),
+                            fragments[2], fragments[3]));
+                    totalWithout += fragments[0];
+                    totalWith += fragments[1];
+                    totalWrong += fragments[3];
+                }
+                System.out.println(String.format("All effects: fragments %d -> %d (%.1f%% fewer shaded), "
+                                + "solid samples over translucent mask %d", totalWithout, totalWith,
+                        100.0f * (totalWithout - totalWith) / Math.max(1, totalWithout), totalWrong));
+                for (Pixmap pixmap : maskImages.values())
+                    pixmap.dispose();
+                maskImages.clear();
+                Gdx.app.exit();
+            }
+
+        }, config);
+    }
+} // class DepthPrepassLauncher
@@ -0,0 +1,303 @@
+package com.flexigame.layersmaskinggdx.desktop;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.IntArray;
+import com.flexigame.fg.gfx.DynamicResolutionController;
+
+/**
+ * Checks DynamicResolutionController headless against simulated frame times - the
+ * controller is fed directly (no app, no GL). Checks:
+ * - steps: scale goes down from the maximum to the minimum and back up in the
+ *   expected steps (multiples of granularity), one change every framesToDecrease /
+ *   framesToIncrease frames, nothing beyond the range,
+ * - hysteresis: single spikes and frame times between the ratios change nothing,
+ *   frame times just outside them do,
+ * - setScale() rounds and clamps.
+ * Then runs a synthetic trace (the same as QualityGovernorLauncher - built-in or from
+ * file): the trace gives the frame time at full resolution, the frame time fed to
+ * the controller is scaled by the pixels drawn at the current scale. Reports frames
+ * over budget and scale changes per phase with and without the controller - the
+ * controlled run may not have more frames over budget, the built-in trace has to
+ * settle while throttled and end at full resolution.
+ * Last a vsync capped trace (QualityGovernorLauncher.vsyncTrace()): the controller
+ * gets the capped delta with the work time like in the drawer - hitches and a GPU
+ * bound phase may not keep the resolution down, it has to be back at the maximum
+ * after them. Feeding only the delta is reported for comparison.
+ * Exits with 1 when a check fails.
+ * Usage: DynamicResolutionLauncher [trace file - frame time in ms per line]
+ */
+public class DynamicResolutionLauncher {
+    /* Part of the frame not depending on the resolution (logic, swap) */
+    static final float FIXED_COST = 0.3f;
+    static final float EPSILON = 0.0001f;
+
+    /* Expected scales from full resolution down (default step and granularity) */
+    static final float[] DECREASE_SCALES = {0.85f, 0.7f, 0.6f, 0.5f};
+    /* Expected scales from the minimum back up */
+    static final float[] INCREASE_SCALES = {0.6f, 0.7f, 0.8f, 0.95f, 1.0f};
+
+    static int failures = 0;
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("  FAILED: " + message);
+            failures++;
+        }
+    }
+
+    /**
+     * Is the scale a multiple of granularity within the range of the controller?
+     */
+    static boolean isValidScale(DynamicResolutionController controller, float scale) {
+        if (scale < controller.getMinScale() - EPSILON || scale > controller.getMaxScale() + EPSILON)
+            return false;
+        if (controller.granularity <= 0.0f)
+            return true;
+        final float steps = scale / controller.granularity;
+        return Math.abs(steps - Math.round(steps)) < 0.01f;
+    }
+
+    /**
+     * Feeds the frame time until the scale changes - returns the number of frames fed
+     * (limit + 1 when it did not change).
+     */
+    static int feedUntilChange(DynamicResolutionController controller, float frameTime, int limit) {
+        for (int frame = 1; frame <= limit; frame++) {
+            if (controller.addFrameTime(frameTime))
+                return frame;
+        }
+        return limit + 1;
+    }
+
+    /**
+     * Feeds the frame time until the scale stops changing and compares the scales
+     * and frames between changes with the expected ones.
+     */
+    static void checkSequence(String name, DynamicResolutionController controller, float frameTime,
+                           int framesPerChange, float[] expected) {
+        final FloatArray scales = new FloatArray();
+        int frames;
+        while ((frames = feedUntilChange(controller, frameTime, framesPerChange * 4)) <= framesPerChange * 4) {
+            scales.add(controller.getScale());
+            check(frames == framesPerChange, name + " - changed after " + frames + " frames, expected "
+                    + framesPerChange);
+            check(isValidScale(controller, controller.getScale()), name + " - invalid scale " + controller.getScale());
+            if (scales.size > expected.length)
+                break;
+        }
+        System.out.println("  " + name + ": " + scales);
+        check(scales.size == expected.length, name + " - " + scales.size + " changes, expected " + expected.length);
+        for (int i = 0; i < Math.min(scales.size, expected.length); i++)
+            check(Math.abs(scales.get(i) - expected[i]) < EPSILON, name + " " + i + " - scale " + scales.get(i)
+                    + ", expected " + expected[i]);
+    } // void checkSequence(...)
+
+    //-------------------------------------------------------------------------
+
+    static void checkSteps() {
+        System.out.println("Steps:");
+        final DynamicResolutionController controller = new DynamicResolutionController();
+        final float target = controller.getTargetFrameTime();
+        check(controller.getScale() == controller.getMaxScale(), "does not start at the maximum scale");
+
+        checkSequence("down", controller, target * 2.0f, controller.framesToDecrease, DECREASE_SCALES);
+        check(Math.abs(controller.getScale() - controller.getMinScale()) < EPSILON, "not at the minimum scale");
+        controller.reset(); // forget the frames fed at the minimum
+        checkSequence("up", controller, target * 0.5f, controller.framesToIncrease, INCREASE_SCALES);
+        check(controller.getScale() == controller.getMaxScale(), "not back at the maximum scale");
+        check(controller.getChangeCount() == DECREASE_SCALES.length + INCREASE_SCALES.length,
+                controller.getChangeCount() + " changes counted");
+    }
+
+    static void checkHysteresis() {
+        System.out.println("Hysteresis:");
+        final DynamicResolutionController controller = new DynamicResolutionController();
+        final float target = controller.getTargetFrameTime();
+        controller.setScale(0.7f);
+
+        // spikes in a full window - the average keeps them under the upper ratio
+        int changes = 0;
+        for (int frame = 0; frame < 2000; frame++) {
+            if (controller.addFrameTime(frame % 50 == 25 ? target * 2.5f : target * 0.8f))
+                changes++;
+        }
+        System.out.println("  spikes of 2.5x budget every 50 frames: " + changes + " changes");
+        check(changes == 0, "single spikes changed the scale");
+
+        changes = 0;
+        for (int frame = 0; frame < 2000; frame++) {
+            if (controller.addFrameTime(target * (controller.lowerRatio + 0.02f)))
+                changes++;
+        }
+        for (int frame = 0; frame < 2000; frame++) {
+            if (controller.addFrameTime(target * (controller.upperRatio - 0.02f)))
+                changes++;
+        }
+        System.out.println("  frame times inside the ratios: " + changes + " changes");
+        check(changes == 0, "frame time between the ratios changed the scale");
+
+        controller.reset();
+        check(feedUntilChange(controller, target * (controller.upperRatio + 0.02f), 100)
+                == controller.framesToDecrease, "no decrease just over the upper ratio");
+        check(feedUntilChange(controller, target * (controller.lowerRatio - 0.02f), 1000)
+                == controller.framesToIncrease, "no increase just under the lower ratio");
+        check(Math.abs(controller.getScale() - 0.7f) < EPSILON, "scale " + controller.getScale()
+                + " after one decrease and one increase, expected 0.7");
+    } // void checkHysteresis()
+
+    static void checkSetScale() {
+        System.out.println("Set scale:");
+        final DynamicResolutionController controller = new DynamicResolutionController();
+        final float[] requested = {0.33f, 0.62f, 0.1f, 2.0f};
+        final float[] expected = {0.5f, 0.6f, 0.5f, 1.0f};
+        for (int i = 0; i < requested.length; i++) {
+            controller.setScale(requested[i]);
+            System.out.println("  " + requested[i] + " -> " + controller.getScale());
+            check(Math.abs(controller.getScale() - expected[i]) < EPSILON, "setScale(" + requested[i] + ") gave "
+                    + controller.getScale() + ", expected " + expected[i]);
+        }
+        check(controller.getChangeCount() == 0, "setScale() counted as change");
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Frame time at the scale - the part depending on resolution goes with the pixels.
+     */
+    static float getFrameTime(float fullResolution, float scale) {
+        return fullResolution * (FIXED_COST + (1.0f - FIXED_COST) * scale * scale);
+    }
+
+    /**
+     * First frame after the phase.
+     */
+    static int getPhaseEnd(IntArray phaseStarts, int phase, int traceFrames) {
+        return phase + 1 < phaseStarts.size ? phaseStarts.get(phase + 1) : traceFrames;
+    }
+
+    static void runTrace(String traceFile) {
+        final DynamicResolutionController controller = new DynamicResolutionController();
+        final IntArray phaseStarts = new IntArray();
+        final FloatArray trace = traceFile != null
+                ? QualityGovernorLauncher.readTrace(Gdx.files.absolute(traceFile), phaseStarts)
+                : QualityGovernorLauncher.builtInTrace(phaseStarts);
+        final float budget = controller.getTargetFrameTime() * 1000.0f;
+        System.out.println("Trace (" + trace.size + " frames, budget " + String.format("%.2f", budget) + " ms):");
+
+        int phase = 0, overControlled = 0, overFull = 0, phaseStart = 0, phaseChanges = 0, lateChanges = 0;
+        float sumControlled = 0.0f;
+        for (int frame = 0; frame <= trace.size; frame++) {
+            if (frame == getPhaseEnd(phaseStarts, phase, trace.size)) {
+                final int frames = frame - phaseStart;
+                final String name = traceFile != null ? "trace" : QualityGovernorLauncher.PHASE_NAMES[phase];
+                System.out.println(String.format("  %s (%d frames): over budget %d controlled / %d full resolution,"
+                                + " avg %.2f ms, %d changes (%d in the second half), scale %.2f", name, frames,
+                        overControlled, overFull, sumControlled / Math.max(1, frames), phaseChanges, lateChanges,
+                        controller.getScale()));
+                check(overControlled <= overFull, name + " - more frames over budget with the controller");
+                if (traceFile == null && QualityGovernorLauncher.PHASE_BURST_TIMES[phase] == 0.0f)
+                    check(lateChanges == 0, name + " - scale did not settle");
+                phase++;
+                phaseStart = frame;
+                overControlled = 0;
+                overFull = 0;
+                phaseChanges = 0;
+                lateChanges = 0;
+                sumControlled = 0.0f;
+                if (frame == trace.size)
+                    break;
+            }
+            final float fullResolution = trace.get(frame);
+            final float controlled = getFrameTime(fullResolution, controller.getScale());
+            if (fullResolution > budget)
+                overFull++;
+            if (controlled > budget)
+                overControlled++;
+            sumControlled += controlled;
+            if (controller.addFrameTime(controlled / 1000.0f)) {
+                phaseChanges++;
+                if ((frame - phaseStart) * 2 >= getPhaseEnd(phaseStarts, phase, trace.size) - phaseStart)
+                    lateChanges++;
+            }
+        }
+        if (traceFile == null)
+            check(controller.getScale() == controller.getMaxScale(), "not back at full resolution");
+        System.out.println("  " + controller.getChangeCount() + " changes, scale now " + controller.getScale());
+    } // void runTrace(...)
+
+    /**
+     * Vsync capped trace - controller fed with delta and work time (like the drawer)
+     * against the same controller fed with the delta only.
+     */
+    static void runVsyncTrace() {
+        final DynamicResolutionController controller = new DynamicResolutionController();
+        final DynamicResolutionController deltaOnly = new DynamicResolutionController();
+        final IntArray phaseStarts = new IntArray();
+        final FloatArray cpuTimes = new FloatArray();
+        final FloatArray gpuTimes = QualityGovernorLauncher.vsyncTrace(phaseStarts, cpuTimes);
+        final float interval = QualityGovernorLauncher.REFRESH_INTERVAL;
+        System.out.println("Vsync capped trace (" + gpuTimes.size + " frames, refresh "
+                + String.format("%.2f", interval) + " ms):");
+
+        int phase = 0, missedControlled = 0, missedFull = 0, missedDeltaOnly = 0, phaseStart = 0;
+        for (int frame = 0; frame <= gpuTimes.size; frame++) {
+            if (frame == getPhaseEnd(phaseStarts, phase, gpuTimes.size)) {
+                final String name = QualityGovernorLauncher.VSYNC_PHASE_NAMES[phase];
+                System.out.println(String.format("  %s (%d frames): missed vsync %d controlled / %d full resolution"
+                                + " / %d delta only, scale %.2f (delta only %.2f)", name, frame - phaseStart,
+                        missedControlled, missedFull, missedDeltaOnly, controller.getScale(), deltaOnly.getScale()));
+                check(missedControlled <= missedFull, name + " - more frames missed vsync with the controller");
+                if (QualityGovernorLauncher.VSYNC_GPU_TIMES[phase] < interval)
+                    check(controller.getScale() == controller.getMaxScale(),
+                            name + " - resolution did not recover: " + controller.getScale());
+                phase++;
+                phaseStart = frame;
+                missedControlled = 0;
+                missedFull = 0;
+                missedDeltaOnly = 0;
+                if (frame == gpuTimes.size)
+                    break;
+            }
+            final float cpuTime = cpuTimes.get(frame);
+            final float gpuTime = gpuTimes.get(frame);
+            final float delta = QualityGovernorLauncher.getVsyncDelta(cpuTime,
+                    getFrameTime(gpuTime, controller.getScale()));
+            if (delta > interval * 1.5f)
+                missedControlled++;
+            if (QualityGovernorLauncher.getVsyncDelta(cpuTime, gpuTime) > interval * 1.5f)
+                missedFull++;
+            final float deltaOnlyTime = QualityGovernorLauncher.getVsyncDelta(cpuTime,
+                    getFrameTime(gpuTime, deltaOnly.getScale()));
+            if (deltaOnlyTime > interval * 1.5f)
+                missedDeltaOnly++;
+            // the app measures CPU work only - GPU time shows in the delta
+            controller.addFrameTime(delta / 1000.0f, cpuTime / 1000.0f);
+            deltaOnly.addFrameTime(deltaOnlyTime / 1000.0f);
+        }
+        check(controller.getScale() == controller.getMaxScale(), "vsync capped - not back at full resolution");
+    } // void runVsyncTrace()
+
+    public static void main(String[] arg) {
+        final String traceFile = arg.length > 0 ? arg[0] : null;
+
+        HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+        new HeadlessApplication(new ApplicationAdapter() {
+            @Override
+            public void create() {
+                checkSteps();
+                checkHysteresis();
+                checkSetScale();
+                runTrace(traceFile);
+                runVsyncTrace();
+                System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+                if (failures > 0)
+                    System.exit(1);
+                Gdx.app.exit();
+            }
+        }, config);
+    }
+} // class DynamicResolutionLauncher
@@ -0,0 +1,91 @@
+package com.flexigame.layersmaskinggdx.desktop;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.GL20;
+import com.flexigame.fg.gfx.LayerEffectBaker;
+import com.flexigame.fg.gfx.LayerMaskingEffect;
+import com.flexigame.fg.gfx.LayerMaskingRasterizer;
+import com.flexigame.layersmaskinggdx.MyGdxLayersMaskingEffect;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.IntBuffer;
+
+/**
+ * Headless tool baking all effects of the demo into sprite sheets (CPU path).
+ * Usage: EffectBakerLauncher [outputDir] [frameSize] [fps]
+ * Working directory must be the assets directory (android/assets).
+ */
+public class EffectBakerLauncher {
+    /**
+     * Headless backend does not provide any GL implementation. Sprite batch and
+     * shaders are still created by the drawer, so install no-op GL that reports
+     * successful shader compilation and linking.
+     */
+    static void installNoOpGL() {
+        GL20 gl = (GL20) Proxy.newProxyInstance(GL20.class.getClassLoader(),
+                new Class<?>[]{GL20.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        final String name = method.getName();
+                        if (name.equals("glGetShaderiv") || name.equals("glGetProgramiv")) {
+                            final int pname = (Integer) args[1];
+                            if (pname == GL20.GL_COMPILE_STATUS || pname == GL20.GL_LINK_STATUS)
+                                ((IntBuffer) args[2]).put(0, 1);
+                            return null;
+                        }
+                        Class<?> type = method.getReturnType();
+                        if (type == Boolean.TYPE)
+                            return Boolean.FALSE;
+                        if (type == Integer.TYPE)
+                            return 1; // valid handles for glCreateShader() etc.
+                        if (type == String.class)
+                            return "";
+                        return null;
+                    }
+                });
+        Gdx.gl = gl;
+        Gdx.gl20 = gl;
+    }
+
+    public static void main(String[] arg) {
+        final String outputDir = arg.length > 0 ? arg[0] : "baked";
+        final int frameSize = arg.length > 1 ? Integer.parseInt(arg[1]) : 256;
+        final int fps = arg.length > 2 ? Integer.parseInt(arg[2]) : 30;
+
+        HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+        new HeadlessApplication(new MyGdxLayersMaskingEffect() {
+            @Override
+            public void create() {
+                installNoOpGL();
+                setPersistEffects(false); // fresh effects, nothing saved
+                super.create();
+                LayerMaskingRasterizer rasterizer = new LayerMaskingRasterizer();
+                rasterizer.loadSources(getLayersDrawer());
+                LayerEffectBaker baker = new LayerEffectBaker(getLayersDrawer(), rasterizer);
+                baker.setDelta(1.0f / fps);
+                baker.setFrameSize(frameSize, frameSize);
+                // square region in the middle of the base screen
+                final float size = getBaseScreenWidth();
+                baker.setWorldRect(0.0f, (getBaseScreenHeight() - size) / 2.0f, size, size);
+                FileHandle dir = Gdx.files.absolute(new File(outputDir).getAbsolutePath());
+                for (int i = 0; i < NUM_LAYER_EFFECTS; i++) {
+                    LayerMaskingEffect effect = getLayerEffect(i);
+                    baker.bake(effect, dir, effect.getName());
+                }
+                rasterizer.dispose();
+                Gdx.app.exit();
+            }
+
+            @Override
+            public void render() {
+                // nothing to render - baking happens in create()
+            }
+        }, config);
+    }
+} // class EffectBakerLauncher
@@ -0,0 +1,221 @@
+package com.flexigame.layersmaskinggdx.desktop;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.backends.headless.mock.graphics.MockGraphics;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.GL30;
+import com.badlogic.gdx.graphics.OrthographicCamera;
+import com.badlogic.gdx.utils.ObjectSet;
+import com.flexigame.fg.gfx.LayerMaskingEffect;
+import com.flexigame.fg.gfx.LayerMaskingEffectDrawer;
+import com.flexigame.fg.gfx.LayerRenderContext;
+import com.flexigame.layersmaskinggdx.MyGdxLayersMaskingEffect;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.IntBuffer;
+
+/**
+ * Runs the effects of the app headless with a no-op GL30 (reported as available) and
+ * compares the SpriteBatch path with the instanced path on the same layer set: CPU
+ * time of submitting a frame (building vertices / instance data and issuing the GL
+ * calls - no driver cost, GL calls are counted instead), draw calls and GL calls per
+ * frame. Both paths run in alternating blocks of frames after a warm-up. Checks that
+ * every instanced draw used a blend function the SpriteBatch path uses for the same
+ * layers, with straight and with premultiplied alpha.
+ * Exits with 1 when a check fails.
+ * Usage: InstancingLauncher [frames per block] [rounds]
+ */
+public class InstancingLauncher {
+    static final float FRAME_TIME = 1.0f / 60.0f;
+
+    /* Recorded state */
+    static int glCalls = 0;
+    static int drawCalls = 0;
+    static int instancedDrawCalls = 0;
+    static int[] blendFunction = {GL20.GL_ONE, GL20.GL_ZERO, GL20.GL_ONE, GL20.GL_ZERO};
+    /* Blend functions used by the draw calls: "src dst srcAlpha dstAlpha" */
+    static ObjectSet<String> drawBlendFunctions = new ObjectSet<String>();
+
+    static int failures = 0;
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("  FAILED: " + message);
+            failures++;
+        }
+    }
+
+    static void installRecordingGL30() {
+        final GL30 gl = (GL30) Proxy.newProxyInstance(GL30.class.getClassLoader(),
+                new Class<?>[]{GL30.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        final String name = method.getName();
+                        glCalls++;
+                        if (name.equals("glGetShaderiv") || name.equals("glGetProgramiv")) {
+                            final int pname = (Integer) args[1];
+                            if (pname == GL20.GL_COMPILE_STATUS || pname == GL20.GL_LINK_STATUS)
+                                ((IntBuffer) args[2]).put(0, 1);
+                            return null;
+                        }
+                        if (name.equals("glBlendFunc")) {
+                            blendFunction[0] = blendFunction[2] = (Integer) args[0];
+                            blendFunction[1] = blendFunction[3] = (Integer) args[1];
+                        } else if (name.equals("glBlendFuncSeparate")) {
+                            for (int i = 0; i < 4; i++)
+                                blendFunction[i] = (Integer) args[i];
+                        } else if (name.startsWith("glDraw")) {
+                            drawCalls++;
+                            if (name.endsWith("Instanced"))
+                                instancedDrawCalls++;
+                            drawBlendFunctions.add(blendFunction[0] + " " + blendFunction[1] + " "
+                                    + blendFunction[2] + " " + blendFunction[3]);
+                        }
+                        Class<?> type = method.getReturnType();
+                        if (type == Boolean.TYPE)
+                            return Boolean.FALSE;
+                        if (type == Integer.TYPE)
+                            return 1; // valid handles for glCreateShader() etc.
+                        if (type == String.class)
+                            return "";
+                        return null;
+                    }
+                });
+        Gdx.gl = gl;
+        Gdx.gl20 = gl;
+        Gdx.gl30 = gl;
+        // instanced renderer checks GL30 when the render context is created
+        Gdx.graphics = new MockGraphics() {
+            @Override
+            public boolean isGL30Available() {
+                return true;
+            }
+
+            @Override
+            public GL30 getGL30() {
+                return gl;
+            }
+
+            @Override
+            public int getWidth() {
+                return 720;
+            }
+
+            @Override
+            public int getHeight() {
+                return 1280;
+            }
+        };
+    }
+
+    /**
+     * Runs frames with the given path, adds submit time (ns), draw calls, GL calls
+     * and instanced draw calls to out.
+     */
+    static void run(LayerMaskingEffectDrawer drawer, boolean instanced, int frames, long[] out) {
+        drawer.setUseInstancing(instanced);
+        final LayerRenderContext renderContext = drawer.getRenderContext();
+        for (int frame = 0; frame < frames; frame++) {
+            drawer.update(FRAME_TIME);
+            drawCalls = 0;
+            instancedDrawCalls = 0;
+            glCalls = 0;
+            final long start = System.nanoTime();
+            renderContext.submit(drawer);
+            renderContext.render();
+            out[0] += System.nanoTime() - start;
+            out[1] += drawCalls;
+            out[2] += glCalls;
+            out[3] += instancedDrawCalls;
+        }
+    }
+
+    /**
+     * Compares both paths on the effect - returns false when the instanced path was
+     * not used (layers the instanced renderer does not draw).
+     */
+    static boolean compare(LayerMaskingEffectDrawer drawer, LayerMaskingEffect effect, int frames, int rounds) {
+        final long[] batch = new long[4];
+        final long[] instanced = new long[4];
+        // warm-up - JIT, shader variants, first uploads
+        run(drawer, false, frames, new long[4]);
+        run(drawer, true, frames, new long[4]);
+        drawBlendFunctions.clear();
+        run(drawer, false, frames, batch);
+        final ObjectSet<String> batchFunctions = new ObjectSet<String>(drawBlendFunctions);
+        drawBlendFunctions.clear();
+        run(drawer, true, frames, instanced);
+        final ObjectSet<String> instancedFunctions = new ObjectSet<String>(drawBlendFunctions);
+        for (int round = 1; round < rounds; round++) {
+            run(drawer, false, frames, batch);
+            run(drawer, true, frames, instanced);
+        }
+        final int total = frames * rounds;
+        if (instanced[3] == 0) {
+            System.out.println(String.format("  %-12s %2d layers: batch %7.1f us, %5.1f draws, %6.1f GL calls"
+                            + " - instanced path not used", effect.getName(), effect.count(),
+                    batch[0] / 1000.0 / total, (float) batch[1] / total, (float) batch[2] / total));
+            return false;
+        }
+        System.out.println(String.format("  %-12s %2d layers: batch %7.1f us, %5.1f draws, %6.1f GL calls"
+                        + " | instanced %7.1f us, %5.1f draws, %6.1f GL calls", effect.getName(), effect.count(),
+                batch[0] / 1000.0 / total, (float) batch[1] / total, (float) batch[2] / total,
+                instanced[0] / 1000.0 / total, (float) instanced[1] / total, (float) instanced[2] / total));
+        for (String function : instancedFunctions) {
+            check(batchFunctions.contains(function), effect.getName() + " - instanced draws blend with "
+                    + function + ", sprite batch path with " + batchFunctions);
+        }
+        return true;
+    } // boolean compare(...)
+
+    public static void main(String[] arg) {
+        final int frames = arg.length > 0 ? Integer.parseInt(arg[0]) : 120;
+        final int rounds = arg.length > 1 ? Integer.parseInt(arg[1]) : 5;
+
+        HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+        new HeadlessApplication(new MyGdxLayersMaskingEffect() {
+            @Override
+            public void create() {
+                installRecordingGL30();
+                setPersistEffects(false); // fresh effects, nothing saved
+                super.create();
+                final LayerMaskingEffectDrawer drawer = getLayersDrawer();
+                check(drawer.getRenderContext().getInstancedRenderer().isSupported(),
+                        "instanced renderer not supported with GL30");
+                // render() of the app is not called - same projection as its stretching viewport
+                final OrthographicCamera camera = new OrthographicCamera();
+                camera.setToOrtho(false, getBaseScreenWidth(), getBaseScreenHeight());
+                drawer.getSpriteBatch().setProjectionMatrix(camera.combined);
+                for (int pass = 0; pass < 2; pass++) {
+                    final boolean premultiplied = pass == 1;
+                    drawer.getRenderContext().setPremultipliedAlpha(premultiplied);
+                    System.out.println((premultiplied ? "Premultiplied" : "Straight") + " alpha, " + rounds
+                            + " x " + frames + " frames per path, submit time per frame:");
+                    int compared = 0;
+                    for (int index = 0; index < drawer.count(); index++) {
+                        if (drawer.get(index).count() == 0)
+                            continue;
+                        drawer.showOnly(index);
+                        if (compare(drawer, drawer.get(index), frames, rounds))
+                            compared++;
+                    }
+                    check(compared > 0, "no effect drawn with the instanced path");
+                }
+                drawer.getRenderContext().setPremultipliedAlpha(false);
+                System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+                if (failures > 0)
+                    System.exit(1);
+                Gdx.app.exit();
+            }
+
+            @Override
+            public void render() {
+                // nothing to render - frames are drawn in create()
+            }
+        }, config);
+    }
+} // class InstancingLauncher
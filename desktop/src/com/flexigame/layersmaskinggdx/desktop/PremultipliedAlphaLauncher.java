@@ -0,0 +1,303 @@
+package com.flexigame.layersmaskinggdx.desktop;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.graphics.OrthographicCamera;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.utils.Array;
+import com.flexigame.fg.gfx.LayerInfo;
+import com.flexigame.fg.gfx.LayerMaskingEffect;
+import com.flexigame.fg.gfx.LayerMaskingEffectDrawer;
+import com.flexigame.fg.gfx.LayerRenderContext;
+import com.flexigame.fg.gfx.ParallelAssetManager;
+import com.flexigame.fg.gfx.PremultipliedTextureData;
+import com.flexigame.layersmaskinggdx.MyGdxLayersMaskingEffect;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compares the straight and the premultiplied alpha pipelines headless (no-op GL).
+ * Draws an effect mixing alpha, additive and opaque layers with both and reports
+ * per frame blend function changes, program switches and draw calls. Then checks
+ * for fringes: the layer textures of the app are opaque, so each one is cut out
+ * with a mask (black color under zero alpha - what image editors usually export),
+ * reduced to its first mip level (2x2 box filter - what the GPU does for mip chains
+ * and between texels) with straight and with premultiplied texels and composited
+ * over white - errors against compositing the full resolution texels first are
+ * the fringes. The same cut out textures drawn as OPAQUE layers have to give the same
+ * color in both pipelines (premultiplied color, alpha 1).
+ * Usage: PremultipliedAlphaLauncher [frames]
+ */
+public class PremultipliedAlphaLauncher {
+    static final float FRAME_TIME = 1.0f / 60.0f;
+
+    static final String[] TEXTURES = {"layers/7_512.tga", "layers/8_512.tga", "layers/9_512.tga", "layers/10_512.tga"};
+    static final String[] MASKS = {"masks/ring_0.tga", "masks/ring_1.tga", "masks/triangle_0.tga", "masks/line_h_0.tga"};
+    /* Layers of the effect: texture, mask, blend mode - glows added between regular layers */
+    static final int[][] LAYERS = {
+            {0, 0, 0}, {1, 1, 1}, {2, 2, 1}, {1, 3, 1}, {2, 1, 1}, {3, 2, 2},
+            {1, 0, 1}, {0, 3, 0}, {2, 2, 1}, {1, 1, 1}, {2, 2, 1}, {3, 0, 0}};
+
+    static int countProgramChanges(Array<LayerInfo> layers) {
+        int changes = 0, previous = -1;
+        for (int i = 0; i < layers.size; i++) {
+            final int features = layers.get(i).getShaderFeatures();
+            if (features != previous)
+                changes++;
+            previous = features;
+        }
+        return changes;
+    }
+
+    static void simulate(boolean premultiplied, int frames) {
+        final ParallelAssetManager assetManager = new ParallelAssetManager();
+        if (premultiplied)
+            assetManager.addPremultipliedPrefix(MyGdxLayersMaskingEffect.PREMULTIPLIED_PREFIX);
+        for (int i = 0; i < TEXTURES.length; i++)
+            assetManager.loadTexture(TEXTURES[i]);
+        for (int i = 0; i < MASKS.length; i++)
+            assetManager.loadTexture(MASKS[i]);
+        assetManager.finishLoading();
+
+        final LayerRenderContext renderContext = new LayerRenderContext();
+        renderContext.setPremultipliedAlpha(premultiplied);
+        final LayerMaskingEffectDrawer drawer = new LayerMaskingEffectDrawer(assetManager, renderContext);
+        final OrthographicCamera camera = new OrthographicCamera();
+        camera.setToOrtho(false, 720.0f, 1280.0f);
+        drawer.getSpriteBatch().setProjectionMatrix(camera.combined);
+        final LayerMaskingEffect effect = drawer.createLayerEffect("mixed");
+        for (int i = 0; i < LAYERS.length; i++) {
+            LayerInfo layerInfo = effect.addLayer(TEXTURES[LAYERS[i][0]], MASKS[LAYERS[i][1]]);
+            layerInfo.blendMode = LayerInfo.BlendMode.values()[LAYERS[i][2]];
+            layerInfo.size.set(720.0f, 720.0f);
+            layerInfo.position.set(360.0f, 640.0f);
+            layerInfo.rotationSpeed = (i % 3 - 1) * 12.0f;
+            layerInfo.shouldPulse = i % 4 == 1;
+            layerInfo.markDirty();
+        }
+
+        long blendSwitches = 0, programSwitches = 0, drawCalls = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            drawer.update(FRAME_TIME);
+            renderContext.submit(drawer);
+            renderContext.render();
+            blendSwitches += renderContext.getBlendSwitchCount();
+            programSwitches += renderContext.getShaderCache().getSwitchCount();
+            drawCalls += drawer.getSpriteBatch().renderCalls;
+        }
+        System.out.println(String.format("%-13s blend changes %5.2f, program switches %5.2f, draw calls %5.2f per frame",
+                premultiplied ? "premultiplied" : "straight", (float) blendSwitches / frames,
+                (float) programSwitches / frames, (float) drawCalls / frames));
+        System.out.println("  program changes in layer order " + countProgramChanges(effect.getLayerInfoArray())
+                + ", in draw order (additive runs sorted) " + countProgramChanges(effect.getDrawOrder()));
+        drawer.dispose();
+        renderContext.dispose();
+        assetManager.dispose();
+    } // void simulate(...)
+
+    /**
+     * Largest and average error (8 bit units) of the reduced texture composited over
+     * white, counts of texels with a visible (over 2) error in out[2].
+     */
+    static void measureFringes(Pixmap pixmap, boolean premultiplied, float[] out) {
+        final ByteBuffer pixels = pixmap.getPixels();
+        final int width = pixmap.getWidth();
+        final int count = width * pixmap.getHeight();
+        final byte[] texels = new byte[count * 4];
+        pixels.position(0);
+        pixels.get(texels);
+        pixels.position(0);
+        final byte[] stored = texels.clone();
+        if (premultiplied)
+            PremultipliedTextureData.premultiply(stored, count, Pixmap.Format.RGBA8888);
+        float maxError = 0.0f, sumError = 0.0f;
+        int visible = 0, samples = 0;
+        for (int y = 0; y + 1 < pixmap.getHeight(); y += 2) {
+            for (int x = 0; x + 1 < width; x += 2) {
+                final int[] corners = {(y * width + x) * 4, (y * width + x + 1) * 4,
+                        ((y + 1) * width + x) * 4, ((y + 1) * width + x + 1) * 4};
+                float alpha = 0.0f;
+                for (int k = 0; k < 4; k++)
+                    alpha += (stored[corners[k] + 3] & 0xff) / 4.0f;
+                float error = 0.0f;
+                for (int c = 0; c < 3; c++) {
+                    float reference = 0.0f, filtered = 0.0f;
+                    for (int k = 0; k < 4; k++) {
+                        final float a = (texels[corners[k] + 3] & 0xff) / 255.0f;
+                        reference += ((texels[corners[k] + c] & 0xff) * a + 255.0f * (1.0f - a)) / 4.0f;
+                        filtered += (stored[corners[k] + c] & 0xff) / 4.0f;
+                    }
+                    // straight: filtered * alpha + white * (1 - alpha), premultiplied: filtered + white * (1 - alpha)
+                    final float composited = premultiplied
+                            ? filtered + 255.0f * (1.0f - alpha / 255.0f)
+                            : filtered * alpha / 255.0f + 255.0f * (1.0f - alpha / 255.0f);
+                    error = Math.max(error, Math.abs(composited - reference));
+                }
+                maxError = Math.max(maxError, error);
+                sumError += error;
+                if (error > 2.0f)
+                    visible++;
+                samples++;
+            }
+        }
+        out[0] = maxError;
+        out[1] = sumError / Math.max(1, samples);
+        out[2] = visible;
+    } // void measureFringes(...)
+
+    /**
+     * Layer texture as RGBA8888 with the red channel of the mask as alpha.
+     */
+    static Pixmap cutOut(String textureFile, String maskFile) {
+        Pixmap source = new Pixmap(Gdx.files.internal(textureFile));
+        Pixmap mask = new Pixmap(Gdx.files.internal(maskFile));
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        Pixmap result = new Pixmap(width, height, Pixmap.Format.RGBA8888);
+        Pixmap scaledMask = new Pixmap(width, height, Pixmap.Format.RGBA8888);
+        // blending and filter of Pixmap are global - restored for the other pixmaps
+        final Pixmap.Blending blending = Pixmap.getBlending();
+        Pixmap.setBlending(Pixmap.Blending.None);
+        try {
+            result.drawPixmap(source, 0, 0);
+            scaledMask.drawPixmap(mask, 0, 0, mask.getWidth(), mask.getHeight(), 0, 0, width, height);
+        } finally {
+            Pixmap.setBlending(blending);
+        }
+        final ByteBuffer pixels = result.getPixels();
+        final ByteBuffer maskPixels = scaledMask.getPixels();
+        for (int i = 0, n = width * height; i < n; i++) {
+            final byte alpha = maskPixels.get(i * 4);
+            pixels.put(i * 4 + 3, alpha);
+            if (alpha == 0) {
+                for (int c = 0; c < 3; c++)
+                    pixels.put(i * 4 + c, (byte) 0);
+            }
+        }
+        source.dispose();
+        mask.dispose();
+        scaledMask.dispose();
+        return result;
+    } // Pixmap cutOut(...)
+
+    /**
+     * Difference (8 bit units) between the color of an OPAQUE layer in the straight and
+     * in the premultiplied pipeline at the first mip level - out[0] max, out[1] average,
+     * out[2] texels over 2 - and the largest one at full resolution in out[3]. With
+     * previous the straight pipeline ignores the texture alpha completely (color as
+     * stored) instead of keeping the premultiplied color.
+     */
+    static void measureOpaque(Pixmap pixmap, boolean previous, float[] out) {
+        final ByteBuffer pixels = pixmap.getPixels();
+        final int width = pixmap.getWidth();
+        final int count = width * pixmap.getHeight();
+        final byte[] texels = new byte[count * 4];
+        pixels.position(0);
+        pixels.get(texels);
+        pixels.position(0);
+        final byte[] stored = texels.clone();
+        PremultipliedTextureData.premultiply(stored, count, Pixmap.Format.RGBA8888);
+        float fullError = 0.0f;
+        for (int i = 0; i < count; i++) {
+            final float alpha = previous ? 1.0f : (texels[i * 4 + 3] & 0xff) / 255.0f;
+            for (int c = 0; c < 3; c++)
+                fullError = Math.max(fullError, Math.abs((texels[i * 4 + c] & 0xff) * alpha - (stored[i * 4 + c] & 0xff)));
+        }
+        float maxError = 0.0f, sumError = 0.0f;
+        int visible = 0, samples = 0;
+        for (int y = 0; y + 1 < pixmap.getHeight(); y += 2) {
+            for (int x = 0; x + 1 < width; x += 2) {
+                final int[] corners = {(y * width + x) * 4, (y * width + x + 1) * 4,
+                        ((y + 1) * width + x) * 4, ((y + 1) * width + x + 1) * 4};
+                float alpha = 0.0f;
+                for (int k = 0; k < 4; k++)
+                    alpha += (texels[corners[k] + 3] & 0xff) / 4.0f;
+                float error = 0.0f;
+                for (int c = 0; c < 3; c++) {
+                    float straight = 0.0f, premultiplied = 0.0f;
+                    for (int k = 0; k < 4; k++) {
+                        straight += (texels[corners[k] + c] & 0xff) / 4.0f;
+                        premultiplied += (stored[corners[k] + c] & 0xff) / 4.0f;
+                    }
+                    // fragment color with alpha 1 - shaders of LayerShaderCache, mask value 1
+                    if (!previous)
+                        straight *= alpha / 255.0f;
+                    error = Math.max(error, Math.abs(straight - premultiplied));
+                }
+                maxError = Math.max(maxError, error);
+                sumError += error;
+                if (error > 2.0f)
+                    visible++;
+                samples++;
+            }
+        }
+        out[0] = maxError;
+        out[1] = sumError / Math.max(1, samples);
+        out[2] = visible;
+        out[3] = fullError;
+    } // void measureOpaque(...)
+
+    static int countTranslucent(Pixmap pixmap) {
+        if (pixmap.getFormat() != Pixmap.Format.RGBA8888)
+            return 0;
+        final ByteBuffer pixels = pixmap.getPixels();
+        int count = 0;
+        for (int i = 0, n = pixmap.getWidth() * pixmap.getHeight(); i < n; i++) {
+            if ((pixels.get(i * 4 + 3) & 0xff) != 255)
+                count++;
+        }
+        return count;
+    }
+
+    static void checkFringes() {
+        final float[] straight = new float[3];
+        final float[] premultiplied = new float[3];
+        System.out.println("Fringes of the first mip level over white (max / avg error, texels over 2):");
+        for (int i = 0; i < TEXTURES.length; i++) {
+            Pixmap original = new Pixmap(Gdx.files.internal(TEXTURES[i]));
+            final int translucent = countTranslucent(original);
+            original.dispose();
+            Pixmap pixmap = cutOut(TEXTURES[i], MASKS[i]);
+            measureFringes(pixmap, false, straight);
+            measureFringes(pixmap, true, premultiplied);
+            System.out.println(String.format("  %-18s (%d translucent texels) cut out with %-19s"
+                            + " straight %5.1f / %4.2f / %5d   premultiplied %4.1f / %4.2f / %d",
+                    TEXTURES[i], translucent, MASKS[i], straight[0], straight[1], (int) straight[2],
+                    premultiplied[0], premultiplied[1], (int) premultiplied[2]));
+            pixmap.dispose();
+        }
+        final float[] previous = new float[4];
+        final float[] current = new float[4];
+        System.out.println("OPAQUE layers, straight against premultiplied pipeline (full resolution max,"
+                + " first mip level max / avg difference, texels over 2):");
+        for (int i = 0; i < TEXTURES.length; i++) {
+            Pixmap pixmap = cutOut(TEXTURES[i], MASKS[i]);
+            measureOpaque(pixmap, true, previous);
+            measureOpaque(pixmap, false, current);
+            System.out.println(String.format("  %-18s cut out with %-19s alpha ignored %5.1f, %5.1f / %4.2f / %5d"
+                            + "   premultiplied color %3.1f, %4.1f / %4.2f / %d",
+                    TEXTURES[i], MASKS[i], previous[3], previous[0], previous[1], (int) previous[2],
+                    current[3], current[0], current[1], (int) current[2]));
+            pixmap.dispose();
+        }
+    } // void checkFringes()
+
+    public static void main(String[] arg) {
+        final int frames = arg.length > 0 ? Integer.parseInt(arg[0]) : 300;
+
+        HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+        new HeadlessApplication(new ApplicationAdapter() {
+            @Override
+            public void create() {
+                EffectBakerLauncher.installNoOpGL();
+                System.out.println(LAYERS.length + " layers (alpha, additive and opaque), " + frames + " frames:");
+                simulate(false, frames);
+                simulate(true, frames);
+                checkFringes();
+                Gdx.app.exit();
+            }
+        }, config);
+    }
+} // class PremultipliedAlphaLauncher
@@ -0,0 +1,527 @@
+package com.flexigame.layersmaskinggdx.desktop;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.assets.AssetManager;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.IntArray;
+import com.flexigame.fg.gfx.LayerInfo;
+import com.flexigame.fg.gfx.LayerMaskingEffect;
+import com.flexigame.fg.gfx.ProceduralMask;
+import com.flexigame.fg.gfx.QualityGovernor;
+
+import java.util.Random;
+
+/**
+ * Checks QualityGovernor headless against simulated frame times - the governor is fed
+ * directly (no app, no drawer, no files) with hand-built effects covering every kind
+ * of layer: texture mask with a low resolution version, procedural mask, rotating or
+ * not, protected priority, invisible layer, inactive effect. Checks:
+ * - order of reductions and restores (priority, then quality, one effective level at
+ *   a time) against the expected sequence,
+ * - hysteresis: a decision every framesToDegrade / restore delay frames, nothing from
+ *   single spikes or frame times between the ratios,
+ * - backoff: restore delay doubles up to maxRestoreDelay while restores do not hold
+ *   and goes back to framesToRestore after one which held.
+ * Then runs a synthetic trace (built-in or from file): the trace gives the frame time
+ * with every layer at full quality, the frame time fed to the governor is scaled by
+ * the cost of the current layer qualities. Reports frames over budget per phase with
+ * and without the governor - the governed run may not have more. Last a vsync capped
+ * trace (deltas in whole refresh intervals, CPU work time measured by the app): fed
+ * with delta and work time the governor has to get back to full quality after
+ * hitches, fed with the delta only it never does (reported for comparison).
+ * Exits with 1 when a check fails.
+ * Usage: QualityGovernorLauncher [trace file - frame time in ms per line]
+ */
+public class QualityGovernorLauncher {
+    /* Part of the frame not spent on the layers (clear, logic, swap) */
+    static final float FIXED_COST = 0.3f;
+    /* Relative cost of one layer at every quality level */
+    static final float[] LEVEL_COST = {1.0f, 0.8f, 0.7f, 0.45f, 0.0f};
+
+    static final String[] PHASE_NAMES = {"steady", "throttled", "bursty", "recovered"};
+    static final int[] PHASE_FRAMES = {300, 900, 2400, 1800};
+    static final float[] PHASE_FRAME_TIMES = {12.0f, 26.0f, 12.0f, 11.0f};
+    /* Frame time during bursts (0 - no bursts): 60 frames out of every 240 */
+    static final float[] PHASE_BURST_TIMES = {0.0f, 0.0f, 24.0f, 0.0f};
+
+    /* Vsync capped trace: refresh interval of the display (ms) */
+    static final float REFRESH_INTERVAL = 1000.0f / 60.0f;
+    static final String[] VSYNC_PHASE_NAMES = {"vsync steady", "hitches", "gpu bound", "vsync recovered"};
+    static final int[] VSYNC_PHASE_FRAMES = {600, 1800, 900, 1800};
+    /* GPU time at full quality per phase, CPU time (what the app measures as work time) */
+    static final float[] VSYNC_GPU_TIMES = {10.0f, 10.0f, 24.0f, 10.0f};
+    static final float VSYNC_CPU_TIME = 3.0f;
+    /* Hitches: 4 frames of CPU work (e.g. uploads) every 300 frames */
+    static final float HITCH_CPU_TIME = 30.0f;
+
+    /* Layers of the checked effect: priority, mask (0 - none, 1 - texture with low res, 2 - procedural), rotating */
+    static final int PROTECTED_PRIORITY = 9;
+    static final int[][] LAYERS = {{1, 1, 1}, {0, 2, 0}, {1, 2, 1}, {3, 0, 0}, {PROTECTED_PRIORITY, 2, 1}};
+    /* Index of the invisible layer (added after LAYERS) */
+    static final int INVISIBLE_LAYER = LAYERS.length;
+
+    static final LayerInfo.Quality FULL = LayerInfo.Quality.FULL;
+    static final LayerInfo.Quality LOW_RES_MASK = LayerInfo.Quality.LOW_RES_MASK;
+    static final LayerInfo.Quality NO_ROTATION = LayerInfo.Quality.NO_ROTATION;
+    static final LayerInfo.Quality NO_MASK = LayerInfo.Quality.NO_MASK;
+    static final LayerInfo.Quality SKIPPED = LayerInfo.Quality.SKIPPED;
+
+    /* Expected reductions from full quality: lowest priority first, then best quality, then layer order */
+    static final int[] DEGRADE_LAYERS = {1, 1, 0, 2, 0, 0, 2, 0, 2, 3};
+    static final LayerInfo.Quality[] DEGRADE_LEVELS = {NO_MASK, SKIPPED, LOW_RES_MASK, NO_ROTATION,
+            NO_ROTATION, NO_MASK, NO_MASK, SKIPPED, SKIPPED, SKIPPED};
+    /* Expected restores: highest priority first, then worst quality, then layer order */
+    static final int[] RESTORE_LAYERS = {3, 0, 2, 0, 2, 0, 2, 0, 1, 1};
+    static final LayerInfo.Quality[] RESTORE_LEVELS = {FULL, NO_MASK, NO_MASK, NO_ROTATION, NO_ROTATION,
+            LOW_RES_MASK, FULL, FULL, NO_MASK, FULL};
+
+    static int failures = 0;
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("  FAILED: " + message);
+            failures++;
+        }
+    }
+
+    /**
+     * Records the decisions of the governor.
+     */
+    static class Recorder implements QualityGovernor.Listener {
+        final Array<LayerInfo> layers = new Array<LayerInfo>();
+        final Array<LayerInfo.Quality> levels = new Array<LayerInfo.Quality>();
+
+        @Override
+        public void qualityChanged(LayerMaskingEffect effect, LayerInfo layerInfo,
+                                   LayerInfo.Quality previous, float averageFrameTime) {
+            layers.add(layerInfo);
+            levels.add(layerInfo.quality);
+        }
+
+        void clear() {
+            layers.clear();
+            levels.clear();
+        }
+    } // class Recorder
+
+    //-------------------------------------------------------------------------
+
+    static Texture createMask(int size) {
+        Pixmap pixmap = new Pixmap(size, size, Pixmap.Format.Alpha);
+        Texture texture = new Texture(pixmap);
+        pixmap.dispose();
+        return texture;
+    }
+
+    /**
+     * Checked effect (LAYERS + invisible layer) first, inactive effect second.
+     */
+    static Array<LayerMaskingEffect> createEffects(AssetManager assetManager) {
+        final Array<LayerMaskingEffect> effects = new Array<LayerMaskingEffect>();
+        final LayerMaskingEffect effect = new LayerMaskingEffect(assetManager, "governed");
+        for (int i = 0; i < LAYERS.length; i++) {
+            LayerInfo layerInfo = new LayerInfo();
+            layerInfo.priority = LAYERS[i][0];
+            if (LAYERS[i][1] == 1) {
+                layerInfo.setMaskTexture(createMask(64));
+                layerInfo.setLowResMaskTexture(createMask(16));
+            } else if (LAYERS[i][1] == 2) {
+                layerInfo.proceduralMask = ProceduralMask.ring(0.4f, 0.1f);
+            }
+            layerInfo.rotationSpeed = LAYERS[i][2] * 15.0f;
+            effect.addLayer(layerInfo);
+        }
+        LayerInfo invisible = new LayerInfo();
+        invisible.priority = -1;
+        invisible.visible = false;
+        effect.addLayer(invisible);
+        effects.add(effect);
+
+        final LayerMaskingEffect inactive = new LayerMaskingEffect(assetManager, "inactive");
+        LayerInfo layerInfo = new LayerInfo();
+        layerInfo.priority = -5;
+        layerInfo.proceduralMask = ProceduralMask.ring(0.4f, 0.1f);
+        inactive.addLayer(layerInfo);
+        inactive.hide();
+        effects.add(inactive);
+        return effects;
+    } // Array<LayerMaskingEffect> createEffects(...)
+
+    static String describe(LayerMaskingEffect effect) {
+        StringBuilder builder = new StringBuilder();
+        final Array<LayerInfo> layers = effect.getLayerInfoArray();
+        for (int i = 0; i < layers.size; i++) {
+            if (i > 0)
+                builder.append(' ');
+            builder.append(layers.get(i).quality.ordinal());
+        }
+        return builder.toString();
+    }
+
+    static boolean isFullQuality(LayerMaskingEffect effect) {
+        for (int i = 0; i < effect.count(); i++) {
+            if (effect.get(i).quality != FULL)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Feeds the frame time until the governor decides something - returns the number
+     * of frames fed (limit + 1 when nothing was decided).
+     */
+    static int feedUntilDecision(QualityGovernor governor, Array<LayerMaskingEffect> effects,
+                                 float frameTime, int limit) {
+        for (int frame = 1; frame <= limit; frame++) {
+            if (governor.addFrameTime(frameTime, effects))
+                return frame;
+        }
+        return limit + 1;
+    }
+
+    /**
+     * Compares recorded decisions with the expected sequence.
+     */
+    static void checkSequence(String name, Recorder recorder, LayerMaskingEffect effect,
+                              int[] layers, LayerInfo.Quality[] levels) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < recorder.layers.size; i++)
+            builder.append(' ').append(effect.indexOf(recorder.layers.get(i))).append(':').append(recorder.levels.get(i));
+        System.out.println("  " + name + ":" + builder);
+        check(recorder.layers.size == layers.length, name + " - " + recorder.layers.size
+                + " decisions, expected " + layers.length);
+        for (int i = 0; i < Math.min(layers.length, recorder.layers.size); i++) {
+            final int index = effect.indexOf(recorder.layers.get(i));
+            check(index == layers[i] && recorder.levels.get(i) == levels[i], name + " " + i + " - layer "
+                    + index + " to " + recorder.levels.get(i) + ", expected layer " + layers[i] + " to " + levels[i]);
+        }
+    }
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Order of reductions and restores, one decision per framesToDegrade /
+     * framesToRestore frames.
+     */
+    static void checkOrder(Array<LayerMaskingEffect> effects) {
+        System.out.println("Order:");
+        final LayerMaskingEffect effect = effects.get(0);
+        final QualityGovernor governor = new QualityGovernor();
+        governor.protectedPriority = PROTECTED_PRIORITY;
+        final Recorder recorder = new Recorder();
+        governor.setListener(recorder);
+        governor.restoreAll(effects);
+        final float target = governor.getTargetFrameTime();
+
+        int frames;
+        while ((frames = feedUntilDecision(governor, effects, target * 2.0f, 100)) <= 100)
+            check(frames == governor.framesToDegrade, "reduced after " + frames + " frames over budget, expected "
+                    + governor.framesToDegrade);
+        checkSequence("reductions", recorder, effect, DEGRADE_LAYERS, DEGRADE_LEVELS);
+        check(effect.get(4).quality == FULL, "protected layer reduced");
+        check(effect.get(INVISIBLE_LAYER).quality == FULL, "invisible layer reduced");
+        check(effects.get(1).get(0).quality == FULL, "layer of inactive effect reduced");
+
+        recorder.clear();
+        governor.reset(); // forget the frames fed while nothing was left to reduce
+        while ((frames = feedUntilDecision(governor, effects, target * 0.5f, 1000)) <= 1000)
+            check(frames == governor.framesToRestore, "restored after " + frames + " frames under budget, expected "
+                    + governor.framesToRestore);
+        checkSequence("restores", recorder, effect, RESTORE_LAYERS, RESTORE_LEVELS);
+        check(isFullQuality(effect), "not back at full quality: " + describe(effect));
+        check(governor.getBackoffCount() == 0, governor.getBackoffCount() + " backoffs without load after restores");
+    } // void checkOrder(...)
+
+    /**
+     * Single spikes and frame times between lowerRatio and upperRatio change nothing.
+     */
+    static void checkHysteresis(Array<LayerMaskingEffect> effects) {
+        System.out.println("Hysteresis:");
+        final QualityGovernor governor = new QualityGovernor();
+        final Recorder recorder = new Recorder();
+        governor.setListener(recorder);
+        governor.restoreAll(effects);
+        final float target = governor.getTargetFrameTime();
+
+        // spikes in a full window - the average keeps them under the upper ratio
+        for (int frame = 0; frame < 2000; frame++)
+            governor.addFrameTime(frame % 50 == 25 ? target * 2.5f : target * 0.7f, effects);
+        System.out.println("  spikes of 2.5x budget every 50 frames: " + recorder.layers.size + " decisions");
+        check(recorder.layers.size == 0, "single spikes reduced quality");
+
+        recorder.clear();
+        for (int frame = 0; frame < 2000; frame++)
+            governor.addFrameTime(target * (governor.lowerRatio + 0.02f), effects);
+        for (int frame = 0; frame < 2000; frame++)
+            governor.addFrameTime(target * (governor.upperRatio - 0.02f), effects);
+        System.out.println("  frame times inside the ratios: " + recorder.layers.size + " decisions");
+        check(recorder.layers.size == 0, "frame time between the ratios changed quality");
+
+        // load just over the upper ratio reduces, just under the lower ratio restores
+        governor.reset();
+        check(feedUntilDecision(governor, effects, target * (governor.upperRatio + 0.02f), 100)
+                == governor.framesToDegrade, "no reduction just over the upper ratio");
+        check(feedUntilDecision(governor, effects, target * (governor.lowerRatio - 0.02f), 1000)
+                == governor.framesToRestore, "no restore just under the lower ratio");
+        check(isFullQuality(effects.get(0)), "not back at full quality: " + describe(effects.get(0)));
+    } // void checkHysteresis(...)
+
+    /**
+     * Restores followed by load again double the restore delay up to
+     * maxRestoreDelay - a restore which holds resets it.
+     */
+    static void checkBackoff(Array<LayerMaskingEffect> effects) {
+        System.out.println("Backoff:");
+        final LayerMaskingEffect effect = effects.get(0);
+        final QualityGovernor governor = new QualityGovernor();
+        governor.restoreAll(effects);
+        final float over = governor.getTargetFrameTime() * 2.0f;
+        final float under = governor.getTargetFrameTime() * 0.5f;
+        final int limit = governor.maxRestoreDelay * 2;
+
+        // two levels down - a restore does not bring everything back
+        feedUntilDecision(governor, effects, over, 100);
+        feedUntilDecision(governor, effects, over, 100);
+        int expectedDelay = governor.framesToRestore;
+        for (int round = 0; round < 5; round++) {
+            final int frames = feedUntilDecision(governor, effects, under, limit);
+            check(frames == expectedDelay, "round " + round + " - restored after " + frames
+                    + " frames, expected " + expectedDelay);
+            feedUntilDecision(governor, effects, over, 100); // load is back right away
+            expectedDelay = Math.min(expectedDelay * 2, governor.maxRestoreDelay);
+            System.out.println("  round " + round + ": restored after " + frames + " frames, load back - delay now "
+                    + governor.getRestoreDelay() + ", backoffs " + governor.getBackoffCount());
+            check(governor.getRestoreDelay() == expectedDelay, "round " + round + " - restore delay "
+                    + governor.getRestoreDelay() + ", expected " + expectedDelay);
+        }
+
+        // restores hold now - the second one resets the delay
+        int frames = feedUntilDecision(governor, effects, under, limit);
+        check(frames == governor.maxRestoreDelay, "restored after " + frames + " frames, expected "
+                + governor.maxRestoreDelay);
+        frames = feedUntilDecision(governor, effects, under, limit);
+        check(frames == governor.maxRestoreDelay, "restored after " + frames + " frames, expected "
+                + governor.maxRestoreDelay);
+        System.out.println("  two restores held: delay " + governor.getRestoreDelay() + ", qualities ["
+                + describe(effect) + "]");
+        check(governor.getRestoreDelay() == governor.framesToRestore, "restore delay "
+                + governor.getRestoreDelay() + " after restores held, expected " + governor.framesToRestore);
+        check(isFullQuality(effect), "not back at full quality: " + describe(effect));
+    } // void checkBackoff(...)
+
+    //-------------------------------------------------------------------------
+
+    /**
+     * Built-in trace - first frames of the phases go to phaseStarts.
+     */
+    static FloatArray builtInTrace(IntArray phaseStarts) {
+        final Random random = new Random(46);
+        FloatArray trace = new FloatArray();
+        for (int phase = 0; phase < PHASE_FRAMES.length; phase++) {
+            phaseStarts.add(trace.size);
+            for (int i = 0; i < PHASE_FRAMES[phase]; i++) {
+                float frameTime = PHASE_FRAME_TIMES[phase];
+                if (PHASE_BURST_TIMES[phase] > 0.0f && i % 240 >= 180)
+                    frameTime = PHASE_BURST_TIMES[phase];
+                frameTime *= 1.0f + (float) random.nextGaussian() * 0.04f;
+                if (random.nextInt(200) == 0)
+                    frameTime *= 3.0f; // single spikes should not change anything
+                trace.add(frameTime);
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Vsync capped trace - returns GPU time per frame at full quality, CPU time goes
+     * to cpuTimes, first frames of the phases to phaseStarts.
+     */
+    static FloatArray vsyncTrace(IntArray phaseStarts, FloatArray cpuTimes) {
+        final Random random = new Random(60);
+        FloatArray trace = new FloatArray();
+        for (int phase = 0; phase < VSYNC_PHASE_FRAMES.length; phase++) {
+            phaseStarts.add(trace.size);
+            for (int i = 0; i < VSYNC_PHASE_FRAMES[phase]; i++) {
+                float cpuTime = VSYNC_CPU_TIME * (1.0f + (float) random.nextGaussian() * 0.04f);
+                if (phase == 1 && i % 300 >= 150 && i % 300 < 154)
+                    cpuTime = HITCH_CPU_TIME;
+                if (random.nextInt(200) == 0)
+                    cpuTime = 25.0f; // single spikes
+                cpuTimes.add(cpuTime);
+                trace.add(VSYNC_GPU_TIMES[phase] * (1.0f + (float) random.nextGaussian() * 0.04f));
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Frame delta with vsync - frames take whole refresh intervals.
+     */
+    static float getVsyncDelta(float cpuTime, float gpuTime) {
+        final float intervals = (float) Math.ceil(Math.max(cpuTime, gpuTime) / REFRESH_INTERVAL - 0.001f);
+        return Math.max(1.0f, intervals) * REFRESH_INTERVAL;
+    }
+
+    static FloatArray readTrace(FileHandle file, IntArray phaseStarts) {
+        FloatArray trace = new FloatArray();
+        String[] lines = file.readString("UTF-8").split("\\s+");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].length() > 0)
+                trace.add(Float.parseFloat(lines[i]));
+        }
+        phaseStarts.add(0);
+        return trace;
+    }
+
+    /**
+     * Cost of the effect relative to all layers at full quality.
+     */
+    static float getCost(LayerMaskingEffect effect) {
+        final Array<LayerInfo> layers = effect.getLayerInfoArray();
+        if (layers.size == 0)
+            return 1.0f;
+        float layerCost = 0.0f;
+        for (int i = 0; i < layers.size; i++)
+            layerCost += layers.get(i).visible ? LEVEL_COST[layers.get(i).quality.ordinal()] : 0.0f;
+        return FIXED_COST + (1.0f - FIXED_COST) * layerCost / layers.size;
+    }
+
+    static void runTrace(Array<LayerMaskingEffect> effects, String traceFile) {
+        final LayerMaskingEffect effect = effects.get(0);
+        final QualityGovernor governor = new QualityGovernor();
+        governor.protectedPriority = PROTECTED_PRIORITY;
+        final IntArray phaseStarts = new IntArray();
+        final FloatArray trace = traceFile != null
+                ? readTrace(Gdx.files.absolute(traceFile), phaseStarts) : builtInTrace(phaseStarts);
+        final float budget = governor.getTargetFrameTime() * 1000.0f;
+        System.out.println("Trace (" + trace.size + " frames, budget " + String.format("%.2f", budget) + " ms):");
+
+        int phase = 0, overGoverned = 0, overUngoverned = 0, phaseStart = 0;
+        float sumGoverned = 0.0f;
+        for (int frame = 0; frame <= trace.size; frame++) {
+            final boolean phaseEnd = frame == trace.size
+                    || (phase + 1 < phaseStarts.size && frame == phaseStarts.get(phase + 1));
+            if (phaseEnd) {
+                final int frames = frame - phaseStart;
+                final String name = traceFile != null ? "trace" : PHASE_NAMES[phase];
+                System.out.println(String.format("  %s (%d frames): over budget %d governed / %d ungoverned,"
+                                + " avg %.2f ms, qualities [%s]", name, frames, overGoverned, overUngoverned,
+                        sumGoverned / Math.max(1, frames), describe(effect)));
+                check(overGoverned <= overUngoverned, name + " - more frames over budget with the governor");
+                phase++;
+                phaseStart = frame;
+                overGoverned = 0;
+                overUngoverned = 0;
+                sumGoverned = 0.0f;
+                if (frame == trace.size)
+                    break;
+            }
+            final float fullQuality = trace.get(frame);
+            final float governed = fullQuality * getCost(effect);
+            if (fullQuality > budget)
+                overUngoverned++;
+            if (governed > budget)
+                overGoverned++;
+            sumGoverned += governed;
+            governor.addFrameTime(governed / 1000.0f, effects);
+        }
+        System.out.println("  " + governor.getDegradeCount() + " reduced, " + governor.getRestoreCount()
+                + " restored, " + governor.getBackoffCount() + " backoffs, restore delay now "
+                + governor.getRestoreDelay() + " frames");
+    } // void runTrace(...)
+
+    /**
+     * Vsync capped trace - the governed effect is fed with delta and work time, the
+     * second set of effects with the delta only.
+     */
+    static void runVsyncTrace(Array<LayerMaskingEffect> effects, Array<LayerMaskingEffect> deltaOnlyEffects) {
+        final LayerMaskingEffect effect = effects.get(0);
+        final LayerMaskingEffect deltaOnlyEffect = deltaOnlyEffects.get(0);
+        final QualityGovernor governor = new QualityGovernor();
+        final QualityGovernor deltaOnly = new QualityGovernor();
+        governor.protectedPriority = PROTECTED_PRIORITY;
+        deltaOnly.protectedPriority = PROTECTED_PRIORITY;
+        governor.restoreAll(effects);
+        deltaOnly.restoreAll(deltaOnlyEffects);
+        final IntArray phaseStarts = new IntArray();
+        final FloatArray cpuTimes = new FloatArray();
+        final FloatArray gpuTimes = vsyncTrace(phaseStarts, cpuTimes);
+        System.out.println("Vsync capped trace (" + gpuTimes.size + " frames, refresh "
+                + String.format("%.2f", REFRESH_INTERVAL) + " ms):");
+
+        int phase = 0, missedGoverned = 0, missedUngoverned = 0, missedDeltaOnly = 0, phaseStart = 0;
+        for (int frame = 0; frame <= gpuTimes.size; frame++) {
+            final boolean phaseEnd = frame == gpuTimes.size
+                    || (phase + 1 < phaseStarts.size && frame == phaseStarts.get(phase + 1));
+            if (phaseEnd) {
+                final String name = VSYNC_PHASE_NAMES[phase];
+                System.out.println(String.format("  %s (%d frames): missed vsync %d governed / %d ungoverned"
+                                + " / %d delta only, qualities [%s] (delta only [%s])", name, frame - phaseStart,
+                        missedGoverned, missedUngoverned, missedDeltaOnly, describe(effect), describe(deltaOnlyEffect)));
+                check(missedGoverned <= missedUngoverned, name + " - more frames missed vsync with the governor");
+                if (VSYNC_GPU_TIMES[phase] < REFRESH_INTERVAL)
+                    check(isFullQuality(effect), name + " - quality did not recover: " + describe(effect));
+                phase++;
+                phaseStart = frame;
+                missedGoverned = 0;
+                missedUngoverned = 0;
+                missedDeltaOnly = 0;
+                if (frame == gpuTimes.size)
+                    break;
+            }
+            final float cpuTime = cpuTimes.get(frame);
+            final float gpuTime = gpuTimes.get(frame);
+            final float delta = getVsyncDelta(cpuTime, gpuTime * getCost(effect));
+            if (delta > REFRESH_INTERVAL * 1.5f)
+                missedGoverned++;
+            if (getVsyncDelta(cpuTime, gpuTime) > REFRESH_INTERVAL * 1.5f)
+                missedUngoverned++;
+            final float deltaOnlyTime = getVsyncDelta(cpuTime, gpuTime * getCost(deltaOnlyEffect));
+            if (deltaOnlyTime > REFRESH_INTERVAL * 1.5f)
+                missedDeltaOnly++;
+            // the app measures CPU work only - GPU time shows in the delta
+            governor.addFrameTime(delta / 1000.0f, cpuTime / 1000.0f, effects);
+            deltaOnly.addFrameTime(deltaOnlyTime / 1000.0f, deltaOnlyEffects);
+        }
+        System.out.println("  " + governor.getDegradeCount() + " reduced, " + governor.getRestoreCount()
+                + " restored, " + governor.getBackoffCount() + " backoffs (delta only " + deltaOnly.getDegradeCount()
+                + " reduced, " + deltaOnly.getRestoreCount() + " restored)");
+        check(isFullQuality(effect), "vsync capped - not back at full quality: " + describe(effect));
+    } // void runVsyncTrace(...)
+
+    public static void main(String[] arg) {
+        final String traceFile = arg.length > 0 ? arg[0] : null;
+
+        HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+        new HeadlessApplication(new ApplicationAdapter() {
+            @Override
+            public void create() {
+                EffectBakerLauncher.installNoOpGL(); // mask textures only
+                final AssetManager assetManager = new AssetManager();
+                final Array<LayerMaskingEffect> effects = createEffects(assetManager);
+                checkOrder(effects);
+                checkHysteresis(effects);
+                checkBackoff(effects);
+                runTrace(effects, traceFile);
+                final Array<LayerMaskingEffect> deltaOnlyEffects = createEffects(assetManager);
+                runVsyncTrace(effects, deltaOnlyEffects);
+                for (int i = 0; i < effects.size; i++)
+                    effects.get(i).dispose();
+                for (int i = 0; i < deltaOnlyEffects.size; i++)
+                    deltaOnlyEffects.get(i).dispose();
+                assetManager.dispose();
+                System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+                if (failures > 0)
+                    System.exit(1);
+                Gdx.app.exit();
+            }
+        }, config);
+    }
+} // class QualityGovernorLauncher
@@ -0,0 +1,274 @@
+package com.flexigame.layersmaskinggdx.desktop;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.backends.headless.mock.graphics.MockGraphics;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.OrthographicCamera;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntIntMap;
+import com.flexigame.fg.gfx.LayerEffectBaker;
+import com.flexigame.fg.gfx.LayerInfo;
+import com.flexigame.fg.gfx.LayerMaskingEffect;
+import com.flexigame.fg.gfx.LayerMaskingEffectDrawer;
+import com.flexigame.fg.gfx.RawTextureData;
+import com.flexigame.layersmaskinggdx.MyGdxLayersMaskingEffect;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.IntBuffer;
+
+/**
+ * Texture bandwidth of the mipmapped sampling policy (LayerInfo.Sampling) measured
+ * headless with a recording GL: it hands out real texture handles and records for
+ * every draw call the textures bound on units 0 and 1 and their min filters. The
+ * effect with mip chains (rings) runs one pulse loop with the filters as loaded but
+ * forced to Linear (DEFAULT policy) and once with AUTO_MIPMAP.
+ *
+ * Every draw is matched with the layer drawing it - the layer texture has to be on
+ * unit 0 and the mask on unit 1, and the filter of a mask has to be switched on its
+ * own unit (not by binding it on the unit of the sprite batch). The bytes fetched per screen pixel are estimated from the
+ * recorded filter and the minification of the layer: a texel for every pixel when
+ * magnified (m * m), every covered texel when a non-mipmapped texture is minified -
+ * at most a 4x4 texel cache block per pixel - the covered texels of the nearest mip
+ * level and with trilinear filtering the texels of the level minified by m in [1, 2)
+ * plus the next level (1.25 * m * m).
+ * Screen coverage is not clipped.
+ * Exits with 1 when a draw had the wrong textures bound or a mask filter was set
+ * on unit 0.
+ * Both runs cover whole pulse loops (same phases whatever the state of the effect).
+ * Usage: SamplingBandwidthLauncher [loops] [screen width] [screen height]
+ */
+public class SamplingBandwidthLauncher {
+    static final float FRAME_TIME = 1.0f / 60.0f;
+
+    /* Recorded state */
+    static int activeUnit = 0;
+    static int[] boundTextures = new int[8];
+    static IntIntMap minFilters = new IntIntMap();
+    static int nextHandle = 1;
+    /* Per draw call: handle / min filter on unit 0, handle / min filter on unit 1 */
+    static IntArray draws = new IntArray();
+    /* Per min filter change: unit / handle */
+    static IntArray filterChanges = new IntArray();
+
+    static void installRecordingGL() {
+        GL20 gl = (GL20) Proxy.newProxyInstance(GL20.class.getClassLoader(),
+                new Class<?>[]{GL20.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        final String name = method.getName();
+                        if (name.equals("glGetShaderiv") || name.equals("glGetProgramiv")) {
+                            final int pname = (Integer) args[1];
+                            if (pname == GL20.GL_COMPILE_STATUS || pname == GL20.GL_LINK_STATUS)
+                                ((IntBuffer) args[2]).put(0, 1);
+                            return null;
+                        }
+                        if (name.equals("glGenTexture"))
+                            return nextHandle++;
+                        if (name.equals("glActiveTexture")) {
+                            activeUnit = (Integer) args[0] - GL20.GL_TEXTURE0;
+                        } else if (name.equals("glBindTexture")) {
+                            boundTextures[activeUnit] = (Integer) args[1];
+                        } else if (name.equals("glTexParameteri") || name.equals("glTexParameterf")) {
+                            if ((Integer) args[1] == GL20.GL_TEXTURE_MIN_FILTER) {
+                                minFilters.put(boundTextures[activeUnit], ((Number) args[2]).intValue());
+                                filterChanges.add(activeUnit);
+                                filterChanges.add(boundTextures[activeUnit]);
+                            }
+                        } else if (name.equals("glDrawElements") || name.equals("glDrawArrays")) {
+                            draws.add(boundTextures[0]);
+                            draws.add(minFilters.get(boundTextures[0], GL20.GL_LINEAR));
+                            draws.add(boundTextures[1]);
+                            draws.add(minFilters.get(boundTextures[1], GL20.GL_LINEAR));
+                        }
+                        Class<?> type = method.getReturnType();
+                        if (type == Boolean.TYPE)
+                            return Boolean.FALSE;
+                        if (type == Integer.TYPE)
+                            return 1; // valid handles for glCreateShader() etc.
+                        if (type == String.class)
+                            return "";
+                        return null;
+                    }
+                });
+        Gdx.gl = gl;
+        Gdx.gl20 = gl;
+    }
+
+    static boolean isMipMapFilter(int filter) {
+        return filter != GL20.GL_LINEAR && filter != GL20.GL_NEAREST;
+    }
+
+    /**
+     * Estimated bytes fetched for the texture over the given screen pixels.
+     */
+    static double estimateBytes(Texture texture, float minification, int filter, double pixels) {
+        final int texelBytes = RawTextureData.bytesPerPixel(texture.getTextureData().getFormat());
+        double texels;
+        if (minification <= 1.0f) {
+            texels = minification * minification; // magnified - neighbours share texels
+        } else if (filter == GL20.GL_LINEAR_MIPMAP_LINEAR || filter == GL20.GL_NEAREST_MIPMAP_LINEAR) {
+            // trilinear - level with minification m in [1, 2) and the next one (m / 2)
+            double m = minification;
+            while (m >= 2.0)
+                m /= 2.0;
+            texels = 1.25 * m * m;
+        } else if (isMipMapFilter(filter)) {
+            // nearest level - minification m in [0.71, 1.41)
+            double m = minification;
+            while (m >= Math.sqrt(2.0))
+                m /= 2.0;
+            texels = m * m;
+        } else {
+            texels = Math.min(minification * minification, 16.0f); // whole cache blocks, little reuse
+        }
+        return pixels * texels * texelBytes;
+    }
+
+    static LayerMaskingEffect findMipMappedEffect(LayerMaskingEffectDrawer drawer) {
+        for (int i = 0; i < drawer.count(); i++) {
+            final Array<LayerInfo> layers = drawer.get(i).getLayerInfoArray();
+            for (int j = 0; j < layers.size; j++) {
+                final Texture texture = layers.get(j).getTexture();
+                if (texture != null && texture.getTextureData().useMipMaps())
+                    return drawer.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs the effect with the sampling policy, returns estimated bytes per frame
+     * (out[0] texture, out[1] mask) and adds draws with wrong bindings to out[2].
+     */
+    static void measure(LayerMaskingEffectDrawer drawer, LayerMaskingEffect effect, LayerInfo.Sampling sampling,
+                        int frames, double[] out) {
+        final Array<LayerInfo> layers = effect.getLayerInfoArray();
+        for (int i = 0; i < layers.size; i++) {
+            final LayerInfo layerInfo = layers.get(i);
+            layerInfo.sampling = sampling;
+            // textures were loaded with a mipmapped min filter - DEFAULT keeps Linear
+            final Texture mask = layerInfo.getMaskTexture();
+            if (layerInfo.getTexture() != null)
+                layerInfo.getTexture().setFilter(Texture.TextureFilter.Linear, Texture.TextureFilter.Linear);
+            if (mask != null)
+                mask.setFilter(Texture.TextureFilter.Linear, Texture.TextureFilter.Linear);
+        }
+        drawer.getRenderContext().invalidate();
+        final Matrix4 projection = drawer.getSpriteBatch().getProjectionMatrix();
+        final float pixelsPerUnit = projection.val[Matrix4.M00] * Gdx.graphics.getWidth() / 2.0f;
+        final Array<LayerInfo> drawn = new Array<LayerInfo>(LayerInfo.class);
+        for (int frame = 0; frame < frames; frame++) {
+            drawer.update(FRAME_TIME);
+            draws.clear();
+            filterChanges.clear();
+            drawer.getRenderContext().submit(drawer);
+            drawer.getRenderContext().render();
+            drawn.clear();
+            final Array<LayerInfo> order = effect.getDrawOrder();
+            for (int i = 0; i < order.size; i++) {
+                if (order.get(i).isDrawable())
+                    drawn.add(order.get(i));
+            }
+            if (draws.size / 4 != drawn.size) {
+                System.out.println("  frame " + frame + ": " + draws.size / 4 + " draw calls for "
+                        + drawn.size + " layers - cannot match them");
+                out[2]++;
+                continue;
+            }
+            for (int i = 0; i < drawn.size; i++) {
+                final LayerInfo layerInfo = drawn.get(i);
+                final Texture texture = layerInfo.getTexture();
+                final Texture mask = layerInfo.getDrawnMaskTexture();
+                if (texture == null)
+                    continue;
+                // filter of the mask switched on the unit of the sprite batch
+                for (int j = 0; mask != null && j < filterChanges.size; j += 2) {
+                    if (filterChanges.get(j) == 0 && filterChanges.get(j + 1) == mask.getTextureObjectHandle())
+                        out[2]++;
+                }
+                if (draws.get(i * 4) != texture.getTextureObjectHandle()
+                        || (mask != null && draws.get(i * 4 + 2) != mask.getTextureObjectHandle())) {
+                    out[2]++;
+                    continue;
+                }
+                final float width = layerInfo.size.x * layerInfo.getLayerScale() * pixelsPerUnit;
+                final float height = layerInfo.size.y * layerInfo.getLayerScale() * pixelsPerUnit;
+                final double pixels = (double) width * height;
+                out[0] += estimateBytes(texture, layerInfo.getTextureMinification(), draws.get(i * 4 + 1), pixels);
+                if (mask != null)
+                    out[1] += estimateBytes(mask, mask.getWidth() / width, draws.get(i * 4 + 3), pixels);
+            }
+        }
+        out[0] /= frames;
+        out[1] /= frames;
+    } // void measure(...)
+
+    public static void main(String[] arg) {
+        final int loops = arg.length > 0 ? Integer.parseInt(arg[0]) : 2;
+        final int screenWidth = arg.length > 1 ? Integer.parseInt(arg[1]) : 720;
+        final int screenHeight = arg.length > 2 ? Integer.parseInt(arg[2]) : 1280;
+
+        HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+        new HeadlessApplication(new MyGdxLayersMaskingEffect() {
+            @Override
+            public void create() {
+                installRecordingGL();
+                // headless graphics report a 0x0 screen - minification needs the real one
+                Gdx.graphics = new MockGraphics() {
+                    @Override
+                    public int getWidth() {
+                        return screenWidth;
+                    }
+
+                    @Override
+                    public int getHeight() {
+                        return screenHeight;
+                    }
+                };
+                setPersistEffects(false); // fresh effects, nothing saved
+                super.create();
+                final LayerMaskingEffectDrawer drawer = getLayersDrawer();
+                // render() of the app is not called - same projection as its stretching viewport
+                final OrthographicCamera camera = new OrthographicCamera();
+                camera.setToOrtho(false, getBaseScreenWidth(), getBaseScreenHeight());
+                drawer.getSpriteBatch().setProjectionMatrix(camera.combined);
+                final LayerMaskingEffect effect = findMipMappedEffect(drawer);
+                if (effect == null) {
+                    System.out.println("No effect with mip chains");
+                    System.exit(1);
+                }
+                drawer.showOnly(drawer.indexOf(effect));
+                final int frames = loops * LayerEffectBaker.detectLoopFrames(effect, FRAME_TIME, 3600);
+                final double[] linear = new double[3];
+                final double[] mipMapped = new double[3];
+                measure(drawer, effect, LayerInfo.Sampling.DEFAULT, frames, linear);
+                measure(drawer, effect, LayerInfo.Sampling.AUTO_MIPMAP, frames, mipMapped);
+                System.out.println(String.format("%s, %d layers, %d frames - estimated texture fetch per frame:",
+                        effect.getName(), effect.count(), frames));
+                System.out.println(String.format("  Linear      textures %7.2f MB, masks %7.2f MB",
+                        linear[0] / 1048576.0, linear[1] / 1048576.0));
+                System.out.println(String.format("  AUTO_MIPMAP textures %7.2f MB, masks %7.2f MB",
+                        mipMapped[0] / 1048576.0, mipMapped[1] / 1048576.0));
+                final double before = linear[0] + linear[1];
+                final double after = mipMapped[0] + mipMapped[1];
+                System.out.println(String.format("  saved %.1f%% (%.2f MB per frame, %.1f MB/s at 60 fps)",
+                        100.0 * (before - after) / Math.max(1.0, before), (before - after) / 1048576.0,
+                        (before - after) * 60.0 / 1048576.0));
+                final int wrong = (int) (linear[2] + mipMapped[2]);
+                System.out.println(wrong == 0 ? "OK - every draw had the layer texture on unit 0 and its mask on unit 1"
+                        : "FAILED - " + wrong + " draws with wrong textures bound or mask filters set on unit 0");
+                Gdx.app.exit();
+                if (wrong != 0)
+                    System.exit(1);
+            }
+
+        }, config);
+    }
+} // class SamplingBandwidthLauncher
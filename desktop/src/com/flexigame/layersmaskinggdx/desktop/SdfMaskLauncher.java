@@ -0,0 +1,122 @@
+package com.flexigame.layersmaskinggdx.desktop;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.PixmapIO;
+import com.badlogic.gdx.utils.GdxNativesLoader;
+import com.flexigame.fg.gfx.SdfMaskGenerator;
+
+import java.io.File;
+
+/**
+ * Offline tool converting bitmap masks into SDF masks (PNG).
+ * Usage: SdfMaskLauncher [outputDir] [size] [spread] [mask files...]
+ * Working directory must be the assets directory (android/assets).
+ *
+ * For every mask prints the mean error of the SDF reconstruction against the source
+ * bitmap, next to a plain bitmap downsampled to the same size. SDF keeps only the
+ * shape - masks with continuous tones (like lion_0) should stay bitmaps.
+ */
+public class SdfMaskLauncher {
+    static final String[] DEFAULT_MASKS = {
+            "masks/text_0.tga", "masks/earth_0.tga", "masks/lion_1.tga"};
+
+    static float channel(Pixmap pixmap, int x, int y) {
+        return ((pixmap.getPixel(x, y) >>> 24) & 0xff) / 255.0f;
+    }
+
+    static float bilinear(Pixmap pixmap, float u, float v) {
+        final float x = Math.max(0.0f, Math.min(pixmap.getWidth() - 1.0f, u * pixmap.getWidth() - 0.5f));
+        final float y = Math.max(0.0f, Math.min(pixmap.getHeight() - 1.0f, v * pixmap.getHeight() - 0.5f));
+        final int x0 = (int) x, y0 = (int) y;
+        final int x1 = Math.min(x0 + 1, pixmap.getWidth() - 1);
+        final int y1 = Math.min(y0 + 1, pixmap.getHeight() - 1);
+        final float fx = x - x0, fy = y - y0;
+        final float top = channel(pixmap, x0, y0) * (1.0f - fx) + channel(pixmap, x1, y0) * fx;
+        final float bottom = channel(pixmap, x0, y1) * (1.0f - fx) + channel(pixmap, x1, y1) * fx;
+        return top * (1.0f - fy) + bottom * fy;
+    }
+
+    static float smoothstep(float edge0, float edge1, float x) {
+        float t = Math.max(0.0f, Math.min(1.0f, (x - edge0) / (edge1 - edge0)));
+        return t * t * (3.0f - 2.0f * t);
+    }
+
+    /**
+     * Mean absolute error of both reconstructions against the source.
+     */
+    static void report(String name, Pixmap source, Pixmap sdf, float spread) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final int sdfWidth = sdf.getWidth();
+        final int sdfHeight = sdf.getHeight();
+        Pixmap bitmap = new Pixmap(sdfWidth, sdfHeight, Pixmap.Format.RGBA8888);
+        // filter is global - 1.9.4 has no getter, it goes back to the libgdx default
+        Pixmap.setFilter(Pixmap.Filter.BiLinear);
+        try {
+            bitmap.drawPixmap(source, 0, 0, width, height, 0, 0, sdfWidth, sdfHeight);
+        } finally {
+            Pixmap.setFilter(Pixmap.Filter.NearestNeighbour);
+        }
+        // one screen pixel per source texel
+        final float smoothing = ((float) sdfWidth / width) / (4.0f * spread);
+        double sdfError = 0.0, bitmapError = 0.0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final float u = (x + 0.5f) / width;
+                final float v = (y + 0.5f) / height;
+                final float reference = channel(source, x, y);
+                final float fromSdf = smoothstep(0.5f - smoothing, 0.5f + smoothing, bilinear(sdf, u, v));
+                sdfError += Math.abs(fromSdf - reference);
+                bitmapError += Math.abs(bilinear(bitmap, u, v) - reference);
+            }
+        }
+        bitmap.dispose();
+        final int pixels = width * height;
+        System.out.println(String.format("%s: %dx%d -> %dx%d, mean error SDF %.4f, bitmap %.4f, memory %d -> %d bytes (alpha)",
+                name, width, height, sdfWidth, sdfHeight, sdfError / pixels, bitmapError / pixels,
+                pixels * bytesPerPixel(source), sdfWidth * sdfHeight));
+        if (sdfError > bitmapError)
+            System.out.println("  " + name + " does not look like a shape mask - keep the bitmap");
+    }
+
+    static int bytesPerPixel(Pixmap pixmap) {
+        switch (pixmap.getFormat()) {
+            case Alpha:
+            case Intensity:
+                return 1;
+            case LuminanceAlpha:
+            case RGB565:
+            case RGBA4444:
+                return 2;
+            case RGB888:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+    public static void main(String[] arg) {
+        final String outputDir = arg.length > 0 ? arg[0] : "masks/sdf";
+        final int size = arg.length > 1 ? Integer.parseInt(arg[1]) : SdfMaskGenerator.DEFAULT_SIZE;
+        final float spread = arg.length > 2 ? Float.parseFloat(arg[2]) : SdfMaskGenerator.DEFAULT_SPREAD;
+        String[] masks = DEFAULT_MASKS;
+        if (arg.length > 3) {
+            masks = new String[arg.length - 3];
+            System.arraycopy(arg, 3, masks, 0, masks.length);
+        }
+        GdxNativesLoader.load();
+        SdfMaskGenerator generator = new SdfMaskGenerator(size, spread);
+        new File(outputDir).mkdirs();
+        for (String mask : masks) {
+            FileHandle input = new FileHandle(new File(mask));
+            Pixmap source = new Pixmap(input);
+            Pixmap sdf = generator.generate(source);
+            FileHandle output = new FileHandle(new File(outputDir, input.nameWithoutExtension() + ".png"));
+            PixmapIO.writePNG(output, sdf);
+            report(input.name(), source, sdf, spread);
+            sdf.dispose();
+            source.dispose();
+        }
+    } // void main(...)
+} // class SdfMaskLauncher
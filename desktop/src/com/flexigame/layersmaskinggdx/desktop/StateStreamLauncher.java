@@ -0,0 +1,181 @@
+package com.flexigame.layersmaskinggdx.desktop;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.assets.AssetManager;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.TimeUtils;
+import com.flexigame.fg.gfx.LayerInfo;
+import com.flexigame.fg.gfx.LayerMaskingEffect;
+import com.flexigame.fg.gfx.LayerMaskingEffectDrawer;
+import com.flexigame.fg.gfx.LayerStateLoopback;
+import com.flexigame.fg.gfx.LayerStateSerializer;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Runs a headless simulation server and a client in one process, streaming the layer
+ * state through the loopback channel. Reports snapshot sizes (per 1000 layers),
+ * serialization times and the largest difference between server and client state.
+ * Halfway through one packet is lost - the client has to recover with a keyframe.
+ * Usage: StateStreamLauncher [layers[,layers...]] [frames]
+ */
+public class StateStreamLauncher {
+    static final int LAYERS_PER_EFFECT = 100;
+    static final float FRAME_TIME = 1.0f / 60.0f;
+
+    /**
+     * Same effects for the server and the client - no textures, only sizes.
+     */
+    static void buildEffects(LayerMaskingEffectDrawer drawer, int layers) {
+        final Random random = new Random(1234);
+        for (int i = 0; i < layers; i++) {
+            if (i % LAYERS_PER_EFFECT == 0)
+                drawer.createLayerEffect("effect_" + i / LAYERS_PER_EFFECT);
+            LayerInfo layerInfo = new LayerInfo();
+            layerInfo.size.set(64 + random.nextInt(192), 64 + random.nextInt(192));
+            layerInfo.position.set(random.nextFloat() * 1280.0f, random.nextFloat() * 720.0f);
+            switch (i % 4) {
+                case 0:
+                    layerInfo.shouldPulse = true;
+                    layerInfo.speed = 0.2f + random.nextFloat();
+                    layerInfo.minScale = 0.8f;
+                    layerInfo.maxScale = 1.2f;
+                    break;
+                case 1:
+                    layerInfo.rotationSpeed = random.nextFloat() * 90.0f - 45.0f;
+                    break;
+                default:
+                    break; // static
+            }
+            drawer.peek().addLayer(layerInfo);
+        }
+    }
+
+    /**
+     * Game logic of the server - moves a few offsets, toggles a few layers.
+     */
+    static void simulate(LayerMaskingEffectDrawer drawer, int frame) {
+        final Array<LayerMaskingEffect> effects = drawer.getEffects();
+        effects.get(0).moveOffsetByPixels(0.5f, 0.25f);
+        for (int i = 0; i < effects.size; i++) {
+            final LayerMaskingEffect effect = effects.get(i);
+            final LayerInfo mover = effect.get(3);
+            mover.moveOffsetByPixels(1.0f, 0.0f);
+            if (frame % 30 == 0) {
+                final LayerInfo toggled = effect.get(2);
+                toggled.visible = !toggled.visible;
+            }
+        }
+    }
+
+    static float compare(LayerMaskingEffectDrawer server, LayerMaskingEffectDrawer client, int field) {
+        float error = 0.0f;
+        for (int i = 0; i < server.count(); i++) {
+            final Array<LayerInfo> serverLayers = server.get(i).getLayerInfoArray();
+            final Array<LayerInfo> clientLayers = client.get(i).getLayerInfoArray();
+            for (int j = 0; j < serverLayers.size; j++) {
+                final LayerInfo a = serverLayers.get(j);
+                final LayerInfo b = clientLayers.get(j);
+                float difference;
+                if (field == 0) {
+                    difference = Math.max(Math.abs(a.position.x - b.position.x),
+                            Math.abs(a.getOffsetX() - b.getOffsetX()));
+                } else if (field == 1) {
+                    difference = Math.abs(a.getScale() - b.getScale());
+                } else {
+                    difference = Math.abs(a.rotation - b.rotation);
+                    difference = Math.min(difference, 360.0f - difference);
+                }
+                if (a.visible != b.visible)
+                    difference = Float.POSITIVE_INFINITY;
+                error = Math.max(error, difference);
+            }
+        }
+        return error;
+    }
+
+    static void run(int layers, int frames) {
+        final AssetManager assetManager = new AssetManager();
+        final LayerMaskingEffectDrawer server = LayerMaskingEffectDrawer.createHeadless(assetManager);
+        final LayerMaskingEffectDrawer client = LayerMaskingEffectDrawer.createHeadless(assetManager);
+        buildEffects(server, layers);
+        buildEffects(client, layers);
+        LayerStateSerializer.disableSimulation(client);
+        final LayerStateSerializer writer = new LayerStateSerializer();
+        final LayerStateSerializer reader = new LayerStateSerializer();
+        final LayerStateLoopback loopback = new LayerStateLoopback(4,
+                LayerStateSerializer.getMaxSnapshotSize(server));
+
+        long writeNanos = 0, readNanos = 0;
+        int keyframeSize = 0;
+        float positionError = 0.0f, scaleError = 0.0f, rotationError = 0.0f;
+        for (int frame = 0; frame < frames; frame++) {
+            simulate(server, frame);
+            server.update(FRAME_TIME);
+
+            long start = TimeUtils.nanoTime();
+            ByteBuffer packet = loopback.beginSend();
+            writer.write(server, packet);
+            loopback.endSend();
+            writeNanos += TimeUtils.nanoTime() - start;
+            if (frame == 0) {
+                keyframeSize = writer.getLastSize();
+                loopback.resetStats(); // deltas only
+            }
+
+            if (frame == frames / 2) {
+                loopback.release(); // lost
+                continue;
+            }
+            start = TimeUtils.nanoTime();
+            packet = loopback.receive();
+            if (!reader.read(client, packet))
+                writer.requestKeyframe(); // would be sent back to the server
+            loopback.release();
+            readNanos += TimeUtils.nanoTime() - start;
+            client.update(FRAME_TIME);
+
+            if (!reader.isKeyframeNeeded()) {
+                positionError = Math.max(positionError, compare(server, client, 0));
+                scaleError = Math.max(scaleError, compare(server, client, 1));
+                rotationError = Math.max(rotationError, compare(server, client, 2));
+            }
+        }
+
+        final float perThousand = 1000.0f / layers;
+        final float average = loopback.getAveragePacketSize();
+        System.out.println(layers + " layers in " + server.count() + " effects, " + frames + " frames:");
+        System.out.println(String.format("  keyframe:        %8d bytes  (%.0f per 1k layers)",
+                keyframeSize, keyframeSize * perThousand));
+        System.out.println(String.format("  snapshot (avg):  %8.0f bytes  (%.0f per 1k layers, %.1f kbit/s per 1k layers at 60 Hz)",
+                average, average * perThousand, average * perThousand * 8.0f * 60.0f / 1000.0f));
+        System.out.println(String.format("  snapshot (max):  %8d bytes", loopback.getMaxPacketSize()));
+        System.out.println(String.format("  write / read:    %8.1f / %.1f us per frame",
+                writeNanos / 1000.0f / frames, readNanos / 1000.0f / frames));
+        System.out.println(String.format("  max error:       position %.4f px, scale %.5f, rotation %.4f deg",
+                positionError, scaleError, rotationError));
+        System.out.println("  keyframes sent: " + writer.getKeyframeCount() + ", deltas dropped: "
+                + reader.getDroppedCount());
+        server.dispose();
+        client.dispose();
+        assetManager.dispose();
+    } // void run(...)
+
+    public static void main(String[] arg) {
+        final String[] counts = (arg.length > 0 ? arg[0] : "1000,10000").split(",");
+        final int frames = arg.length > 1 ? Integer.parseInt(arg[1]) : 600;
+        HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+        new HeadlessApplication(new ApplicationAdapter() {
+            @Override
+            public void create() {
+                for (String count : counts)
+                    run(Integer.parseInt(count), frames);
+                Gdx.app.exit();
+            }
+        }, config);
+    }
+} // class StateStreamLauncher
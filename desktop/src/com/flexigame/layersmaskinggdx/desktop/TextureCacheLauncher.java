@@ -0,0 +1,112 @@
+package com.flexigame.layersmaskinggdx.desktop;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.TimeUtils;
+import com.flexigame.fg.gfx.RawTextureCache;
+import com.flexigame.fg.gfx.RawTextureData;
+import com.flexigame.layersmaskinggdx.MyGdxLayersMaskingEffect;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Builds the raw texture cache ahead of time and compares cold loading (decoding the
+ * sources) with cached loading (header check + mapping). GL upload is the same for
+ * both and is not part of the numbers.
+ * Usage: TextureCacheLauncher [cacheDir] [rounds]
+ * Working directory must be the assets directory (android/assets).
+ */
+public class TextureCacheLauncher {
+    static final String[] DIRECTORIES = {"layers", "masks"};
+
+    static Array<String> listSources() {
+        Array<String> names = new Array<String>();
+        for (String directory : DIRECTORIES) {
+            File[] files = new File(directory).listFiles();
+            if (files == null)
+                continue;
+            for (File file : files) {
+                final String name = file.getName().toLowerCase();
+                if (file.isFile() && (name.endsWith(".tga") || name.endsWith(".jpg") || name.endsWith(".png")))
+                    names.add(directory + "/" + file.getName());
+            }
+        }
+        names.sort();
+        return names;
+    }
+
+    /* Reads every mapped byte - pages are really loaded */
+    static long touch(RawTextureData data) {
+        data.prepare();
+        final ByteBuffer pixels = data.getPixels();
+        long sum = 0;
+        for (int i = 0, n = pixels.limit(); i < n; i++)
+            sum += pixels.get(i);
+        return sum;
+    }
+
+    /* Same entries as the app builds - its layer textures are premultiplied */
+    static boolean isPremultiplied(String source) {
+        return source.startsWith(MyGdxLayersMaskingEffect.PREMULTIPLIED_PREFIX);
+    }
+
+    static void run(String cacheDir, int rounds) {
+        final Array<String> sources = listSources();
+        final RawTextureCache cache = new RawTextureCache(
+                Gdx.files.absolute(new File(cacheDir).getAbsolutePath()));
+        MyGdxLayersMaskingEffect.addTextureCacheRules(cache);
+        long decodeBest = Long.MAX_VALUE, buildBest = Long.MAX_VALUE, cachedBest = Long.MAX_VALUE;
+        long sourceBytes = 0, cacheBytes = 0, checksum = 0;
+        for (int round = 0; round < rounds; round++) {
+            // what the loader did so far - decode only
+            long start = TimeUtils.nanoTime();
+            for (String source : sources) {
+                Pixmap pixmap = new Pixmap(Gdx.files.internal(source));
+                pixmap.dispose();
+            }
+            decodeBest = Math.min(decodeBest, TimeUtils.nanoTime() - start);
+
+            cache.clear();
+            start = TimeUtils.nanoTime();
+            for (String source : sources)
+                cache.load(source, Gdx.files.internal(source), false, isPremultiplied(source));
+            buildBest = Math.min(buildBest, TimeUtils.nanoTime() - start);
+
+            start = TimeUtils.nanoTime();
+            for (String source : sources)
+                checksum += touch(cache.load(source, Gdx.files.internal(source), false, isPremultiplied(source)));
+            cachedBest = Math.min(cachedBest, TimeUtils.nanoTime() - start);
+        }
+        for (String source : sources) {
+            sourceBytes += Gdx.files.internal(source).length();
+            cacheBytes += cache.getCacheFile(source).length();
+        }
+        System.out.println(sources.size + " textures, best of " + rounds + " rounds (checksum " + checksum + ")");
+        System.out.println(String.format("  decode sources:      %6d ms  (%d KB read)",
+                TimeUtils.nanosToMillis(decodeBest), sourceBytes / 1024));
+        System.out.println(String.format("  build cache (first): %6d ms", TimeUtils.nanosToMillis(buildBest)));
+        System.out.println(String.format("  cached load:         %6d ms  (%d KB mapped)",
+                TimeUtils.nanosToMillis(cachedBest), cacheBytes / 1024));
+        System.out.println("  cache hits: " + cache.getHitCount() + ", misses: " + cache.getMissCount()
+                + ", directory: " + cache.getDirectory().path());
+    } // void run(...)
+
+    public static void main(String[] arg) {
+        final String cacheDir = arg.length > 0 ? arg[0]
+                : new File(System.getProperty("user.home"), ".layersmaskinggdx/cache/textures").getPath();
+        final int rounds = arg.length > 1 ? Integer.parseInt(arg[1]) : 3;
+        HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+        new HeadlessApplication(new ApplicationAdapter() {
+            @Override
+            public void create() {
+                run(cacheDir, rounds);
+                Gdx.app.exit();
+            }
+        }, config);
+    }
+} // class TextureCacheLauncher
@@ -0,0 +1,185 @@
+package com.flexigame.layersmaskinggdx.desktop;
+
+import com.badlogic.gdx.Application;
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.utils.Array;
+import com.flexigame.fg.gfx.LayerInfo;
+import com.flexigame.fg.gfx.LayerMaskingEffect;
+import com.flexigame.fg.gfx.LayerMaskingEffectDrawer;
+import com.flexigame.fg.gfx.LayerTextureRegistry;
+import com.flexigame.fg.gfx.ParallelAssetManager;
+
+/**
+ * Creates and deletes effects over and over headless (no-op GL) like a long running
+ * kiosk build: layers share asset textures and masks (16_1024.tga under most of
+ * them), some use textures created outside the asset manager (a pixmap texture and
+ * a file texture, each shared by two layers), masks are swapped and layers deleted
+ * while the effect runs. Reports what is retained, disposed and still alive after
+ * every cycle - retained memory and asset reference counts have to come back to
+ * where they started and every outside texture has to be disposed exactly once
+ * (and not while another layer still draws it). The same deletes are counted with
+ * the previous ownership (layer disposes its unmanaged texture, never the mask) for
+ * comparison. Finally one effect is dropped without deleting it - the drawer reports
+ * it by asset path when disposed.
+ * Usage: TextureLeakLauncher [cycles] [layers per effect]
+ */
+public class TextureLeakLauncher {
+    static final float FRAME_TIME = 1.0f / 60.0f;
+
+    static final String SHARED_TEXTURE = "layers/16_1024.tga";
+    static final String[] TEXTURES = {SHARED_TEXTURE, "layers/15_1024.tga", "layers/7_512.tga"};
+    static final String[] MASKS = {"masks/ring_0.tga", "masks/ring_1.tga", "masks/triangle_0.tga"};
+    static final String FILE_TEXTURE = "layers/1_512.jpg";
+
+    /* Previous ownership - what the deletes would have done */
+    static long legacyLeakedBytes = 0;
+    static int legacyEarlyDisposes = 0;
+
+    /**
+     * Counts the delete of the layer with the previous LayerInfo.dispose(false):
+     * unmanaged texture disposed (even when other layers still use it), managed
+     * outside textures and masks outside the asset manager never.
+     */
+    static void countLegacyDelete(LayerTextureRegistry registry, LayerInfo layerInfo) {
+        final Texture texture = layerInfo.getTexture();
+        if (texture != null && registry.getAssetFileName(texture) == null) {
+            if (!texture.isManaged()) {
+                if (registry.getReferenceCount(texture) > 1)
+                    legacyEarlyDisposes++;
+            } else if (registry.getReferenceCount(texture) == 1) {
+                legacyLeakedBytes += LayerTextureRegistry.getTextureBytes(texture);
+            }
+        }
+    }
+
+    static int countAlive(Array<Texture> textures) {
+        int alive = 0;
+        for (int i = 0; i < textures.size; i++) {
+            if (textures.get(i).getTextureObjectHandle() != 0)
+                alive++;
+        }
+        return alive;
+    }
+
+    static int sumReferenceCounts(ParallelAssetManager assetManager) {
+        int sum = 0;
+        final Array<String> names = assetManager.getAssetNames();
+        for (int i = 0; i < names.size; i++)
+            sum += assetManager.getReferenceCount(names.get(i));
+        return sum;
+    }
+
+    /**
+     * One kiosk cycle - returns false when a shared outside texture was disposed
+     * while another layer still used it.
+     */
+    static boolean runCycle(LayerMaskingEffectDrawer drawer, ParallelAssetManager assetManager,
+                            int cycle, int layerCount, Array<Texture> outside) {
+        final LayerTextureRegistry registry = drawer.getTextureRegistry();
+        final LayerMaskingEffect effect = drawer.createLayerEffect("kiosk" + cycle);
+        for (int i = 0; i < layerCount; i++) {
+            final String texture = i % 4 == 3 ? TEXTURES[1 + i % 2] : SHARED_TEXTURE;
+            LayerInfo layerInfo = effect.addLayer(texture, MASKS[i % MASKS.length]);
+            layerInfo.rotationSpeed = (i % 3 - 1) * 15.0f;
+        }
+        // outside textures - owned by the layers, each shared by two of them
+        Pixmap pixmap = new Pixmap(64, 64, Pixmap.Format.RGBA8888);
+        final Texture pixmapTexture = new Texture(pixmap);
+        pixmap.dispose();
+        final Texture fileTexture = new Texture(Gdx.files.internal(FILE_TEXTURE));
+        outside.add(pixmapTexture);
+        outside.add(fileTexture);
+        final LayerInfo first = effect.addLayer(pixmapTexture, assetManager.get(MASKS[0], Texture.class));
+        effect.addLayer(pixmapTexture);
+        effect.addLayer(fileTexture);
+        final LayerInfo last = effect.addLayer(fileTexture, assetManager.get(MASKS[1], Texture.class));
+
+        drawer.showOnly(drawer.indexOf(effect));
+        for (int frame = 0; frame < 30; frame++) {
+            drawer.update(FRAME_TIME);
+            if (frame == 10)
+                effect.get(0).setMaskTexture(assetManager.get(MASKS[2], Texture.class)); // swap
+        }
+        // delete one user of each outside texture - the other one still draws it
+        countLegacyDelete(registry, first);
+        effect.deleteLayer(effect.indexOf(first));
+        countLegacyDelete(registry, last);
+        effect.deleteLayer(effect.indexOf(last));
+        final boolean alive = pixmapTexture.getTextureObjectHandle() != 0
+                && fileTexture.getTextureObjectHandle() != 0;
+        for (int frame = 0; frame < 30; frame++)
+            drawer.update(FRAME_TIME);
+        for (int i = 0; i < effect.count(); i++)
+            countLegacyDelete(registry, effect.get(i));
+        drawer.deleteLayerEffect(effect);
+        return alive;
+    } // boolean runCycle(...)
+
+    public static void main(String[] arg) {
+        final int cycles = arg.length > 0 ? Integer.parseInt(arg[0]) : 200;
+        final int layerCount = arg.length > 1 ? Integer.parseInt(arg[1]) : 12;
+
+        HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+        new HeadlessApplication(new ApplicationAdapter() {
+            @Override
+            public void create() {
+                Gdx.app.setLogLevel(Application.LOG_DEBUG);
+                EffectBakerLauncher.installNoOpGL();
+                final ParallelAssetManager assetManager = new ParallelAssetManager();
+                for (int i = 0; i < TEXTURES.length; i++)
+                    assetManager.loadTexture(TEXTURES[i]);
+                for (int i = 0; i < MASKS.length; i++)
+                    assetManager.loadTexture(MASKS[i]);
+                assetManager.finishLoading();
+                final LayerMaskingEffectDrawer drawer = LayerMaskingEffectDrawer.createHeadless(assetManager);
+                final LayerTextureRegistry registry = drawer.getTextureRegistry();
+                final int loadedBefore = assetManager.getLoadedAssets();
+                final int referencesBefore = sumReferenceCounts(assetManager);
+                System.out.println(cycles + " cycles, " + layerCount + " asset layers + 4 outside texture layers,"
+                        + " assets loaded " + loadedBefore + " (references " + referencesBefore + ")");
+
+                final Array<Texture> outside = new Array<Texture>();
+                int earlyDisposes = 0;
+                long maxRetained = 0;
+                for (int cycle = 0; cycle < cycles; cycle++) {
+                    if (!runCycle(drawer, assetManager, cycle, layerCount, outside))
+                        earlyDisposes++;
+                    maxRetained = Math.max(maxRetained, registry.getRetainedBytes());
+                    if (cycle == 0 || cycle == cycles - 1) {
+                        System.out.println(String.format("  after cycle %3d: effects %d, retained textures %d (%d KB),"
+                                        + " assets loaded %d (references %d), outside textures alive %d of %d",
+                                cycle, drawer.count(), registry.getTextureCount(), registry.getRetainedBytes() / 1024,
+                                assetManager.getLoadedAssets(), sumReferenceCounts(assetManager),
+                                countAlive(outside), outside.size));
+                    }
+                }
+                System.out.println(String.format("Retains %d, releases %d, asset references given back %d,"
+                                + " outside textures disposed %d, disposed while still in use %d",
+                        registry.getRetainCount(), registry.getReleaseCount(), registry.getUnloadedCount(),
+                        registry.getDisposedCount(), earlyDisposes));
+                System.out.println(String.format("Previous ownership for the same deletes: %d KB of outside textures"
+                                + " never disposed, %d shared textures disposed while still in use",
+                        legacyLeakedBytes / 1024, legacyEarlyDisposes));
+                final boolean clean = registry.getTextureCount() == 0 && countAlive(outside) == 0
+                        && assetManager.getLoadedAssets() == loadedBefore
+                        && sumReferenceCounts(assetManager) == referencesBefore && earlyDisposes == 0;
+                System.out.println(clean ? "OK - nothing leaked" : "LEAK");
+
+                // effect dropped without deleting it - reported when the drawer goes away
+                LayerMaskingEffect forgotten = drawer.createLayerEffect("forgotten");
+                forgotten.addLayer(SHARED_TEXTURE, MASKS[0]);
+                forgotten.addLayer(SHARED_TEXTURE, MASKS[1]);
+                drawer.getEffects().removeValue(forgotten, true);
+                System.out.println("Disposing drawer with one forgotten effect:");
+                drawer.dispose();
+                assetManager.dispose();
+                Gdx.app.exit();
+            }
+        }, config);
+    }
+} // class TextureLeakLauncher
@@ -0,0 +1,258 @@
+package com.flexigame.layersmaskinggdx.desktop;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.assets.AssetManager;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.graphics.OrthographicCamera;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.utils.TimeUtils;
+import com.flexigame.fg.gfx.LayerMaskingEffect;
+import com.flexigame.fg.gfx.LayerMaskingEffectDrawer;
+import com.flexigame.fg.gfx.LayerPageCache;
+import com.flexigame.fg.gfx.LayerRenderContext;
+import com.flexigame.fg.gfx.ParallelAssetManager;
+import com.flexigame.fg.gfx.ProceduralMask;
+import com.flexigame.fg.gfx.TiledImage;
+import com.flexigame.fg.gfx.TiledLayer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Splits a big image into pages for TiledLayer and runs a headless scrolling
+ * simulation (no-op GL) over it - reports pages loaded, evicted and resident and
+ * how often a page was missing on screen. The image is read one strip of pages
+ * at a time (never decoded whole). Without an image a 4096x4096 test image is
+ * composed from the layer textures. Checks after every frame that the asset manager
+ * holds no more pages than the cache capacity (pages scrolled away while loading
+ * have to be evicted too) - exits with 1 when it does.
+ * Usage: TiledLayerLauncher [image] [tile size] [frames]
+ */
+public class TiledLayerLauncher {
+    static final int BORDER = 1;
+    static final int CACHE_CAPACITY = 24;
+    static final float FRAME_TIME = 1.0f / 60.0f;
+
+    static int failures = 0;
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("  FAILED: " + message);
+            failures++;
+        }
+    }
+
+    /**
+     * Pages of the image loaded in the asset manager (resident or not).
+     */
+    static int countLoadedPages(AssetManager assetManager, TiledImage image) {
+        int count = 0;
+        for (int row = 0; row < image.getRows(); row++) {
+            for (int column = 0; column < image.getColumns(); column++) {
+                if (assetManager.isLoaded(image.getPagePath(column, row), Texture.class))
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes pages (with borders copied from the neighbours, edge texels repeated at
+     * the image border) and the descriptor into the output directory.
+     */
+    static int[] split(File source, File outputDir, int tileSize) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(source);
+        if (input == null)
+            throw new RuntimeException("Cannot read image: " + source.getPath());
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext())
+                throw new RuntimeException("Unsupported image format: " + source.getPath());
+            ImageReader reader = readers.next();
+            reader.setInput(input, false);
+            final int width = reader.getWidth(0);
+            final int height = reader.getHeight(0);
+            final int columns = (width + tileSize - 1) / tileSize;
+            final int rows = (height + tileSize - 1) / tileSize;
+            final int pageSize = tileSize + 2 * BORDER;
+            outputDir.mkdirs();
+            BufferedImage page = new BufferedImage(pageSize, pageSize, BufferedImage.TYPE_INT_ARGB);
+            for (int row = 0; row < rows; row++) {
+                // one strip of pages with the borders
+                final int stripTop = Math.max(0, row * tileSize - BORDER);
+                final int stripBottom = Math.min(height, (row + 1) * tileSize + BORDER);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, stripTop, width, stripBottom - stripTop));
+                BufferedImage strip = reader.read(0, param);
+                for (int column = 0; column < columns; column++) {
+                    for (int y = 0; y < pageSize; y++) {
+                        int sourceY = Math.min(Math.max(row * tileSize - BORDER + y, 0), height - 1);
+                        sourceY = Math.min(Math.max(sourceY - stripTop, 0), strip.getHeight() - 1);
+                        for (int x = 0; x < pageSize; x++) {
+                            final int sourceX = Math.min(Math.max(column * tileSize - BORDER + x, 0), width - 1);
+                            page.setRGB(x, y, strip.getRGB(sourceX, sourceY));
+                        }
+                    }
+                    ImageIO.write(page, "png", new File(outputDir, column + "_" + row + ".png"));
+                }
+            }
+            reader.dispose();
+            return new int[]{width, height};
+        } finally {
+            input.close();
+        }
+    } // int[] split(...)
+
+    /**
+     * Test image - layer textures repeated over a big square.
+     */
+    static File composeTestImage(File outputDir, int size) throws IOException {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        final int cell = 512;
+        int index = 0;
+        for (int y = 0; y < size; y += cell) {
+            for (int x = 0; x < size; x += cell) {
+                BufferedImage layer = ImageIO.read(new File("layers/" + (index % 5 + 1) + "_512.jpg"));
+                graphics.drawImage(layer, x, y, cell, cell, null);
+                index++;
+            }
+        }
+        graphics.dispose();
+        outputDir.mkdirs();
+        File file = new File(outputDir, "test_world.png");
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+
+    static void simulate(TiledImage image, int frames, float scrollSpeed) {
+        // pages are given by absolute paths - internal files resolve them on desktop
+        final ParallelAssetManager assetManager = new ParallelAssetManager();
+        final LayerPageCache pageCache = new LayerPageCache(assetManager, CACHE_CAPACITY);
+        final LayerRenderContext renderContext = new LayerRenderContext();
+        final LayerMaskingEffectDrawer drawer = new LayerMaskingEffectDrawer(assetManager, renderContext);
+        final OrthographicCamera camera = new OrthographicCamera();
+        camera.setToOrtho(false, 1280.0f, 720.0f);
+        drawer.getSpriteBatch().setProjectionMatrix(camera.combined);
+
+        final LayerMaskingEffect effect = drawer.createLayerEffect("world");
+        final TiledLayer layer = new TiledLayer(image, pageCache);
+        layer.size.set(1280.0f, 720.0f);
+        layer.position.set(640.0f, 360.0f);
+        layer.proceduralMask = ProceduralMask.ring(0.45f, 0.2f);
+        layer.shouldPulse = true;
+        layer.minScale = 0.8f;
+        layer.maxScale = 1.3f;
+        layer.speed = 0.2f;
+        layer.rotationSpeed = 6.0f;
+        effect.addLayer(layer);
+
+        int framesWithHoles = 0, missing = 0, pieces = 0, maxPieces = 0, maxLoaded = 0, framesOverCapacity = 0;
+        long drawNanos = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            final long frameStart = TimeUtils.nanoTime();
+            // scrolling around the world, turning slowly
+            final float angle = frame * FRAME_TIME * 0.25f;
+            layer.moveOffsetByPixels(scrollSpeed * FRAME_TIME * (float) Math.cos(angle),
+                    scrollSpeed * FRAME_TIME * (float) Math.sin(angle));
+            assetManager.updateUploads();
+            drawer.update(FRAME_TIME);
+            long start = TimeUtils.nanoTime();
+            renderContext.submit(drawer);
+            renderContext.render();
+            drawNanos += TimeUtils.nanoTime() - start;
+            pageCache.update();
+            final int loaded = countLoadedPages(assetManager, image);
+            maxLoaded = Math.max(maxLoaded, loaded);
+            if (loaded > pageCache.getCapacity())
+                framesOverCapacity++;
+            if (frame >= 30) { // first pages are still loading
+                if (layer.getMissingPieces() > 0)
+                    framesWithHoles++;
+                missing += layer.getMissingPieces();
+            }
+            pieces += layer.getDrawnPieces();
+            maxPieces = Math.max(maxPieces, layer.getDrawnPieces());
+            final long sleep = 16 - TimeUtils.nanosToMillis(TimeUtils.nanoTime() - frameStart);
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+        final long pageBytes = (long) image.getPageSize() * image.getPageSize() * 4;
+        final long imageBytes = (long) image.getWidth() * image.getHeight() * 4;
+        System.out.println(image.getWidth() + "x" + image.getHeight() + " image, " + image.getPageCount()
+                + " pages of " + image.getTileSize() + " (+" + image.getBorder() + " border), " + frames
+                + " frames, scrolling " + (int) scrollSpeed + " px/s:");
+        System.out.println("  pages loaded: " + pageCache.getLoadCount() + ", evicted: " + pageCache.getEvictionCount()
+                + ", resident max: " + pageCache.getMaxResidentCount() + " (capacity " + pageCache.getCapacity() + ")");
+        System.out.println("  pages in the asset manager: " + maxLoaded + " max, " + framesOverCapacity
+                + " frames over capacity, " + countLoadedPages(assetManager, image) + " at the end");
+        check(framesOverCapacity == 0, framesOverCapacity + " frames with more pages loaded than the capacity");
+        System.out.println(String.format("  resident memory: %.1f MB (whole image %.1f MB)",
+                pageCache.getMaxResidentCount() * pageBytes / 1048576.0f, imageBytes / 1048576.0f));
+        System.out.println(String.format("  pieces drawn: %.1f avg, %d max per frame, draw %.3f ms avg",
+                (float) pieces / frames, maxPieces, drawNanos / 1000000.0f / frames));
+        System.out.println("  frames with missing pages: " + framesWithHoles + " (" + missing + " pieces)");
+        drawer.dispose();
+        renderContext.dispose();
+        pageCache.dispose();
+        check(countLoadedPages(assetManager, image) == 0, countLoadedPages(assetManager, image)
+                + " pages left loaded after disposing the cache");
+        assetManager.dispose();
+    } // void simulate(...)
+
+    public static void main(String[] arg) {
+        final String source = arg.length > 0 ? arg[0] : null;
+        final int tileSize = arg.length > 1 ? Integer.parseInt(arg[1]) : 512;
+        final int frames = arg.length > 2 ? Integer.parseInt(arg[2]) : 600;
+
+        HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+        new HeadlessApplication(new ApplicationAdapter() {
+            @Override
+            public void create() {
+                EffectBakerLauncher.installNoOpGL();
+                try {
+                    File work = new File(System.getProperty("java.io.tmpdir"), "layer_tiles");
+                    File image = source != null ? new File(source) : composeTestImage(work, 4096);
+                    String name = image.getName();
+                    if (name.lastIndexOf('.') > 0)
+                        name = name.substring(0, name.lastIndexOf('.'));
+                    File outputDir = new File(work, name + "_" + tileSize);
+                    long start = TimeUtils.millis();
+                    int[] size = split(image, outputDir, tileSize);
+                    TiledImage tiledImage = new TiledImage(outputDir.getAbsolutePath(), size[0], size[1],
+                            tileSize, BORDER);
+                    tiledImage.save(Gdx.files.absolute(outputDir.getAbsolutePath()));
+                    System.out.println("Split " + image.getPath() + " into " + tiledImage.getPageCount()
+                            + " pages in " + (TimeUtils.millis() - start) + " ms: " + outputDir.getPath());
+                    final TiledImage loaded = TiledImage.load(Gdx.files.absolute(outputDir.getAbsolutePath()),
+                            outputDir.getAbsolutePath());
+                    simulate(loaded, frames, 600.0f);
+                    // long fast scroll - pages are left before their upload finishes
+                    simulate(loaded, frames * 3, 4800.0f);
+                } catch (IOException e) {
+                    throw new RuntimeException("Splitting failed", e);
+                }
+                System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+                if (failures > 0)
+                    System.exit(1);
+                Gdx.app.exit();
+            }
+        }, config);
+    }
+} // class TiledLayerLauncher